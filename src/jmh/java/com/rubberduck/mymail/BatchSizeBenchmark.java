@@ -0,0 +1,86 @@
+package com.rubberduck.mymail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Class 	: BatchSizeBenchmark
+ * Purpose	: Cost of choosing the batch size of a worker, for the fixed split of
+ * 			  getBatchSize and for the adaptive BatchSizeController, whose workers share
+ * 			  the heap budget (one worker per benchmark thread).
+ */
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class BatchSizeBenchmark {
+
+	/*
+	 * Class 	: Shared
+	 * Purpose	: Controller shared by all workers, and the mails of a batch
+	 */
+	@State(Scope.Benchmark)
+	public static class Shared {
+		@Param({"1000000"})
+		int mailsCount;						// mails to send
+
+		BatchSizeController controller;		// controller under test
+		List<Mail> mails;					// batch handed to onFetched
+		AtomicInteger workers;				// ids given to the worker threads
+
+		@Setup
+		public void setUp() {
+			controller = BatchSizeController.fromConfig(MyMailService.getBatchSize(mailsCount, 4));
+			mails = new ArrayList<Mail>();
+			for (int i=0; i<100; i++)
+				mails.add(new Mail(i + 1, "sender@mymail.com", "user" + i + "@example.com",
+						"Benchmark", "<p>Hello</p>"));
+			workers = new AtomicInteger();
+		}
+	}
+
+	/*
+	 * Class 	: Worker
+	 * Purpose	: Id of the worker of a benchmark thread
+	 */
+	@State(Scope.Thread)
+	public static class Worker {
+		int id;
+
+		@Setup
+		public void setUp(Shared shared) {
+			id = shared.workers.incrementAndGet();
+		}
+	}
+
+	@Benchmark
+	public int fixed(Shared shared) {
+		return MyMailService.getBatchSize(shared.mailsCount, 4);
+	}
+
+	@Benchmark
+	public int adaptive(Shared shared, Worker worker) {
+		int size = shared.controller.nextBatchSize(worker.id);
+		long bytes = shared.controller.onFetched(worker.id, shared.mails, 5);
+		shared.controller.onCompleted(worker.id, shared.mails.size(), bytes, 50, 0, 0);
+		return size;
+	}
+}
@@ -0,0 +1,63 @@
+package com.rubberduck.mymail;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/*
+ * Class 	: BenchmarkDatabase
+ * Purpose	: In-memory H2 database (in MySQL mode) used by the benchmarks in place of the
+ * 			  MySQL server, so that they measure our code rather than the network.
+ * 			  Each benchmark fork gets its own JVM, and so its own database.
+ */
+
+class BenchmarkDatabase {
+
+	static final String CLAIM_TOKEN = "benchmark";		// token of the mails claimed by claimAll
+
+	private static final String URL = "jdbc:h2:mem:mymail;MODE=MySQL;DATABASE_TO_LOWER=TRUE;"
+			+ "DB_CLOSE_DELAY=-1";
+
+	/*
+	 * Function : create
+	 * Input	: mailsCount (number of dummy mails to insert)
+	 * Purpose	: Points SqlHelper to the in-memory database and fills a new mails table
+	 * Returns	: A SqlHelper using the database
+	 */
+	static SqlHelper create(int mailsCount) {
+		SqlHelper.dbUrl = URL;
+		SqlHelper.username = "sa";
+		SqlHelper.password = "";
+		SqlHelper.mailsTable = "mails";
+
+		SqlHelper sqlHelper = new SqlHelper();
+		sqlHelper.dropTable();
+		sqlHelper.createTable();
+		if (mailsCount > 0)
+			sqlHelper.insertBulkMails(mailsCount);
+		return sqlHelper;
+	}
+
+	// Opens a connection of its own to the database, outside of the pool
+	static Connection connect() throws SQLException {
+		return DriverManager.getConnection(URL, SqlHelper.username, SqlHelper.password);
+	}
+
+	// Claims every mail under CLAIM_TOKEN, as a worker would have
+	static void claimAll() throws SQLException {
+		Connection con = connect();
+		try {
+			Statement stmt = con.createStatement();
+			stmt.executeUpdate("UPDATE " + SqlHelper.mailsTable + " SET sent="
+					+ State.IN_FLIGHT.ordinal() + ", claim_token='" + CLAIM_TOKEN + "'");
+		} finally {
+			con.close();
+		}
+	}
+
+	// Closes the connections of the pool
+	static void close() {
+		SqlHelper.closePool();
+	}
+}
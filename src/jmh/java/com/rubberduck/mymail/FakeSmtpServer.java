@@ -0,0 +1,412 @@
+package com.rubberduck.mymail;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Class 	: FakeSmtpServer
+ * Purpose	: In-process SMTP sink for the LoadTest, in place of fakeSMTP. It speaks enough
+ * 			  ESMTP for the SMTPConnectionPool (EHLO, AUTH PLAIN/LOGIN, MAIL, RCPT, DATA,
+ * 			  RSET, NOOP, QUIT), advertises PIPELINING and answers pipelined commands in
+ * 			  order, flushing its replies only when no other reply is about to follow.
+ * 			  Messages are discarded, only the accepted recipients are counted.
+ * 			  Failures can be injected:
+ * 			  - latencyMillis of round trip: every reply is delivered that long after its
+ * 			    command was read, while the commands pipelined behind it are read on, so a
+ * 			    pipelined group pays the latency once (see DelayedReplies)
+ * 			  - dataLatencyMillis of processing before the reply to a message
+ * 			  - tempFailPercent of the RCPT TO answered 451, at random
+ * 			  - permFailPercent of the recipients answered 550, always the same ones
+ * 			  - dropPercent of the MAIL FROM answered by closing the connection
+ */
+
+public class FakeSmtpServer {
+
+	private long latencyMillis;					// round trip time added to every reply
+	private long dataLatencyMillis;				// time taken to process a message
+	private double tempFailPercent;				// share of RCPT TO failing temporarily
+	private double permFailPercent;				// share of recipients failing permanently
+	private double dropPercent;					// share of MAIL FROM dropping the connection
+	private long seed;							// seed of the injected failures
+
+	private ServerSocket serverSocket;			// socket accepting the connections
+	private ExecutorService sessions;			// one thread per connection
+	private volatile boolean closed;			// set once the server is stopped
+	private volatile long startedAt;			// time delivery times count from, in nanos
+
+	private Map<String, AtomicInteger> deliveries;	// deliveries of each recipient
+	private LatencyHistogram deliveryTimes;		// time from startedAt to each first delivery
+	private AtomicInteger connections;			// connections accepted
+	private AtomicLong messages;				// messages accepted
+	private AtomicLong tempFailures;			// RCPT TO answered 451
+	private AtomicLong permFailures;			// RCPT TO answered 550
+	private AtomicLong drops;					// connections dropped
+
+	// Constructor
+	public FakeSmtpServer(long latencyMillis, long dataLatencyMillis, double tempFailPercent,
+			double permFailPercent, double dropPercent, long seed) {
+		this.latencyMillis = Math.max(0, latencyMillis);
+		this.dataLatencyMillis = Math.max(0, dataLatencyMillis);
+		this.tempFailPercent = tempFailPercent;
+		this.permFailPercent = permFailPercent;
+		this.dropPercent = dropPercent;
+		this.seed = seed;
+		closed = false;
+		deliveries = new ConcurrentHashMap<String, AtomicInteger>();
+		deliveryTimes = new LatencyHistogram();
+		connections = new AtomicInteger();
+		messages = new AtomicLong();
+		tempFailures = new AtomicLong();
+		permFailures = new AtomicLong();
+		drops = new AtomicLong();
+	}
+
+	/*
+	 * Function : start
+	 * Input	: port (port to listen on, 0 for any free port)
+	 * Purpose	: Listens on the loopback interface and serves every connection in a thread
+	 * 			  of its own
+	 * Returns	: The port listened on
+	 */
+	public int start(int port) throws IOException {
+		serverSocket = new ServerSocket(port, 100, InetAddress.getLoopbackAddress());
+		sessions = Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "fake-smtp");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		startedAt = System.nanoTime();
+
+		Thread acceptor = new Thread(new Runnable() {
+			public void run() {
+				while (!closed) {
+					try {
+						final Socket socket = serverSocket.accept();
+						final int number = connections.incrementAndGet();
+						sessions.execute(new Runnable() {
+							public void run() {
+								serve(socket, new Random(seed * 31 + number));
+							}
+						});
+					} catch (IOException e) {
+						if (!closed)
+							System.out.println("Fake SMTP server : " + e.getMessage());
+					}
+				}
+			}
+		}, "fake-smtp-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		return serverSocket.getLocalPort();
+	}
+
+	// Stops accepting connections and closes the open ones
+	public void close() {
+		closed = true;
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			// Nothing more to do
+		}
+		sessions.shutdownNow();
+	}
+
+	/*
+	 * Function : serve
+	 * Input	: socket (connection of a client)
+	 * 			  random (source of the injected failures of the connection)
+	 * Purpose	: Runs the SMTP session of a connection until QUIT, a drop or an error
+	 * Returns	: void
+	 */
+	private void serve(Socket socket, Random random) {
+		List<String> recipients = new ArrayList<String>();	// accepted recipients
+		boolean inTransaction = false;
+		DelayedReplies replies = null;
+
+		try {
+			socket.setTcpNoDelay(true);
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+					"ISO-8859-1"));
+			Writer out = new OutputStreamWriter(socket.getOutputStream(), "ISO-8859-1");
+			replies = new DelayedReplies(in, out);
+			replies.send("220 localhost ESMTP fake");
+
+			String line;
+			while ((line = in.readLine()) != null) {
+				String command = line.length() < 4 ? line.toUpperCase()
+						: line.substring(0, 4).toUpperCase();
+
+				if (command.equals("EHLO")) {
+					replies.send("250-localhost\r\n250-PIPELINING\r\n250-8BITMIME\r\n"
+							+ "250 AUTH PLAIN LOGIN");
+				} else if (command.equals("HELO")) {
+					replies.send("250 localhost");
+				} else if (command.equals("AUTH")) {
+					authenticate(line, in, replies);
+				} else if (command.equals("MAIL")) {
+					if (random.nextDouble() * 100 < dropPercent) {
+						drops.incrementAndGet();
+						return;
+					}
+					recipients.clear();
+					inTransaction = true;
+					replies.send("250 OK");
+				} else if (command.equals("RCPT")) {
+					String recipient = getAddress(line);
+					if (!inTransaction) {
+						replies.send("503 Need MAIL command");
+					} else if (isPermanentFailure(recipient)) {
+						permFailures.incrementAndGet();
+						replies.send("550 No such user " + recipient);
+					} else if (random.nextDouble() * 100 < tempFailPercent) {
+						tempFailures.incrementAndGet();
+						replies.send("451 Try again later");
+					} else {
+						recipients.add(recipient);
+						replies.send("250 OK");
+					}
+				} else if (command.equals("DATA")) {
+					if (!inTransaction || recipients.isEmpty()) {
+						replies.send("554 No valid recipients");
+						continue;
+					}
+					replies.send("354 End data with <CR><LF>.<CR><LF>");
+					while ((line = in.readLine()) != null && !line.equals("."))
+						;
+					if (line == null)
+						return;
+					sleep(dataLatencyMillis);
+					delivered(recipients);
+					inTransaction = false;
+					replies.send("250 OK queued");
+				} else if (command.equals("RSET")) {
+					recipients.clear();
+					inTransaction = false;
+					replies.send("250 OK");
+				} else if (command.equals("NOOP")) {
+					replies.send("250 OK");
+				} else if (command.equals("QUIT")) {
+					replies.send("221 Bye");
+					return;
+				} else {
+					replies.send("500 Command not recognized");
+				}
+			}
+		} catch (IOException e) {
+			// The client went away
+		} finally {
+			// Replies still on their way are delivered before the connection is closed
+			if (replies != null)
+				replies.close();
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// Nothing more to do
+			}
+		}
+	}
+
+	// Answers AUTH PLAIN and AUTH LOGIN, accepting any credentials
+	private void authenticate(String line, BufferedReader in, DelayedReplies replies)
+			throws IOException {
+		String[] parts = line.trim().split("\\s+");
+		String mechanism = parts.length > 1 ? parts[1].toUpperCase() : "";
+		if (mechanism.equals("PLAIN")) {
+			if (parts.length < 3) {
+				replies.send("334 ");
+				in.readLine();
+			}
+		} else if (mechanism.equals("LOGIN")) {
+			if (parts.length < 3) {
+				replies.send("334 VXNlcm5hbWU6");
+				in.readLine();
+			}
+			replies.send("334 UGFzc3dvcmQ6");
+			in.readLine();
+		} else {
+			replies.send("504 Unrecognized authentication type");
+			return;
+		}
+		replies.send("235 Authentication successful");
+	}
+
+	// A reply and the time it is due to be delivered at, a null reply ends the connection
+	private static class PendingReply {
+		private long dueAt;						// System.nanoTime() to deliver it at
+		private String reply;					// reply text, without the line end
+
+		PendingReply(long dueAt, String reply) {
+			this.dueAt = dueAt;
+			this.reply = reply;
+		}
+	}
+
+	/*
+	 * Class	: DelayedReplies
+	 * Purpose	: Delivers the replies of a connection latencyMillis after their command was
+	 * 			  read, from a thread of its own, so that the session goes on reading the
+	 * 			  commands pipelined meanwhile. The replies of a pipelined group then arrive
+	 * 			  together one latency later, as over a link with that round trip time,
+	 * 			  while commands sent one by one pay the latency each.
+	 * 			  Without latency, replies are written by the session thread itself.
+	 */
+	private class DelayedReplies implements Runnable {
+		private BufferedReader in;				// commands of the client
+		private Writer out;						// replies to the client
+		private LinkedBlockingQueue<PendingReply> queue;	// replies not delivered yet, in order
+		private CountDownLatch done;			// counted down once the queue is drained
+		private volatile boolean failed;		// set if the client could not be written to
+
+		DelayedReplies(BufferedReader in, Writer out) {
+			this.in = in;
+			this.out = out;
+			if (latencyMillis > 0) {
+				queue = new LinkedBlockingQueue<PendingReply>();
+				done = new CountDownLatch(1);
+				sessions.execute(this);
+			}
+		}
+
+		// Queues a reply, or writes it at once without latency
+		void send(String reply) throws IOException {
+			if (failed)
+				throw new IOException("Connection closed by the client");
+			if (queue == null) {
+				out.write(reply);
+				out.write("\r\n");
+				if (!in.ready())
+					out.flush();
+				return;
+			}
+			queue.add(new PendingReply(System.nanoTime() + latencyMillis * 1000000L, reply));
+		}
+
+		// Writes the queued replies as they fall due, flushing when none is due yet
+		public void run() {
+			try {
+				while (true) {
+					PendingReply next = queue.take();
+					if (next.reply == null)
+						break;
+					long wait = next.dueAt - System.nanoTime();
+					if (wait > 0)
+						Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+					out.write(next.reply);
+					out.write("\r\n");
+					PendingReply following = queue.peek();
+					if (following == null || following.dueAt > System.nanoTime())
+						out.flush();
+				}
+				out.flush();
+			} catch (IOException e) {
+				failed = true;
+			} catch (InterruptedException e) {
+				failed = true;
+			} finally {
+				done.countDown();
+			}
+		}
+
+		// Waits until the queued replies are delivered
+		void close() {
+			if (queue == null) {
+				try {
+					out.flush();
+				} catch (IOException e) {
+					// The client went away
+				}
+				return;
+			}
+			queue.add(new PendingReply(0, null));
+			try {
+				done.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	// Counts the delivery of a message to its recipients
+	private void delivered(List<String> recipients) {
+		messages.incrementAndGet();
+		long now = System.nanoTime();
+		for (String recipient : recipients) {
+			AtomicInteger count = deliveries.get(recipient);
+			if (count == null) {
+				deliveries.putIfAbsent(recipient, new AtomicInteger());
+				count = deliveries.get(recipient);
+			}
+			if (count.incrementAndGet() == 1)
+				deliveryTimes.record(now - startedAt);
+		}
+	}
+
+	// Returns the address of a MAIL FROM or RCPT TO command, lower-cased
+	private static String getAddress(String line) {
+		int open = line.indexOf('<');
+		int close = line.indexOf('>', open + 1);
+		if (open < 0 || close < 0)
+			return line.substring(Math.min(line.length(), line.indexOf(':') + 1)).trim().toLowerCase();
+		return line.substring(open + 1, close).toLowerCase();
+	}
+
+	// True if the recipient is one of those which always fail, decided by its hash
+	public boolean isPermanentFailure(String recipient) {
+		if (permFailPercent <= 0)
+			return false;
+		long hash = (recipient.toLowerCase().hashCode() ^ seed) & 0x7fffffff;
+		return hash % 10000 < permFailPercent * 100;
+	}
+
+	private static void sleep(long millis) {
+		if (millis <= 0)
+			return;
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// Returns the number of deliveries of each recipient
+	public Map<String, AtomicInteger> getDeliveries() {
+		return deliveries;
+	}
+
+	// Starts counting delivery times from now, e.g. once the mails are queued
+	public void startClock() {
+		startedAt = System.nanoTime();
+	}
+
+	// Returns the time from startClock (or start) to the first delivery of each recipient
+	public LatencyHistogram getDeliveryTimes() {
+		return deliveryTimes;
+	}
+
+	// Returns a short description of what the server saw
+	public String getStats() {
+		return "Fake SMTP server : connections=" + connections.get() + ", messages=" + messages.get()
+				+ ", recipients=" + deliveries.size() + ", 451s=" + tempFailures.get()
+				+ ", 550s=" + permFailures.get() + ", drops=" + drops.get();
+	}
+}
@@ -0,0 +1,165 @@
+package com.rubberduck.mymail;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Class 	: LoadTest
+ * Purpose	: Runs MyMailService end to end in a single process, against a FakeSmtpServer
+ * 			  and the in-memory database of the benchmarks, then reports the throughput,
+ * 			  the latency percentiles and whether every mail was delivered exactly once.
+ * 			  Settings (-Dmymail.loadtest.<name>) :
+ * 			  - mails (default 100000), threads (default 8)
+ * 			  - smtp.latencyMillis, smtp.dataLatencyMillis (default 0)
+ * 			  - smtp.tempFailPercent, smtp.permFailPercent, smtp.dropPercent (default 0)
+ * 			  - seed (default 1), of the injected failures
+ * 			  All other -Dmymail.* settings apply to the service as usual, e.g. engine or
+ * 			  smtp.pipelining. Retries wait 200 ms to 2 s unless retry.* is set.
+ * 			  Exits with 1 if a mail was lost, duplicated or left unsent.
+ */
+
+public class LoadTest {
+
+	public static void main(String[] args) throws IOException, SQLException {
+		int mailsCount = Config.getInt("loadtest.mails", 100000);
+		int threadsCount = Config.getInt("loadtest.threads", 8);
+		setDefault("retry.baseDelayMillis", "200");
+		setDefault("retry.maxDelayMillis", "2000");
+		setDefault("retry.intervalMillis", "100");
+
+		FakeSmtpServer server = new FakeSmtpServer(
+				Config.getLong("loadtest.smtp.latencyMillis", 0),
+				Config.getLong("loadtest.smtp.dataLatencyMillis", 0),
+				getPercent("loadtest.smtp.tempFailPercent"),
+				getPercent("loadtest.smtp.permFailPercent"),
+				getPercent("loadtest.smtp.dropPercent"),
+				Config.getLong("loadtest.seed", 1));
+		int port = server.start(0);
+		System.setProperty(Config.PREFIX + "smtp.host", "127.0.0.1");
+		System.setProperty(Config.PREFIX + "smtp.port", String.valueOf(port));
+
+		SqlHelper sqlHelper = BenchmarkDatabase.create(mailsCount);
+		Metrics.start();
+
+		// Same steps as MyMailService.main, without the prompts
+		System.out.println("\nLoad test : " + mailsCount + " mails, " + threadsCount + " threads");
+		server.startClock();
+		long start = System.nanoTime();
+		MyMailService.startSendingMails(mailsCount, threadsCount);
+		long firstRunNanos = System.nanoTime() - start;
+		int failedCount = MyMailService.processFailedMails(sqlHelper, threadsCount);
+		long totalNanos = System.nanoTime() - start;
+
+		boolean correct = report(server, mailsCount, failedCount, firstRunNanos, totalNanos);
+		server.close();
+		Metrics.stop();
+		BenchmarkDatabase.close();
+		System.exit(correct ? 0 : 1);
+	}
+
+	/*
+	 * Function : report
+	 * Input	: server (the SMTP sink of the run)
+	 * 			  mailsCount, failedCount (mails queued, and left unsent after the retries)
+	 * 			  firstRunNanos, totalNanos (time of the first run, and including retries)
+	 * Purpose	: Prints the throughput and latencies, then checks the final state of every
+	 * 			  mail against what the server received
+	 * Returns	: True if no mail was lost, duplicated or left behind
+	 */
+	private static boolean report(FakeSmtpServer server, int mailsCount, int failedCount,
+			long firstRunNanos, long totalNanos) throws SQLException {
+		Map<String, AtomicInteger> deliveries = server.getDeliveries();
+		System.out.println("\n" + server.getStats());
+		System.out.println("Throughput : " + rate(deliveries.size(), totalNanos) + " mails/s overall, "
+				+ rate(mailsCount - failedCount, firstRunNanos) + " mails/s in the first run ("
+				+ (firstRunNanos / 1000000) + " ms), " + (totalNanos / 1000000) + " ms with retries");
+		System.out.println(percentiles("Delivered after", server.getDeliveryTimes()));
+		String host = "127.0.0.1:" + Config.getInt("smtp.port", 0);
+		System.out.println(percentiles("SMTP send", Metrics.histogram("mymail_smtp_send_seconds",
+				"", "host", host)));
+		System.out.println(percentiles("SMTP pipeline", Metrics.histogram("mymail_smtp_pipeline_seconds",
+				"", "host", host)));
+		System.out.println(percentiles("DB claim", Metrics.histogram("mymail_db_seconds", "", "op", "claim")));
+		System.out.println(percentiles("DB outcomes", Metrics.histogram("mymail_db_seconds", "",
+				"op", "write_outcomes")));
+
+		// Every mail must end up SENT and delivered once, or REJECTED and never delivered
+		int[] states = new int[State.values().length];
+		int lost = 0, duplicated = 0, phantom = 0, wronglyRejected = 0;
+		Connection con = BenchmarkDatabase.connect();
+		try {
+			ResultSet rs = con.createStatement().executeQuery("SELECT recipient, sent FROM "
+					+ SqlHelper.mailsTable);
+			while (rs.next()) {
+				String recipient = rs.getString(1).toLowerCase();
+				State state = State.values()[rs.getInt(2)];
+				AtomicInteger count = deliveries.get(recipient);
+				int delivered = count == null ? 0 : count.get();
+				states[state.ordinal()]++;
+				if (delivered > 1)
+					duplicated++;
+				if (state == State.SENT && delivered == 0)
+					lost++;
+				if (state != State.SENT && delivered > 0)
+					phantom++;
+				if (state == State.REJECTED && !server.isPermanentFailure(recipient))
+					wronglyRejected++;
+			}
+		} finally {
+			con.close();
+		}
+
+		StringBuilder sb = new StringBuilder("States :");
+		for (State state : State.values())
+			sb.append(" ").append(state.name().toLowerCase()).append("=").append(states[state.ordinal()]);
+		System.out.println(sb);
+		int unsent = states[State.NOT_SENT.ordinal()] + states[State.IN_FLIGHT.ordinal()]
+				+ states[State.SCHEDULED.ordinal()] + states[State.DEFERRED.ordinal()];
+		System.out.println("Correctness : lost=" + lost + ", duplicated=" + duplicated
+				+ ", delivered but not SENT=" + phantom + ", unsent=" + unsent
+				+ ", rejected without a 550=" + wronglyRejected
+				+ ", failed after all retries=" + states[State.FAILED.ordinal()]);
+
+		boolean correct = lost == 0 && duplicated == 0 && phantom == 0 && unsent == 0
+				&& wronglyRejected == 0;
+		System.out.println(correct ? "PASSED" : "FAILED");
+		return correct;
+	}
+
+	// Formats the main percentiles of a histogram, in milliseconds
+	private static String percentiles(String name, LatencyHistogram histogram) {
+		return name + " : count=" + histogram.getCount()
+				+ ", p50=" + millis(histogram.getQuantile(0.5))
+				+ ", p99=" + millis(histogram.getQuantile(0.99))
+				+ ", p999=" + millis(histogram.getQuantile(0.999))
+				+ ", max=" + millis(histogram.getMax()) + " ms";
+	}
+
+	private static String millis(double nanos) {
+		return String.format("%.3f", nanos / 1000000);
+	}
+
+	private static String rate(long count, long nanos) {
+		return String.format("%.0f", nanos == 0 ? 0 : count * 1e9 / nanos);
+	}
+
+	// Reads a percentage, 0 if it is not set or invalid
+	private static double getPercent(String name) {
+		try {
+			return Double.parseDouble(Config.getString(name, "0"));
+		} catch (NumberFormatException e) {
+			System.out.println("Invalid value for " + Config.PREFIX + name + ", using 0");
+			return 0;
+		}
+	}
+
+	// Sets a service setting unless it was given on the command line
+	private static void setDefault(String name, String value) {
+		if (System.getProperty(Config.PREFIX + name) == null)
+			System.setProperty(Config.PREFIX + name, value);
+	}
+}
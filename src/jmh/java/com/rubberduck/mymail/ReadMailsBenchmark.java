@@ -0,0 +1,89 @@
+package com.rubberduck.mymail;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/*
+ * Class 	: ReadMailsBenchmark
+ * Purpose	: Time taken to turn a claim of [rows] mails into Mail objects: mapping a
+ * 			  result set alone (getMailsFromResultSet), fetching the whole claim into a
+ * 			  list (getClaimedMails), and streaming it through a MailCursor.
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReadMailsBenchmark {
+
+	@Param({"1000", "10000", "100000"})
+	int rows;								// mails in the claim
+
+	@Param({"500"})
+	int fetchSize;							// rows per round trip of the cursor
+
+	private SqlHelper sqlHelper;			// helper under test
+	private Connection con;					// connection of the mapping benchmark
+	private PreparedStatement select;		// reads the mails to be mapped
+
+	@Setup
+	public void setUp() throws SQLException {
+		sqlHelper = BenchmarkDatabase.create(rows);
+		BenchmarkDatabase.claimAll();
+		con = BenchmarkDatabase.connect();
+		select = con.prepareStatement("SELECT " + SqlHelper.getMailColumns() + " FROM "
+				+ SqlHelper.mailsTable + " ORDER BY id");
+	}
+
+	@TearDown
+	public void tearDown() throws SQLException {
+		con.close();
+		BenchmarkDatabase.close();
+	}
+
+	@Benchmark
+	public List<Mail> mapResultSet() throws SQLException {
+		ResultSet rs = select.executeQuery();
+		try {
+			return sqlHelper.getMailsFromResultSet(rs);
+		} finally {
+			rs.close();
+		}
+	}
+
+	@Benchmark
+	public List<Mail> fetchClaim() {
+		return sqlHelper.getClaimedMails(BenchmarkDatabase.CLAIM_TOKEN);
+	}
+
+	@Benchmark
+	public void streamClaim(Blackhole blackhole) {
+		MailCursor cursor = sqlHelper.openClaimedMails(BenchmarkDatabase.CLAIM_TOKEN, fetchSize);
+		try {
+			while (cursor.hasNext())
+				blackhole.consume(cursor.next());
+		} finally {
+			cursor.close();
+		}
+	}
+}
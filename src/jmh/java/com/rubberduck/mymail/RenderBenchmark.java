@@ -0,0 +1,127 @@
+package com.rubberduck.mymail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Class 	: RenderBenchmark
+ * Purpose	: Time taken to build a message and write it out as it goes on the wire, for
+ * 			  a body of [bodyLength] characters sent to [recipients] distinct recipients.
+ * 			  buildMimeMessage builds a new MimeMessage per mail, as sendEmails did before
+ * 			  the MessageRenderer; renderMessage goes through the renderer and its caches;
+ * 			  rawMessage sends the bytes rendered when the mails were queued (raw_mime).
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RenderBenchmark {
+
+	// Discards what is written, so that only the encoding is measured
+	private static final OutputStream NULL_STREAM = new OutputStream() {
+		public void write(int b) {
+		}
+		public void write(byte[] b, int off, int len) {
+		}
+	};
+
+	@Param({"1024", "65536"})
+	int bodyLength;							// characters in the body
+
+	@Param({"1000"})
+	int recipients;							// distinct recipients cycled through
+
+	private Session mailSession;			// session of the messages
+	private MessageRenderer renderer;		// renderer under test
+	private Mail[] mails;					// mails sharing their content
+	private Mail[] rawMails;				// same mails, rendered when queued
+	private int next;						// index of the next mail
+
+	@Setup
+	public void setUp() {
+		mailSession = Session.getInstance(new Properties());
+		renderer = MessageRenderer.fromConfig(mailSession, null);
+
+		StringBuilder body = new StringBuilder(bodyLength);
+		while (body.length() < bodyLength)
+			body.append("<p>Lorem ipsum dolor sit amet, consectetur adipiscing elit.</p>\n");
+		body.setLength(bodyLength);
+
+		mails = new Mail[recipients];
+		for (int i=0; i<recipients; i++) {
+			mails[i] = new Mail(i + 1, "sender@mymail.com", "user" + i + "@example.com",
+					"Benchmark", body.toString());
+		}
+		rawMails = new Mail[recipients];
+		for (int i=0; i<recipients; i++) {
+			rawMails[i] = new Mail(i + 1, mails[i].getSender(), mails[i].getRecipient(),
+					mails[i].getSubject(), null);
+			try {
+				rawMails[i].setRawMime(renderer.renderRaw(mails[i]));
+			} catch (MessagingException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		next = 0;
+	}
+
+	private Mail nextMail() {
+		return nextMail(mails);
+	}
+
+	private Mail nextMail(Mail[] from) {
+		Mail mail = from[next];
+		next = (next + 1) % from.length;
+		return mail;
+	}
+
+	@Benchmark
+	public MimeMessage buildMimeMessage() throws MessagingException, IOException {
+		Mail mail = nextMail();
+		MimeMessage message = new MimeMessage(mailSession);
+		message.setFrom(new InternetAddress(mail.getSender()));
+		message.setRecipient(Message.RecipientType.TO, new InternetAddress(mail.getRecipient()));
+		message.setSubject(mail.getSubject());
+		message.setContent(mail.getBody(), "text/html");
+		message.saveChanges();
+		message.writeTo(NULL_STREAM);
+		return message;
+	}
+
+	@Benchmark
+	public MimeMessage renderMessage() throws MessagingException, IOException {
+		MimeMessage message = renderer.render(new MailGroup(nextMail()));
+		message.writeTo(NULL_STREAM);
+		return message;
+	}
+
+	@Benchmark
+	public MimeMessage rawMessage() throws MessagingException, IOException {
+		MimeMessage message = renderer.render(new MailGroup(nextMail(rawMails)));
+		message.writeTo(NULL_STREAM);
+		return message;
+	}
+}
@@ -0,0 +1,86 @@
+package com.rubberduck.mymail;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Class 	: SetStateBenchmark
+ * Purpose	: Time taken to record the state of a batch of [batchSize] claimed mails with
+ * 			  each of the setState variants: an id range, an IN list under the claim token,
+ * 			  one batched statement per id, and the transactional writeOutcomes used by
+ * 			  the StateWriter. Mails are set to IN_FLIGHT, the state they are claimed in,
+ * 			  so that every invocation finds and updates the same rows.
+ */
+
+@org.openjdk.jmh.annotations.State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SetStateBenchmark {
+
+	@Param({"100", "1000"})
+	int batchSize;							// mails in the batch
+
+	@Param({"100000"})
+	int rows;								// mails in the table
+
+	private SqlHelper sqlHelper;			// helper under test
+	private List<Integer> ids;				// ids of the batch
+	private List<MailOutcome> outcomes;		// outcomes of the batch
+
+	@Setup
+	public void setUp() throws SQLException {
+		sqlHelper = BenchmarkDatabase.create(rows);
+		BenchmarkDatabase.claimAll();
+
+		// A batch from the middle of the table
+		int first = rows / 2;
+		ids = new ArrayList<Integer>(batchSize);
+		outcomes = new ArrayList<MailOutcome>(batchSize);
+		for (int id=first; id<first+batchSize; id++) {
+			ids.add(id);
+			outcomes.add(new MailOutcome(BenchmarkDatabase.CLAIM_TOKEN, id, State.IN_FLIGHT));
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		BenchmarkDatabase.close();
+	}
+
+	@Benchmark
+	public int range() {
+		return sqlHelper.setState(ids.get(0), ids.get(ids.size() - 1), State.IN_FLIGHT);
+	}
+
+	@Benchmark
+	public int inList() {
+		return sqlHelper.setState(BenchmarkDatabase.CLAIM_TOKEN, ids, State.IN_FLIGHT);
+	}
+
+	@Benchmark
+	public int batched() {
+		return sqlHelper.setState(ids, State.IN_FLIGHT);
+	}
+
+	@Benchmark
+	public int writeOutcomes() {
+		return sqlHelper.writeOutcomes(outcomes);
+	}
+}
@@ -0,0 +1,230 @@
+package com.rubberduck.mymail;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Class 	: BatchSizeController
+ * Purpose	: Chooses the size of the next batch each worker claims, replacing the fixed
+ * 			  MAX_MAILS_IN_MEMORY / threadsCount split.
+ * 			  The bytes of all claimed mails held in memory are tracked against a heap
+ * 			  budget, and each worker's size is adjusted after every batch in an AIMD
+ * 			  fashion: it grows additively while batches go well and halves when they
+ * 			  fail, take too long or the budget runs short.
+ */
+
+public class BatchSizeController {
+
+	private long heapBudgetBytes;				// bytes of claimed mails allowed in memory
+	private int initialSize;					// size of a worker's first batch
+	private int minSize;						// smallest batch size
+	private int maxSize;						// largest batch size
+	private int increaseStep;					// additive increase after a good batch
+	private double maxFailureRate;				// failure rate above which sizes are halved
+	private long targetBatchMillis;				// batches taking longer than this are halved
+
+	private AtomicLong bytesInUse;				// bytes of claimed mails currently in memory
+	private volatile double bytesPerMail;		// moving average of the size of a mail
+	private ConcurrentHashMap<Integer, WorkerStats> workers;	// state of each worker
+
+	// Constructor
+	public BatchSizeController(long heapBudgetBytes, int initialSize, int minSize, int maxSize,
+			int increaseStep, double maxFailureRate, long targetBatchMillis) {
+		this.heapBudgetBytes = heapBudgetBytes;
+		this.minSize = Math.max(1, minSize);
+		this.maxSize = Math.max(this.minSize, maxSize);
+		this.initialSize = Math.min(Math.max(initialSize, this.minSize), this.maxSize);
+		this.increaseStep = Math.max(1, increaseStep);
+		this.maxFailureRate = maxFailureRate;
+		this.targetBatchMillis = targetBatchMillis;
+
+		bytesInUse = new AtomicLong(0);
+		bytesPerMail = 0;
+		workers = new ConcurrentHashMap<Integer, WorkerStats>();
+		Metrics.gauge("mymail_batch_bytes_in_memory", "Bytes of the claimed mails held in memory",
+				new Metrics.Gauge() {
+					public double getValue() {
+						return bytesInUse.get();
+					}
+				});
+	}
+
+	/*
+	 * Function : fromConfig
+	 * Input	: initialSize (size of the first batch of each worker)
+	 * Purpose	: Creates a controller using the batch.* settings. The heap budget defaults
+	 * 			  to a quarter of the maximum heap.
+	 * Returns	: A new BatchSizeController
+	 */
+	public static BatchSizeController fromConfig(int initialSize) {
+		return new BatchSizeController(
+				Config.getLong("batch.heapBudgetBytes", Runtime.getRuntime().maxMemory() / 4),
+				initialSize,
+				Config.getInt("batch.minSize", 10),
+				Config.getInt("batch.maxSize", 10000),
+				Config.getInt("batch.increaseStep", 50),
+				Config.getInt("batch.maxFailurePercent", 10) / 100.0,
+				Config.getLong("batch.targetMillis", 10000));
+	}
+
+	/*
+	 * Function : nextBatchSize
+	 * Input	: workerId (id of the worker about to claim)
+	 * Purpose	: Returns the worker's current batch size, lowered so that the batch fits
+	 * 			  in what is left of the heap budget
+	 * Returns	: Number of mails to claim
+	 */
+	public int nextBatchSize(int workerId) {
+		int size = getWorker(workerId).size;
+
+		if (bytesPerMail > 0) {
+			long available = heapBudgetBytes - bytesInUse.get();
+			long fits = (long) (available / bytesPerMail);
+			if (fits < size)
+				size = (int) Math.max(minSize, fits);
+		}
+		return size;
+	}
+
+	/*
+	 * Function : onFetched
+	 * Input	: workerId (id of the worker)
+	 * 			  mails (mails it claimed)
+	 * 			  fetchMillis (time taken to claim and read them)
+	 * Purpose	: Accounts the bytes of the claimed mails against the heap budget
+	 * Returns	: Number of bytes accounted, to be passed to onCompleted
+	 */
+	public long onFetched(int workerId, List<Mail> mails, long fetchMillis) {
+		long bytes = 0;
+		for (Mail mail : mails)
+			bytes += mail.getSizeInBytes();
+		bytesInUse.addAndGet(bytes);
+
+		if (mails.size() > 0) {
+			double perMail = (double) bytes / mails.size();
+			bytesPerMail = bytesPerMail == 0 ? perMail : 0.8 * bytesPerMail + 0.2 * perMail;
+		}
+
+		WorkerStats stats = getWorker(workerId);
+		stats.fetchMillis = fetchMillis;
+		stats.fetchLatency.record(fetchMillis * 1000000L);
+		return bytes;
+	}
+
+	/*
+	 * Function : onCompleted
+	 * Input	: workerId (id of the worker)
+	 * 			  batchSize (mails in the batch), bytes (as returned by onFetched)
+	 * 			  sendMillis (time taken to send the batch)
+	 * 			  failedCount, unProcessedCount (mails which failed or were not attempted)
+	 * Purpose	: Releases the bytes of the batch and adjusts the worker's next size.
+	 * 			  Failures, slow batches and budget pressure halve the size. Otherwise it
+	 * 			  grows by increaseStep, twice as fast when fetching takes longer than
+	 * 			  sending, since larger batches then amortize the fetch better.
+	 * Returns	: void
+	 */
+	public void onCompleted(int workerId, int batchSize, long bytes, long sendMillis,
+			int failedCount, int unProcessedCount) {
+		onCompleted(workerId, batchSize, bytes, sendMillis, failedCount, unProcessedCount, 0);
+	}
+
+	/*
+	 * Function : onCompleted
+	 * Input	: Same as above, plus
+	 * 			  deferredCount (mails put off by the rate limit of their route)
+	 * Purpose	: Same as above. Deferred mails are neither sent nor failed: a throttled
+	 * 			  route says nothing about the relays of the others, so they do not shrink
+	 * 			  the batches which carry mails for every domain.
+	 * Returns	: void
+	 */
+	public void onCompleted(int workerId, int batchSize, long bytes, long sendMillis,
+			int failedCount, int unProcessedCount, int deferredCount) {
+		long inUse = bytesInUse.addAndGet(-bytes);
+		WorkerStats stats = getWorker(workerId);
+		stats.batchLatency.record(sendMillis * 1000000L);
+		stats.mailsSent.add(Math.max(0, batchSize - failedCount - unProcessedCount - deferredCount));
+		stats.mailsFailed.add(failedCount);
+		stats.mailsUnprocessed.add(unProcessedCount);
+
+		synchronized (stats) {
+			int previous = stats.size;
+			double failureRate = batchSize == 0 ? 0
+					: (double) (failedCount + unProcessedCount) / batchSize;
+			boolean underPressure = inUse + bytes > heapBudgetBytes * 0.8;
+
+			if (failureRate > maxFailureRate || sendMillis + stats.fetchMillis > targetBatchMillis
+					|| underPressure) {
+				stats.size = Math.max(minSize, stats.size / 2);
+			} else if (batchSize >= stats.size) {
+				// Only grow when the full size was actually used
+				int step = stats.fetchMillis > sendMillis ? 2 * increaseStep : increaseStep;
+				stats.size = Math.min(maxSize, stats.size + step);
+			}
+
+			stats.sendRate = sendMillis == 0 ? batchSize : batchSize * 1000.0 / sendMillis;
+			if (stats.size != previous) {
+				System.out.println("Batch size : worker " + workerId + " " + previous + " -> "
+						+ stats.size + " (" + formatRate(stats.sendRate) + " mails/s, "
+						+ (inUse / 1024) + " KB in memory)");
+			}
+		}
+	}
+
+	// Returns a short description of the current sizes
+	public String getStats() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("Batch sizes : budget=").append(heapBudgetBytes / 1024).append(" KB, in use=")
+			.append(bytesInUse.get() / 1024).append(" KB, avg. mail=")
+			.append((long) bytesPerMail).append(" B");
+		for (Integer workerId : workers.keySet())
+			sb.append(", worker ").append(workerId).append("=").append(workers.get(workerId).size);
+		return sb.toString();
+	}
+
+	// Returns the state of a worker, creating it on first use
+	private WorkerStats getWorker(int workerId) {
+		WorkerStats stats = workers.get(workerId);
+		if (stats == null) {
+			workers.putIfAbsent(workerId, new WorkerStats(workerId, initialSize));
+			stats = workers.get(workerId);
+		}
+		return stats;
+	}
+
+	private static String formatRate(double rate) {
+		return String.format("%.0f", rate);
+	}
+
+	/*
+	 * Class	: WorkerStats
+	 * Purpose	: Current batch size and last measurements of a worker, and its metrics
+	 */
+	private static class WorkerStats {
+		volatile int size;				// size of the worker's next batch
+		volatile long fetchMillis;		// time taken by the last fetch
+		volatile double sendRate;		// mails per second of the last batch
+
+		LatencyHistogram fetchLatency;	// time taken by each fetch
+		LatencyHistogram batchLatency;	// time taken to send each batch
+		LongAdder mailsSent;			// mails of the worker's batches sent
+		LongAdder mailsFailed;			// mails which failed
+		LongAdder mailsUnprocessed;		// mails which were not attempted
+
+		WorkerStats(int workerId, int size) {
+			this.size = size;
+			String worker = Metrics.workerLabel(workerId);
+			fetchLatency = Metrics.histogram("mymail_worker_fetch_seconds",
+					"Time taken by a worker to claim and read a batch", "worker", worker);
+			batchLatency = Metrics.histogram("mymail_worker_batch_seconds",
+					"Time taken by a worker to send a batch", "worker", worker);
+			String help = "Mails of the batches of a worker, by result";
+			mailsSent = Metrics.counter("mymail_worker_mails_total", help, "worker", worker, "result", "sent");
+			mailsFailed = Metrics.counter("mymail_worker_mails_total", help, "worker", worker,
+					"result", "failed");
+			mailsUnprocessed = Metrics.counter("mymail_worker_mails_total", help, "worker", worker,
+					"result", "unprocessed");
+		}
+	}
+}
@@ -0,0 +1,159 @@
+package com.rubberduck.mymail;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Class 	: ClaimCursor
+ * Purpose	: Keyset cursor of a worker over the mails table. Each claim starts after the
+ * 			  last id the worker has seen, so rows it already went past are not looked at
+ * 			  again. Mails released behind the cursor (unprocessed mails, claims of other
+ * 			  workers) are picked up by wrapping around to the start once nothing is left
+ * 			  ahead of it.
+ * 			  When the node is part of a cluster, the cursor keeps one position per shard
+ * 			  and takes turns over the shards the node owns (see NodeRegistry).
+ * 			  With a LaneScheduler, it also keeps one position per priority lane and claims
+ * 			  from the lanes in the order the scheduler gives.
+ * 			  A shard or lane found empty is skipped for -Dmymail.claim.emptyMillis, so that
+ * 			  a claim does not probe every empty position of the node each time.
+ */
+
+public class ClaimCursor {
+	private static final int ANY = -1;			// shard or lane when not restricted
+
+	private NodeRegistry registry;				// shards of this node, null outside a cluster
+	private LaneScheduler lanes;				// lane of each claim, null to ignore priorities
+	private Map<Long, Integer> lastSeenIds;		// largest id claimed per shard and lane
+	private Map<Long, Long> emptyUntil;			// positions found empty, skipped until then
+	private long emptyMillis;					// time an empty position is skipped for
+	private long position;						// shard and lane of the last claim
+	private int nextShard;						// index of the owned shard to claim next
+	private long lastClaimAt;					// time of the last claim
+	private int lastClaimed;					// mails claimed by the last claim
+	private double mailsPerMilli;				// rate at which the worker gets through mails
+
+	// Constructor
+	public ClaimCursor() {
+		this(NodeRegistry.getLocal(), null);
+	}
+
+	// Constructor
+	public ClaimCursor(LaneScheduler lanes) {
+		this(NodeRegistry.getLocal(), lanes);
+	}
+
+	// Constructor
+	public ClaimCursor(NodeRegistry registry, LaneScheduler lanes) {
+		this.registry = registry;
+		this.lanes = lanes;
+		lastSeenIds = new HashMap<Long, Integer>();
+		emptyUntil = new HashMap<Long, Long>();
+		// A single position is simply polled again, see the engines
+		emptyMillis = registry != null || lanes != null ? Config.getLong("claim.emptyMillis", 250) : 0;
+		position = key(ANY, ANY);
+		nextShard = 0;
+		lastClaimAt = 0;
+		lastClaimed = 0;
+		mailsPerMilli = 0;
+	}
+
+	/*
+	 * Function : claim
+	 * Input	: sqlHelper (connection to claim with)
+	 * 			  claimToken, limit (as in SqlHelper.claimMails)
+	 * Purpose	: Claims the next mails after the cursor, wrapping around once if none are
+	 * 			  left. Lanes are tried in the order of the LaneScheduler, and within a lane,
+	 * 			  in a cluster, each owned shard in turn, starting after the shard of the
+	 * 			  previous claim. Claims of a lane are sized by the LaneScheduler from
+	 * 			  the rate at which this worker got through its previous claim.
+	 * Returns	: Number of mails claimed, -1 on error
+	 */
+	public int claim(SqlHelper sqlHelper, String claimToken, int limit) {
+		if (lanes == null)
+			return claimShards(sqlHelper, claimToken, limit, ANY);
+
+		// The time since the last claim is what the worker took to send it
+		long now = System.currentTimeMillis();
+		if (lastClaimed > 0 && now > lastClaimAt) {
+			double rate = (double) lastClaimed / (now - lastClaimAt);
+			mailsPerMilli = mailsPerMilli == 0 ? rate : 0.5 * mailsPerMilli + 0.5 * rate;
+		}
+		lastClaimAt = now;
+		lastClaimed = 0;
+
+		for (Priority lane : lanes.nextLanes()) {
+			int claimed = claimShards(sqlHelper, claimToken,
+					lanes.limit(lane, limit, mailsPerMilli), lane.ordinal());
+			if (claimed != 0) {
+				lanes.served(claimed > 0 ? lane : null);
+				lastClaimed = Math.max(0, claimed);
+				return claimed;
+			}
+		}
+		lanes.served(null);
+		return 0;
+	}
+
+	// Claims the next mails of a lane from the shards of this node
+	private int claimShards(SqlHelper sqlHelper, String claimToken, int limit, int lane) {
+		if (registry == null)
+			return claim(sqlHelper, claimToken, limit, ANY, lane);
+
+		int[] shards = registry.getOwnedShards();
+		for (int i=0; i<shards.length; i++) {
+			int index = (nextShard + i) % shards.length;
+			int claimed = claim(sqlHelper, claimToken, limit, shards[index], lane);
+			if (claimed != 0) {
+				nextShard = index + 1;
+				return claimed;
+			}
+		}
+		return 0;
+	}
+
+	// Claims the next mails of a shard and lane, wrapping around once if none are left
+	private int claim(SqlHelper sqlHelper, String claimToken, int limit, int shard, int lane) {
+		position = key(shard, lane);
+		Long skipUntil = emptyUntil.get(position);
+		if (skipUntil != null && skipUntil > System.currentTimeMillis())
+			return 0;
+
+		int lastSeenId = getLastSeenId();
+		int claimed = sqlHelper.claimMails(claimToken, limit, lastSeenId, shard, lane);
+		if (claimed == 0 && lastSeenId > 0) {
+			lastSeenIds.put(position, 0);
+			claimed = sqlHelper.claimMails(claimToken, limit, 0, shard, lane);
+		}
+		if (claimed == 0 && emptyMillis > 0)
+			emptyUntil.put(position, System.currentTimeMillis() + emptyMillis);
+		else
+			emptyUntil.remove(position);
+		return claimed;
+	}
+
+	// Key of the cursor position of a shard and lane
+	private static long key(int shard, int lane) {
+		return ((long) shard << 32) | (lane & 0xffffffffL);
+	}
+
+	// Moves the cursor past a claimed mail
+	public void advance(int mailId) {
+		if (mailId > getLastSeenId())
+			lastSeenIds.put(position, mailId);
+	}
+
+	// Moves the cursor past claimed mails
+	public void advance(List<Mail> mails) {
+		for (Mail mail : mails)
+			advance(mail.getId());
+		if (lanes != null)
+			lanes.claimed(mails);
+	}
+
+	// Returns the largest id claimed at the position of the last claim
+	public int getLastSeenId() {
+		Integer lastSeenId = lastSeenIds.get(position);
+		return lastSeenId != null ? lastSeenId : 0;
+	}
+}
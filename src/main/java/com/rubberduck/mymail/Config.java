@@ -0,0 +1,95 @@
+package com.rubberduck.mymail;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/*
+ * Class 	: Config
+ * Purpose	: Reads tunable settings from system properties (-Dmymail.<name>=<value>)
+ * 			  and falls back to the given defaults when a setting is missing or invalid.
+ * 			  Settings can also be kept in a properties file, see load.
+ */
+
+public class Config {
+	static final String PREFIX = "mymail.";		// prefix shared by all settings
+
+	// Returns the raw value of a setting, or defaultValue if it is not set
+	public static String getString(String name, String defaultValue) {
+		String value = System.getProperty(PREFIX + name);
+		if (value == null || value.trim().length() == 0)
+			return defaultValue;
+		return value.trim();
+	}
+
+	// Returns the integer value of a setting, or defaultValue if it is not set/invalid
+	public static int getInt(String name, int defaultValue) {
+		String value = getString(name, null);
+		if (value == null)
+			return defaultValue;
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			System.out.println("Invalid value for " + PREFIX + name + " : " + value +
+					", using " + defaultValue);
+			return defaultValue;
+		}
+	}
+
+	// Returns the long value of a setting, or defaultValue if it is not set/invalid
+	public static long getLong(String name, long defaultValue) {
+		String value = getString(name, null);
+		if (value == null)
+			return defaultValue;
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			System.out.println("Invalid value for " + PREFIX + name + " : " + value +
+					", using " + defaultValue);
+			return defaultValue;
+		}
+	}
+
+	/*
+	 * Function : load
+	 * Input	: path (properties file of <name>=<value> lines, without the mymail. prefix)
+	 * Purpose	: Adds the settings of a file to the system properties. Settings given on
+	 * 			  the command line take precedence over the file.
+	 * Returns	: True if the file was read, false otherwise
+	 */
+	public static boolean load(String path) {
+		Properties file = new Properties();
+		InputStream in = null;
+		try {
+			in = new FileInputStream(path);
+			file.load(in);
+		} catch (IOException e) {
+			System.out.println("Could not read the settings of " + path + "!");
+			System.out.println(e.getMessage());
+			return false;
+		} finally {
+			try {
+				if (in != null)
+					in.close();
+			} catch (IOException e) {
+				System.out.println(e.getMessage());
+			}
+		}
+
+		for (String name : file.stringPropertyNames()) {
+			String key = name.startsWith(PREFIX) ? name : PREFIX + name;
+			if (System.getProperty(key) == null)
+				System.setProperty(key, file.getProperty(name).trim());
+		}
+		return true;
+	}
+
+	// Returns the boolean value of a setting, or defaultValue if it is not set
+	public static boolean getBoolean(String name, boolean defaultValue) {
+		String value = getString(name, null);
+		if (value == null)
+			return defaultValue;
+		return Boolean.parseBoolean(value);
+	}
+}
@@ -0,0 +1,395 @@
+package com.rubberduck.mymail;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+/*
+ * Class 	: ConnectionPool
+ * Purpose	: Bounded pool of database connections shared by all SqlHelpers, so that workers
+ * 			  borrow a connection per operation instead of each opening its own.
+ * 			  Idle connections are validated before reuse, connections are replaced after
+ * 			  a maximum lifetime, and connections held for too long are reported as
+ * 			  possible leaks along with the place they were borrowed from.
+ */
+
+public class ConnectionPool {
+
+	private String url;							// JDBC URL
+	private String user;						// DB username
+	private String pass;						// DB password
+	private int minSize;						// connections kept open even when idle
+	private int maxSize;						// maximum number of open connections
+	private long maxLifetimeMillis;				// connections older than this are replaced
+	private long idleTimeoutMillis;				// idle connections older than this are closed
+	private long validationIntervalMillis;		// connections idle longer are validated
+	private long leakDetectionMillis;			// borrows longer than this are reported, 0 = off
+	private int statementCacheSize;				// prepared statements cached per connection
+	private long borrowTimeoutMillis;			// maximum time to wait for a free connection
+
+	private LinkedList<PooledConnection> idle;	// connections available for reuse
+	private Set<PooledConnection> borrowed;		// connections currently handed out
+	private int openCount;						// connections currently open (idle + borrowed)
+	private long statementsPrepared;			// statements prepared by closed connections
+	private long statementCacheHits;			// cache hits of closed connections
+	private boolean closed;						// set once the pool has been shut down
+	private Thread evictor;						// background thread for eviction and leaks
+	private LatencyHistogram borrowLatency;		// time taken to hand out a connection
+
+	// Constructor
+	public ConnectionPool(String url, String user, String pass, int minSize, int maxSize,
+			long maxLifetimeMillis, long idleTimeoutMillis, long validationIntervalMillis,
+			long leakDetectionMillis, int statementCacheSize) {
+		this.url = url;
+		this.user = user;
+		this.pass = pass;
+		this.maxSize = Math.max(1, maxSize);
+		this.minSize = Math.min(Math.max(0, minSize), this.maxSize);
+		this.maxLifetimeMillis = maxLifetimeMillis;
+		this.idleTimeoutMillis = idleTimeoutMillis;
+		this.validationIntervalMillis = validationIntervalMillis;
+		this.leakDetectionMillis = leakDetectionMillis;
+		this.statementCacheSize = statementCacheSize;
+		this.borrowTimeoutMillis = Config.getLong("db.pool.borrowTimeoutMillis", 30000);
+
+		idle = new LinkedList<PooledConnection>();
+		borrowed = Collections.newSetFromMap(new IdentityHashMap<PooledConnection, Boolean>());
+		openCount = 0;
+		closed = false;
+		borrowLatency = Metrics.histogram("mymail_db_pool_borrow_seconds",
+				"Time taken to borrow a database connection, opening it if needed");
+		registerGauges();
+
+		startEvictor();
+	}
+
+	// Exports the use of the pool through Metrics
+	private void registerGauges() {
+		String help = "Database connections of the pool";
+		Metrics.gauge("mymail_db_pool_connections", help, new Metrics.Gauge() {
+			public double getValue() {
+				synchronized (ConnectionPool.this) {
+					return openCount;
+				}
+			}
+		}, "state", "open");
+		Metrics.gauge("mymail_db_pool_connections", help, new Metrics.Gauge() {
+			public double getValue() {
+				synchronized (ConnectionPool.this) {
+					return borrowed.size();
+				}
+			}
+		}, "state", "borrowed");
+		Metrics.gauge("mymail_db_pool_connections", help, new Metrics.Gauge() {
+			public double getValue() {
+				synchronized (ConnectionPool.this) {
+					return idle.size();
+				}
+			}
+		}, "state", "idle");
+		Metrics.gauge("mymail_db_pool_connections", help, new Metrics.Gauge() {
+			public double getValue() {
+				return maxSize;
+			}
+		}, "state", "max");
+	}
+
+	/*
+	 * Function : fromConfig
+	 * Input	: url, user, pass (database to connect to)
+	 * Purpose	: Creates a pool using the db.pool.* settings
+	 * Returns	: A new ConnectionPool
+	 */
+	public static ConnectionPool fromConfig(String url, String user, String pass) {
+		return new ConnectionPool(url, user, pass,
+				Config.getInt("db.pool.minSize", 1),
+				Config.getInt("db.pool.maxSize", 30),
+				Config.getLong("db.pool.maxLifetimeMillis", 30 * 60 * 1000L),
+				Config.getLong("db.pool.idleTimeoutMillis", 10 * 60 * 1000L),
+				Config.getLong("db.pool.validationIntervalMillis", 5000),
+				Config.getLong("db.pool.leakDetectionMillis", 60000),
+				Config.getInt("db.pool.statementCacheSize", 32));
+	}
+
+	/*
+	 * Function : borrow
+	 * Input	: none
+	 * Purpose	: Hands out an idle connection, validating it if it has been idle for a while
+	 * 			  and replacing it if it is past its lifetime, or opens a new one if the pool
+	 * 			  is below its maximum size. Waits for a connection to be returned otherwise.
+	 * Returns	: A connection, null if none could be obtained
+	 */
+	public PooledConnection borrow() {
+		long start = System.nanoTime();
+		long deadline = System.currentTimeMillis() + borrowTimeoutMillis;
+
+		while (true) {
+			PooledConnection candidate = null;
+			boolean mayOpen = false;
+
+			synchronized (this) {
+				while (!closed && idle.isEmpty() && openCount >= maxSize) {
+					long wait = deadline - System.currentTimeMillis();
+					if (wait <= 0) {
+						System.out.println("Timed out waiting for a database connection ("
+								+ openCount + " open)");
+						return null;
+					}
+					try {
+						wait(wait);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return null;
+					}
+				}
+				if (closed)
+					return null;
+
+				if (!idle.isEmpty()) {
+					candidate = idle.removeFirst();
+				} else {
+					openCount++;
+					mayOpen = true;
+				}
+			}
+
+			if (mayOpen) {
+				PooledConnection pooled = open();
+				if (pooled == null) {
+					synchronized (this) {
+						openCount--;
+						notifyAll();
+					}
+					return null;
+				}
+				return lend(pooled, start);
+			}
+
+			if (!isExpired(candidate) && validate(candidate))
+				return lend(candidate, start);
+			discard(candidate);
+		}
+	}
+
+	/*
+	 * Function : release
+	 * Input	: pooled (connection obtained through borrow)
+	 * Purpose	: Returns a connection to the pool, rolling back any transaction left open.
+	 * 			  Broken connections and connections past their lifetime are closed instead.
+	 * Returns	: void
+	 */
+	public void release(PooledConnection pooled) {
+		if (pooled == null)
+			return;
+
+		synchronized (this) {
+			borrowed.remove(pooled);
+		}
+
+		Connection connection = pooled.getConnection();
+		try {
+			if (!connection.getAutoCommit()) {
+				connection.rollback();
+				connection.setAutoCommit(true);
+			}
+		} catch (SQLException e) {
+			pooled.checkError(e);
+		}
+
+		if (pooled.isBroken() || isExpired(pooled)) {
+			discard(pooled);
+			return;
+		}
+
+		synchronized (this) {
+			if (!closed) {
+				pooled.touch();
+				idle.addFirst(pooled);
+				notifyAll();
+				return;
+			}
+		}
+		discard(pooled);
+	}
+
+	/*
+	 * Function : close
+	 * Input	: none
+	 * Purpose	: Stops the evictor and closes all idle connections. Connections which are
+	 * 			  still borrowed are closed when they are released.
+	 * Returns	: void
+	 */
+	public void close() {
+		LinkedList<PooledConnection> toClose;
+		synchronized (this) {
+			closed = true;
+			toClose = new LinkedList<PooledConnection>(idle);
+			idle.clear();
+			notifyAll();
+		}
+		evictor.interrupt();
+		for (PooledConnection pooled : toClose)
+			discard(pooled);
+	}
+
+	// Returns a short description of the pool state
+	public synchronized String getStats() {
+		long prepared = statementsPrepared;
+		long hits = statementCacheHits;
+		List<PooledConnection> open = new ArrayList<PooledConnection>(idle);
+		open.addAll(borrowed);
+		for (PooledConnection pooled : open) {
+			prepared += pooled.getStatementsPrepared();
+			hits += pooled.getStatementCacheHits();
+		}
+		return "DB pool : open=" + openCount + ", idle=" + idle.size() + ", max=" + maxSize
+				+ ", statements prepared=" + prepared + ", statement cache hits=" + hits;
+	}
+
+	// Opens a new connection
+	private PooledConnection open() {
+		try {
+			return new PooledConnection(DriverManager.getConnection(url, user, pass),
+					statementCacheSize);
+		} catch (SQLException se) {
+			System.out.println("\nCould not connect to database!");
+			System.out.println(se.getMessage());
+			return null;
+		}
+	}
+
+	// Hands a connection out to a caller of borrow, which started at [start] (System.nanoTime)
+	private PooledConnection lend(PooledConnection pooled, long start) {
+		handOut(pooled);
+		borrowLatency.recordSince(start);
+		return pooled;
+	}
+
+	// Registers a connection as borrowed
+	private PooledConnection handOut(PooledConnection pooled) {
+		pooled.borrowed(leakDetectionMillis > 0);
+		synchronized (this) {
+			borrowed.add(pooled);
+		}
+		return pooled;
+	}
+
+	private boolean isExpired(PooledConnection pooled) {
+		return maxLifetimeMillis > 0
+				&& System.currentTimeMillis() - pooled.getCreatedAt() > maxLifetimeMillis;
+	}
+
+	// Checks that a connection which has been idle for a while still works
+	private boolean validate(PooledConnection pooled) {
+		if (System.currentTimeMillis() - pooled.getLastUsedAt() < validationIntervalMillis)
+			return true;
+		try {
+			return pooled.getConnection().isValid(5);
+		} catch (SQLException e) {
+			return false;
+		}
+	}
+
+	// Closes a connection and frees its slot in the pool
+	private void discard(PooledConnection pooled) {
+		pooled.close();
+		synchronized (this) {
+			statementsPrepared += pooled.getStatementsPrepared();
+			statementCacheHits += pooled.getStatementCacheHits();
+			openCount--;
+			notifyAll();
+		}
+	}
+
+	// Starts a daemon thread which evicts idle connections, keeps minSize connections open
+	// and reports leaks
+	private void startEvictor() {
+		evictor = new Thread(new Runnable() {
+			public void run() {
+				long interval = 1000;
+				while (!Thread.currentThread().isInterrupted()) {
+					try {
+						Thread.sleep(interval);
+					} catch (InterruptedException e) {
+						return;
+					}
+					evictIdle();
+					fillToMinimum();
+					reportLeaks();
+				}
+			}
+		}, "db-pool-evictor");
+		evictor.setDaemon(true);
+		evictor.start();
+	}
+
+	// Closes connections which have been idle for too long or are past their lifetime
+	private void evictIdle() {
+		LinkedList<PooledConnection> expired = new LinkedList<PooledConnection>();
+		long now = System.currentTimeMillis();
+		synchronized (this) {
+			Iterator<PooledConnection> it = idle.descendingIterator();
+			while (it.hasNext()) {
+				PooledConnection pooled = it.next();
+				boolean tooIdle = now - pooled.getLastUsedAt() > idleTimeoutMillis
+						&& openCount - expired.size() > minSize;
+				if (tooIdle || isExpired(pooled)) {
+					it.remove();
+					expired.add(pooled);
+				}
+			}
+		}
+		for (PooledConnection pooled : expired)
+			discard(pooled);
+	}
+
+	// Opens connections until at least minSize are open
+	private void fillToMinimum() {
+		while (true) {
+			synchronized (this) {
+				if (closed || openCount >= minSize)
+					return;
+				openCount++;
+			}
+			PooledConnection pooled = open();
+			if (pooled == null) {
+				synchronized (this) {
+					openCount--;
+				}
+				return;
+			}
+			handOut(pooled);
+			release(pooled);
+		}
+	}
+
+	// Reports connections which have been borrowed for longer than leakDetectionMillis
+	private void reportLeaks() {
+		if (leakDetectionMillis <= 0)
+			return;
+
+		List<PooledConnection> leaked = new ArrayList<PooledConnection>();
+		long now = System.currentTimeMillis();
+		synchronized (this) {
+			for (PooledConnection pooled : borrowed) {
+				if (!pooled.isLeakReported() && now - pooled.getBorrowedAt() > leakDetectionMillis) {
+					pooled.setLeakReported();
+					leaked.add(pooled);
+				}
+			}
+		}
+		for (PooledConnection pooled : leaked) {
+			System.out.println("Database connection borrowed " + (now - pooled.getBorrowedAt())
+					+ " ms ago has not been returned, possible leak");
+			if (pooled.getBorrowTrace() != null)
+				pooled.getBorrowTrace().printStackTrace(System.out);
+		}
+	}
+}
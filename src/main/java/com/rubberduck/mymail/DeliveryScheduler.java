@@ -0,0 +1,243 @@
+package com.rubberduck.mymail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/*
+ * Class 	: DeliveryScheduler
+ * Purpose	: Releases SCHEDULED mails (mails with a send_at time) to the workers when their
+ * 			  time comes, without the workers ever looking at them.
+ * 			  Mails due within -Dmymail.delivery.horizonMillis are loaded from the table every
+ * 			  -Dmymail.delivery.loadMillis into a TimingWheel, which holds their ids until
+ * 			  they are due. Loaded mails are leased to this scheduler, so each load only
+ * 			  reads the slice of time the horizon moved on by, plus mails scheduled into
+ * 			  the window since the last load. Every -Dmymail.delivery.tickMillis the wheel
+ * 			  is turned and the mails which fell due are moved to NOT_SENT, from where the
+ * 			  workers claim them like any other mail.
+ * 			  Mails of a scheduler which died are taken over by another one when their
+ * 			  lease expires, [horizonMillis] plus claim.leaseSeconds after they were loaded.
+ */
+
+public class DeliveryScheduler {
+
+	private SqlHelper sqlHelper;				// database helper used for the loads
+	private TimingWheel wheel;					// loaded mails, until they are due
+	private long tickMillis;					// time between two turns of the wheel
+	private long horizonMillis;					// how far ahead mails are loaded
+	private long loadMillis;					// time between two loads
+	private int limit;							// max. mails read per load query
+	private int maxMails;						// max. mails held in the wheel
+	private long loadedAt;						// time of the last load
+	private WorkPoller poller;					// woken up when mails are released, or null
+
+	private volatile boolean closed;			// set once the scheduler is stopped
+	private Thread thread;						// background thread, if started
+	private final Object wakeUp = new Object();	// notified to stop the background thread
+	private long loaded;						// mails loaded so far
+	private long released;						// mails released so far
+	private long overdue;						// mails which were already due when loaded
+	private long unleased;						// mails given up when closing
+
+	// Constructor
+	public DeliveryScheduler(long tickMillis, long horizonMillis, long loadMillis, int limit,
+			int maxMails) {
+		this.tickMillis = Math.max(1, tickMillis);
+		this.horizonMillis = Math.max(this.tickMillis, horizonMillis);
+		this.loadMillis = Math.max(this.tickMillis, loadMillis);
+		this.limit = Math.max(1, limit);
+		this.maxMails = Math.max(this.limit, maxMails);
+		sqlHelper = new SqlHelper();
+		// Mails may wait past the horizon when a load falls behind, leave room for it
+		wheel = new TimingWheel(this.tickMillis, this.horizonMillis * 2, System.currentTimeMillis());
+		loadedAt = 0;
+		closed = false;
+		loaded = 0;
+		released = 0;
+		overdue = 0;
+		unleased = 0;
+
+		Metrics.gauge("mymail_delivery_held", "Scheduled mails held until their send time",
+				new Metrics.Gauge() {
+					public double getValue() {
+						synchronized (DeliveryScheduler.this) {
+							return wheel.size();
+						}
+					}
+				});
+	}
+
+	/*
+	 * Function : fromConfig
+	 * Input	: none
+	 * Purpose	: Creates a scheduler using the delivery.* settings
+	 * Returns	: A new DeliveryScheduler
+	 */
+	public static DeliveryScheduler fromConfig() {
+		return new DeliveryScheduler(
+				Config.getLong("delivery.tickMillis", 100),
+				Config.getLong("delivery.horizonMillis", 60000),
+				Config.getLong("delivery.loadMillis", 1000),
+				Config.getInt("delivery.limit", 10000),
+				Config.getInt("delivery.maxMails", 1000000));
+	}
+
+	// Wakes up the idle workers of a MailDaemon whenever mails are released
+	public void setPoller(WorkPoller poller) {
+		this.poller = poller;
+	}
+
+	/*
+	 * Function : start
+	 * Input	: none
+	 * Purpose	: Starts a background thread which turns the wheel every [tickMillis] and
+	 * 			  loads the mails coming into the horizon every [loadMillis]
+	 * Returns	: void
+	 */
+	public void start() {
+		thread = new Thread(new Runnable() {
+			public void run() {
+				while (!closed) {
+					tick(false);
+					// Woken up early by close, never interrupted while talking to the database
+					synchronized (wakeUp) {
+						try {
+							if (!closed)
+								wakeUp.wait(tickMillis);
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+				}
+			}
+		}, "delivery-scheduler");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	// Loads the mails due soon and releases the mails which are due, returns how many were released
+	public int releaseDue() {
+		return tick(true);
+	}
+
+	// Loads if [force] or if the last load is [loadMillis] old, then turns the wheel
+	private synchronized int tick(boolean force) {
+		long now = System.currentTimeMillis();
+		List<Integer> due = new ArrayList<Integer>();
+		if (force || now - loadedAt >= loadMillis)
+			load(now, due);
+		wheel.advance(System.currentTimeMillis(), due);
+		return release(due);
+	}
+
+	/*
+	 * Function : load
+	 * Input	: now (current time)
+	 * 			  due (list the mails which are already due are added to)
+	 * Purpose	: Moves the mails due before [now + horizonMillis] from the table to the wheel,
+	 * 			  [limit] at a time, until none is left or the wheel holds [maxMails]. Each
+	 * 			  query uses its own token, so that it reads back only the mails it leased.
+	 * Returns	: void
+	 */
+	private void load(long now, List<Integer> due) {
+		loadedAt = now;
+		long dueBefore = now + horizonMillis;
+		long leaseUntil = dueBefore + SqlHelper.CLAIM_LEASE_SECONDS * 1000L;
+		List<Integer> ids = new ArrayList<Integer>();
+		List<Long> sendAts = new ArrayList<Long>();
+
+		int count = limit;
+		while (count == limit && wheel.size() < maxMails) {
+			ids.clear();
+			sendAts.clear();
+			count = sqlHelper.loadScheduledMails(UUID.randomUUID().toString(), dueBefore, leaseUntil,
+					Math.min(limit, maxMails - wheel.size()), ids, sendAts);
+			for (int i=0; i<ids.size(); i++) {
+				if (!wheel.add(ids.get(i), sendAts.get(i))) {
+					due.add(ids.get(i));
+					overdue++;
+				}
+			}
+			loaded += ids.size();
+		}
+	}
+
+	// Releases the mails which are due, mails which could not be released stay leased
+	// until another load takes them over
+	private int release(List<Integer> due) {
+		int count = 0;
+		for (int i=0; i<due.size(); i+=limit) {
+			int result = sqlHelper.releaseScheduledMails(due.subList(i, Math.min(due.size(), i + limit)));
+			if (result > 0)
+				count += result;
+		}
+		released += count;
+		if (count > 0 && poller != null)
+			poller.wakeUp();
+		return count;
+	}
+
+	/*
+	 * Function : getNextSendAt
+	 * Input	: none
+	 * Purpose	: Finds when the next scheduled mail is released, from the wheel and from the
+	 * 			  mails still waiting in the table
+	 * Returns	: Time in millis, -1 if no mail is scheduled
+	 */
+	public long getNextSendAt() {
+		long inWheel;
+		synchronized (this) {
+			inWheel = wheel.getNextDueAt();
+		}
+		long inTable = sqlHelper.getNextSendAt();
+		if (inWheel < 0 || inTable < 0)
+			return Math.max(inWheel, inTable);
+		return Math.min(inWheel, inTable);
+	}
+
+	// Stops the background thread, the mails left in the wheel are taken over once their
+	// leases expire
+	public void close() {
+		close(false);
+	}
+
+	/*
+	 * Function : close
+	 * Input	: unlease (true to give up the mails left in the wheel)
+	 * Purpose	: Stops the background thread. Mails left in the wheel are given up when
+	 * 			  [unlease], so that another scheduler takes them over at once, e.g. when a
+	 * 			  MailDaemon shuts down while other nodes keep running.
+	 * Returns	: void
+	 */
+	public void close(boolean unlease) {
+		closed = true;
+		if (thread != null) {
+			synchronized (wakeUp) {
+				wakeUp.notifyAll();
+			}
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (unlease) {
+			synchronized (this) {
+				List<Integer> held = new ArrayList<Integer>();
+				wheel.drain(held);
+				for (int i=0; i<held.size(); i+=limit) {
+					int result = sqlHelper.unleaseScheduledMails(
+							held.subList(i, Math.min(held.size(), i + limit)));
+					if (result > 0)
+						unleased += result;
+				}
+			}
+		}
+	}
+
+	// Returns a short description of the scheduled mails so far
+	public synchronized String getStats() {
+		return "Deliveries : loaded=" + loaded + ", released=" + released + ", overdue=" + overdue
+				+ ", held=" + wheel.size() + (unleased > 0 ? ", given up=" + unleased : "");
+	}
+}
@@ -0,0 +1,46 @@
+package com.rubberduck.mymail;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Class 	: DomainRoute
+ * Purpose	: A relay used for a group of recipient domains, see DomainRouter.
+ * 			  Each route has its own pool of SMTP connections and its own rate limit.
+ */
+
+public class DomainRoute {
+
+	private String name;						// route name, used in the settings
+	private SMTPConnectionPool pool;			// connections to the route's relay
+	private TokenBucket rateLimit;				// mails per minute allowed on the route
+	private AtomicLong deferred;				// mails put back because of the rate limit
+
+	// Constructor
+	public DomainRoute(String name, SMTPConnectionPool pool, TokenBucket rateLimit) {
+		this.name = name;
+		this.pool = pool;
+		this.rateLimit = rateLimit;
+		deferred = new AtomicLong(0);
+	}
+
+	public String getName() {
+		return name;
+	}
+	public SMTPConnectionPool getPool() {
+		return pool;
+	}
+	public TokenBucket getRateLimit() {
+		return rateLimit;
+	}
+
+	// Records mails which were not sent because the route was throttled
+	public void deferred(int count) {
+		deferred.addAndGet(count);
+	}
+
+	// Returns a short description of the route
+	public String getStats() {
+		return "Route " + name + " : " + pool.getStats() + ", rate " + rateLimit.getStats()
+				+ ", deferred=" + deferred.get();
+	}
+}
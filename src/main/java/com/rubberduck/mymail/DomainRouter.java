@@ -0,0 +1,157 @@
+package com.rubberduck.mymail;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Class 	: DomainRouter
+ * Purpose	: Maps recipient domains to the relay routes mails are sent through.
+ * 			  Routes are listed with -Dmymail.routes=name1,name2 and each one is set up with
+ * 			  -Dmymail.route.<name>.* settings (domains, host, port, user, password, pool
+ * 			  sizes and a rate limit). A domain also matches its subdomains. Mails to domains
+ * 			  of no route go through the default route, set up by the smtp.* settings.
+ */
+
+public class DomainRouter {
+
+	private DomainRoute defaultRoute;				// route of all other domains
+	private List<DomainRoute> routes;				// all routes, default route first
+	private Map<String, DomainRoute> domains;		// route of each configured domain
+
+	// Constructor
+	public DomainRouter(DomainRoute defaultRoute) {
+		this.defaultRoute = defaultRoute;
+		routes = new ArrayList<DomainRoute>();
+		routes.add(defaultRoute);
+		domains = new HashMap<String, DomainRoute>();
+	}
+
+	/*
+	 * Function : fromConfig
+	 * Input	: defaultMaxSize (max. pool size used when no pool size is set)
+	 * Purpose	: Creates the default route and the routes listed in -Dmymail.routes.
+	 * 			  Route settings which are not given are taken from the smtp.* settings.
+	 * Returns	: A new DomainRouter
+	 */
+	public static DomainRouter fromConfig(int defaultMaxSize) {
+		DomainRouter router = new DomainRouter(new DomainRoute("default",
+				SMTPConnectionPool.fromConfig(defaultMaxSize), rateLimitFromConfig("smtp")));
+
+		String names = Config.getString("routes", "");
+		for (String name : names.split(",")) {
+			name = name.trim();
+			if (name.length() == 0)
+				continue;
+			String prefix = "route." + name;
+			String routeDomains = Config.getString(prefix + ".domains", "");
+			if (routeDomains.length() == 0) {
+				System.out.println("Route " + name + " has no " + Config.PREFIX + prefix
+						+ ".domains, ignoring it");
+				continue;
+			}
+
+			SMTPConnectionPool pool = new SMTPConnectionPool(
+					Config.getString(prefix + ".host", Config.getString("smtp.host", "localhost")),
+					Config.getInt(prefix + ".port", Config.getInt("smtp.port", 1123)),
+					Config.getString(prefix + ".user", Config.getString("smtp.user", "user")),
+					Config.getString(prefix + ".password", Config.getString("smtp.password", "pass")),
+					Config.getInt(prefix + ".pool.minSize", 0),
+					Config.getInt(prefix + ".pool.maxSize",
+							Config.getInt("smtp.pool.maxSize", defaultMaxSize)),
+					Config.getLong("smtp.pool.idleTimeoutMillis", 60000),
+					Config.getInt("smtp.pool.maxMessagesPerConnection", 1000));
+			DomainRoute route = new DomainRoute(name, pool, rateLimitFromConfig(prefix));
+			for (String domain : routeDomains.split(","))
+				router.addDomain(domain, route);
+		}
+		return router;
+	}
+
+	// Reads the rate limit of a route, by default it is unlimited
+	private static TokenBucket rateLimitFromConfig(String prefix) {
+		long ratePerMinute = Config.getLong(prefix + ".ratePerMinute", 0);
+		return new TokenBucket(ratePerMinute,
+				Config.getLong(prefix + ".burst", Math.max(1, ratePerMinute / 60)));
+	}
+
+	// Sends mails to the given domain and its subdomains through the given route
+	public void addDomain(String domain, DomainRoute route) {
+		domain = domain.trim().toLowerCase();
+		if (domain.length() == 0)
+			return;
+		domains.put(domain, route);
+		if (!routes.contains(route))
+			routes.add(route);
+	}
+
+	/*
+	 * Function : route
+	 * Input	: recipient (address of a mail)
+	 * Purpose	: Finds the route of the recipient's domain, trying the domain itself and
+	 * 			  then each parent domain
+	 * Returns	: The route to send the mail through
+	 */
+	public DomainRoute route(String recipient) {
+		if (domains.isEmpty() || recipient == null)
+			return defaultRoute;
+
+		String domain = recipient.substring(recipient.lastIndexOf('@') + 1).trim().toLowerCase();
+		while (domain.length() > 0) {
+			DomainRoute route = domains.get(domain);
+			if (route != null)
+				return route;
+			int dot = domain.indexOf('.');
+			if (dot < 0)
+				break;
+			domain = domain.substring(dot + 1);
+		}
+		return defaultRoute;
+	}
+
+	/*
+	 * Function : partition
+	 * Input	: mails (mails to be sent)
+	 * Purpose	: Splits mails by route, keeping their order within each route
+	 * Returns	: The mails of each route, routes in order of their first mail
+	 */
+	public Map<DomainRoute, List<Mail>> partition(List<Mail> mails) {
+		Map<DomainRoute, List<Mail>> partitions = new LinkedHashMap<DomainRoute, List<Mail>>();
+		for (Mail mail : mails) {
+			DomainRoute route = route(mail.getRecipient());
+			List<Mail> routeMails = partitions.get(route);
+			if (routeMails == null) {
+				routeMails = new ArrayList<Mail>();
+				partitions.put(route, routeMails);
+			}
+			routeMails.add(mail);
+		}
+		return partitions;
+	}
+
+	public DomainRoute getDefaultRoute() {
+		return defaultRoute;
+	}
+	public List<DomainRoute> getRoutes() {
+		return routes;
+	}
+
+	// Returns a short description of every route, one per line
+	public String getStats() {
+		StringBuilder sb = new StringBuilder();
+		for (DomainRoute route : routes) {
+			if (sb.length() > 0)
+				sb.append('\n');
+			sb.append(route.getStats());
+		}
+		return sb.toString();
+	}
+
+	// Closes the connections of all routes
+	public void close() {
+		for (DomainRoute route : routes)
+			route.getPool().close();
+	}
+}
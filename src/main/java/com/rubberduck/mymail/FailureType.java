@@ -0,0 +1,65 @@
+package com.rubberduck.mymail;
+
+import java.io.IOException;
+
+import javax.mail.MessagingException;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+
+/*
+ * Enum 	: FailureType
+ * Purpose	: Classifies why a mail could not be sent, from the SMTP reply code where there
+ * 			  is one: a permanent failure (5xx) is not retried, a transient failure (4xx) is
+ * 			  retried later, and a connection failure means the mail was not really
+ * 			  attempted and the connection has to be replaced.
+ */
+
+public enum FailureType {
+	PERMANENT,			// Rejected for good, e.g. unknown user (5xx)
+	TRANSIENT,			// Rejected for now, e.g. mailbox busy or greylisted (4xx)
+	CONNECTION;			// Connection lost or closed by the server (421, I/O errors)
+
+	/*
+	 * Function : fromReplyCode
+	 * Input	: code (SMTP reply code, -1 if unknown)
+	 * Purpose	: Classifies a failure reply
+	 * Returns	: The failure type, TRANSIENT if the code is unknown
+	 */
+	public static FailureType fromReplyCode(int code) {
+		if (code == 421)
+			return CONNECTION;			// service not available, closing the channel
+		if (code >= 500 && code < 600)
+			return PERMANENT;
+		return TRANSIENT;
+	}
+
+	/*
+	 * Function : fromException
+	 * Input	: e (exception thrown while sending a message)
+	 * Purpose	: Classifies the failure from the reply code of the exception, or of the
+	 * 			  first exception in its chain that has one. Exceptions caused by I/O errors
+	 * 			  are connection failures.
+	 * Returns	: The failure type
+	 */
+	public static FailureType fromException(MessagingException e) {
+		Exception current = e;
+		while (current != null) {
+			if (current instanceof IOException)
+				return CONNECTION;
+			if (current instanceof SMTPSendFailedException) {
+				int code = ((SMTPSendFailedException) current).getReturnCode();
+				if (code > 0)
+					return fromReplyCode(code);
+			}
+			if (current instanceof SMTPAddressFailedException)
+				return fromReplyCode(((SMTPAddressFailedException) current).getReturnCode());
+
+			if (current instanceof MessagingException)
+				current = ((MessagingException) current).getNextException();
+			else
+				current = null;
+		}
+		return TRANSIENT;
+	}
+}
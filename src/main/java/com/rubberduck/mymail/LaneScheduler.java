@@ -0,0 +1,274 @@
+package com.rubberduck.mymail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/*
+ * Class 	: LaneScheduler
+ * Purpose	: Decides which priority lane each claim is taken from, shared by all workers.
+ * 			  Lanes get claims in proportion to their weights (-Dmymail.priority.<lane>.weight,
+ * 			  default 8 for transactional, 3 for normal and 1 for bulk), using smooth
+ * 			  weighted round robin: a lane gains its weight in credits before every claim and
+ * 			  the lane which is served pays for it. An empty lane passes its turn to the next
+ * 			  one, so no worker sits idle while another lane has mails.
+ * 			  A lane whose oldest mail has waited longer than -Dmymail.priority.<lane>.maxWaitMillis
+ * 			  (default 5000 for transactional, 60000 for normal, none for bulk) is served
+ * 			  first until it catches up, so a burst in one lane cannot starve another.
+ * 			  Claims of a lane are also kept short enough to be sent within half the max.
+ * 			  wait of the more urgent lanes, so that a worker busy with bulk mail comes
+ * 			  back for transactional mail in time.
+ * 			  The depth and age of every lane are read back every -Dmymail.priority.refreshMillis.
+ * 			  Depths are only counted up to -Dmymail.priority.maxDepth (default 10000), so
+ * 			  that the read stays cheap however large the backlog grows.
+ */
+
+public class LaneScheduler {
+
+	private static final Priority[] LANES = Priority.values();
+
+	private SqlHelper sqlHelper;			// database helper used to read the lanes
+	private long[] weights;					// share of the claims of each lane
+	private long roundWeight;				// credits given out by the last nextLanes
+	private long[] maxWaitMillis;			// wait after which a lane goes first, 0 for none
+	private long[] credits;					// weighted round robin state of each lane
+	private long refreshMillis;				// time between two reads of the lanes
+	private long refreshedAt;				// time of the last read
+	private int maxDepth;					// depths are counted up to this many mails
+
+	private long[] depths;					// mails waiting in each lane, as of the last read
+	private long[] oldestAt;				// time the head of each lane was queued
+	private long[] claimed;					// mails claimed from each lane
+	private long[] totalWaitMillis;			// sum of the waits of the mails claimed
+	private long[] maxClaimWaitMillis;		// longest wait of a mail claimed
+	private long boosts;					// claims given to a lane for waiting too long
+	private LatencyHistogram[] waitLatency;	// wait of the mails claimed from each lane
+
+	// Constructor
+	public LaneScheduler(long[] weights, long[] maxWaitMillis, long refreshMillis, int maxDepth) {
+		this(new SqlHelper(), weights, maxWaitMillis, refreshMillis, maxDepth);
+	}
+
+	// Constructor, reading the lanes through the given helper
+	LaneScheduler(SqlHelper sqlHelper, long[] weights, long[] maxWaitMillis, long refreshMillis,
+			int maxDepth) {
+		this.sqlHelper = sqlHelper;
+		this.weights = new long[LANES.length];
+		this.maxWaitMillis = new long[LANES.length];
+		long totalWeight = 0;
+		for (int i=0; i<LANES.length; i++) {
+			this.weights[i] = Math.max(0, weights[i]);
+			this.maxWaitMillis[i] = Math.max(0, maxWaitMillis[i]);
+			totalWeight += this.weights[i];
+		}
+		if (totalWeight == 0) {
+			// Without any weights, the lanes share the claims equally
+			Arrays.fill(this.weights, 1);
+		}
+		this.refreshMillis = Math.max(1, refreshMillis);
+		this.maxDepth = Math.max(1, maxDepth);
+		credits = new long[LANES.length];
+		roundWeight = 0;
+		refreshedAt = 0;
+		depths = new long[LANES.length];
+		oldestAt = new long[LANES.length];
+		claimed = new long[LANES.length];
+		totalWaitMillis = new long[LANES.length];
+		maxClaimWaitMillis = new long[LANES.length];
+		boosts = 0;
+		registerMetrics();
+	}
+
+	// Creates the metrics of every lane, depth and age being those of the last read
+	private void registerMetrics() {
+		waitLatency = new LatencyHistogram[LANES.length];
+		for (final Priority lane : LANES) {
+			String name = lane.name().toLowerCase();
+			waitLatency[lane.ordinal()] = Metrics.histogram("mymail_lane_wait_seconds",
+					"Time the mails claimed from a lane waited since they were queued", "lane", name);
+			Metrics.gauge("mymail_lane_depth", "Mails waiting in a lane", new Metrics.Gauge() {
+				public double getValue() {
+					return getDepth(lane);
+				}
+			}, "lane", name);
+			Metrics.gauge("mymail_lane_age_seconds", "Time the head of a lane has been waiting",
+					new Metrics.Gauge() {
+						public double getValue() {
+							return getAgeMillis(lane) / 1000.0;
+						}
+					}, "lane", name);
+		}
+	}
+
+	/*
+	 * Function : fromConfig
+	 * Input	: none
+	 * Purpose	: Creates a scheduler using the priority.* settings
+	 * Returns	: A new LaneScheduler
+	 */
+	public static LaneScheduler fromConfig() {
+		long[] defaultWeights = {8, 3, 1};
+		long[] defaultMaxWaits = {5000, 60000, 0};
+		long[] weights = new long[LANES.length];
+		long[] maxWaits = new long[LANES.length];
+		for (Priority lane : LANES) {
+			String prefix = "priority." + lane.name().toLowerCase();
+			weights[lane.ordinal()] = Config.getLong(prefix + ".weight", defaultWeights[lane.ordinal()]);
+			maxWaits[lane.ordinal()] = Config.getLong(prefix + ".maxWaitMillis",
+					defaultMaxWaits[lane.ordinal()]);
+		}
+		return new LaneScheduler(weights, maxWaits, Config.getLong("priority.refreshMillis", 1000),
+				Config.getInt("priority.maxDepth", 10000));
+	}
+
+	/*
+	 * Function : nextLanes
+	 * Input	: none
+	 * Purpose	: Orders the lanes for the next claim: lanes which waited too long first,
+	 * 			  oldest first, then the others by their round robin credits, lanes which
+	 * 			  were empty at the last read coming last. The claim is taken from the
+	 * 			  first lane which has mails, see served.
+	 * Returns	: The lanes in the order in which they should be tried
+	 */
+	public synchronized List<Priority> nextLanes() {
+		final long now = System.currentTimeMillis();
+		if (now - refreshedAt >= refreshMillis)
+			refresh();
+
+		// Only lanes with mails take part, an idle lane must not save up credits
+		roundWeight = 0;
+		for (int i=0; i<LANES.length; i++) {
+			if (depths[i] > 0) {
+				credits[i] += weights[i];
+				roundWeight += weights[i];
+			} else {
+				credits[i] = 0;
+			}
+		}
+
+		List<Priority> order = new ArrayList<Priority>(LANES.length);
+		Collections.addAll(order, LANES);
+		Collections.sort(order, new Comparator<Priority>() {
+			public int compare(Priority a, Priority b) {
+				boolean aLate = isLate(a, now), bLate = isLate(b, now);
+				if (aLate != bLate)
+					return aLate ? -1 : 1;
+				if (aLate)
+					return Long.compare(oldestAt[a.ordinal()], oldestAt[b.ordinal()]);
+				boolean aEmpty = depths[a.ordinal()] == 0, bEmpty = depths[b.ordinal()] == 0;
+				if (aEmpty != bEmpty)
+					return aEmpty ? 1 : -1;
+				if (credits[a.ordinal()] != credits[b.ordinal()])
+					return Long.compare(credits[b.ordinal()], credits[a.ordinal()]);
+				return a.compareTo(b);
+			}
+		});
+		return order;
+	}
+
+	/*
+	 * Function : limit
+	 * Input	: lane (lane about to be claimed from)
+	 * 			  limit (batch size chosen by the BatchSizeController)
+	 * 			  mailsPerMilli (send rate of the claiming worker, 0 if unknown)
+	 * Purpose	: Lowers the size of a claim so that, at the worker's rate, it takes at most
+	 * 			  half the smallest max. wait of the more urgent lanes
+	 * Returns	: Number of mails to claim
+	 */
+	public int limit(Priority lane, int limit, double mailsPerMilli) {
+		long budgetMillis = 0;
+		for (int i=0; i<lane.ordinal(); i++) {
+			if (maxWaitMillis[i] > 0 && (budgetMillis == 0 || maxWaitMillis[i] < budgetMillis))
+				budgetMillis = maxWaitMillis[i];
+		}
+		if (budgetMillis == 0 || mailsPerMilli <= 0)
+			return limit;
+		return (int) Math.max(1, Math.min(limit, mailsPerMilli * budgetMillis / 2));
+	}
+
+	// Reads the depth and age of every lane
+	private void refresh() {
+		refreshedAt = System.currentTimeMillis();
+		if (sqlHelper.getLaneQueues(depths, oldestAt, maxDepth) < 0) {
+			// Only the weights are used until the lanes can be read again
+			Arrays.fill(depths, 0);
+			Arrays.fill(oldestAt, 0);
+		}
+	}
+
+	// True if the head of the lane has waited longer than the lane allows
+	private boolean isLate(Priority lane, long now) {
+		int i = lane.ordinal();
+		return maxWaitMillis[i] > 0 && depths[i] > 0 && oldestAt[i] > 0
+				&& now - oldestAt[i] > maxWaitMillis[i];
+	}
+
+	/*
+	 * Function : served
+	 * Input	: lane (lane the claim was taken from, null if every lane was empty)
+	 * Purpose	: Charges the lane for its turn, i.e. the credits given out by nextLanes, so
+	 * 			  that lanes with mails share the claims by their weights whether or not
+	 * 			  the other lanes are empty. If nothing was claimed, the credits given by
+	 * 			  nextLanes are taken back so that idle polling does not skew the shares.
+	 * Returns	: void
+	 */
+	public synchronized void served(Priority lane) {
+		if (lane == null) {
+			for (int i=0; i<LANES.length; i++) {
+				if (depths[i] > 0)
+					credits[i] -= weights[i];
+			}
+			return;
+		}
+		if (isLate(lane, System.currentTimeMillis()))
+			boosts++;
+		credits[lane.ordinal()] -= roundWeight;
+	}
+
+	// Records how long the claimed mails waited in their lanes since they were queued
+	public synchronized void claimed(List<Mail> mails) {
+		long now = System.currentTimeMillis();
+		for (Mail mail : mails) {
+			int i = mail.getPriority().ordinal();
+			claimed[i]++;
+			if (mail.getCreatedAt() > 0) {
+				long wait = Math.max(0, now - mail.getCreatedAt());
+				totalWaitMillis[i] += wait;
+				maxClaimWaitMillis[i] = Math.max(maxClaimWaitMillis[i], wait);
+				waitLatency[i].record(wait * 1000000L);
+			}
+		}
+	}
+
+	// Returns the number of mails waiting in the lane, as of the last read, at most maxDepth
+	public synchronized long getDepth(Priority lane) {
+		return depths[lane.ordinal()];
+	}
+
+	// Returns how long the head of the lane has been waiting, as of the last read
+	public synchronized long getAgeMillis(Priority lane) {
+		long queuedAt = oldestAt[lane.ordinal()];
+		return queuedAt > 0 ? Math.max(0, System.currentTimeMillis() - queuedAt) : 0;
+	}
+
+	// Returns a short description of every lane, one per line, reading the lanes first
+	public synchronized String getStats() {
+		refresh();
+		StringBuilder sb = new StringBuilder();
+		for (Priority lane : LANES) {
+			int i = lane.ordinal();
+			if (sb.length() > 0)
+				sb.append('\n');
+			sb.append("Lane " + lane.name().toLowerCase() + " : weight=" + weights[i]
+					+ ", queued=" + depths[i] + (depths[i] >= maxDepth ? "+" : "")
+					+ ", oldest=" + getAgeMillis(lane) + " ms"
+					+ ", claimed=" + claimed[i]
+					+ ", avg. wait=" + (claimed[i] > 0 ? totalWaitMillis[i] / claimed[i] : 0) + " ms"
+					+ ", max. wait=" + maxClaimWaitMillis[i] + " ms");
+		}
+		sb.append("\nLanes : late lanes served first " + boosts + " time(s)");
+		return sb.toString();
+	}
+}
@@ -0,0 +1,113 @@
+package com.rubberduck.mymail;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Class 	: LatencyHistogram
+ * Purpose	: Records latencies in nanoseconds from any number of threads, cheaply enough
+ * 			  for the hot paths (no lock, no allocation). Values are counted in log-linear
+ * 			  buckets: each power of two is split into SUB_BUCKETS buckets, so quantiles
+ * 			  are exact to within 1/SUB_BUCKETS (about 6%) from a nanosecond up to an hour.
+ * 			  Counts are kept since the start of the program, see Metrics.
+ */
+
+public class LatencyHistogram {
+
+	private static final int SUB_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;		// buckets per power of two
+	private static final int MAX_SHIFT = 42 - SUB_BITS;			// up to 2^42 ns, about 73 min.
+	private static final int BUCKETS = (MAX_SHIFT + 2) * SUB_BUCKETS;
+
+	private AtomicLongArray counts;			// values recorded in each bucket
+	private LongAdder count;				// values recorded
+	private LongAdder sum;					// sum of the values recorded
+	private AtomicLong max;					// largest value recorded
+
+	// Constructor
+	public LatencyHistogram() {
+		counts = new AtomicLongArray(BUCKETS);
+		count = new LongAdder();
+		sum = new LongAdder();
+		max = new AtomicLong();
+	}
+
+	// Records a latency in nanoseconds
+	public void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+		counts.incrementAndGet(bucketOf(nanos));
+		count.increment();
+		sum.add(nanos);
+		long current = max.get();
+		while (nanos > current && !max.compareAndSet(current, nanos))
+			current = max.get();
+	}
+
+	// Records the time since [startNanos], taken from System.nanoTime
+	public void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+
+	// Returns the bucket of a value: values below SUB_BUCKETS have their own, larger ones
+	// go by their highest bit and the SUB_BITS bits after it
+	private static int bucketOf(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		if (shift > MAX_SHIFT)
+			return BUCKETS - 1;
+		return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+	}
+
+	// Returns the middle of the range of values counted in a bucket
+	private static double valueOf(int bucket) {
+		if (bucket < SUB_BUCKETS)
+			return bucket;
+		int shift = bucket / SUB_BUCKETS - 1;
+		long low = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+		return low + ((1L << shift) - 1) / 2.0;
+	}
+
+	/*
+	 * Function : getQuantile
+	 * Input	: quantile (between 0 and 1, e.g. 0.99)
+	 * Purpose	: Finds the value below which [quantile] of the recorded values fall, from a
+	 * 			  snapshot of the buckets taken while values may still be recorded
+	 * Returns	: The value in nanoseconds, 0 if nothing was recorded
+	 */
+	public double getQuantile(double quantile) {
+		long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for (int i=0; i<BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0)
+			return 0;
+
+		long rank = Math.max(1, (long) Math.ceil(quantile * total));
+		long seen = 0;
+		for (int i=0; i<BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank)
+				return Math.min(valueOf(i), max.get());
+		}
+		return max.get();
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	// Returns the sum of the recorded values in nanoseconds
+	public long getSum() {
+		return sum.sum();
+	}
+
+	// Returns the largest recorded value in nanoseconds
+	public long getMax() {
+		return max.get();
+	}
+}
@@ -0,0 +1,67 @@
+package com.rubberduck.mymail;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Class 	: LruCache
+ * Purpose	: Thread-safe, size bounded cache which evicts the least recently used entry
+ * 			  and counts hits and misses so that its effectiveness can be monitored
+ */
+
+public class LruCache<K, V> {
+	private String name;				// name used when reporting statistics
+	private LinkedHashMap<K, V> map;	// entries in access order
+	private long hits;					// lookups which found an entry
+	private long misses;				// lookups which did not find an entry
+
+	// Constructor
+	public LruCache(String name, final int maxSize) {
+		this.name = name;
+		map = new LinkedHashMap<K, V>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	// Returns the cached value for key, or null if there is none
+	public synchronized V get(K key) {
+		V value = map.get(key);
+		if (value == null)
+			misses++;
+		else
+			hits++;
+		return value;
+	}
+
+	// Adds or replaces the value for key
+	public synchronized void put(K key, V value) {
+		map.put(key, value);
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+	public synchronized long getMisses() {
+		return misses;
+	}
+	public synchronized int size() {
+		return map.size();
+	}
+
+	// Returns the fraction of lookups which were hits
+	public synchronized double getHitRate() {
+		long lookups = hits + misses;
+		return lookups == 0 ? 0 : (double) hits / lookups;
+	}
+
+	// Returns a short description of the cache state
+	public synchronized String getStats() {
+		return name + " cache : size=" + map.size() + ", hits=" + hits + ", misses=" + misses
+				+ ", hit rate=" + String.format("%.1f%%", getHitRate() * 100);
+	}
+}
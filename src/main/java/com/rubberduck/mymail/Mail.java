@@ -13,16 +13,42 @@ public class Mail {
 	private String recipient;		// recipient address
 	private String subject;			// subject line of mail
 	private String body;			// contents of mail
+	private Priority priority;		// lane the mail is claimed from
+	private long createdAt;			// time the mail was queued, 0 if unknown
+	private long sendAt;			// time before which the mail is not sent, 0 for now
+	private byte[] rawMime;			// message rendered when queued (RFC 5322, CRLF), or null
+	private boolean bodyDeferred;	// body too large to be claimed, read when sent
+	private int attachments;		// attachments stored in the attachments table
+	private List<String> attachmentFiles;	// files attached when queued, or null
 	
 	
 	// Constructor
 	public Mail(int id, String sender, String recipient, String subject, String body) {
+		this(id, sender, recipient, subject, body, Priority.NORMAL, 0);
+	}
+	
+	// Constructor
+	public Mail(int id, String sender, String recipient, String subject, String body,
+			Priority priority, long createdAt) {
+		this(id, sender, recipient, subject, body, priority, createdAt, 0);
+	}
+	
+	// Constructor
+	public Mail(int id, String sender, String recipient, String subject, String body,
+			Priority priority, long createdAt, long sendAt) {
 		
 		this.id = id;
 		this.sender = sender;
 		this.recipient = recipient;
 		this.subject = subject;
 		this.body = body;
+		this.priority = priority;
+		this.createdAt = createdAt;
+		this.sendAt = sendAt;
+		this.rawMime = null;
+		this.bodyDeferred = false;
+		this.attachments = 0;
+		this.attachmentFiles = null;
 	}
 
 	public int getId() {
@@ -40,4 +66,66 @@ public class Mail {
 	public String getBody() {
 		return body;
 	}
+	public Priority getPriority() {
+		return priority;
+	}
+	public long getCreatedAt() {
+		return createdAt;
+	}
+	public long getSendAt() {
+		return sendAt;
+	}
+	public byte[] getRawMime() {
+		return rawMime;
+	}
+	
+	// Attaches the message rendered when the mail was queued, sent as is in place of the
+	// subject and body
+	public void setRawMime(byte[] rawMime) {
+		this.rawMime = rawMime;
+	}
+	public boolean isBodyDeferred() {
+		return bodyDeferred;
+	}
+	public void setBodyDeferred(boolean bodyDeferred) {
+		this.bodyDeferred = bodyDeferred;
+	}
+	public int getAttachments() {
+		return attachments;
+	}
+	public void setAttachments(int attachments) {
+		this.attachments = attachments;
+	}
+	public List<String> getAttachmentFiles() {
+		return attachmentFiles;
+	}
+	
+	// Files to store in the attachments table along with the mail, when it is queued
+	public void setAttachmentFiles(List<String> attachmentFiles) {
+		this.attachmentFiles = attachmentFiles;
+	}
+	
+	// True if the body or attachments of the mail are read when it is sent, see MailContent
+	public boolean hasLargeContent() {
+		return rawMime == null && (bodyDeferred || attachments > 0);
+	}
+	
+	// Returns an estimate of the heap used by the mail (2 bytes per char, 1 per raw byte,
+	// plus overhead)
+	public long getSizeInBytes() {
+		return 64 + 2L * (length(sender) + length(recipient) + length(subject) + length(body))
+				+ (rawMime == null ? 0 : 16 + rawMime.length);
+	}
+	
+	// Returns the ids of the given mails, in the same order
+	public static List<Integer> getIds(List<Mail> mails) {
+		List<Integer> ids = new ArrayList<Integer>(mails.size());
+		for (Mail mail : mails)
+			ids.add(mail.getId());
+		return ids;
+	}
+	
+	private static int length(String s) {
+		return s == null ? 0 : s.length();
+	}
 }
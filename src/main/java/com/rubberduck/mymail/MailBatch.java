@@ -0,0 +1,107 @@
+package com.rubberduck.mymail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.mail.Address;
+import javax.mail.internet.MimeMessage;
+
+/*
+ * Class 	: MailBatch
+ * Purpose	: A claimed batch of mails on its way through the send path: the claimed mails,
+ * 			  the groups they were coalesced into and, once rendered, one message and one
+ * 			  set of envelope recipients per group
+ */
+
+public class MailBatch {
+	private String claimToken;				// token under which the mails were claimed
+	private List<Mail> mails;				// claimed mails
+	private List<MailGroup> groups;			// rendered groups, in send order
+	private List<DomainRoute> routes;		// route of each group, groups of a route are adjacent
+	private List<MimeMessage> messages;		// message of each group
+	private List<Address[]> envelopes;		// envelope recipients of each group
+	private List<Integer> failedMailIds;	// mails which could not be rendered
+	private List<Integer> retryMailIds;		// mails which could not be rendered for now
+	private int workerId;					// worker which claimed the batch
+	private long bytes;						// bytes accounted by the BatchSizeController
+
+	// Constructor
+	public MailBatch(String claimToken, List<Mail> mails) {
+		this.claimToken = claimToken;
+		this.mails = mails;
+		groups = new ArrayList<MailGroup>();
+		routes = new ArrayList<DomainRoute>();
+		messages = new ArrayList<MimeMessage>();
+		envelopes = new ArrayList<Address[]>();
+		failedMailIds = new ArrayList<Integer>();
+		retryMailIds = new ArrayList<Integer>();
+	}
+
+	// Adds a rendered group to the batch
+	public void addRendered(MailGroup group, DomainRoute route, MimeMessage message,
+			Address[] envelope) {
+		groups.add(group);
+		routes.add(route);
+		messages.add(message);
+		envelopes.add(envelope);
+	}
+
+	// Records a mail which could not be rendered
+	public void addFailed(int mailId) {
+		failedMailIds.add(mailId);
+	}
+
+	// Records a mail which could not be rendered, but may be once retried
+	public void addRetry(int mailId) {
+		retryMailIds.add(mailId);
+	}
+
+	// Deletes the temp files of the large messages of the batch, once it was sent or dropped
+	public void release() {
+		for (MimeMessage message : messages) {
+			if (message instanceof SpooledMessage)
+				((SpooledMessage) message).release();
+		}
+	}
+
+	public String getClaimToken() {
+		return claimToken;
+	}
+	public List<Mail> getMails() {
+		return mails;
+	}
+	public List<MailGroup> getGroups() {
+		return groups;
+	}
+	public List<DomainRoute> getRoutes() {
+		return routes;
+	}
+	public List<MimeMessage> getMessages() {
+		return messages;
+	}
+	public List<Address[]> getEnvelopes() {
+		return envelopes;
+	}
+	public List<Integer> getFailedMailIds() {
+		return failedMailIds;
+	}
+	public List<Integer> getRetryMailIds() {
+		return retryMailIds;
+	}
+	public int getWorkerId() {
+		return workerId;
+	}
+	public long getBytes() {
+		return bytes;
+	}
+	
+	// Records which worker claimed the batch and how many bytes were accounted for it
+	public void setClaimedBy(int workerId, long bytes) {
+		this.workerId = workerId;
+		this.bytes = bytes;
+	}
+	
+	public int size() {
+		return mails.size();
+	}
+}
@@ -0,0 +1,52 @@
+package com.rubberduck.mymail;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Class 	: MailCoalescer
+ * Purpose	: Groups the mails of a batch which only differ in their recipient, so that each
+ * 			  group can go out as one message with many RCPT TO commands instead of one
+ * 			  message per mail
+ */
+
+public class MailCoalescer {
+
+	/*
+	 * Function : coalesce
+	 * Input	: mails (mails of a claimed batch)
+	 * 			  maxRecipients (maximum number of recipients per group, 1 disables grouping)
+	 * Purpose	: Groups mails with the same sender, subject and body, in order of first
+	 * 			  appearance. A new group is started when the current one is full or already
+	 * 			  has a mail for the same recipient. Mails rendered when queued already hold
+	 * 			  their own headers, and large mails were claimed without their content, so
+	 * 			  each of them makes a group of its own.
+	 * Returns	: A list of mail groups covering all the given mails
+	 */
+	public static List<MailGroup> coalesce(List<Mail> mails, int maxRecipients) {
+		List<MailGroup> groups = new ArrayList<MailGroup>();
+		Map<MailContentKey, MailGroup> openGroups = new HashMap<MailContentKey, MailGroup>();
+
+		for (Mail mail : mails) {
+			if (maxRecipients <= 1 || mail.getRawMime() != null || mail.hasLargeContent()) {
+				groups.add(new MailGroup(mail));
+				continue;
+			}
+
+			MailContentKey key = new MailContentKey(mail);
+			MailGroup group = openGroups.get(key);
+			if (group == null || group.size() >= maxRecipients
+					|| group.hasRecipient(mail.getRecipient())) {
+				group = new MailGroup(mail);
+				groups.add(group);
+				openGroups.put(key, group);
+			} else {
+				group.add(mail);
+			}
+		}
+
+		return groups;
+	}
+}
@@ -0,0 +1,232 @@
+package com.rubberduck.mymail;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.activation.DataSource;
+import javax.activation.FileDataSource;
+import javax.mail.MessagingException;
+import javax.mail.util.ByteArrayDataSource;
+
+/*
+ * Class 	: MailContent
+ * Purpose	: Body and attachments of a mail which are too large to travel with its claimed
+ * 			  batch. Claims leave out bodies longer than -Dmymail.content.inlineMaxChars
+ * 			  (see SqlHelper.getMailColumns) and never read attachments, the renderer reads
+ * 			  them into a MailContent just before the mail is sent instead.
+ * 			  Deferred bodies, and attachments larger than -Dmymail.content.inlineMaxBytes,
+ * 			  are copied to temp files in -Dmymail.content.spillDir through a buffer of
+ * 			  -Dmymail.content.bufferBytes, and streamed from there into the MIME parts of
+ * 			  the message, so a 10 MB message never sits in the heap as a whole.
+ * 			  The files are deleted once the message was sent, see SpooledMessage. Files left
+ * 			  behind by a process which was killed are removed by deleteStaleFiles.
+ */
+
+public class MailContent {
+
+	private File spillDir;					// directory of the temp files
+	private int inlineMaxBytes;				// larger attachments are spilled
+	private int bufferBytes;				// size of the copy buffer
+	private DataSource body;				// deferred body as text/html, null if not read
+	private List<DataSource> attachments;	// attachments, in order
+	private List<File> files;				// temp files to delete
+	private long spilledBytes;				// bytes written to the temp files
+
+	// Constructor
+	public MailContent(File spillDir, int inlineMaxBytes, int bufferBytes) {
+		this.spillDir = spillDir;
+		this.inlineMaxBytes = Math.max(0, inlineMaxBytes);
+		this.bufferBytes = Math.max(1024, bufferBytes);
+		body = null;
+		attachments = new ArrayList<DataSource>();
+		files = new ArrayList<File>();
+		spilledBytes = 0;
+	}
+
+	/*
+	 * Function : fromConfig
+	 * Input	: none
+	 * Purpose	: Creates an empty content using the content.* settings
+	 * Returns	: A new MailContent
+	 */
+	public static MailContent fromConfig() {
+		return new MailContent(
+				new File(Config.getString("content.spillDir", System.getProperty("java.io.tmpdir"))),
+				Config.getInt("content.inlineMaxBytes", 64 * 1024),
+				Config.getInt("content.bufferBytes", 64 * 1024));
+	}
+
+	// Longest body read with its claimed batch, longer ones are deferred to send time
+	public static int getInlineMaxChars() {
+		return Config.getInt("content.inlineMaxChars", 64 * 1024);
+	}
+
+	/*
+	 * Function : setBody
+	 * Input	: in (the body as read from the table)
+	 * Purpose	: Copies the body to a temp file, UTF-8 encoded
+	 * Returns	: void
+	 */
+	public void setBody(Reader in) throws IOException {
+		File file = newFile();
+		Writer out = new OutputStreamWriter(new BufferedOutputStream(new FileOutputStream(file),
+				bufferBytes), "UTF-8");
+		try {
+			char[] buffer = new char[bufferBytes / 2];
+			int count;
+			while ((count = in.read(buffer)) >= 0)
+				out.write(buffer, 0, count);
+		} finally {
+			out.close();
+		}
+		spilledBytes += file.length();
+		body = new NamedDataSource(file, null, "text/html; charset=UTF-8");
+	}
+
+	/*
+	 * Function : addAttachment
+	 * Input	: filename, contentType (as stored with the attachment)
+	 * 			  in (the attachment as read from the table)
+	 * 			  length (bytes in the attachment, -1 if unknown)
+	 * Purpose	: Keeps a small attachment in memory, and copies a larger one (or one of
+	 * 			  unknown length) to a temp file
+	 * Returns	: void
+	 */
+	public void addAttachment(String filename, String contentType, InputStream in, long length)
+			throws IOException {
+		if (contentType == null || contentType.length() == 0)
+			contentType = "application/octet-stream";
+
+		if (length >= 0 && length <= inlineMaxBytes) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) length);
+			copy(in, bytes);
+			ByteArrayDataSource source = new ByteArrayDataSource(bytes.toByteArray(), contentType);
+			source.setName(filename);
+			attachments.add(source);
+			return;
+		}
+
+		File file = newFile();
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file), bufferBytes);
+		try {
+			copy(in, out);
+		} finally {
+			out.close();
+		}
+		spilledBytes += file.length();
+		attachments.add(new NamedDataSource(file, filename, contentType));
+	}
+
+	public DataSource getBody() {
+		return body;
+	}
+	public List<DataSource> getAttachments() {
+		return attachments;
+	}
+	public long getSpilledBytes() {
+		return spilledBytes;
+	}
+
+	// Deletes the temp files, the content cannot be read anymore
+	public void delete() {
+		for (File file : files) {
+			if (!file.delete() && file.exists())
+				System.out.println("Could not delete " + file + "!");
+		}
+		files.clear();
+	}
+
+	// Creates a temp file, deleted by delete once the mail was sent
+	private File newFile() throws IOException {
+		File file = File.createTempFile("mymail-", ".part", spillDir);
+		files.add(file);
+		return file;
+	}
+
+	/*
+	 * Function : deleteStaleFiles
+	 * Input	: none
+	 * Purpose	: Deletes the temp files in -Dmymail.content.spillDir which are older than a
+	 * 			  claim lease. No mail is sent for longer than that, so such files were left
+	 * 			  behind by a process which did not get to delete them.
+	 * Returns	: Number of files deleted
+	 */
+	public static int deleteStaleFiles() {
+		File spillDir = new File(Config.getString("content.spillDir",
+				System.getProperty("java.io.tmpdir")));
+		File[] stale = spillDir.listFiles(new FileFilter() {
+			public boolean accept(File file) {
+				String name = file.getName();
+				return name.startsWith("mymail-") && name.endsWith(".part") && file.isFile()
+						&& System.currentTimeMillis() - file.lastModified()
+							> SqlHelper.CLAIM_LEASE_SECONDS * 1000L;
+			}
+		});
+		if (stale == null)
+			return 0;
+		int deleted = 0;
+		for (File file : stale) {
+			if (file.delete())
+				deleted++;
+		}
+		if (deleted > 0)
+			System.out.println("Deleted " + deleted + " stale temp file(s) from " + spillDir);
+		return deleted;
+	}
+
+	private void copy(InputStream in, OutputStream out) throws IOException {
+		byte[] buffer = new byte[bufferBytes];
+		int count;
+		while ((count = in.read(buffer)) >= 0)
+			out.write(buffer, 0, count);
+	}
+
+	/*
+	 * Class 	: NamedDataSource
+	 * Purpose	: Temp file read back with the name and content type of what it holds
+	 */
+	private static class NamedDataSource extends FileDataSource {
+		private String name;
+		private String contentType;
+
+		NamedDataSource(File file, String name, String contentType) {
+			super(file);
+			this.name = name;
+			this.contentType = contentType;
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+
+		@Override
+		public String getContentType() {
+			return contentType;
+		}
+	}
+
+	/*
+	 * Class 	: UnavailableException
+	 * Purpose	: The content of a mail could not be read for now, e.g. the database or the
+	 * 			  spill directory failed. The mail is retried rather than rejected.
+	 */
+	public static class UnavailableException extends MessagingException {
+		private static final long serialVersionUID = 1L;
+
+		public UnavailableException(String message, Exception cause) {
+			super(message, cause);
+		}
+	}
+}
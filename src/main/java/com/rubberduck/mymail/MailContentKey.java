@@ -0,0 +1,44 @@
+package com.rubberduck.mymail;
+
+/*
+ * Class 	: MailContentKey
+ * Purpose	: Identifies the content of a mail (sender, subject and body), so that mails
+ * 			  which only differ in their recipient can share work
+ */
+
+public class MailContentKey {
+	private String sender;
+	private String subject;
+	private String body;
+	private int hash;
+
+	// Constructor
+	public MailContentKey(Mail mail) {
+		sender = mail.getSender();
+		subject = mail.getSubject();
+		body = mail.getBody();
+		hash = 31 * (31 * hashOf(sender) + hashOf(subject)) + hashOf(body);
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof MailContentKey))
+			return false;
+		MailContentKey other = (MailContentKey) o;
+		return hash == other.hash && equal(sender, other.sender)
+				&& equal(subject, other.subject) && equal(body, other.body);
+	}
+
+	private static int hashOf(String s) {
+		return s == null ? 0 : s.hashCode();
+	}
+
+	private static boolean equal(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+}
@@ -0,0 +1,130 @@
+package com.rubberduck.mymail;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/*
+ * Class 	: MailCursor
+ * Purpose	: Iterates over the mails of a ResultSet one row at a time, so that rows can be
+ * 			  sent while later ones are still arriving instead of being collected in a list.
+ * 			  Column indexes are resolved once when the cursor is opened.
+ * 			  A cursor opened with a statement owns it and closes it in close(), along with
+ * 			  the pooled connection it was opened on, if any.
+ */
+
+public class MailCursor implements Iterator<Mail> {
+
+	private Statement stmt;					// statement which produced the rows, may be null
+	private ResultSet rs;					// rows being read
+	private ConnectionPool pool;			// pool of the connection below, may be null
+	private PooledConnection connection;	// connection held until the cursor is closed
+	private int idColumn;					// column indexes, resolved once
+	private int senderColumn;
+	private int recipientColumn;
+	private int subjectColumn;
+	private int bodyColumn;
+	private int rawMimeColumn;
+	private int bodyDeferredColumn;
+	private int attachmentsColumn;
+	private int priorityColumn;
+	private int createdAtColumn;
+
+	private Mail next;						// row read ahead by hasNext
+	private boolean done;					// set once the last row has been read
+	private boolean failed;					// set if reading a row failed
+	private int rowsRead;					// rows handed out so far
+
+	// Constructor
+	public MailCursor(Statement stmt, ResultSet rs) throws SQLException {
+		this(stmt, rs, null, null);
+	}
+
+	// Constructor, the connection is released to the pool when the cursor is closed
+	public MailCursor(Statement stmt, ResultSet rs, ConnectionPool pool,
+			PooledConnection connection) throws SQLException {
+		this.stmt = stmt;
+		this.rs = rs;
+		this.pool = pool;
+		this.connection = connection;
+		idColumn = rs.findColumn("id");
+		senderColumn = rs.findColumn("sender");
+		recipientColumn = rs.findColumn("recipient");
+		subjectColumn = rs.findColumn("subject");
+		bodyColumn = rs.findColumn("body");
+		rawMimeColumn = rs.findColumn("raw_mime");
+		bodyDeferredColumn = rs.findColumn("body_deferred");
+		attachmentsColumn = rs.findColumn("attachments");
+		priorityColumn = rs.findColumn("priority");
+		createdAtColumn = rs.findColumn("created_at");
+		next = null;
+		done = false;
+		failed = false;
+		rowsRead = 0;
+	}
+
+	public boolean hasNext() {
+		if (next == null && !done) {
+			try {
+				if (rs.next()) {
+					next = new Mail(rs.getInt(idColumn), rs.getString(senderColumn),
+							rs.getString(recipientColumn), rs.getString(subjectColumn),
+							rs.getString(bodyColumn), Priority.fromOrdinal(rs.getInt(priorityColumn)),
+							rs.getLong(createdAtColumn));
+					next.setRawMime(rs.getBytes(rawMimeColumn));
+					next.setBodyDeferred(rs.getInt(bodyDeferredColumn) != 0);
+					next.setAttachments(rs.getInt(attachmentsColumn));
+				} else {
+					done = true;
+				}
+			} catch (SQLException e) {
+				System.out.println("Could not read data!");
+				System.out.println(e);
+				done = true;
+				failed = true;
+			}
+		}
+		return next != null;
+	}
+
+	public Mail next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		Mail mail = next;
+		next = null;
+		rowsRead++;
+		return mail;
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	// Returns true if the rows could not all be read
+	public boolean hasFailed() {
+		return failed;
+	}
+
+	public int getRowsRead() {
+		return rowsRead;
+	}
+
+	// Closes the result set, and the statement and connection if the cursor owns them
+	public void close() {
+		try {
+			rs.close();
+			if (stmt != null)
+				stmt.close();
+		} catch (SQLException e) {
+			System.out.println(e.getMessage());
+			if (connection != null)
+				connection.checkError(e);
+		}
+		if (pool != null) {
+			pool.release(connection);
+			pool = null;
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package com.rubberduck.mymail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Class 	: MailDaemon
+ * Purpose	: Runs MyMailService as a long-lived service instead of a one-shot interactive
+ * 			  run (-Dmymail.daemon.enabled=true). Nothing is dropped or inserted: other
+ * 			  programs queue mails in the table, bump the <mails table>_signal version
+ * 			  (UPDATE <mails table>_signal SET version=version+1 WHERE id=1) and the
+ * 			  workers, which stay up with their database and SMTP pools warm, claim them
+ * 			  at once. Without the signal they are still found, after at most
+ * 			  -Dmymail.daemon.maxPollMillis (see WorkPoller).
+ * 			  Failed mails are retried and scheduled mails released while running, by the
+ * 			  RetryScheduler and the DeliveryScheduler.
+ * 			  On SIGTERM (or Ctrl+C) workers stop claiming, finish the batches they hold
+ * 			  and write their outcomes back, within -Dmymail.daemon.shutdownTimeoutMillis.
+ */
+
+public class MailDaemon {
+
+	private int threadsCount;					// workers (sessions for the virtual engine)
+	private long shutdownTimeoutMillis;			// longest wait for the workers when stopped
+	private WorkPoller poller;					// paces the workers, stopped on shutdown
+	private CountDownLatch stopped;				// counted down once everything is closed
+
+	// Constructor
+	public MailDaemon(int threadsCount, long shutdownTimeoutMillis, WorkPoller poller) {
+		this.threadsCount = Math.max(1, threadsCount);
+		this.shutdownTimeoutMillis = Math.max(0, shutdownTimeoutMillis);
+		this.poller = poller;
+		stopped = new CountDownLatch(1);
+	}
+
+	/*
+	 * Function : fromConfig
+	 * Input	: none
+	 * Purpose	: Creates a daemon using the daemon.* settings
+	 * Returns	: A new MailDaemon
+	 */
+	public static MailDaemon fromConfig() {
+		return new MailDaemon(
+				Math.min(MyMailService.getMaxThreads(), Config.getInt("daemon.threads", 4)),
+				Config.getLong("daemon.shutdownTimeoutMillis", 30000),
+				WorkPoller.fromConfig());
+	}
+
+	/*
+	 * Function : run
+	 * Input	: none
+	 * Purpose	: Prepares the table, joins the cluster if enabled, then sends mails until
+	 * 			  stop is called or the JVM is asked to exit
+	 * Returns	: void
+	 */
+	public void run() {
+		// Queued mails belong to the producers, never drop the table
+		SqlHelper sqlHelper = new SqlHelper();
+		sqlHelper.createTable();
+		sqlHelper.migrateTable();
+
+		NodeRegistry registry = null;
+		if (NodeRegistry.isClusterEnabled()) {
+			registry = NodeRegistry.fromConfig();
+			if (!registry.start()) {
+				System.out.println("Could not join the cluster!");
+				return;
+			}
+		}
+
+		// Scheduled mails wake the workers up as they fall due
+		DeliveryScheduler deliveries = DeliveryScheduler.fromConfig();
+		deliveries.setPoller(poller);
+		deliveries.start();
+		poller.start();
+
+		Thread shutdownHook = new Thread(new Runnable() {
+			public void run() {
+				System.out.println("\nStopping, waiting for the mails being sent...");
+				stop();
+				try {
+					if (!stopped.await(shutdownTimeoutMillis, TimeUnit.MILLISECONDS))
+						System.out.println("Gave up waiting after " + shutdownTimeoutMillis + " ms,"
+								+ " unfinished claims are taken over when their lease expires");
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}, "mail-daemon-shutdown");
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
+
+		System.out.println("\nWaiting for mails in " + SqlHelper.mailsTable + " with "
+				+ threadsCount + " thread(s)...");
+		try {
+			// No mail count is known, batches are sized for the memory limit
+			MyMailService.startSendingMails(Integer.MAX_VALUE, threadsCount, poller);
+		} finally {
+			poller.close();
+			deliveries.close(true);
+			System.out.println(deliveries.getStats());
+			System.out.println(poller.getStats());
+			if (registry != null) {
+				System.out.println(registry.getStats());
+				registry.close();
+			}
+			SqlHelper.closePool();
+			System.out.println("Goodbye!\n");
+			stopped.countDown();
+		}
+
+		// Stopped by a caller rather than by the JVM, the hook is not needed anymore
+		try {
+			Runtime.getRuntime().removeShutdownHook(shutdownHook);
+		} catch (IllegalStateException e) {
+			// The JVM is already exiting
+		}
+	}
+
+	// Makes the workers stop claiming, run returns once their batches are done
+	public void stop() {
+		poller.stop();
+	}
+
+	// Waits until run has returned or [timeoutMillis] passed, true if it returned
+	public boolean awaitStopped(long timeoutMillis) throws InterruptedException {
+		return stopped.await(timeoutMillis, TimeUnit.MILLISECONDS);
+	}
+}
@@ -0,0 +1,356 @@
+package com.rubberduck.mymail;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/*
+ * Class 	: MailFileReader
+ * Purpose	: Reads the mails of a campaign file one at a time, for MailLoader.
+ * 			  Two formats are supported:
+ * 			  CSV (RFC 4180) with a header naming the sender, recipient, subject and body
+ * 				columns, in any order, and optionally priority, send_at and attachments
+ * 				columns
+ * 			  NDJSON with one object per line holding sender, recipient, subject and body,
+ * 				and optionally priority, send_at and attachments
+ * 			  Records which cannot be parsed are skipped and reported.
+ * 			  Mails without a priority go to the -Dmymail.load.priority lane (default bulk).
+ * 			  send_at is the time before which a mail must not be sent, either in epoch
+ * 			  millis or as an ISO-8601 date-time with an offset (2024-03-01T09:00:00+01:00),
+ * 			  so that each recipient can be reached at a local time. Empty means now.
+ * 			  attachments lists the paths of files to attach, separated by ';'.
+ */
+
+public class MailFileReader implements Iterator<Mail> {
+
+	private BufferedReader reader;				// file being read
+	private boolean ndjson;						// NDJSON if true, CSV otherwise
+	private Map<String, Integer> csvColumns;	// index of each CSV column, from the header
+	private Mail next;							// mail read ahead by hasNext
+	private boolean done;						// set once the end of the file was reached
+	private int lineNumber;						// line of the current record, for errors
+	private int skipped;						// records which could not be parsed
+	private Priority defaultPriority;			// lane of mails without a priority
+
+	// Constructor
+	public MailFileReader(Reader reader, boolean ndjson) throws IOException {
+		this.reader = new BufferedReader(reader);
+		this.ndjson = ndjson;
+		next = null;
+		done = false;
+		lineNumber = 0;
+		skipped = 0;
+		try {
+			defaultPriority = Priority.parse(Config.getString("load.priority", null), Priority.BULK);
+		} catch (IllegalArgumentException e) {
+			defaultPriority = Priority.BULK;
+		}
+
+		if (!ndjson) {
+			csvColumns = new HashMap<String, Integer>();
+			List<String> header = readCsvRecord();
+			if (header != null) {
+				for (int i=0; i<header.size(); i++)
+					csvColumns.put(header.get(i).trim().toLowerCase(), i);
+			}
+			for (String column : new String[] {"sender", "recipient", "subject", "body"}) {
+				if (!csvColumns.containsKey(column))
+					throw new IOException("CSV header has no " + column + " column");
+			}
+		}
+	}
+
+	/*
+	 * Function : open
+	 * Input	: path (a .csv or .ndjson/.jsonl file, UTF-8)
+	 * Purpose	: Opens a campaign file, choosing the format from its extension
+	 * Returns	: A reader over the mails of the file
+	 */
+	public static MailFileReader open(String path) throws IOException {
+		String lower = path.toLowerCase();
+		boolean ndjson = lower.endsWith(".ndjson") || lower.endsWith(".jsonl")
+				|| lower.endsWith(".json");
+		return new MailFileReader(new InputStreamReader(new FileInputStream(path), "UTF-8"), ndjson);
+	}
+
+	public boolean hasNext() {
+		while (next == null && !done) {
+			try {
+				next = ndjson ? readNdjsonMail() : readCsvMail();
+			} catch (IOException e) {
+				System.out.println("Could not read mails file!");
+				System.out.println(e.getMessage());
+				done = true;
+			} catch (IllegalArgumentException e) {
+				// Malformed record, skip it
+				System.out.println("Skipping record at line " + lineNumber + " : " + e.getMessage());
+				skipped++;
+			}
+		}
+		return next != null;
+	}
+
+	public Mail next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		Mail mail = next;
+		next = null;
+		return mail;
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	public int getSkipped() {
+		return skipped;
+	}
+
+	public void close() {
+		try {
+			reader.close();
+		} catch (IOException e) {
+			System.out.println(e.getMessage());
+		}
+	}
+
+	// Reads the next CSV record as a mail, null at the end of the file
+	private Mail readCsvMail() throws IOException {
+		List<String> record = readCsvRecord();
+		if (record == null) {
+			done = true;
+			return null;
+		}
+		if (record.size() == 1 && record.get(0).length() == 0)
+			return null;	// blank line
+		if (record.size() < csvColumns.size())
+			throw new IllegalArgumentException("expected " + csvColumns.size() + " fields");
+
+		return newMail(record.get(csvColumns.get("sender")),
+				record.get(csvColumns.get("recipient")),
+				record.get(csvColumns.get("subject")),
+				record.get(csvColumns.get("body")),
+				getOptional(record, "priority"), getOptional(record, "send_at"),
+				getOptional(record, "attachments"));
+	}
+
+	// Returns the field of an optional CSV column, null if the file does not have it
+	private String getOptional(List<String> record, String column) {
+		Integer index = csvColumns.get(column);
+		return index != null && index < record.size() ? record.get(index) : null;
+	}
+
+	// Reads one CSV record, quoted fields may contain commas, quotes and line breaks
+	private List<String> readCsvRecord() throws IOException {
+		List<String> fields = new ArrayList<String>();
+		StringBuilder field = new StringBuilder();
+		boolean quoted = false;
+		int c = reader.read();
+		if (c < 0)
+			return null;
+		lineNumber++;
+
+		while (c >= 0) {
+			if (quoted) {
+				if (c == '"') {
+					reader.mark(1);
+					int peek = reader.read();
+					if (peek == '"') {
+						field.append('"');
+					} else {
+						quoted = false;
+						reader.reset();
+					}
+				} else {
+					if (c == '\n')
+						lineNumber++;
+					field.append((char) c);
+				}
+			} else if (c == '"') {
+				quoted = true;
+			} else if (c == ',') {
+				fields.add(field.toString());
+				field.setLength(0);
+			} else if (c == '\n') {
+				break;
+			} else if (c != '\r') {
+				field.append((char) c);
+			}
+			c = reader.read();
+		}
+		if (quoted)
+			throw new IllegalArgumentException("unterminated quoted field");
+		fields.add(field.toString());
+		return fields;
+	}
+
+	// Reads the next NDJSON line as a mail, null at the end of the file
+	private Mail readNdjsonMail() throws IOException {
+		String line = reader.readLine();
+		if (line == null) {
+			done = true;
+			return null;
+		}
+		lineNumber++;
+		if (line.trim().length() == 0)
+			return null;
+
+		Map<String, String> object = parseJsonObject(line);
+		return newMail(object.get("sender"), object.get("recipient"), object.get("subject"),
+				object.get("body"), object.get("priority"), object.get("send_at"),
+				object.get("attachments"));
+	}
+
+	private Mail newMail(String sender, String recipient, String subject, String body,
+			String priority, String sendAt, String attachments) {
+		if (sender == null || sender.length() == 0 || recipient == null || recipient.length() == 0)
+			throw new IllegalArgumentException("sender and recipient are required");
+		Mail mail = new Mail(0, sender, recipient, subject, body,
+				Priority.parse(priority, defaultPriority), 0, parseSendAt(sendAt));
+		mail.setAttachmentFiles(parseAttachments(attachments));
+		return mail;
+	}
+
+	// Reads the attachments field of a record, null if there are none
+	static List<String> parseAttachments(String value) {
+		if (value == null)
+			return null;
+		List<String> paths = new ArrayList<String>();
+		for (String path : value.split(";")) {
+			if (path.trim().length() > 0)
+				paths.add(path.trim());
+		}
+		return paths.isEmpty() ? null : paths;
+	}
+
+	/*
+	 * Function : parseSendAt
+	 * Input	: value (epoch millis, an ISO-8601 date-time with an offset, or empty)
+	 * Purpose	: Reads the send_at field of a record
+	 * Returns	: Time in epoch millis, 0 if the mail may be sent right away
+	 */
+	static long parseSendAt(String value) {
+		if (value == null || value.trim().length() == 0)
+			return 0;
+		value = value.trim();
+		try {
+			if (value.matches("\\d+"))
+				return Long.parseLong(value);
+			return OffsetDateTime.parse(value).toInstant().toEpochMilli();
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("bad send_at " + value);
+		} catch (DateTimeParseException e) {
+			throw new IllegalArgumentException("bad send_at " + value);
+		}
+	}
+
+	/*
+	 * Function : parseJsonObject
+	 * Input	: A flat JSON object
+	 * Purpose	: Parses the string members of a JSON object. Numbers, booleans and nulls are
+	 * 			  read as text (null as a missing member), nested values are not supported.
+	 * Returns	: The members of the object
+	 */
+	static Map<String, String> parseJsonObject(String json) {
+		Map<String, String> members = new HashMap<String, String>();
+		int[] pos = {skipSpaces(json, 0)};
+
+		expect(json, pos, '{');
+		if (peek(json, pos) == '}')
+			return members;
+		while (true) {
+			String name = parseJsonString(json, pos);
+			expect(json, pos, ':');
+			pos[0] = skipSpaces(json, pos[0]);
+			String value;
+			if (peek(json, pos) == '"') {
+				value = parseJsonString(json, pos);
+			} else {
+				int start = pos[0];
+				while (pos[0] < json.length() && ",} \t".indexOf(json.charAt(pos[0])) < 0)
+					pos[0]++;
+				value = json.substring(start, pos[0]);
+				if (value.length() == 0 || value.startsWith("{") || value.startsWith("["))
+					throw new IllegalArgumentException("unsupported value for " + name);
+				if (value.equals("null"))
+					value = null;
+			}
+			if (value != null)
+				members.put(name, value);
+
+			pos[0] = skipSpaces(json, pos[0]);
+			if (peek(json, pos) == ',') {
+				pos[0]++;
+				continue;
+			}
+			expect(json, pos, '}');
+			return members;
+		}
+	}
+
+	// Parses a JSON string starting at pos, including its escapes
+	private static String parseJsonString(String json, int[] pos) {
+		expect(json, pos, '"');
+		StringBuilder sb = new StringBuilder();
+		while (pos[0] < json.length()) {
+			char c = json.charAt(pos[0]++);
+			if (c == '"')
+				return sb.toString();
+			if (c != '\\') {
+				sb.append(c);
+				continue;
+			}
+			if (pos[0] >= json.length())
+				break;
+			char e = json.charAt(pos[0]++);
+			switch (e) {
+				case 'n': sb.append('\n'); break;
+				case 't': sb.append('\t'); break;
+				case 'r': sb.append('\r'); break;
+				case 'b': sb.append('\b'); break;
+				case 'f': sb.append('\f'); break;
+				case 'u':
+					if (pos[0] + 4 > json.length())
+						throw new IllegalArgumentException("bad unicode escape");
+					try {
+						sb.append((char) Integer.parseInt(json.substring(pos[0], pos[0] + 4), 16));
+					} catch (NumberFormatException nfe) {
+						throw new IllegalArgumentException("bad unicode escape");
+					}
+					pos[0] += 4;
+					break;
+				default: sb.append(e);		// \" \\ \/
+			}
+		}
+		throw new IllegalArgumentException("unterminated string");
+	}
+
+	// Skips whitespace, then checks for and consumes the expected character
+	private static void expect(String json, int[] pos, char expected) {
+		pos[0] = skipSpaces(json, pos[0]);
+		if (peek(json, pos) != expected)
+			throw new IllegalArgumentException("expected '" + expected + "' at " + pos[0]);
+		pos[0]++;
+	}
+
+	private static char peek(String json, int[] pos) {
+		pos[0] = skipSpaces(json, pos[0]);
+		return pos[0] < json.length() ? json.charAt(pos[0]) : 0;
+	}
+
+	private static int skipSpaces(String json, int pos) {
+		while (pos < json.length() && Character.isWhitespace(json.charAt(pos)))
+			pos++;
+		return pos;
+	}
+}
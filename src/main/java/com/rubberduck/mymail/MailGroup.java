@@ -0,0 +1,50 @@
+package com.rubberduck.mymail;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/*
+ * Class 	: MailGroup
+ * Purpose	: A set of mails with the same sender, subject and body which are sent as a
+ * 			  single SMTP transaction with one RCPT TO per mail.
+ * 			  A group never contains the same recipient twice, so every mail in it is
+ * 			  delivered exactly once.
+ */
+
+public class MailGroup {
+	private List<Mail> mails;			// mails in the group, in envelope recipient order
+	private Set<String> recipients;		// lower-cased recipients of the group
+
+	// Constructor
+	public MailGroup(Mail first) {
+		mails = new ArrayList<Mail>();
+		recipients = new HashSet<String>();
+		add(first);
+	}
+
+	// Adds a mail with the same content to the group
+	public void add(Mail mail) {
+		mails.add(mail);
+		recipients.add(mail.getRecipient().toLowerCase());
+	}
+
+	// True if the group already has a mail for the given recipient
+	public boolean hasRecipient(String recipient) {
+		return recipients.contains(recipient.toLowerCase());
+	}
+
+	// Returns the mail whose sender, subject and body are used for the whole group
+	public Mail getFirst() {
+		return mails.get(0);
+	}
+
+	public List<Mail> getMails() {
+		return mails;
+	}
+
+	public int size() {
+		return mails.size();
+	}
+}
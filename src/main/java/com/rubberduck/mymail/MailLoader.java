@@ -0,0 +1,267 @@
+package com.rubberduck.mymail;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+
+/*
+ * Class 	: MailLoader
+ * Purpose	: Inserts a stream of new mails into the mails table without holding them all in
+ * 			  memory. Mails are read one by one and cut into chunks (by count and by size),
+ * 			  and loader threads, each on a pooled connection, write every chunk as one
+ * 			  multi-row INSERT, or through LOAD DATA LOCAL INFILE, and commit it.
+ * 			  With -Dmymail.load.prerender=true the loader threads also render every mail
+ * 			  into its raw_mime column, which moves that work off the send path: workers
+ * 			  then send the stored bytes as they are. Mails with attachments or with a body
+ * 			  longer than content.inlineMaxChars are left to be streamed when they are sent.
+ * 			  Mails with attachments are inserted one at a time, along with their files.
+ */
+
+public class MailLoader {
+
+	// Marks the end of the stream of chunks
+	private static final List<Mail> END = new ArrayList<Mail>();
+
+	private int chunkSize;							// max. mails per chunk
+	private long maxChunkBytes;						// max. estimated bytes per chunk
+	private int threadsCount;						// loader threads
+	private volatile boolean localInfile;			// use LOAD DATA LOCAL INFILE
+	private MessageRenderer renderer;				// renders mails into raw_mime, or null
+
+	private AtomicLong loaded;						// mails written so far
+	private AtomicLong failed;						// mails of chunks which could not be written
+
+	// Constructor
+	public MailLoader(int chunkSize, long maxChunkBytes, int threadsCount, boolean localInfile) {
+		this.chunkSize = Math.max(1, chunkSize);
+		this.maxChunkBytes = Math.max(1, maxChunkBytes);
+		this.threadsCount = Math.max(1, threadsCount);
+		this.localInfile = localInfile;
+		renderer = null;
+		loaded = new AtomicLong(0);
+		failed = new AtomicLong(0);
+	}
+
+	/*
+	 * Function : fromConfig
+	 * Input	: none
+	 * Purpose	: Creates a loader using the load.* settings
+	 * Returns	: A new MailLoader
+	 */
+	public static MailLoader fromConfig() {
+		MailLoader loader = new MailLoader(
+				Config.getInt("load.chunkSize", 1000),
+				Config.getLong("load.maxChunkBytes", 4L * 1024 * 1024),
+				Config.getInt("load.threads", 1),
+				Config.getBoolean("load.localInfile", false));
+		if (Config.getBoolean("load.prerender", false))
+			loader.setRenderer(MessageRenderer.fromConfig(Session.getInstance(new Properties()),
+					new SqlHelper()));
+		return loader;
+	}
+
+	// Renders every mail into its raw_mime column before it is written, null not to
+	public void setRenderer(MessageRenderer renderer) {
+		this.renderer = renderer;
+	}
+
+	/*
+	 * Function : load
+	 * Input	: mails (mails to be inserted, their ids are ignored)
+	 * Purpose	: Reads the mails on the calling thread and hands chunks of them to the
+	 * 			  loader threads through a bounded queue, so at most a few chunks are in
+	 * 			  memory at any time. Prints the load rate when done.
+	 * Returns	: Number of mails inserted
+	 */
+	public long load(Iterator<Mail> mails) {
+		long start = System.currentTimeMillis();
+		final BlockingQueue<List<Mail>> chunks = new ArrayBlockingQueue<List<Mail>>(2 * threadsCount);
+
+		List<Thread> threads = new LinkedList<Thread>();
+		for (int i=1; i<=threadsCount; i++) {
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					writeChunks(chunks);
+				}
+			}, "loader-" + i);
+			thread.start();
+			threads.add(thread);
+		}
+
+		List<Mail> chunk = new ArrayList<Mail>(chunkSize);
+		long chunkBytes = 0;
+		while (mails.hasNext()) {
+			Mail mail = mails.next();
+			chunk.add(mail);
+			chunkBytes += mail.getSizeInBytes();
+			if (chunk.size() >= chunkSize || chunkBytes >= maxChunkBytes) {
+				put(chunks, chunk);
+				chunk = new ArrayList<Mail>(chunkSize);
+				chunkBytes = 0;
+			}
+		}
+		if (chunk.size() > 0)
+			put(chunks, chunk);
+		for (int i=0; i<threadsCount; i++)
+			put(chunks, END);
+
+		for (Thread thread : threads) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				System.out.println(e.getMessage());
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		// Put the new mails in their shard and wake up the daemons sending from this
+		// table, see NodeRegistry and WorkPoller
+		if (loaded.get() > 0) {
+			SqlHelper sqlHelper = new SqlHelper();
+			sqlHelper.assignShards();
+			sqlHelper.signal();
+		}
+
+		long millis = Math.max(1, System.currentTimeMillis() - start);
+		System.out.println("Loaded " + loaded.get() + " mails in " + millis + " ms ("
+				+ (loaded.get() * 1000 / millis) + " rows/s, " + threadsCount + " thread(s)"
+				+ (failed.get() > 0 ? ", " + failed.get() + " failed" : "") + ")");
+		return loaded.get();
+	}
+
+	/*
+	 * Function : dummyMails
+	 * Input	: count (number of mails)
+	 * Purpose	: Generates the dummy mails used for testing, one at a time
+	 * Returns	: An iterator over [count] dummy mails
+	 */
+	public static Iterator<Mail> dummyMails(final int count) {
+		return new Iterator<Mail>() {
+			private int i = 0;
+
+			public boolean hasNext() {
+				return i < count;
+			}
+
+			public Mail next() {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				i++;
+				return new Mail(0, "sender@localhost.com", "recepient" + i + "@localhost.com",
+						"Subject " + i, "Body " + i);
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	// Writes chunks from the queue until the end marker
+	private void writeChunks(BlockingQueue<List<Mail>> chunks) {
+		SqlHelper sqlHelper = new SqlHelper();
+
+		List<Mail> chunk = take(chunks);
+		while (chunk != END) {
+			if (renderer != null)
+				prerender(chunk);
+			List<Mail> rows = insertWithAttachments(sqlHelper, chunk);
+			int result = -1;
+			if (localInfile) {
+				result = sqlHelper.loadMails(rows);
+				if (result < 0)
+					disableLocalInfile();
+			}
+			if (result < 0)
+				result = sqlHelper.insertMails(rows);
+
+			if (result < 0)
+				failed.addAndGet(rows.size());
+			else
+				loaded.addAndGet(result);
+			chunk = take(chunks);
+		}
+	}
+
+	// Renders the mails of a chunk, a mail which cannot be rendered is left to the workers
+	private void prerender(List<Mail> chunk) {
+		int inlineMaxChars = MailContent.getInlineMaxChars();
+		for (Mail mail : chunk) {
+			if (mail.getAttachmentFiles() != null
+					|| (mail.getBody() != null && mail.getBody().length() > inlineMaxChars))
+				continue;
+			try {
+				mail.setRawMime(renderer.renderRaw(mail));
+			} catch (MessagingException e) {
+				System.out.println(e);
+			}
+		}
+	}
+
+	// Inserts the mails of a chunk which have attachments, returns the other mails
+	private List<Mail> insertWithAttachments(SqlHelper sqlHelper, List<Mail> chunk) {
+		List<Mail> rest = null;
+		for (int i=0; i<chunk.size(); i++) {
+			Mail mail = chunk.get(i);
+			if (mail.getAttachmentFiles() == null) {
+				if (rest != null)
+					rest.add(mail);
+				continue;
+			}
+			if (rest == null)
+				rest = new ArrayList<Mail>(chunk.subList(0, i));
+			if (sqlHelper.insertMailWithAttachments(mail) < 0)
+				failed.incrementAndGet();
+			else
+				loaded.incrementAndGet();
+		}
+		return rest != null ? rest : chunk;
+	}
+
+	// Falls back to INSERT for all loader threads, reported once
+	private synchronized void disableLocalInfile() {
+		if (localInfile) {
+			System.out.println("LOAD DATA LOCAL INFILE is not available, using INSERT instead.");
+			localInfile = false;
+		}
+	}
+
+	private static void put(BlockingQueue<List<Mail>> queue, List<Mail> chunk) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				queue.put(chunk);
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	private static List<Mail> take(BlockingQueue<List<Mail>> queue) {
+		boolean interrupted = false;
+		List<Mail> chunk;
+		while (true) {
+			try {
+				chunk = queue.take();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		return chunk;
+	}
+}
@@ -0,0 +1,46 @@
+package com.rubberduck.mymail;
+
+/*
+ * Class 	: MailOutcome
+ * Purpose	: The final state of a claimed mail, waiting to be written back by the StateWriter.
+ * 			  An outcome without a mail id applies to every mail still IN_FLIGHT under
+ * 			  the claim. A DEFERRED outcome carries the time of the mail's next attempt.
+ */
+
+public class MailOutcome {
+	static final int WHOLE_CLAIM = -1;	// mail id of outcomes applying to a whole claim
+
+	private String claimToken;			// token under which the mail was claimed
+	private int mailId;					// id of the mail, WHOLE_CLAIM for the whole claim
+	private State state;				// state to be recorded
+	private long nextAttemptAt;			// time of the next attempt of a DEFERRED mail
+
+	// Constructor
+	public MailOutcome(String claimToken, int mailId, State state) {
+		this(claimToken, mailId, state, 0);
+	}
+
+	// Constructor
+	public MailOutcome(String claimToken, int mailId, State state, long nextAttemptAt) {
+		this.claimToken = claimToken;
+		this.mailId = mailId;
+		this.state = state;
+		this.nextAttemptAt = nextAttemptAt;
+	}
+
+	public String getClaimToken() {
+		return claimToken;
+	}
+	public int getMailId() {
+		return mailId;
+	}
+	public State getState() {
+		return state;
+	}
+	public long getNextAttemptAt() {
+		return nextAttemptAt;
+	}
+	public boolean isWholeClaim() {
+		return mailId == WHOLE_CLAIM;
+	}
+}
@@ -0,0 +1,317 @@
+package com.rubberduck.mymail;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Class 	: MailPipeline
+ * Purpose	: Send engine which splits the work of a MailSender into three stages joined by
+ * 			  bounded queues: fetchers claim batches from the database, renderers build the
+ * 			  messages and senders push them to the SMTP server and record the outcome.
+ * 			  Each stage has its own number of threads, and fetchers claim the next batches
+ * 			  while the current ones are being sent, so database and SMTP latency overlap.
+ * 			  The queue capacities bound the number of batches held in memory.
+ */
+
+public class MailPipeline {
+
+	// Marks the end of the stream of batches in a queue
+	private static final MailBatch END = new MailBatch(null, new ArrayList<Mail>());
+
+	private int fetchersCount;						// threads claiming batches
+	private int renderersCount;						// threads rendering batches
+	private int sendersCount;						// threads sending batches
+	private BatchSizeController batchSizes;			// decides the size of each batch
+	private StateWriter stateWriter;				// records the outcome of each mail
+	private LaneScheduler lanes;					// priority lane of each claim
+	private long pollMillis;						// wait before claiming again when idle
+	private DomainRouter router;					// relay routes and their SMTP pools
+	private MessageRenderer renderer;				// message renderer shared by all stages
+
+	private BlockingQueue<MailBatch> fetchedQueue;	// claimed batches waiting to be rendered
+	private BlockingQueue<MailBatch> renderedQueue;	// rendered batches waiting to be sent
+	private AtomicInteger activeFetchers;			// fetchers which have not finished yet
+	private AtomicInteger activeRenderers;			// renderers which have not finished yet
+	private AtomicInteger batchesInFlight;			// claimed batches without recorded outcome
+	private volatile boolean stopped;				// set when sending cannot continue
+	private WorkPoller poller;						// keeps fetchers claiming when idle, or null
+
+	// Constructor
+	public MailPipeline(int fetchersCount, int renderersCount, int sendersCount,
+			BatchSizeController batchSizes, StateWriter stateWriter, LaneScheduler lanes,
+			int fetchQueueCapacity, int renderQueueCapacity,
+			DomainRouter router, MessageRenderer renderer) {
+		this.fetchersCount = Math.max(1, fetchersCount);
+		this.renderersCount = Math.max(1, renderersCount);
+		this.sendersCount = Math.max(1, sendersCount);
+		this.batchSizes = batchSizes;
+		this.stateWriter = stateWriter;
+		this.lanes = lanes;
+		this.router = router;
+		this.renderer = renderer;
+		pollMillis = Config.getLong("pipeline.pollMillis", 100);
+
+		fetchedQueue = new ArrayBlockingQueue<MailBatch>(Math.max(1, fetchQueueCapacity));
+		renderedQueue = new ArrayBlockingQueue<MailBatch>(Math.max(1, renderQueueCapacity));
+		activeFetchers = new AtomicInteger(this.fetchersCount);
+		activeRenderers = new AtomicInteger(this.renderersCount);
+		batchesInFlight = new AtomicInteger(0);
+		stopped = false;
+		poller = null;
+
+		String help = "Batches waiting between two stages of the pipeline";
+		Metrics.gauge("mymail_pipeline_queue_depth", help, new Metrics.Gauge() {
+			public double getValue() {
+				return fetchedQueue.size();
+			}
+		}, "queue", "fetched");
+		Metrics.gauge("mymail_pipeline_queue_depth", help, new Metrics.Gauge() {
+			public double getValue() {
+				return renderedQueue.size();
+			}
+		}, "queue", "rendered");
+		Metrics.gauge("mymail_pipeline_batches_in_flight", "Claimed batches whose outcome is not recorded yet",
+				new Metrics.Gauge() {
+					public double getValue() {
+						return batchesInFlight.get();
+					}
+				});
+	}
+
+	/*
+	 * Function : fromConfig
+	 * Input	: threadsCount (number of sender threads used when pipeline.senders is not set)
+	 * 			  batchSizes, stateWriter (shared batch sizing and state write-back)
+	 * 			  lanes (shared priority lane scheduling)
+	 * 			  router, renderer (shared relay routes and message renderer)
+	 * Purpose	: Creates a pipeline using the pipeline.* settings
+	 * Returns	: A new MailPipeline
+	 */
+	public static MailPipeline fromConfig(int threadsCount, BatchSizeController batchSizes,
+			StateWriter stateWriter, LaneScheduler lanes, DomainRouter router,
+			MessageRenderer renderer) {
+		return new MailPipeline(
+				Config.getInt("pipeline.fetchers", 1),
+				Config.getInt("pipeline.renderers", 1),
+				Config.getInt("pipeline.senders", threadsCount),
+				batchSizes, stateWriter, lanes,
+				Config.getInt("pipeline.fetchQueueCapacity", 2),
+				Config.getInt("pipeline.renderQueueCapacity", 2),
+				router, renderer);
+	}
+
+	/*
+	 * Function : run
+	 * Input	: none
+	 * Purpose	: Starts all stages and waits until every claimable mail has been processed,
+	 * 			  or until sending had to stop because the SMTP server is unreachable
+	 * Returns	: void
+	 */
+	public void run() {
+		System.out.println("Pipeline : " + fetchersCount + " fetcher(s), " + renderersCount
+				+ " renderer(s), " + sendersCount + " sender(s)");
+
+		List<Thread> threads = new LinkedList<Thread>();
+		for (int i=1; i<=fetchersCount; i++)
+			threads.add(new Thread(new Fetcher(i), "fetcher-" + i));
+		for (int i=1; i<=renderersCount; i++)
+			threads.add(new Thread(new Renderer(), "renderer-" + i));
+		for (int i=1; i<=sendersCount; i++)
+			threads.add(new Thread(new Sender(), "sender-" + i));
+
+		for (Thread thread : threads)
+			thread.start();
+		for (Thread thread : threads) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				System.out.println(e.getMessage());
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	// Keeps the fetchers running when nothing is left to claim, until the poller is stopped
+	public void setPoller(WorkPoller poller) {
+		this.poller = poller;
+	}
+
+	// Stops claiming new batches, batches already claimed are released by the senders
+	private void stop(String reason) {
+		if (!stopped)
+			System.out.println("Pipeline : " + reason + " Stopping.");
+		stopped = true;
+	}
+
+	// Puts a batch in a queue, waiting for space (this is the pipeline's backpressure)
+	private static void put(BlockingQueue<MailBatch> queue, MailBatch batch) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				queue.put(batch);
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	// Takes the next batch from a queue, waiting for one to be available
+	private static MailBatch take(BlockingQueue<MailBatch> queue) {
+		boolean interrupted = false;
+		MailBatch batch;
+		while (true) {
+			try {
+				batch = queue.take();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		return batch;
+	}
+
+	/*
+	 * Class	: Fetcher
+	 * Purpose	: Claims batches until no claimable mails are left, no batch is in flight and
+	 * 			  no outcome is waiting to be written (either may still hand mails back)
+	 */
+	private class Fetcher implements Runnable {
+		private int fetcherId;
+
+		Fetcher(int fetcherId) {
+			this.fetcherId = fetcherId;
+		}
+
+		public void run() {
+			SqlHelper sqlHelper = new SqlHelper();
+			ClaimCursor claimCursor = new ClaimCursor(lanes);
+			long idleMillis = 0;
+
+			while (!stopped && (poller == null || !poller.isStopping())) {
+				// Mails handed back by batches in flight are only claimable once written
+				boolean settled = batchesInFlight.get() == 0 && stateWriter.isIdle();
+				long fetchStart = System.currentTimeMillis();
+				String claimToken = UUID.randomUUID().toString();
+				int claimed = claimCursor.claim(sqlHelper, claimToken,
+						batchSizes.nextBatchSize(fetcherId));
+
+				if (claimed < 0) {
+					stop("Could not fetch mails!");
+				} else if (claimed == 0) {
+					if (poller != null) {
+						idleMillis = poller.idle(idleMillis);
+						continue;
+					}
+					if (settled)
+						break;
+					try {
+						Thread.sleep(pollMillis);
+					} catch (InterruptedException e) {
+						break;
+					}
+				} else {
+					List<Mail> mails = sqlHelper.getClaimedMails(claimToken);
+					if (mails == null) {
+						stateWriter.releaseClaim(claimToken);
+						stop("Could not fetch claimed mails!");
+						continue;
+					}
+					idleMillis = 0;
+					batchesInFlight.incrementAndGet();
+					MailBatch batch = new MailBatch(claimToken, mails);
+					claimCursor.advance(batch.getMails());
+					batch.setClaimedBy(fetcherId, batchSizes.onFetched(fetcherId, batch.getMails(),
+							System.currentTimeMillis() - fetchStart));
+					put(fetchedQueue, batch);
+				}
+			}
+
+			// The last fetcher tells the renderers that no more batches will come
+			if (activeFetchers.decrementAndGet() == 0) {
+				for (int i=0; i<renderersCount; i++)
+					put(fetchedQueue, END);
+			}
+		}
+	}
+
+	/*
+	 * Class	: Renderer
+	 * Purpose	: Builds the messages of claimed batches
+	 */
+	private class Renderer implements Runnable {
+		public void run() {
+			SMTPMailer smtpMailer = new SMTPMailer(router, renderer);
+
+			MailBatch batch = take(fetchedQueue);
+			while (batch != END) {
+				if (stopped)
+					put(renderedQueue, batch);
+				else
+					put(renderedQueue, smtpMailer.render(batch));
+				batch = take(fetchedQueue);
+			}
+
+			// The last renderer tells the senders that no more batches will come
+			if (activeRenderers.decrementAndGet() == 0) {
+				for (int i=0; i<sendersCount; i++)
+					put(renderedQueue, END);
+			}
+		}
+	}
+
+	/*
+	 * Class	: Sender
+	 * Purpose	: Sends rendered batches and records their outcome in the database
+	 */
+	private class Sender implements Runnable {
+		public void run() {
+			MailBatch batch = take(renderedQueue);
+			while (batch != END) {
+				SMTPMailer smtpMailer = new SMTPMailer(router, renderer);
+				long sendStart = System.currentTimeMillis();
+
+				if (!stopped && !smtpMailer.authenticateAndConnect()) {
+					stop("Could not connect to SMTP server. Please make sure that the server"
+							+ " is running and then try again.");
+				}
+
+				if (stopped) {
+					// Release the claimed mails so that they can be picked up again
+					batch.release();
+					stateWriter.releaseClaim(batch.getClaimToken());
+					batchSizes.onCompleted(batch.getWorkerId(), batch.size(), batch.getBytes(),
+							0, 0, batch.size());
+				} else {
+					List<Integer> failedMailIds = new LinkedList<Integer>();
+					List<Integer> rejectedMailIds = new LinkedList<Integer>();
+					List<Integer> unProcessedMailIds = new LinkedList<Integer>();
+					Map<Integer, Long> deferredMailIds = new LinkedHashMap<Integer, Long>();
+
+					smtpMailer.send(batch, failedMailIds, rejectedMailIds, unProcessedMailIds,
+							deferredMailIds);
+					stateWriter.completeClaim(batch.getClaimToken(), Mail.getIds(batch.getMails()),
+							failedMailIds, rejectedMailIds, unProcessedMailIds, deferredMailIds);
+					batchSizes.onCompleted(batch.getWorkerId(), batch.size(), batch.getBytes(),
+							System.currentTimeMillis() - sendStart,
+							failedMailIds.size(), unProcessedMailIds.size(), deferredMailIds.size());
+				}
+				batchesInFlight.decrementAndGet();
+
+				batch = take(renderedQueue);
+			}
+		}
+	}
+}
@@ -2,14 +2,13 @@ package com.rubberduck.mymail;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.sql.SQLException;
 import java.util.List;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.ArrayList;
+import java.util.Map;
 import java.util.Properties;
+import java.util.UUID;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -35,125 +34,253 @@ import com.mysql.jdbc.authentication.MysqlClearPasswordPlugin;
 public class MailSender implements Runnable {
 
 	int threadId;					// unique id for the thread
-	int batchSize;					// size of batch in which mails are brought into memory
+	BatchSizeController batchSizes;	// decides the size of each batch brought into memory
 	SqlHelper sqlHelper;			// helper object for database operations
+	StateWriter stateWriter;		// records the outcome of each mail
+	ClaimCursor claimCursor;		// keyset cursor of this thread over the mails table
+	String claimToken;				// token of the batch currently claimed by this thread
+	long claimedBytes;				// bytes of the current batch, as accounted by batchSizes
+	DomainRouter router;			// relay routes and their SMTP pools, shared by all threads
+	MessageRenderer renderer;		// message renderer shared by all threads
+	WorkPoller poller;				// keeps the thread claiming when idle, null to exit instead
 
 	// Constructor
-	public MailSender(int threadId, int batchSize) {
-		// TODO Auto-generated constructor stub
+	public MailSender(int threadId, BatchSizeController batchSizes, StateWriter stateWriter,
+			LaneScheduler lanes, DomainRouter router, MessageRenderer renderer) {
 		this.threadId = threadId;
-		this.batchSize = batchSize;
+		this.batchSizes = batchSizes;
+		this.stateWriter = stateWriter;
+		this.router = router;
+		this.renderer = renderer;
 		sqlHelper = new SqlHelper();
+		claimCursor = new ClaimCursor(lanes);
+		poller = null;
+	}
+
+	// Keeps the thread running when nothing is left to claim, until the poller is stopped
+	public void setPoller(WorkPoller poller) {
+		this.poller = poller;
 	}
 
 	/* 
 	 * Function : run
 	 * Input	: none
 	 * Purpose	: Entry point for execution of thread.
-	 * 			  Fetches [batchSize] mails into memory and sends them out
+	 * 			  Claims batches of mails and sends them out, until no claimable mails are left.
+	 * 			  The size of each batch is chosen by the BatchSizeController.
+	 * 			  With -Dmymail.fetch.streaming=true the rows of a batch are streamed and
+	 * 			  sent in chunks instead of being read into memory first.
 	 * Returns	: void 
 	 */
 	public void run() {
 		System.out.println("Thread " + threadId + " : Started");
 		
+		if (Config.getBoolean("fetch.streaming", false))
+			sendStreamed();
+		else
+			sendBatched();
+		
+		System.out.println("Thread " + threadId + " : Exiting");
+	}
+	
+	// Reads each claimed batch into memory and sends it out
+	private void sendBatched() {
 		// Fetch mails to be sent
 		List<Mail> mails = fetchMails();
 		
 		while (mails.size() > 0) {
-			System.out.println("Thread " + threadId + " : Sending next batch... ");
+			System.out.println("Thread " + threadId + " : Sending next batch of " + mails.size()
+					+ " mails... ");
+			long sendStart = System.currentTimeMillis();
 			
-			SMTPMailer smtpMailer = new SMTPMailer("localhost");
+			SMTPMailer smtpMailer = new SMTPMailer(router, renderer);
 
 			// LinkedLists to hold the id's of mails that could not be sent/processed
 			List<Integer> failedMailIds = new LinkedList<Integer>();
+			List<Integer> rejectedMailIds = new LinkedList<Integer>();
 			List<Integer> unProcessedMailIds = new LinkedList<Integer>();
+			Map<Integer, Long> deferredMailIds = new LinkedHashMap<Integer, Long>();
 
 			// Attempt to authenticate and connect to SMTP server
-			if (!smtpMailer.authenticateAndConnect("user", "pass")) {
+			if (!smtpMailer.authenticateAndConnect()) {
 				// Connection failed
+				printConnectionFailure();
 				
-				System.out.println("Thread " + threadId + " : Could not connect to SMTP server." +
-						" Please make sure that the server is running and then try again.");
-				
-				// Revert fetched mails to NOT_SENT
-				Mail firstMail = mails.get(0);
-				Mail lastMail = mails.get(mails.size() - 1); 
-				sqlHelper.setState(firstMail.getId(), lastMail.getId(), State.NOT_SENT);
-				
-				sqlHelper.closeConnection();
-				System.out.println("Thread " + threadId + " : Exiting");
-				
+				// Release the claimed mails so that they can be picked up again
+				stateWriter.releaseClaim(claimToken);
+				batchSizes.onCompleted(threadId, mails.size(), claimedBytes, 0, 0, mails.size());
 				return;
 				
 			} else {			
 				// Connection established successfully
 				
 				// Send out mails
-				smtpMailer.sendEmails(mails, failedMailIds, unProcessedMailIds);
+				smtpMailer.sendEmails(mails, failedMailIds, rejectedMailIds, unProcessedMailIds,
+						deferredMailIds);
 				
-				// Mark failed emails
-				if (failedMailIds != null && failedMailIds.size() > 0)
-					sqlHelper.setState(failedMailIds, State.FAILED);
-				// Mark un-processed emails
-				if (unProcessedMailIds != null && unProcessedMailIds.size() > 0)
-					sqlHelper.setState(unProcessedMailIds, State.NOT_SENT);
+				// Mark failed, un-processed, deferred and sent emails
+				stateWriter.completeClaim(claimToken, Mail.getIds(mails), failedMailIds,
+						rejectedMailIds, unProcessedMailIds, deferredMailIds);
+				batchSizes.onCompleted(threadId, mails.size(), claimedBytes,
+						System.currentTimeMillis() - sendStart,
+						failedMailIds.size(), unProcessedMailIds.size(), deferredMailIds.size());
 			
 				// Fetch next batch of mails
 				mails = fetchMails();
 			}
 		}
+	}
+	
+	/*
+	 * Function	: sendStreamed
+	 * Input	: none
+	 * Purpose	: Claims batches like sendBatched, but reads the claimed rows through a
+	 * 				streaming cursor (-Dmymail.fetch.size rows per round trip) and sends them
+	 * 				in chunks of -Dmymail.fetch.chunkSize mails as they arrive. Memory then
+	 * 				depends on the fetch and chunk sizes rather than on the batch size, and
+	 * 				the first mails go out before the last rows have been read.
+	 * Returns	: void
+	 */
+	private void sendStreamed() {
+		int fetchSize = SqlHelper.getFetchSize();
+		int chunkSize = Math.max(1, Config.getInt("fetch.chunkSize", 100));
 		
-		sqlHelper.closeConnection();
-		System.out.println("Thread " + threadId + " : Exiting");
+		long fetchStart = System.currentTimeMillis();
+		int claimed = claimNextBatch();
+		
+		while (claimed > 0) {
+			System.out.println("Thread " + threadId + " : Streaming next batch of " + claimed
+					+ " mails... ");
+			long sendStart = System.currentTimeMillis();
+			
+			MailCursor cursor = sqlHelper.openClaimedMails(claimToken, fetchSize);
+			if (cursor == null) {
+				// Same as a failed read of the claimed mails, the run stops and is only
+				// started again after a backoff (see MyMailService.processFailedMails)
+				stateWriter.releaseClaim(claimToken);
+				return;
+			}
+			
+			List<Integer> failedMailIds = new LinkedList<Integer>();
+			List<Integer> rejectedMailIds = new LinkedList<Integer>();
+			List<Integer> unProcessedMailIds = new LinkedList<Integer>();
+			Map<Integer, Long> deferredMailIds = new LinkedHashMap<Integer, Long>();
+			List<Integer> processedMailIds = new ArrayList<Integer>(claimed);
+			long bytes = -1;
+			boolean connected = true;
+			
+			while (cursor.hasNext()) {
+				List<Mail> chunk = new ArrayList<Mail>(chunkSize);
+				while (chunk.size() < chunkSize && cursor.hasNext())
+					chunk.add(cursor.next());
+				for (Mail mail : chunk)
+					processedMailIds.add(mail.getId());
+				claimCursor.advance(chunk);
+				// Only one chunk is held at a time, so the first one stands for the batch
+				if (bytes < 0)
+					bytes = batchSizes.onFetched(threadId, chunk,
+							System.currentTimeMillis() - fetchStart);
+				
+				SMTPMailer smtpMailer = new SMTPMailer(router, renderer);
+				if (!smtpMailer.authenticateAndConnect()) {
+					for (Mail mail : chunk)
+						unProcessedMailIds.add(mail.getId());
+					connected = false;
+					break;
+				}
+				smtpMailer.sendEmails(chunk, failedMailIds, rejectedMailIds, unProcessedMailIds,
+						deferredMailIds);
+			}
+			boolean complete = connected && !cursor.hasFailed();
+			cursor.close();
+			
+			// Mark failed, un-processed, deferred and sent emails, rows never read are released
+			stateWriter.completeClaim(claimToken, processedMailIds, failedMailIds,
+					rejectedMailIds, unProcessedMailIds, deferredMailIds);
+			if (!complete)
+				stateWriter.releaseClaim(claimToken);
+			batchSizes.onCompleted(threadId, processedMailIds.size(), Math.max(0, bytes),
+					System.currentTimeMillis() - sendStart,
+					failedMailIds.size(), unProcessedMailIds.size(), deferredMailIds.size());
+			
+			if (!complete) {
+				if (!connected)
+					printConnectionFailure();
+				return;
+			}
+			
+			// Claim next batch of mails
+			fetchStart = System.currentTimeMillis();
+			claimed = claimNextBatch();
+		}
 	}
 	
+	private void printConnectionFailure() {
+		System.out.println("Thread " + threadId + " : Could not connect to SMTP server." +
+				" Please make sure that the server is running and then try again.");
+	}
 	
 	/*
 	 * Function	: fetchMails
 	 * Input	: none
-	 * Purpose	: Reads the next [batchSize] mails from the database, creates a list of mails
-	 * 				using the ResultSet obtained and marks the mails as SENT
+	 * Purpose	: Claims the next batch of mails under a new claim token, which marks them
+	 * 				IN_FLIGHT for the duration of the lease, and reads the claimed mails.
+	 * 				No client-side locking is needed since the claim is a single UPDATE.
 	 * Returns	: A list of mails fetched from the database
 	 */
 	public List<Mail> fetchMails() {
-		Connection con = sqlHelper.getConnection();
-		PreparedStatement query = null;
-		ResultSet rs = null;
-		List<Mail> mails = null;
-		try {
-			if (con != null) {
-				// Synchronize the query and updation logic to avoid race conditions
-				synchronized(SqlHelper.class) {
-					
-					// Query database to fetch [batchSize] unsent mails
-					query = con.prepareStatement("SELECT * FROM " + SqlHelper.mailsTable + 
-						" WHERE sent = " + State.NOT_SENT.ordinal() + " LIMIT " + batchSize);
-					rs = sqlHelper.execute(query);
-				
-					mails = sqlHelper.getMailsFromResultSet(rs);
-					if (mails.size() > 0) {	
-						Mail firstMail = mails.get(0);
-						Mail lastMail = mails.get(mails.size() - 1); 
-					
-						// Mark fetched mails as SENT
-						sqlHelper.setState(firstMail.getId(), lastMail.getId(), State.SENT);
-					}
-				}
+		List<Mail> mails = new ArrayList<Mail>();
+		
+		long fetchStart = System.currentTimeMillis();
+		int claimed = claimNextBatch();
+		
+		if (claimed > 0)
+			mails = sqlHelper.getClaimedMails(claimToken);
+		if (mails == null) {
+			// Hand the claim back rather than leaving it IN_FLIGHT until the lease expires
+			stateWriter.releaseClaim(claimToken);
+			return new ArrayList<Mail>();
+		}
+		claimCursor.advance(mails);
+		claimedBytes = batchSizes.onFetched(threadId, mails, System.currentTimeMillis() - fetchStart);
+		
+		return mails;
+	}
+	
+	// Claims the next batch under a new claim token, returns the number of mails claimed.
+	// Mails handed back by earlier batches (e.g. deferred by a rate limit) are only claimable
+	// once written, so nothing left to claim only ends the run when no outcome was pending.
+	// With a poller, the thread waits for more mails instead, until the poller is stopped.
+	private int claimNextBatch() {
+		long pollMillis = Config.getLong("claim.pollMillis", 100);
+		long idleMillis = 0;
+		while (true) {
+			if (poller != null && poller.isStopping())
+				return 0;
+			boolean settled = stateWriter.isIdle();
+			claimToken = UUID.randomUUID().toString();
+			int claimed = claimCursor.claim(sqlHelper, claimToken, batchSizes.nextBatchSize(threadId));
+			if (claimed < 0) {
+				System.out.println("Could not fetch mails!");
+				System.exit(-1);
+			}
+			if (claimed > 0)
+				return claimed;
+			if (poller != null) {
+				idleMillis = poller.idle(idleMillis);
+				if (idleMillis < 0)
+					return 0;
+				continue;
 			}
-		} catch (SQLException e) {
-			System.out.println("Could not fetch mails!");
-			System.out.println(e);
-			System.exit(-1);
-		} finally {
+			if (settled)
+				return claimed;
 			try {
-				if (rs!= null) rs.close();
-				if (query!= null) query.close();
-			} catch (SQLException e) {
-				System.out.println(e.getMessage());
+				Thread.sleep(pollMillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return 0;
 			}
 		}
-		
-		return mails;
 	}
 	
 }
@@ -0,0 +1,286 @@
+package com.rubberduck.mymail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Part;
+import javax.mail.Session;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+
+/*
+ * Class 	: MessageRenderer
+ * Purpose	: Builds the MimeMessages sent by SMTPMailer while avoiding repeated work.
+ * 			  Parsed addresses are kept in an LRU cache, and the encoded header block and
+ * 			  body of each distinct (sender, subject, body) are rendered once into a
+ * 			  skeleton that later messages copy instead of encoding the body again.
+ * 			  Mails rendered when they were queued (see renderRaw) are sent from their
+ * 			  stored bytes as RawMessages, and large mails stream their MailContent as
+ * 			  SpooledMessages.
+ * 			  A single renderer is shared by all threads.
+ */
+
+public class MessageRenderer {
+
+	// Random part of Message-IDs, unique per JVM
+	private static final String MESSAGE_ID_TOKEN = UUID.randomUUID().toString().substring(0, 8);
+
+	private Session mailSession;							// Session used for new messages
+	private SqlHelper sqlHelper;							// reads large content, null if none
+	private LruCache<String, InternetAddress> addresses;	// parsed and validated addresses
+	private LruCache<MailContentKey, Skeleton> skeletons;	// rendered content by sender, subject, body
+	private int maxCachedBodyLength;						// larger bodies are not cached
+	private AtomicLong messageCounter;						// sequence used in Message-IDs
+
+	// Constructor
+	public MessageRenderer(Session mailSession, SqlHelper sqlHelper, int maxAddresses,
+			int maxSkeletons, int maxCachedBodyLength) {
+		this.mailSession = mailSession;
+		this.sqlHelper = sqlHelper;
+		this.maxCachedBodyLength = maxCachedBodyLength;
+		addresses = new LruCache<String, InternetAddress>("Address", maxAddresses);
+		skeletons = new LruCache<MailContentKey, Skeleton>("Message skeleton", maxSkeletons);
+		messageCounter = new AtomicLong();
+	}
+
+	/*
+	 * Function : fromConfig
+	 * Input	: mailSession (Session used for new messages)
+	 * 			  sqlHelper (reads the content of large mails, null if none are rendered)
+	 * Purpose	: Creates a renderer using the render.* settings
+	 * Returns	: A new MessageRenderer
+	 */
+	public static MessageRenderer fromConfig(Session mailSession, SqlHelper sqlHelper) {
+		return new MessageRenderer(mailSession, sqlHelper,
+				Config.getInt("render.cache.maxAddresses", 100000),
+				Config.getInt("render.cache.maxSkeletons", 1000),
+				Config.getInt("render.cache.maxBodyLength", 64 * 1024));
+	}
+
+	/*
+	 * Function : getAddress
+	 * Input	: address (an email address)
+	 * Purpose	: Parses and validates an address, reusing earlier results.
+	 * 			  The returned object is shared and must not be modified.
+	 * Returns	: The parsed InternetAddress
+	 */
+	public InternetAddress getAddress(String address) throws AddressException {
+		InternetAddress parsed = addresses.get(address);
+		if (parsed == null) {
+			parsed = new InternetAddress(address);
+			addresses.put(address, parsed);
+		}
+		return parsed;
+	}
+
+	/*
+	 * Function : render
+	 * Input	: A group of mails sharing sender, subject and body
+	 * Purpose	: Builds the message for a group from the cached skeleton of its content.
+	 * 			  A single mail is addressed to its recipient, a larger group keeps its
+	 * 			  recipients in the envelope only so that recipients do not see each other.
+	 * 			  A mail with stored raw bytes (always alone in its group) is sent as is, and
+	 * 			  a large one (alone too) is built around its MailContent, see renderLarge.
+	 * Returns	: The message to be sent
+	 */
+	public MimeMessage render(MailGroup group) throws MessagingException {
+		Mail mail = group.getFirst();
+		MimeMessage message;
+
+		// Rendered when queued, recipient and Message-ID included
+		if (mail.getRawMime() != null)
+			return new RawMessage(mailSession, getAddress(mail.getSender()), mail.getRawMime());
+		if (mail.hasLargeContent()) {
+			// Built around its content, read now
+			message = renderLarge(mail);
+		} else if (mail.getBody() != null && mail.getBody().length() > maxCachedBodyLength) {
+			// Too large to keep around, build it directly
+			message = new MimeMessage(mailSession);
+			message.setFrom(getAddress(mail.getSender()));
+			message.setSubject(mail.getSubject());
+			message.setContent(mail.getBody(), "text/html");
+			message.saveChanges();
+		} else {
+			Skeleton skeleton = getSkeleton(mail);
+			message = new RenderedMessage(mailSession, skeleton.headers, skeleton.content);
+		}
+
+		try {
+			if (group.size() == 1)
+				message.setRecipient(Message.RecipientType.TO, getAddress(mail.getRecipient()));
+			else
+				message.setHeader("To", "undisclosed-recipients:;");
+			message.setHeader("Message-ID", nextMessageId(mail.getSender()));
+		} catch (MessagingException e) {
+			if (message instanceof SpooledMessage)
+				((SpooledMessage) message).release();
+			throw e;
+		}
+
+		return message;
+	}
+
+	/*
+	 * Function : renderLarge
+	 * Input	: A mail claimed without its body or attachments
+	 * Purpose	: Reads the deferred body and the attachments of the mail into a MailContent
+	 * 			  (spilling them to temp files), then builds a message whose parts stream
+	 * 			  from it: the body alone, or a multipart/mixed with the body first and one
+	 * 			  part per attachment. Content-Transfer-Encodings are chosen by scanning the
+	 * 			  streams, and the parts are encoded as the message is written out.
+	 * 			  If the database cannot be reached, the mail is retried later.
+	 * Returns	: The message, whose release must be called once it was sent
+	 */
+	private SpooledMessage renderLarge(Mail mail) throws MessagingException {
+		if (sqlHelper == null)
+			throw new MailContent.UnavailableException("No database to read the content of mail "
+					+ mail.getId() + " from", null);
+		MailContent content = MailContent.fromConfig();
+		try {
+			if (mail.isBodyDeferred() && sqlHelper.readBody(mail.getId(), content) < 0)
+				throw new MailContent.UnavailableException("Could not read the body of mail "
+						+ mail.getId(), null);
+			if (mail.getAttachments() > 0 && sqlHelper.readAttachments(mail.getId(), content) < 0)
+				throw new MailContent.UnavailableException("Could not read the attachments of mail "
+						+ mail.getId(), null);
+
+			SpooledMessage message = new SpooledMessage(mailSession, content);
+			message.setFrom(getAddress(mail.getSender()));
+			message.setSubject(mail.getSubject());
+			if (content.getAttachments().isEmpty()) {
+				setBody(message, mail, content);
+			} else {
+				MimeMultipart multipart = new MimeMultipart();
+				MimeBodyPart body = new MimeBodyPart();
+				setBody(body, mail, content);
+				multipart.addBodyPart(body);
+				for (DataSource attachment : content.getAttachments()) {
+					MimeBodyPart part = new MimeBodyPart();
+					part.setDataHandler(new DataHandler(attachment));
+					part.setDisposition(Part.ATTACHMENT);
+					if (attachment.getName() != null)
+						part.setFileName(attachment.getName());
+					multipart.addBodyPart(part);
+				}
+				message.setContent(multipart);
+			}
+			message.saveChanges();
+			return message;
+		} catch (MessagingException e) {
+			content.delete();
+			throw e;
+		}
+	}
+
+	// Sets the body of a large mail, streamed from its MailContent if it was deferred
+	private static void setBody(Part part, Mail mail, MailContent content) throws MessagingException {
+		if (content.getBody() != null)
+			part.setDataHandler(new DataHandler(content.getBody()));
+		else
+			part.setContent(mail.getBody() != null ? mail.getBody() : "", "text/html");
+	}
+
+	/*
+	 * Function : renderRaw
+	 * Input	: A mail being queued
+	 * Purpose	: Renders the complete message of the mail (headers with its recipient and a
+	 * 			  Message-ID, and encoded content) to the bytes stored in its raw_mime
+	 * 			  column, so that sending it later needs no rendering at all. The
+	 * 			  Message-ID then also stays the same across retries.
+	 * Returns	: The message as written by JavaMail, CRLF line endings, no dot-stuffing
+	 */
+	public byte[] renderRaw(Mail mail) throws MessagingException {
+		MimeMessage message = render(new MailGroup(mail));
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			message.writeTo(bytes);
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			throw new MessagingException("Could not render message", e);
+		}
+	}
+
+	// Returns a short description of the cache states
+	public String getStats() {
+		return addresses.getStats() + "\n" + skeletons.getStats();
+	}
+
+	// Returns the cached skeleton of a mail's content, rendering it if needed
+	private Skeleton getSkeleton(Mail mail) throws MessagingException {
+		MailContentKey key = new MailContentKey(mail);
+		Skeleton skeleton = skeletons.get(key);
+		if (skeleton != null)
+			return skeleton;
+
+		// Render once, then parse the result back to split headers from encoded content
+		MimeMessage message = new MimeMessage(mailSession);
+		message.setFrom(getAddress(mail.getSender()));
+		message.setSubject(mail.getSubject());
+		message.setContent(mail.getBody(), "text/html");
+		message.saveChanges();
+		message.removeHeader("Message-ID");
+
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			message.writeTo(bytes);
+			skeleton = new Skeleton(new SkeletonSource(mailSession, bytes.toByteArray()));
+		} catch (IOException e) {
+			throw new MessagingException("Could not render message", e);
+		}
+
+		skeletons.put(key, skeleton);
+		return skeleton;
+	}
+
+	// Returns a new unique Message-ID in the domain of the sender
+	private String nextMessageId(String sender) {
+		int at = sender.lastIndexOf('@');
+		String domain = at >= 0 ? sender.substring(at + 1) : "localhost";
+		return "<" + System.currentTimeMillis() + "." + messageCounter.incrementAndGet() + "."
+				+ MESSAGE_ID_TOKEN + ".MyMailService@" + domain + ">";
+	}
+
+	/*
+	 * Class	: Skeleton
+	 * Purpose	: Encoded header block and content shared by all messages with the same
+	 * 			  sender, subject and body
+	 */
+	private static class Skeleton {
+		InternetHeaders headers;
+		byte[] content;
+
+		Skeleton(SkeletonSource source) {
+			headers = source.getHeaderBlock();
+			content = source.getEncodedContent();
+		}
+	}
+
+	/*
+	 * Class	: SkeletonSource
+	 * Purpose	: Gives access to the protected header and content fields of a parsed message
+	 */
+	private static class SkeletonSource extends MimeMessage {
+		SkeletonSource(Session session, byte[] bytes) throws MessagingException {
+			super(session, new ByteArrayInputStream(bytes));
+		}
+
+		InternetHeaders getHeaderBlock() {
+			return headers;
+		}
+
+		byte[] getEncodedContent() {
+			return content;
+		}
+	}
+}
@@ -0,0 +1,364 @@
+package com.rubberduck.mymail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanNotificationInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/*
+ * Class 	: Metrics
+ * Purpose	: Counters, gauges and latency histograms of the whole program, registered by
+ * 			  name and labels (e.g. mymail_db_seconds{op="claim"}) by the classes they
+ * 			  measure. Counters are LongAdders and histograms are LatencyHistograms, so
+ * 			  recording costs a few atomic adds; gauges are read only when exported.
+ * 			  Everything is exported as attributes of the com.rubberduck.mymail:type=Metrics
+ * 			  MBean, and in the Prometheus text format at http://<metrics.host>:<metrics.port>/metrics
+ * 			  when -Dmymail.metrics.port is set. Histograms are exported as summaries with
+ * 			  the 0.5, 0.99 and 0.999 quantiles, in seconds.
+ */
+
+public class Metrics {
+
+	static final String OBJECT_NAME = "com.rubberduck.mymail:type=Metrics";
+	private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+	private static final String[] QUANTILE_NAMES = {"p50", "p99", "p999"};
+
+	// Workers with a larger id share one label, so that thousands of sessions do not
+	// make thousands of series
+	private static final int MAX_WORKER_LABELS = Config.getInt("metrics.maxWorkers", 64);
+
+	// Families of metrics by name, exported in name order
+	private static final Map<String, Family> families = new ConcurrentSkipListMap<String, Family>();
+
+	private static HttpServer server;			// HTTP endpoint, if started
+	private static ObjectName registeredName;	// name of the MBean, if registered
+
+	/*
+	 * Interface : Gauge
+	 * Purpose	 : Current value of a gauge, read when the metrics are exported
+	 */
+	public interface Gauge {
+		double getValue();
+	}
+
+	// Metrics of one name, one per set of labels
+	private static class Family {
+		String name;
+		String help;
+		String type;							// counter, gauge or summary
+		Map<String, Object> metrics = new ConcurrentSkipListMap<String, Object>();
+
+		Family(String name, String help, String type) {
+			this.name = name;
+			this.help = help;
+			this.type = type;
+		}
+	}
+
+	/*
+	 * Function : counter
+	 * Input	: name, help (name and description of the counter, the name ending in _total)
+	 * 			  labels (label names and values, alternately)
+	 * Purpose	: Finds or creates a counter. Callers keep it rather than looking it up on
+	 * 			  every increment.
+	 * Returns	: The counter
+	 */
+	public static LongAdder counter(String name, String help, String... labels) {
+		return (LongAdder) get(name, help, "counter", labels, null);
+	}
+
+	/*
+	 * Function : histogram
+	 * Input	: name, help (name and description of the histogram, the name ending in _seconds)
+	 * 			  labels (label names and values, alternately)
+	 * Purpose	: Finds or creates a latency histogram, recorded in nanoseconds
+	 * Returns	: The histogram
+	 */
+	public static LatencyHistogram histogram(String name, String help, String... labels) {
+		return (LatencyHistogram) get(name, help, "summary", labels, null);
+	}
+
+	/*
+	 * Function : gauge
+	 * Input	: name, help (name and description of the gauge)
+	 * 			  gauge (reads the current value)
+	 * 			  labels (label names and values, alternately)
+	 * Purpose	: Registers a gauge, replacing the one registered before under the same
+	 * 			  labels (e.g. by an earlier sending run)
+	 * Returns	: void
+	 */
+	public static void gauge(String name, String help, Gauge gauge, String... labels) {
+		get(name, help, "gauge", labels, gauge);
+	}
+
+	// Returns the label value of a worker, see MAX_WORKER_LABELS
+	public static String workerLabel(int workerId) {
+		return workerId <= MAX_WORKER_LABELS ? String.valueOf(workerId) : "other";
+	}
+
+	private static Object get(String name, String help, String type, String[] labels, Gauge gauge) {
+		Family family = families.get(name);
+		if (family == null) {
+			synchronized (families) {
+				family = families.get(name);
+				if (family == null) {
+					family = new Family(name, help, type);
+					families.put(name, family);
+				}
+			}
+		}
+		if (!family.type.equals(type))
+			throw new IllegalArgumentException(name + " is a " + family.type);
+
+		String key = formatLabels(labels);
+		if (gauge != null) {
+			family.metrics.put(key, gauge);
+			return gauge;
+		}
+		Object metric = family.metrics.get(key);
+		if (metric == null) {
+			synchronized (family) {
+				metric = family.metrics.get(key);
+				if (metric == null) {
+					metric = type.equals("counter") ? new LongAdder() : new LatencyHistogram();
+					family.metrics.put(key, metric);
+				}
+			}
+		}
+		return metric;
+	}
+
+	// Formats labels as {a="x",b="y"}, "" if there are none
+	private static String formatLabels(String[] labels) {
+		if (labels.length % 2 != 0)
+			throw new IllegalArgumentException("labels must come in name, value pairs");
+		StringBuilder sb = new StringBuilder();
+		for (int i=0; i<labels.length; i+=2) {
+			sb.append(sb.length() == 0 ? "{" : ",");
+			sb.append(labels[i]).append("=\"").append(escape(labels[i + 1])).append('"');
+		}
+		if (sb.length() > 0)
+			sb.append('}');
+		return sb.toString();
+	}
+
+	private static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	// Adds a label to labels formatted by formatLabels
+	private static String withLabel(String labels, String label) {
+		if (labels.length() == 0)
+			return "{" + label + "}";
+		return labels.substring(0, labels.length() - 1) + "," + label + "}";
+	}
+
+	/*
+	 * Function : scrape
+	 * Input	: none
+	 * Purpose	: Writes every metric in the Prometheus text exposition format (0.0.4)
+	 * Returns	: The metrics, one sample per line
+	 */
+	public static String scrape() {
+		StringBuilder sb = new StringBuilder();
+		for (Family family : families.values()) {
+			sb.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+			sb.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+			for (Map.Entry<String, Object> entry : family.metrics.entrySet()) {
+				String labels = entry.getKey();
+				Object metric = entry.getValue();
+				if (metric instanceof LatencyHistogram) {
+					LatencyHistogram histogram = (LatencyHistogram) metric;
+					for (double quantile : QUANTILES)
+						sample(sb, family.name, withLabel(labels, "quantile=\"" + quantile + "\""),
+								histogram.getQuantile(quantile) / 1e9);
+					sample(sb, family.name + "_sum", labels, histogram.getSum() / 1e9);
+					sample(sb, family.name + "_count", labels, histogram.getCount());
+				} else {
+					sample(sb, family.name, labels, valueOf(metric));
+				}
+			}
+		}
+		return sb.toString();
+	}
+
+	private static void sample(StringBuilder sb, String name, String labels, double value) {
+		sb.append(name).append(labels).append(' ');
+		if (value == Math.rint(value) && Math.abs(value) < 1e15)
+			sb.append((long) value);
+		else
+			sb.append(String.format(Locale.ROOT, "%.6g", value));
+		sb.append('\n');
+	}
+
+	private static double valueOf(Object metric) {
+		if (metric instanceof LongAdder)
+			return ((LongAdder) metric).sum();
+		try {
+			return ((Gauge) metric).getValue();
+		} catch (RuntimeException e) {
+			// A gauge of a component which is shutting down
+			return Double.NaN;
+		}
+	}
+
+	/*
+	 * Function : start
+	 * Input	: none
+	 * Purpose	: Registers the metrics MBean (unless -Dmymail.metrics.jmx=false) and starts
+	 * 			  the HTTP endpoint if -Dmymail.metrics.port is set (-Dmymail.metrics.host
+	 * 			  defaults to 127.0.0.1, so that it is only reachable locally)
+	 * Returns	: void
+	 */
+	public static synchronized void start() {
+		if (Config.getBoolean("metrics.jmx", true) && registeredName == null) {
+			try {
+				MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+				ObjectName name = new ObjectName(OBJECT_NAME);
+				if (!mbeanServer.isRegistered(name))
+					mbeanServer.registerMBean(new MetricsMBean(), name);
+				registeredName = name;
+			} catch (JMException e) {
+				System.out.println("Could not register the metrics MBean!");
+				System.out.println(e.getMessage());
+			}
+		}
+
+		int port = Config.getInt("metrics.port", 0);
+		if (port > 0 && server == null) {
+			String host = Config.getString("metrics.host", "127.0.0.1");
+			try {
+				server = HttpServer.create(new InetSocketAddress(host, port), 0);
+				server.createContext("/metrics", new HttpHandler() {
+					public void handle(HttpExchange exchange) throws IOException {
+						byte[] body = scrape().getBytes("UTF-8");
+						exchange.getResponseHeaders().set("Content-Type",
+								"text/plain; version=0.0.4; charset=utf-8");
+						exchange.sendResponseHeaders(200, body.length);
+						OutputStream out = exchange.getResponseBody();
+						out.write(body);
+						out.close();
+					}
+				});
+				server.start();
+				System.out.println("Metrics : http://" + host + ":" + port + "/metrics");
+			} catch (IOException e) {
+				System.out.println("Could not start the metrics endpoint on " + host + ":" + port);
+				System.out.println(e.getMessage());
+				server = null;
+			}
+		}
+	}
+
+	// Stops the HTTP endpoint and unregisters the MBean
+	public static synchronized void stop() {
+		if (server != null) {
+			server.stop(0);
+			server = null;
+		}
+		if (registeredName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+			} catch (JMException e) {
+				// Already gone
+			}
+			registeredName = null;
+		}
+	}
+
+	/*
+	 * Class 	: MetricsMBean
+	 * Purpose	: Exposes every metric as a read-only attribute, named like its Prometheus
+	 * 			  sample (histograms as one attribute per quantile, plus count and max)
+	 */
+	private static class MetricsMBean implements DynamicMBean {
+
+		// Reads all attributes, by name
+		private Map<String, Object> read() {
+			Map<String, Object> values = new ConcurrentSkipListMap<String, Object>();
+			for (Family family : families.values()) {
+				for (Map.Entry<String, Object> entry : family.metrics.entrySet()) {
+					String name = family.name + entry.getKey();
+					Object metric = entry.getValue();
+					if (metric instanceof LatencyHistogram) {
+						LatencyHistogram histogram = (LatencyHistogram) metric;
+						for (int i=0; i<QUANTILES.length; i++)
+							values.put(name + " " + QUANTILE_NAMES[i],
+									histogram.getQuantile(QUANTILES[i]) / 1e9);
+						values.put(name + " max", histogram.getMax() / 1e9);
+						values.put(name + " count", histogram.getCount());
+					} else if (metric instanceof LongAdder) {
+						values.put(name, ((LongAdder) metric).sum());
+					} else {
+						values.put(name, valueOf(metric));
+					}
+				}
+			}
+			return values;
+		}
+
+		public Object getAttribute(String attribute) throws AttributeNotFoundException {
+			Object value = read().get(attribute);
+			if (value == null)
+				throw new AttributeNotFoundException(attribute);
+			return value;
+		}
+
+		public AttributeList getAttributes(String[] attributes) {
+			Map<String, Object> values = read();
+			AttributeList list = new AttributeList();
+			for (String attribute : attributes) {
+				if (values.containsKey(attribute))
+					list.add(new Attribute(attribute, values.get(attribute)));
+			}
+			return list;
+		}
+
+		public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+			throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+		}
+
+		public AttributeList setAttributes(AttributeList attributes) {
+			return new AttributeList();
+		}
+
+		public Object invoke(String actionName, Object[] params, String[] signature) {
+			throw new UnsupportedOperationException(actionName);
+		}
+
+		// Attributes come and go with the metrics, so the info is rebuilt every time
+		public MBeanInfo getMBeanInfo() {
+			List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+			for (Map.Entry<String, Object> entry : read().entrySet()) {
+				String type = entry.getValue() instanceof Long ? "long" : "double";
+				attributes.add(new MBeanAttributeInfo(entry.getKey(), type, entry.getKey(),
+						true, false, false));
+			}
+			return new MBeanInfo(Metrics.class.getName(), "MyMailService metrics",
+					attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null,
+					new MBeanOperationInfo[0], new MBeanNotificationInfo[0]);
+		}
+	}
+}
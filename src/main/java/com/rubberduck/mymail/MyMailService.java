@@ -16,105 +16,313 @@ import java.sql.*;
 
 public class MyMailService {
 	
+	static final int MAX_THREADS = 20;				// max. threads of the classic and pipeline engines
+	static final int MAX_VIRTUAL_SESSIONS = 10000;	// max. sessions of the virtual thread engine
+	
 	/* Function : main
 	 * Input	: args[] (command line arguments)
 	 * Purpose	: Main entry point of the program.
 	 * 			  Calls appropriate functions to accept user input, cleanup database, 
 	 * 				insert dummy mails to table and send mails using thread(s)
+	 * 			  With -Dmymail.cluster.enabled=true the node joins the other nodes sharing
+	 * 				the mails table instead: nothing is dropped, the mails it inserts are
+	 * 				added to the queue and it only sends the mails of its shards.
+	 * 			  With -Dmymail.daemon.enabled=true it runs as a MailDaemon instead, without
+	 * 				any prompt, until it is stopped.
+	 * 			  Settings may also be read from the file given by -Dmymail.config.
 	 * Returns	: Void
 	 */
 	public static void main(String[] args) throws IOException {
 		int threadsCount;					// total number of threads
 		int mailsCount;						// total number of mails
 
+		// Settings file, the -D flags take precedence over it
+		String configFile = Config.getString("config", null);
+		if (configFile != null && !Config.load(configFile))
+			System.exit(-1);
+		
 		// Input database parameters
 		SqlHelper.getInput();
 		
-		// Get SqlHelper object and cleanup database
+		// Export the metrics over JMX, and over HTTP with -Dmymail.metrics.port
+		Metrics.start();
+		
+		// Send the mails as they are queued by other programs, until stopped
+		if (Config.getBoolean("daemon.enabled", false)) {
+			MailDaemon.fromConfig().run();
+			Metrics.stop();
+			return;
+		}
+		
+		// Get SqlHelper object and cleanup database, unless other nodes are using it
 		SqlHelper sqlHelper = new SqlHelper();
-		sqlHelper.dropTable();
+		boolean cluster = NodeRegistry.isClusterEnabled();
+		if (!cluster)
+			sqlHelper.dropTable();
 		sqlHelper.createTable();
+		// Bring tables created by older versions up to date
+		sqlHelper.migrateTable();
+		
+		// Register with the other nodes and take a share of the shards
+		NodeRegistry registry = null;
+		if (cluster) {
+			registry = NodeRegistry.fromConfig();
+			if (!registry.start()) {
+				System.out.println("Could not join the cluster!");
+				System.exit(-1);
+			}
+		}
 
 		// Get number of threads and mails from user
+		// (sessions are cheap virtual threads with -Dmymail.engine=virtual)
 		threadsCount = inputValidInteger(
-				"\nEnter total number of threads : ", 1, 20);
-		mailsCount = inputValidInteger(
-				"Enter total number of mails : ", 1, Integer.MAX_VALUE);
+				"\nEnter total number of threads : ", 1, getMaxThreads());
+		String mailsFile = Config.getString("load.file", null);
+		if (mailsFile != null) {
+			// Load the mails of a campaign file (CSV or NDJSON) instead of dummy mails
+			mailsCount = loadMailsFile(mailsFile);
+		} else {
+			// A node joining a cluster may just help sending the mails already queued
+			mailsCount = inputValidInteger(
+					"Enter total number of mails : ", cluster ? 0 : 1, Integer.MAX_VALUE);
 
-		// Insert dummy mails to the database
-		sqlHelper.insertBulkMails(mailsCount);
+			// Insert dummy mails to the database
+			if (mailsCount > 0)
+				sqlHelper.insertBulkMails(mailsCount);
+		}
+		if (cluster)
+			mailsCount = Math.max(mailsCount,
+					sqlHelper.getFailedCount() + sqlHelper.getCount(State.SCHEDULED));
+		
+		// Mails with a send time are held back until it comes
+		DeliveryScheduler deliveries = DeliveryScheduler.fromConfig();
+		deliveries.start();
 		
 		// Start sending mails using [threadsCount] threads
 		startSendingMails(mailsCount, threadsCount);
 		
-		// Fetch number of mails which were not sent and see if user wants to retry
-		int failedCount = processFailedMails(sqlHelper, threadsCount);
+		// Retry the mails which were not sent and send the scheduled ones as they fall due
+		int failedCount = processFailedMails(sqlHelper, threadsCount, deliveries);
+		deliveries.close();
+		System.out.println(deliveries.getStats());
+		
+		// Hand our shards over to the other nodes
+		if (registry != null) {
+			System.out.println(registry.getStats());
+			registry.close();
+		}
 		
-		// All done, we can safely close the database connection now
-		sqlHelper.closeConnection();
+		// All done, we can safely close the database connections now
+		SqlHelper.closePool();
+		Metrics.stop();
 		
 		System.out.println("\nSent " + (mailsCount-failedCount) + " mails!");
 		System.out.println("Goodbye!\n");
 	}
 	
+	/*
+	 * Function : loadMailsFile
+	 * Input	: path (a CSV or NDJSON campaign file)
+	 * Purpose	: Inserts the mails of the file through a MailLoader, exits if the file
+	 * 			  cannot be opened
+	 * Returns	: Number of mails inserted
+	 */
+	public static int loadMailsFile(String path) {
+		MailFileReader reader = null;
+		try {
+			reader = MailFileReader.open(path);
+		} catch (IOException e) {
+			System.out.println("Could not open " + path + "!");
+			System.out.println(e.getMessage());
+			System.exit(-1);
+		}
+		
+		System.out.println("\nLoading mails from " + path + "... ");
+		long loaded = MailLoader.fromConfig().load(reader);
+		reader.close();
+		if (reader.getSkipped() > 0)
+			System.out.println("Skipped " + reader.getSkipped() + " malformed record(s)");
+		return (int) Math.min(loaded, Integer.MAX_VALUE);
+	}
+	
 	/* 
 	 * Function : startSendingMails
 	 * Input 	: mailsCount (total number of mails to be sent)
 	 * 		   	  threadsCount (total number of threads to be used)
-	 * Purpose 	: Calculates the size of batch in which mails are to be sent (max. 1000).
-	 * 			  Initializes a thread pool of [threadsCount] threads.
-	 * 			  Starts [threadCount] MailSender threads which send out the mails.
+	 * Purpose 	: Calculates the size of the first batch in which mails are to be sent, later
+	 * 			  batches are sized by a BatchSizeController.
+	 * 			  Initializes shared pools of SMTP connections, one per relay route (see
+	 * 			  DomainRouter).
+	 * 			  Starts a thread pool of [threadsCount] MailSender threads which send out
+	 * 			  the mails, or runs a MailPipeline instead when -Dmymail.engine=pipeline, or [threadsCount]
+	 * 			  virtual thread sessions when -Dmymail.engine=virtual.
 	 * Returns 	: Void  
 	 */
 	public static void startSendingMails(int mailsCount, int threadsCount) {
-		ExecutorService executor = Executors.newFixedThreadPool(threadsCount); 
+		startSendingMails(mailsCount, threadsCount, null);
+	}
+	
+	/* 
+	 * Function : startSendingMails
+	 * Input 	: mailsCount, threadsCount (as above)
+	 * 		   	  poller (keeps the workers claiming when nothing is left, until it is
+	 * 		   	  		stopped, null to return once all mails are sent)
+	 * Purpose 	: Same as above, for a MailDaemon when [poller] is given
+	 * Returns 	: Void  
+	 */
+	public static void startSendingMails(int mailsCount, int threadsCount, WorkPoller poller) {
+		// SMTP connections are shared by all threads and kept alive across batches, with
+		// a pool and rate limit per relay route of the recipient domains
+		DomainRouter router = DomainRouter.fromConfig(threadsCount);
+		MessageRenderer renderer = MessageRenderer.fromConfig(
+				router.getDefaultRoute().getPool().getSession(), new SqlHelper());
+		// Temp files of large mails left behind by an earlier run
+		MailContent.deleteStaleFiles();
+		// The first batch of each worker uses the static estimate, later batches are
+		// sized by the controller from measured bytes, latency and failures
+		BatchSizeController batchSizes =
+				BatchSizeController.fromConfig(getBatchSize(mailsCount, threadsCount));
+		// Outcomes of all threads are written back in groups by a single writer
+		StateWriter stateWriter = StateWriter.fromConfig();
+		// Claims are shared out between the priority lanes
+		LaneScheduler lanes = LaneScheduler.fromConfig();
+		// Failed mails whose backoff passes while sending are put back in the queue
+		RetryScheduler retryScheduler = RetryScheduler.fromConfig();
+		retryScheduler.start();
 		System.out.println("\nSending mails...\n");
 		if (mailsCount > 0) {
 			
-			int batchSize = getBatchSize(mailsCount, threadsCount);
-			
-			// Start [threadsCount] MailSender threads
-			for (int i=1; i<=threadsCount; i++) {
-				Thread thread = new Thread(new MailSender(i, batchSize));
-				executor.execute(thread);
+			String engine = Config.getString("engine", "classic");
+			if (engine.equals("pipeline")) {
+				// Staged fetch -> render -> send engine, bounded by its queues
+				MailPipeline pipeline = MailPipeline.fromConfig(threadsCount, batchSizes, stateWriter,
+						lanes, router, renderer);
+				pipeline.setPoller(poller);
+				pipeline.run();
+			} else if (engine.equals("virtual")) {
+				// One virtual thread per SMTP session, bounded by semaphores
+				VirtualThreadEngine sessions = VirtualThreadEngine.fromConfig(threadsCount, batchSizes,
+						stateWriter, lanes, router, renderer);
+				sessions.setPoller(poller);
+				sessions.run();
+			} else {
+				// Start [threadsCount] MailSender threads
+				ExecutorService executor = Executors.newFixedThreadPool(threadsCount); 
+				for (int i=1; i<=threadsCount; i++) {
+					MailSender sender = new MailSender(i, batchSizes, stateWriter, lanes, router,
+							renderer);
+					sender.setPoller(poller);
+					executor.execute(new Thread(sender));
+				}
+				executor.shutdown();
+				try {
+					executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					System.out.println(e.getMessage());
+				} 
 			}
 		}
-		executor.shutdown();
-		try {
-			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
-		} catch (InterruptedException e) {
-			System.out.println(e.getMessage());
-		} 
+		
+		retryScheduler.close();
+		stateWriter.close();
+		
+		System.out.println(router.getStats());
+		System.out.println(renderer.getStats());
+		System.out.println(batchSizes.getStats());
+		System.out.println(stateWriter.getStats());
+		System.out.println(lanes.getStats());
+		System.out.println(retryScheduler.getStats());
+		System.out.println(SqlHelper.getPoolStats());
+		router.close();
 
 	}
 	
+	// Same as below, without scheduled mails
+	public static int processFailedMails(SqlHelper sqlHelper, int threadsCount) {
+		return processFailedMails(sqlHelper, threadsCount, null);
+	}
+	
 	/*
 	 * Function : processFailedMails
 	 * Input	: SqlHelper object, number of threads
-	 * Purpose	: Prompts the user to retry sending mails
+	 * 			  deliveries (scheduler of the mails with a send time, null if none)
+	 * Purpose	: Retries the mails which failed, without asking the user. Each failed mail
+	 * 			  becomes due again after its backoff, until -Dmymail.retry.maxAttempts
+	 * 			  attempts were made (see RetryScheduler). Waits for the next due mail, sends
+	 * 			  the mails which are due and repeats until no mail is left to retry.
+	 * 			  Scheduled mails are waited for the same way, until none is left.
 	 * Returns	: Number of mails which are still not sent
 	 */
 	
-	public static int processFailedMails(SqlHelper sqlHelper, int threadsCount) {
-		// Fetch number of mails which were not sent
-		int failedCount = sqlHelper.getFailedCount();
-		// Check for failed mails and prompt user to retry
-		while (failedCount > 0) {
-			String in = inputValidString("\nFailed to send " + failedCount + " mails. " +
-					"Do you want to retry again (yes/no)? ", 
-					Arrays.asList("yes", "no"));
-			if (in.compareTo("yes") == 0)
-				startSendingMails(failedCount, threadsCount);
-			else
-				break;
+	public static int processFailedMails(SqlHelper sqlHelper, int threadsCount,
+			DeliveryScheduler deliveries) {
+		RetryScheduler retryScheduler = RetryScheduler.fromConfig();
+		
+		long nextAttemptAt = retryScheduler.getNextAttemptAt();
+		long nextSendAt = getNextSendAt(sqlHelper, deliveries);
+		int stalledRuns = 0;
+		while (nextAttemptAt >= 0 || nextSendAt >= 0) {
+			boolean retry = nextAttemptAt >= 0 && (nextSendAt < 0 || nextAttemptAt <= nextSendAt);
+			long wait = (retry ? nextAttemptAt : nextSendAt) - System.currentTimeMillis();
+			if (wait > 0) {
+				if (retry)
+					System.out.println("\nFailed to send " + sqlHelper.getFailedCount() + " mails. " +
+							"Retrying in " + ((wait + 999) / 1000) + " s...");
+				else
+					System.out.println("\n" + sqlHelper.getCount(State.SCHEDULED) + " mails scheduled. " +
+							"Next ones due in " + ((wait + 999) / 1000) + " s...");
+				try {
+					Thread.sleep(wait);
+				} catch (InterruptedException e) {
+					System.out.println(e.getMessage());
+					break;
+				}
+			}
+			
+			// Mails falling due while these are sent are requeued by the sending run
+			retryScheduler.requeueDue();
+			// Scheduled mails are also released by the scheduler's own thread
+			if (deliveries != null)
+				deliveries.releaseDue();
+			int due = sqlHelper.getCount(State.NOT_SENT);
+			if (due > 0) {
+				startSendingMails(due, threadsCount);
+				// A run which stopped because the database could not be read leaves its
+				// mails NOT_SENT, wait longer after each such run before the next one
+				if (sqlHelper.getCount(State.NOT_SENT) >= due) {
+					long backoff = Math.min(SqlHelper.RETRY_MAX_DELAY_MILLIS,
+							SqlHelper.RETRY_BASE_DELAY_MILLIS << Math.min(stalledRuns++, 20));
+					System.out.println("\nNo mail was sent. Trying again in "
+							+ ((backoff + 999) / 1000) + " s...");
+					try {
+						Thread.sleep(backoff);
+					} catch (InterruptedException e) {
+						System.out.println(e.getMessage());
+						break;
+					}
+				} else {
+					stalledRuns = 0;
+				}
+			}
 			
-			// Fetch number of mails which were not sent again after retrying
-			failedCount = sqlHelper.getFailedCount();
+			nextAttemptAt = retryScheduler.getNextAttemptAt();
+			nextSendAt = getNextSendAt(sqlHelper, deliveries);
 		}
-
+		retryScheduler.close();
+		
+		// Fetch number of mails which could not be sent
 		return sqlHelper.getFailedCount();
 	}
 	
+	// Returns when the next scheduled mail is due, or now if mails were requeued or released
+	// after the workers of the last run were done, -1 if there is nothing left to wait for
+	private static long getNextSendAt(SqlHelper sqlHelper, DeliveryScheduler deliveries) {
+		long nextSendAt = deliveries != null ? deliveries.getNextSendAt() : -1;
+		if (nextSendAt < 0 && sqlHelper.getCount(State.NOT_SENT) > 0)
+			nextSendAt = System.currentTimeMillis();
+		return nextSendAt;
+	}
+	
 	/* Function : getBatchSize
 	 * Input 	: mailsCount (total number of mails to be sent)
 	 * 		   	  threadsCount (total number of threads to be used)
@@ -139,6 +347,20 @@ public class MyMailService {
 		return batchSize;
 	}
 	
+	/* Function : getMaxThreads
+	 * Input	: none
+	 * Purpose	: Finds how many threads (sessions) the configured engine may run. Only
+	 * 			  the virtual thread engine on a runtime with virtual threads goes past
+	 * 			  MAX_THREADS, on others it would run a platform thread per session.
+	 * Returns	: The maximum number of threads
+	 */
+	
+	static int getMaxThreads() {
+		if (Config.getString("engine", "classic").equals("virtual") && VirtualThreadEngine.isAvailable())
+			return MAX_VIRTUAL_SESSIONS;
+		return MAX_THREADS;
+	}
+	
 	/* Function : inputValidInteger
 	 * Input 	: prompt (The prompt to be shown to the user)
 	 * 			  low (the min. value in the accepted range)
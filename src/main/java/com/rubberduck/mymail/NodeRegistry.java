@@ -0,0 +1,234 @@
+package com.rubberduck.mymail;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Class 	: NodeRegistry
+ * Purpose	: Lets several MyMailService nodes share one mails table (-Dmymail.cluster.enabled).
+ * 			  Every mail belongs to one of SHARD_COUNT shards of the id space, its id modulo
+ * 			  SHARD_COUNT, stored in the shard column once the mail has an id (see
+ * 			  SqlHelper.assignShards). Each node keeps a heartbeat row in the nodes table and
+ * 			  owns the shards that rendezvous hashing gives it among the live nodes, so
+ * 			  workers of different nodes claim disjoint ranges of the (shard, sent, id)
+ * 			  index. When a node joins, leaves or stops heartbeating for
+ * 			  -Dmymail.cluster.expiryMillis, the shards are rebalanced on the next heartbeat,
+ * 			  only moving the shards of the nodes which came or went.
+ * 			  Claims stay atomic, so a shard owned by two nodes for a heartbeat while they
+ * 			  rebalance only costs some contention, never a mail sent twice.
+ */
+
+public class NodeRegistry {
+
+	// Number of shards of the mail id space, a mail is in shard MOD(id, SHARD_COUNT). The
+	// same on every node of a table.
+	static final int SHARD_COUNT = Math.max(1, Config.getInt("cluster.shards", 64));
+
+	// Shard of the mails inserted and not yet assigned to their shard
+	static final int NO_SHARD = -1;
+
+	private static volatile NodeRegistry local;	// registry of this node, if started
+
+	private SqlHelper sqlHelper;				// database helper used for the heartbeats
+	private String nodeId;						// unique id of this node
+	private long heartbeatMillis;				// time between two heartbeats
+	private long expiryMillis;					// time after which a silent node is dropped
+
+	private volatile int[] ownedShards;			// shards this node claims mails from
+	private List<String> liveNodes;				// live nodes as of the last heartbeat
+	private int rebalances;						// number of times the shards moved
+
+	private volatile boolean closed;			// set once the registry is stopped
+	private Thread thread;						// heartbeat thread, if started
+	private final Object wakeUp = new Object();	// notified to stop the heartbeat thread
+
+	// Constructor
+	public NodeRegistry(String nodeId, long heartbeatMillis, long expiryMillis) {
+		this.nodeId = nodeId.length() > 64 ? nodeId.substring(0, 64) : nodeId;
+		this.heartbeatMillis = Math.max(1, heartbeatMillis);
+		this.expiryMillis = Math.max(this.heartbeatMillis * 2, expiryMillis);
+		sqlHelper = new SqlHelper();
+		ownedShards = new int[0];
+		liveNodes = new ArrayList<String>();
+		rebalances = 0;
+		closed = false;
+	}
+
+	/*
+	 * Function : fromConfig
+	 * Input	: none
+	 * Purpose	: Creates a registry using the cluster.* settings. The node id defaults to
+	 * 			  the pid@host name of the JVM.
+	 * Returns	: A new NodeRegistry
+	 */
+	public static NodeRegistry fromConfig() {
+		return new NodeRegistry(
+				Config.getString("cluster.nodeId", ManagementFactory.getRuntimeMXBean().getName()),
+				Config.getLong("cluster.heartbeatMillis", 2000),
+				Config.getLong("cluster.expiryMillis", 10000));
+	}
+
+	// Returns true if this node shares its mails table with other nodes
+	public static boolean isClusterEnabled() {
+		return Config.getBoolean("cluster.enabled", false);
+	}
+
+	// Returns the registry of this node, null if it is not part of a cluster
+	public static NodeRegistry getLocal() {
+		return local;
+	}
+
+	/*
+	 * Function : start
+	 * Input	: none
+	 * Purpose	: Registers this node and takes its shards, then starts a background thread
+	 * 			  which heartbeats and rebalances every [heartbeatMillis]
+	 * Returns	: True if the node could register, false otherwise
+	 */
+	public boolean start() {
+		if (sqlHelper.createNodesTable() < 0 || !heartbeat())
+			return false;
+
+		thread = new Thread(new Runnable() {
+			public void run() {
+				while (!closed) {
+					// Woken up early by close, never interrupted while talking to the database
+					synchronized (wakeUp) {
+						try {
+							if (!closed)
+								wakeUp.wait(heartbeatMillis);
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+					if (!closed)
+						heartbeat();
+				}
+			}
+		}, "node-heartbeat");
+		thread.setDaemon(true);
+		thread.start();
+		local = this;
+		return true;
+	}
+
+	/*
+	 * Function : heartbeat
+	 * Input	: none
+	 * Purpose	: Refreshes this node's heartbeat and recomputes its shards from the nodes
+	 * 			  which are still alive. If the database cannot be reached the shards are
+	 * 			  kept, their mails are protected by the claim leases anyway.
+	 * 			  Mails inserted by other producers are put in their shard on the way.
+	 * Returns	: True if the heartbeat was written, false otherwise
+	 */
+	public synchronized boolean heartbeat() {
+		if (sqlHelper.heartbeat(nodeId) < 0)
+			return false;
+		List<String> nodes = sqlHelper.getLiveNodes(expiryMillis);
+		if (nodes == null)
+			return false;
+		if (!nodes.contains(nodeId))
+			nodes.add(nodeId);
+		sqlHelper.assignShards();
+
+		if (!nodes.equals(liveNodes)) {
+			int[] shards = assignShards(nodeId, nodes);
+			if (!liveNodes.isEmpty() && !Arrays.equals(shards, ownedShards))
+				rebalances++;
+			liveNodes = nodes;
+			ownedShards = shards;
+			System.out.println("Node " + nodeId + " : owns " + shards.length + " of "
+					+ SHARD_COUNT + " shards, " + nodes.size() + " node(s) alive");
+		}
+		return true;
+	}
+
+	/*
+	 * Function : assignShards
+	 * Input	: node (the node to assign shards to)
+	 * 			  nodes (all live nodes)
+	 * Purpose	: Gives each shard to the live node with the highest hash of (node, shard),
+	 * 			  so that every node computes the same assignment on its own and a change
+	 * 			  of nodes only moves the shards of the nodes which came or went
+	 * Returns	: The shards of the node, in ascending order
+	 */
+	static int[] assignShards(String node, List<String> nodes) {
+		List<Integer> shards = new ArrayList<Integer>();
+		for (int shard=0; shard<SHARD_COUNT; shard++) {
+			String owner = null;
+			long best = Long.MIN_VALUE;
+			for (String candidate : nodes) {
+				long weight = weight(candidate, shard);
+				if (owner == null || weight > best
+						|| (weight == best && candidate.compareTo(owner) < 0)) {
+					owner = candidate;
+					best = weight;
+				}
+			}
+			if (node.equals(owner))
+				shards.add(shard);
+		}
+
+		int[] owned = new int[shards.size()];
+		for (int i=0; i<owned.length; i++)
+			owned[i] = shards.get(i);
+		return owned;
+	}
+
+	// Weight of a node for a shard, the node with the highest weight owns it
+	private static long weight(String node, int shard) {
+		return mix(node.hashCode() * 0x9E3779B97F4A7C15L + shard);
+	}
+
+	// Spreads the bits of a hash (64-bit MurmurHash3 finalizer)
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	// Returns the shards this node currently owns
+	public int[] getOwnedShards() {
+		return ownedShards;
+	}
+
+	public String getNodeId() {
+		return nodeId;
+	}
+
+	/*
+	 * Function : close
+	 * Input	: none
+	 * Purpose	: Stops the heartbeat thread and unregisters this node, so that the other
+	 * 			  nodes take over its shards on their next heartbeat instead of waiting
+	 * 			  for it to expire
+	 * Returns	: void
+	 */
+	public void close() {
+		closed = true;
+		if (local == this)
+			local = null;
+		if (thread != null) {
+			synchronized (wakeUp) {
+				wakeUp.notifyAll();
+			}
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		sqlHelper.removeNode(nodeId);
+	}
+
+	// Returns a short description of this node and its shards
+	public synchronized String getStats() {
+		return "Node " + nodeId + " : shards=" + ownedShards.length + "/" + SHARD_COUNT
+				+ ", nodes alive=" + liveNodes.size() + ", rebalances=" + rebalances;
+	}
+}
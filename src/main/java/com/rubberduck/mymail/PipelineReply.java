@@ -0,0 +1,91 @@
+package com.rubberduck.mymail;
+
+/*
+ * Class 	: PipelineReply
+ * Purpose	: Holds the SMTP reply codes received for one message sent in pipelined mode,
+ * 			  so that each outcome can be traced back to the mail it belongs to
+ */
+
+public class PipelineReply {
+	private int mailCode;				// reply to MAIL FROM
+	private int[] rcptCodes;			// replies to RCPT TO, one per recipient
+	private int dataCode;				// reply to DATA
+	private int endCode;				// reply to the end of data "."
+	private boolean complete;			// true once all replies for the message were read
+	private String failureResponse;		// first failure reply received for the message
+
+	// Constructor
+	public PipelineReply(int recipientsCount) {
+		rcptCodes = new int[recipientsCount];
+		mailCode = -1;
+		dataCode = -1;
+		endCode = -1;
+		complete = false;
+	}
+
+	public int getMailCode() {
+		return mailCode;
+	}
+	public void setMailCode(int mailCode) {
+		this.mailCode = mailCode;
+	}
+	public int getRcptCode(int i) {
+		return rcptCodes[i];
+	}
+	public void setRcptCode(int i, int code) {
+		rcptCodes[i] = code;
+	}
+	public int getRecipientsCount() {
+		return rcptCodes.length;
+	}
+	public int getDataCode() {
+		return dataCode;
+	}
+	public void setDataCode(int dataCode) {
+		this.dataCode = dataCode;
+	}
+	public int getEndCode() {
+		return endCode;
+	}
+	public void setEndCode(int endCode) {
+		this.endCode = endCode;
+	}
+	public boolean isComplete() {
+		return complete;
+	}
+	public void setComplete(boolean complete) {
+		this.complete = complete;
+	}
+	public String getFailureResponse() {
+		return failureResponse;
+	}
+	public void setFailureResponse(String failureResponse) {
+		this.failureResponse = failureResponse;
+	}
+
+	// True if the server accepted the message for at least one recipient
+	public boolean isAccepted() {
+		return complete && mailCode == 250 && dataCode == 354 && endCode == 250;
+	}
+
+	// True if the server accepted the given recipient and the message itself
+	public boolean isAccepted(int i) {
+		return isAccepted() && (rcptCodes[i] == 250 || rcptCodes[i] == 251);
+	}
+
+	// Returns the reply which made the given recipient fail, -1 if it was never received
+	public int getFailureCode(int i) {
+		if (mailCode != 250)
+			return mailCode;
+		if (rcptCodes[i] != 250 && rcptCodes[i] != 251)
+			return rcptCodes[i];
+		if (dataCode != 354)
+			return dataCode;
+		return endCode;
+	}
+
+	// True if the message reached the DATA phase, i.e. a body had to be sent
+	public boolean isDataAccepted() {
+		return dataCode == 354;
+	}
+}
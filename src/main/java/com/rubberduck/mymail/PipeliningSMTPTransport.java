@@ -0,0 +1,200 @@
+package com.rubberduck.mymail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.util.List;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.URLName;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import com.sun.mail.smtp.SMTPOutputStream;
+import com.sun.mail.smtp.SMTPTransport;
+
+/*
+ * Class 	: PipeliningSMTPTransport
+ * Purpose	: SMTP transport which, on top of the regular JavaMail behaviour, can send a
+ * 			  sequence of messages using ESMTP PIPELINING (RFC 2920).
+ * 			  MAIL FROM, RCPT TO and DATA of a message go out as one group, and the content
+ * 			  of a message is written in the same group as the commands of the next one, so
+ * 			  back-to-back messages cost about one round trip each instead of 3 + recipients.
+ * 			  Content is written straight into the connection's output stream, which
+ * 			  SMTPTransport does not expose, so it is looked up reflectively; if that is not
+ * 			  possible, supportsPipelining returns false and messages are sent one by one.
+ */
+
+public class PipeliningSMTPTransport extends SMTPTransport {
+
+	// Headers which are never transmitted, same as in SMTPTransport.sendMessage
+	private static final String[] IGNORED_HEADERS = { "Bcc", "Content-Length" };
+
+	// Buffered output stream of the connection, null if it cannot be accessed
+	private static final Field SERVER_OUTPUT = serverOutputField();
+
+	// Constructor
+	public PipeliningSMTPTransport(Session session, URLName urlname) {
+		super(session, urlname);
+	}
+
+	// True if the server advertised PIPELINING in its EHLO response
+	public boolean supportsPipelining() {
+		return SERVER_OUTPUT != null && supportsExtension("PIPELINING");
+	}
+
+	// Looks up the output stream field of SMTPTransport
+	private static Field serverOutputField() {
+		try {
+			Field field = SMTPTransport.class.getDeclaredField("serverOutput");
+			field.setAccessible(true);
+			return field;
+		} catch (Exception e) {
+			System.out.println("PIPELINING is not available : " + e);
+			return null;
+		}
+	}
+
+	/*
+	 * Function : sendPipelined
+	 * Input	: messages (messages to be sent, in order)
+	 * 			  envelopes (envelope recipients of each message)
+	 * 			  replies (filled with one PipelineReply per message, in the same order)
+	 * Purpose	: Sends the messages back to back using PIPELINING and records the reply
+	 * 			  codes of every command, so that per-message and per-recipient outcomes can
+	 * 			  be mapped back by the caller.
+	 * 			  If the connection breaks, the exception is thrown and the replies of the
+	 * 			  messages which were not fully processed are left incomplete.
+	 * Returns	: void
+	 */
+	public synchronized void sendPipelined(List<MimeMessage> messages, List<Address[]> envelopes,
+			List<PipelineReply> replies) throws MessagingException {
+		checkConnected();
+
+		boolean pending = false;			// DATA phase of the previous message is still open
+		MimeMessage pendingContent = null;	// previous message, null if it has no content to send
+		PipelineReply pendingReply = null;	// reply of the previous message, awaiting end code
+		boolean needsReset = false;			// previous transaction was left open by a failure
+
+		for (int m=0; m<messages.size(); m++) {
+			MimeMessage message = messages.get(m);
+			Address[] recipients = envelopes.get(m);
+			PipelineReply reply = new PipelineReply(recipients == null ? 0 : recipients.length);
+			replies.add(reply);
+
+			// Build the command group for this message, after the content of the previous one
+			StringBuilder group = new StringBuilder();
+			if (pending) {
+				writeContent(pendingContent);
+				group.append(".\r\n");
+			}
+			if (needsReset)
+				group.append("RSET\r\n");
+			group.append("MAIL FROM:<").append(envelopeFrom(message)).append(">");
+			for (int i=0; i<reply.getRecipientsCount(); i++) {
+				group.append("\r\nRCPT TO:<")
+					.append(((InternetAddress) recipients[i]).getAddress()).append(">");
+			}
+			group.append("\r\nDATA");
+			sendCommand(group.toString());
+
+			// Read replies, in the order the commands were sent
+			if (pendingReply != null)
+				finish(pendingReply, read(pendingReply));
+			if (needsReset)
+				readServerResponse();
+
+			reply.setMailCode(read(reply));
+			for (int i=0; i<reply.getRecipientsCount(); i++)
+				reply.setRcptCode(i, read(reply));
+			reply.setDataCode(read(reply));
+
+			if (reply.isDataAccepted()) {
+				// Content goes out with the next group. A message without any accepted
+				// recipient still has to terminate the DATA phase.
+				pending = true;
+				pendingContent = hasAcceptedRecipient(reply) ? message : null;
+				pendingReply = reply;
+				needsReset = false;
+			} else {
+				// No DATA phase, the transaction may still be open on the server
+				reply.setComplete(true);
+				pending = false;
+				pendingContent = null;
+				pendingReply = null;
+				needsReset = true;
+			}
+		}
+
+		// Terminate the last message
+		if (pending) {
+			writeContent(pendingContent);
+			sendCommand(".");
+			finish(pendingReply, read(pendingReply));
+		}
+		if (needsReset)
+			simpleCommand("RSET");
+	}
+
+	// Reads the next reply, remembering the first failure reply of the message
+	private int read(PipelineReply reply) throws MessagingException {
+		int code = readServerResponse();
+		if (code / 100 != 2 && code != 354 && reply.getFailureResponse() == null)
+			reply.setFailureResponse(getLastServerResponse());
+		return code;
+	}
+
+	// Records the end of data reply of a message
+	private void finish(PipelineReply reply, int code) {
+		reply.setEndCode(code);
+		reply.setComplete(true);
+	}
+
+	// True if at least one RCPT TO of the message was accepted
+	private boolean hasAcceptedRecipient(PipelineReply reply) {
+		for (int i=0; i<reply.getRecipientsCount(); i++) {
+			int code = reply.getRcptCode(i);
+			if (code == 250 || code == 251)
+				return true;
+		}
+		return false;
+	}
+
+	// Returns the envelope sender of a message, mail.smtp.from if set as in SMTPTransport
+	private String envelopeFrom(MimeMessage message) throws MessagingException {
+		String envelope = session.getProperty("mail.smtp.from");
+		if (envelope != null && envelope.length() > 0)
+			return envelope;
+		Address[] from = message.getFrom();
+		if (from == null || from.length == 0)
+			return "";
+		return ((InternetAddress) from[0]).getAddress();
+	}
+
+	/*
+	 * Function : writeContent
+	 * Input	: message (message to be sent, null if only the DATA phase is to be ended)
+	 * Purpose	: Writes the message into the connection's buffered output stream with CRLF
+	 * 			  line endings and dot-stuffing, ending at the beginning of a line so that
+	 * 			  the terminating "." can follow directly. Nothing is flushed, the next
+	 * 			  sendCommand sends the rest of the buffer along with its commands.
+	 * 			  If writing fails part way, the connection cannot be used anymore.
+	 * Returns	: void
+	 */
+	private void writeContent(MimeMessage message) throws MessagingException {
+		if (message == null)
+			return;
+		try {
+			// SMTPOutputStream does not flush, so the content stays in the buffer until then
+			SMTPOutputStream out = new SMTPOutputStream((OutputStream) SERVER_OUTPUT.get(this));
+			message.writeTo(out, IGNORED_HEADERS);
+			out.ensureAtBOL();
+		} catch (IllegalAccessException e) {
+			throw new MessagingException("Could not write message", e);
+		} catch (IOException e) {
+			throw new MessagingException("Could not write message", e);
+		}
+	}
+}
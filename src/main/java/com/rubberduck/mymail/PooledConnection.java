@@ -0,0 +1,150 @@
+package com.rubberduck.mymail;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Class 	: PooledConnection
+ * Purpose	: A database connection managed by a ConnectionPool, along with its bookkeeping
+ * 			  and a cache of its prepared statements, keyed by SQL text, so that the
+ * 			  statements used for every batch are prepared only once per connection.
+ * 			  Cached statements belong to the connection and must not be closed by callers.
+ */
+
+public class PooledConnection {
+
+	// Statements kept per connection at least, an operation may use a few at once
+	private static final int MIN_STATEMENT_CACHE_SIZE = 4;
+
+	private Connection connection;				// underlying JDBC connection
+	private long createdAt;						// time the connection was opened
+	private long lastUsedAt;					// time the connection was last returned
+	private long borrowedAt;					// time the connection was last borrowed
+	private Throwable borrowTrace;				// where it was borrowed, for leak reports
+	private boolean leakReported;				// set once a leak has been reported
+	private boolean broken;						// set when the connection failed
+
+	private LinkedHashMap<String, PreparedStatement> statements;	// LRU cache by SQL text
+	private long statementsPrepared;			// statements prepared on this connection
+	private long statementCacheHits;			// statements taken from the cache
+
+	// Constructor
+	public PooledConnection(Connection connection, final int statementCacheSize) {
+		this.connection = connection;
+		createdAt = System.currentTimeMillis();
+		lastUsedAt = createdAt;
+		broken = false;
+
+		final int cacheSize = Math.max(MIN_STATEMENT_CACHE_SIZE, statementCacheSize);
+		statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+				if (size() <= cacheSize)
+					return false;
+				closeStatement(eldest.getValue());
+				return true;
+			}
+		};
+	}
+
+	public Connection getConnection() {
+		return connection;
+	}
+
+	/*
+	 * Function : prepare
+	 * Input	: sql (the statement's SQL text)
+	 * Purpose	: Returns the cached statement for the SQL text, with its parameters and
+	 * 			  batch cleared, or prepares and caches a new one
+	 * Returns	: A prepared statement owned by this connection
+	 */
+	public PreparedStatement prepare(String sql) throws SQLException {
+		PreparedStatement stmt = statements.get(sql);
+		if (stmt != null) {
+			stmt.clearParameters();
+			stmt.clearBatch();
+			statementCacheHits++;
+			return stmt;
+		}
+
+		stmt = connection.prepareStatement(sql);
+		statementsPrepared++;
+		statements.put(sql, stmt);
+		return stmt;
+	}
+
+	// Marks the connection as broken if the error is a connection error (SQLState 08xxx)
+	public void checkError(SQLException e) {
+		String state = e.getSQLState();
+		if (state != null && state.startsWith("08"))
+			broken = true;
+	}
+
+	public boolean isBroken() {
+		return broken;
+	}
+
+	// Records a borrow, keeping the caller's stack trace if asked to
+	public void borrowed(boolean traceBorrower) {
+		borrowedAt = System.currentTimeMillis();
+		borrowTrace = traceBorrower ? new Throwable("Connection borrowed here") : null;
+		leakReported = false;
+	}
+
+	// Records the connection being handed back
+	public void touch() {
+		lastUsedAt = System.currentTimeMillis();
+		borrowTrace = null;
+	}
+
+	public long getCreatedAt() {
+		return createdAt;
+	}
+	public long getLastUsedAt() {
+		return lastUsedAt;
+	}
+	public long getBorrowedAt() {
+		return borrowedAt;
+	}
+	public Throwable getBorrowTrace() {
+		return borrowTrace;
+	}
+	public boolean isLeakReported() {
+		return leakReported;
+	}
+	public void setLeakReported() {
+		leakReported = true;
+	}
+	public long getStatementsPrepared() {
+		return statementsPrepared;
+	}
+	public long getStatementCacheHits() {
+		return statementCacheHits;
+	}
+
+	// Closes the cached statements and the connection
+	public void close() {
+		Iterator<PreparedStatement> it = statements.values().iterator();
+		while (it.hasNext()) {
+			closeStatement(it.next());
+			it.remove();
+		}
+		try {
+			connection.close();
+		} catch (SQLException e) {
+			// The connection is being thrown away, nothing more to do
+		}
+	}
+
+	private static void closeStatement(PreparedStatement stmt) {
+		try {
+			stmt.close();
+		} catch (SQLException e) {
+			// Already unusable
+		}
+	}
+}
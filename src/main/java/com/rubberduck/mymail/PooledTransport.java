@@ -0,0 +1,47 @@
+package com.rubberduck.mymail;
+
+import javax.mail.Transport;
+
+/*
+ * Class 	: PooledTransport
+ * Purpose	: Wraps an authenticated SMTP Transport owned by an SMTPConnectionPool along with
+ * 			  the bookkeeping needed for validation, idle eviction and recycling
+ */
+
+public class PooledTransport {
+	private Transport transport;		// connected and authenticated transport
+	private long createdAt;				// time at which the connection was opened
+	private long lastUsedAt;			// time at which the connection was last returned
+	private int messagesSent;			// number of messages sent over this connection
+
+	// Constructor
+	public PooledTransport(Transport transport) {
+		this.transport = transport;
+		this.createdAt = System.currentTimeMillis();
+		this.lastUsedAt = createdAt;
+		this.messagesSent = 0;
+	}
+
+	public Transport getTransport() {
+		return transport;
+	}
+	public long getCreatedAt() {
+		return createdAt;
+	}
+	public long getLastUsedAt() {
+		return lastUsedAt;
+	}
+	public int getMessagesSent() {
+		return messagesSent;
+	}
+
+	// Records that the connection was returned to the pool
+	public void touch() {
+		lastUsedAt = System.currentTimeMillis();
+	}
+
+	// Records that a message was sent over this connection
+	public void messageSent() {
+		messagesSent++;
+	}
+}
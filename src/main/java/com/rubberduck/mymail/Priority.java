@@ -0,0 +1,38 @@
+package com.rubberduck.mymail;
+
+/*
+ * Enum 	: Priority
+ * Purpose	: Defines the priority lanes mails are claimed from, see LaneScheduler
+ * 			  (stored by ordinal, so new lanes must only be appended)
+ */
+
+public enum Priority {
+	TRANSACTIONAL,		// Expected within seconds, e.g. password resets
+	NORMAL,				// Default lane
+	BULK;				// Newsletters and other campaigns
+
+	/*
+	 * Function : parse
+	 * Input	: value (a lane name or ordinal, case insensitive)
+	 * 			  defaultValue (lane of missing values)
+	 * Purpose	: Reads the priority of a mail from a campaign file or a setting
+	 * Returns	: The lane, defaultValue if the value is empty
+	 */
+	public static Priority parse(String value, Priority defaultValue) {
+		if (value == null || value.trim().length() == 0)
+			return defaultValue;
+		value = value.trim();
+		for (Priority priority : values()) {
+			if (priority.name().equalsIgnoreCase(value)
+					|| String.valueOf(priority.ordinal()).equals(value))
+				return priority;
+		}
+		throw new IllegalArgumentException("unknown priority " + value);
+	}
+
+	// Returns the lane stored under the given ordinal, NORMAL if it is unknown
+	public static Priority fromOrdinal(int ordinal) {
+		Priority[] priorities = values();
+		return ordinal >= 0 && ordinal < priorities.length ? priorities[ordinal] : NORMAL;
+	}
+}
@@ -0,0 +1,54 @@
+package com.rubberduck.mymail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+/*
+ * Class 	: RawMessage
+ * Purpose	: Message whose bytes were rendered when the mail was queued (the raw_mime
+ * 			  column). Nothing is parsed or encoded when it is sent: writing it out copies
+ * 			  the stored bytes into the DATA stream, where the transport only applies
+ * 			  dot-stuffing. Only the sender is known as an object, for MAIL FROM.
+ */
+
+public class RawMessage extends MimeMessage {
+
+	private InternetAddress from;			// envelope sender
+	private byte[] raw;						// headers and content as stored
+
+	// Constructor
+	public RawMessage(Session session, InternetAddress from, byte[] raw) {
+		super(session);
+		this.from = from;
+		this.raw = raw;
+		modified = false;
+		saved = true;
+	}
+
+	@Override
+	public Address[] getFrom() throws MessagingException {
+		return new Address[] { from };
+	}
+
+	@Override
+	public int getSize() {
+		return raw.length;
+	}
+
+	@Override
+	public void writeTo(OutputStream os) throws IOException, MessagingException {
+		os.write(raw);
+	}
+
+	// The stored headers never hold Bcc or Content-Length, there is nothing to leave out
+	@Override
+	public void writeTo(OutputStream os, String[] ignoreList) throws IOException, MessagingException {
+		os.write(raw);
+	}
+}
@@ -0,0 +1,30 @@
+package com.rubberduck.mymail;
+
+import java.util.Enumeration;
+
+import javax.mail.Session;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeMessage;
+
+/*
+ * Class 	: RenderedMessage
+ * Purpose	: MimeMessage built from a pre-rendered skeleton: a copy of its encoded header
+ * 			  block and a shared reference to its encoded content.
+ * 			  The message counts as saved and unmodified, so writing it out emits the
+ * 			  cached bytes as they are instead of encoding the body again.
+ */
+
+public class RenderedMessage extends MimeMessage {
+
+	// Constructor
+	public RenderedMessage(Session session, InternetHeaders skeletonHeaders, byte[] encodedContent) {
+		super(session);
+		headers = new InternetHeaders();
+		Enumeration<?> lines = skeletonHeaders.getAllHeaderLines();
+		while (lines.hasMoreElements())
+			headers.addHeaderLine((String) lines.nextElement());
+		content = encodedContent;
+		modified = false;
+		saved = true;
+	}
+}
@@ -0,0 +1,110 @@
+package com.rubberduck.mymail;
+
+/*
+ * Class 	: RetryScheduler
+ * Purpose	: Puts failed mails back in the queue once their backoff has passed, so that
+ * 			  they are retried without anyone having to ask for it.
+ * 			  Every failed attempt pushes a mail's next attempt back exponentially, with
+ * 			  jitter, and mails are given up on after -Dmymail.retry.maxAttempts attempts
+ * 			  (see SqlHelper.writeOutcomes). Requeued mails keep their ids, so workers only
+ * 			  reach them when their claim cursors wrap around, after the fresh mails ahead.
+ * 			  Mails DEFERRED by the rate limit of their route are requeued the same way once
+ * 			  their route has earned the tokens for them, without using up an attempt.
+ */
+
+public class RetryScheduler {
+
+	private SqlHelper sqlHelper;				// database helper used for the requeues
+	private int maxAttempts;					// attempts after which a mail is not retried
+	private long intervalMillis;				// time between two requeue passes
+	private int limit;							// max. mails requeued per pass
+
+	private volatile boolean closed;			// set once the scheduler is stopped
+	private Thread thread;						// background thread, if started
+	private final Object wakeUp = new Object();	// notified to stop the background thread
+	private long requeued;						// mails requeued so far
+
+	// Constructor
+	public RetryScheduler(int maxAttempts, long intervalMillis, int limit) {
+		this.maxAttempts = Math.max(1, maxAttempts);
+		this.intervalMillis = Math.max(1, intervalMillis);
+		this.limit = Math.max(1, limit);
+		sqlHelper = new SqlHelper();
+		closed = false;
+		requeued = 0;
+	}
+
+	/*
+	 * Function : fromConfig
+	 * Input	: none
+	 * Purpose	: Creates a scheduler using the retry.* settings
+	 * Returns	: A new RetryScheduler
+	 */
+	public static RetryScheduler fromConfig() {
+		return new RetryScheduler(
+				Config.getInt("retry.maxAttempts", 4),
+				Config.getLong("retry.intervalMillis", 1000),
+				Config.getInt("retry.limit", 1000));
+	}
+
+	/*
+	 * Function : start
+	 * Input	: none
+	 * Purpose	: Starts a background thread which requeues the due mails every
+	 * 			  [intervalMillis], at most [limit] at a time, while mails are being sent
+	 * Returns	: void
+	 */
+	public void start() {
+		thread = new Thread(new Runnable() {
+			public void run() {
+				while (!closed) {
+					requeueDue();
+					// Woken up early by close, never interrupted while talking to the database
+					synchronized (wakeUp) {
+						try {
+							if (!closed)
+								wakeUp.wait(intervalMillis);
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+				}
+			}
+		}, "retry-scheduler");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	// Requeues up to [limit] failed or deferred mails which are due, returns how many were requeued
+	public synchronized int requeueDue() {
+		int count = sqlHelper.requeueFailedMails(maxAttempts, limit);
+		if (count > 0)
+			requeued += count;
+		return Math.max(0, count);
+	}
+
+	// Returns the time at which the next failed or deferred mail is due, -1 if none is left
+	public long getNextAttemptAt() {
+		return sqlHelper.getNextAttemptAt(maxAttempts);
+	}
+
+	// Stops the background thread
+	public void close() {
+		closed = true;
+		if (thread != null) {
+			synchronized (wakeUp) {
+				wakeUp.notifyAll();
+			}
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	// Returns a short description of the retries so far
+	public synchronized String getStats() {
+		return "Retries : requeued=" + requeued + ", max. attempts=" + maxAttempts;
+	}
+}
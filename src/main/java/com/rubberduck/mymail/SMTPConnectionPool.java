@@ -0,0 +1,424 @@
+package com.rubberduck.mymail;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.mail.Authenticator;
+import javax.mail.MessagingException;
+import javax.mail.PasswordAuthentication;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.URLName;
+
+import com.sun.mail.smtp.SMTPTransport;
+
+/*
+ * Class 	: SMTPConnectionPool
+ * Purpose	: Keeps authenticated SMTP connections alive across batches so that the
+ * 			  connect, STARTTLS and AUTH handshake is not paid for every batch.
+ * 			  Connections are validated with RSET before reuse, evicted when idle for too
+ * 			  long and recycled after a maximum number of messages.
+ * 			  State is guarded by a ReentrantLock rather than the pool's monitor, so that a
+ * 			  virtual thread waiting for a connection does not pin its carrier thread.
+ */
+
+public class SMTPConnectionPool {
+
+	private String host;						// SMTP host
+	private int port;							// SMTP port
+	private String user;						// SMTP username
+	private String pass;						// SMTP password
+	private int minSize;						// connections kept open even when idle
+	private int maxSize;						// maximum number of open connections
+	private long idleTimeoutMillis;				// idle connections older than this are closed
+	private int maxMessagesPerConnection;		// connections are recycled after this many messages
+	private long borrowTimeoutMillis;			// maximum time to wait for a free connection
+
+	private Session mailSession;				// Session shared by all connections
+	private LinkedList<PooledTransport> idle;	// connections available for reuse
+	private int openCount;						// connections currently open (idle + borrowed)
+	private boolean closed;						// set once the pool has been shut down
+	private ReentrantLock lock;					// guards the idle list, openCount and closed
+	private Condition returned;					// signalled when a connection slot frees up
+	private Thread evictor;						// background thread evicting idle connections
+
+	private LatencyHistogram borrowLatency;		// time taken to hand out a connection
+	private LatencyHistogram connectLatency;	// time taken to connect and authenticate
+	private LatencyHistogram sendLatency;		// time taken to send one message
+	private LatencyHistogram pipelineLatency;	// time taken to send a pipelined run of messages
+	private LongAdder messagesSent;				// messages accepted by the server
+	private LongAdder messagesFailed;			// messages with at least one recipient refused
+
+	// Constructor
+	public SMTPConnectionPool(String host, int port, final String user, final String pass,
+			int minSize, int maxSize, long idleTimeoutMillis, int maxMessagesPerConnection) {
+		this.host = host;
+		this.port = port;
+		this.user = user;
+		this.pass = pass;
+		this.maxSize = Math.max(1, maxSize);
+		this.minSize = Math.min(Math.max(0, minSize), this.maxSize);
+		this.idleTimeoutMillis = idleTimeoutMillis;
+		this.maxMessagesPerConnection = maxMessagesPerConnection;
+		this.borrowTimeoutMillis = Config.getLong("smtp.pool.borrowTimeoutMillis", 30000);
+
+		idle = new LinkedList<PooledTransport>();
+		openCount = 0;
+		closed = false;
+		lock = new ReentrantLock();
+		returned = lock.newCondition();
+
+		// Setup Mail Server Properties
+		Properties mailProperties = new Properties();
+		mailProperties.putAll(System.getProperties());
+		mailProperties.put("mail.smtp.host", host); // set SMTP host
+		mailProperties.put("mail.smtp.port", String.valueOf(port)); // set TLS port
+		mailProperties.put("mail.smtp.auth", "true"); // enables authentication
+		mailProperties.put("mail.smtp.starttls.enable", "true"); // enable STARTTLS
+		mailProperties.put("mail.smtp.sendpartial", "true"); // send to valid recipients of a group
+
+		mailSession = Session.getInstance(mailProperties, new Authenticator() {
+			@Override
+			protected PasswordAuthentication getPasswordAuthentication() {
+				return new PasswordAuthentication(user, pass);
+			}
+		});
+
+		registerMetrics();
+		startEvictor();
+	}
+
+	// Creates the metrics of the pool, labelled with its host and port
+	private void registerMetrics() {
+		String label = host + ":" + port;
+		borrowLatency = Metrics.histogram("mymail_smtp_borrow_seconds",
+				"Time taken to borrow an SMTP connection, connecting if needed", "host", label);
+		connectLatency = Metrics.histogram("mymail_smtp_connect_seconds",
+				"Time taken to connect and authenticate to an SMTP server", "host", label);
+		sendLatency = Metrics.histogram("mymail_smtp_send_seconds",
+				"Time taken to send one message and read its replies", "host", label);
+		pipelineLatency = Metrics.histogram("mymail_smtp_pipeline_seconds",
+				"Time taken to send a pipelined run of messages", "host", label);
+		String help = "Messages sent to an SMTP server, by result";
+		messagesSent = Metrics.counter("mymail_smtp_messages_total", help, "host", label, "result", "sent");
+		messagesFailed = Metrics.counter("mymail_smtp_messages_total", help, "host", label, "result", "failed");
+
+		help = "SMTP connections of the pool";
+		Metrics.gauge("mymail_smtp_pool_connections", help, new Metrics.Gauge() {
+			public double getValue() {
+				return getOpenCount();
+			}
+		}, "host", label, "state", "open");
+		Metrics.gauge("mymail_smtp_pool_connections", help, new Metrics.Gauge() {
+			public double getValue() {
+				lock.lock();
+				try {
+					return idle.size();
+				} finally {
+					lock.unlock();
+				}
+			}
+		}, "host", label, "state", "idle");
+		Metrics.gauge("mymail_smtp_pool_connections", help, new Metrics.Gauge() {
+			public double getValue() {
+				return maxSize;
+			}
+		}, "host", label, "state", "max");
+	}
+
+	/*
+	 * Function : fromConfig
+	 * Input	: defaultMaxSize (max. pool size used when smtp.pool.maxSize is not set)
+	 * Purpose	: Creates a pool using the smtp.* settings
+	 * Returns	: A new SMTPConnectionPool
+	 */
+	public static SMTPConnectionPool fromConfig(int defaultMaxSize) {
+		return new SMTPConnectionPool(
+				Config.getString("smtp.host", "localhost"),
+				Config.getInt("smtp.port", 1123),
+				Config.getString("smtp.user", "user"),
+				Config.getString("smtp.password", "pass"),
+				Config.getInt("smtp.pool.minSize", 1),
+				Config.getInt("smtp.pool.maxSize", defaultMaxSize),
+				Config.getLong("smtp.pool.idleTimeoutMillis", 60000),
+				Config.getInt("smtp.pool.maxMessagesPerConnection", 1000));
+	}
+
+	public Session getSession() {
+		return mailSession;
+	}
+	public String getHost() {
+		return host;
+	}
+
+	/*
+	 * Function : borrow
+	 * Input	: none
+	 * Purpose	: Hands out a validated idle connection, or opens a new one if the pool is
+	 * 			  below its maximum size. Waits for a connection to be returned otherwise.
+	 * Returns	: A connected transport, null if none could be obtained
+	 */
+	public PooledTransport borrow() {
+		long start = System.nanoTime();
+		long deadline = System.currentTimeMillis() + borrowTimeoutMillis;
+
+		while (true) {
+			PooledTransport candidate = null;
+			boolean mayOpen = false;
+
+			lock.lock();
+			try {
+				while (!closed && idle.isEmpty() && openCount >= maxSize) {
+					long wait = deadline - System.currentTimeMillis();
+					if (wait <= 0)
+						return null;
+					try {
+						returned.await(wait, TimeUnit.MILLISECONDS);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return null;
+					}
+				}
+				if (closed)
+					return null;
+
+				if (!idle.isEmpty()) {
+					// Most recently used connections are the least likely to have timed out
+					candidate = idle.removeFirst();
+				} else {
+					openCount++;
+					mayOpen = true;
+				}
+			} finally {
+				lock.unlock();
+			}
+
+			if (mayOpen) {
+				PooledTransport pooled = open();
+				if (pooled == null) {
+					slotFreed();
+				} else {
+					borrowLatency.recordSince(start);
+				}
+				return pooled;
+			}
+
+			// Validate the idle connection before handing it out
+			if (validate(candidate)) {
+				borrowLatency.recordSince(start);
+				return candidate;
+			}
+			discard(candidate);
+		}
+	}
+
+	/*
+	 * Function : release
+	 * Input	: pooled (connection obtained through borrow)
+	 * 			  broken (true if the connection failed while in use)
+	 * Purpose	: Returns a connection to the pool. Broken connections and connections that
+	 * 			  sent maxMessagesPerConnection messages are closed instead.
+	 * Returns	: void
+	 */
+	public void release(PooledTransport pooled, boolean broken) {
+		if (pooled == null)
+			return;
+
+		if (broken || pooled.getMessagesSent() >= maxMessagesPerConnection) {
+			discard(pooled);
+			return;
+		}
+
+		lock.lock();
+		try {
+			if (!closed) {
+				pooled.touch();
+				idle.addFirst(pooled);
+				returned.signalAll();
+				return;
+			}
+		} finally {
+			lock.unlock();
+		}
+		discard(pooled);
+	}
+
+	/*
+	 * Function : close
+	 * Input	: none
+	 * Purpose	: Stops the evictor and closes all idle connections. Connections which are
+	 * 			  still borrowed are closed when they are released.
+	 * Returns	: void
+	 */
+	public void close() {
+		LinkedList<PooledTransport> toClose;
+		lock.lock();
+		try {
+			closed = true;
+			toClose = new LinkedList<PooledTransport>(idle);
+			idle.clear();
+			returned.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		evictor.interrupt();
+		for (PooledTransport pooled : toClose)
+			discard(pooled);
+	}
+
+	// Returns a short description of the pool state
+	public String getStats() {
+		lock.lock();
+		try {
+			return "SMTP pool " + host + ":" + port + " : open=" + openCount + ", idle=" + idle.size()
+					+ ", max=" + maxSize;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Returns the number of connections currently open
+	public int getOpenCount() {
+		lock.lock();
+		try {
+			return openCount;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Returns the histogram of the time taken to send one message to this pool's server
+	public LatencyHistogram getSendLatency() {
+		return sendLatency;
+	}
+
+	// Returns the histogram of the time taken to send a pipelined run of messages
+	public LatencyHistogram getPipelineLatency() {
+		return pipelineLatency;
+	}
+
+	// Counts a message sent to this pool's server, [accepted] if no recipient was refused
+	public void messageSent(boolean accepted) {
+		if (accepted)
+			messagesSent.increment();
+		else
+			messagesFailed.increment();
+	}
+
+	// Opens and authenticates a new connection
+	private PooledTransport open() {
+		long start = System.nanoTime();
+		try {
+			// Behaves like the regular SMTP transport, and can also pipeline when asked to
+			Transport transport = new PipeliningSMTPTransport(mailSession,
+					new URLName("smtp", host, port, null, user, pass));
+			transport.connect(host, port, user, pass);
+			connectLatency.recordSince(start);
+			return new PooledTransport(transport);
+		} catch (MessagingException me) {
+			// Failed to establish a connection
+			System.out.println("Could not connect to SMTP server " + host + ":" + port);
+			System.out.println(me.getMessage());
+			return null;
+		}
+	}
+
+	// Checks that an idle connection is still usable by resetting the SMTP session
+	private boolean validate(PooledTransport pooled) {
+		Transport transport = pooled.getTransport();
+		try {
+			if (transport instanceof SMTPTransport)
+				return ((SMTPTransport) transport).simpleCommand("RSET") == 250;
+			return transport.isConnected();
+		} catch (MessagingException e) {
+			return false;
+		}
+	}
+
+	// Closes a connection and frees its slot in the pool
+	private void discard(PooledTransport pooled) {
+		try {
+			pooled.getTransport().close();
+		} catch (MessagingException e) {
+			// The connection is being thrown away, nothing more to do
+		}
+		slotFreed();
+	}
+
+	// Gives back the slot of a connection which was closed or could not be opened
+	private void slotFreed() {
+		lock.lock();
+		try {
+			openCount--;
+			returned.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Starts a daemon thread which evicts idle connections and keeps minSize connections open
+	private void startEvictor() {
+		evictor = new Thread(new Runnable() {
+			public void run() {
+				long interval = Math.max(1000, idleTimeoutMillis / 2);
+				while (!Thread.currentThread().isInterrupted()) {
+					try {
+						Thread.sleep(interval);
+					} catch (InterruptedException e) {
+						return;
+					}
+					evictIdle();
+					fillToMinimum();
+				}
+			}
+		}, "smtp-pool-evictor");
+		evictor.setDaemon(true);
+		evictor.start();
+	}
+
+	// Closes connections which have been idle for longer than idleTimeoutMillis
+	private void evictIdle() {
+		LinkedList<PooledTransport> expired = new LinkedList<PooledTransport>();
+		long now = System.currentTimeMillis();
+		lock.lock();
+		try {
+			Iterator<PooledTransport> it = idle.descendingIterator();
+			while (it.hasNext() && openCount - expired.size() > minSize) {
+				PooledTransport pooled = it.next();
+				if (now - pooled.getLastUsedAt() > idleTimeoutMillis) {
+					it.remove();
+					expired.add(pooled);
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+		for (PooledTransport pooled : expired)
+			discard(pooled);
+	}
+
+	// Opens connections until at least minSize are open
+	private void fillToMinimum() {
+		while (true) {
+			lock.lock();
+			try {
+				if (closed || openCount >= minSize)
+					return;
+				openCount++;
+			} finally {
+				lock.unlock();
+			}
+			PooledTransport pooled = open();
+			if (pooled == null) {
+				slotFreed();
+				return;
+			}
+			release(pooled, false);
+		}
+	}
+}
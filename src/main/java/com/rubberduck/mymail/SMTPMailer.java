@@ -3,144 +3,544 @@ package com.rubberduck.mymail;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Properties;
+import java.util.Map;
 
+import javax.mail.Address;
 import javax.mail.AuthenticationFailedException;
-import javax.mail.Authenticator;
-import javax.mail.Message;
 import javax.mail.MessagingException;
-import javax.mail.PasswordAuthentication;
+import javax.mail.SendFailedException;
 import javax.mail.Session;
 import javax.mail.Transport;
 import javax.mail.internet.AddressException;
-import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
 
 import com.sun.mail.smtp.SMTPAddressFailedException;
 import com.sun.mail.smtp.SMTPSendFailedException;
+import com.sun.mail.smtp.SMTPTransport;
 
 /* 
  * Class 	: SMTPMailer
  * Purpose 	: Helper class to establish a connection with the SMTP server and send out mails
  * 			  Contains methods for the above functionalities 
+ * 			  Mails are sent through the relay of their recipient's domain, see DomainRouter.
  */
 
 public class SMTPMailer {
 
-	Properties mailProperties;				// Properties object to define SMTP properties
+	DomainRouter router;					// Routes of the recipient domains
+	SMTPConnectionPool pool;				// Pool of the default route
+	MessageRenderer renderer;				// Builds messages, shared by all threads
 	Session mailSession;					// Session object
 	MimeMessage mailMessage;				// MimeMessage to be sent out
+	PooledTransport connection;				// Default route connection borrowed for the batch
 	Transport transport;					// Transport object used to send message
-	String host;							// SMTP host
+	boolean pipelining;						// use PIPELINING when the server supports it
+	int maxRecipients;						// max. mails coalesced into one message
+	int maxReconnects;						// max. connections replaced per route and batch
+	RouteGate gate;							// bounds the sessions to each relay, or null
 	
 
 	// Constructor
-	public SMTPMailer(String host) {
-		mailSession = null;
+	public SMTPMailer(DomainRouter router, MessageRenderer renderer) {
+		this.router = router;
+		this.pool = router.getDefaultRoute().getPool();
+		this.renderer = renderer;
+		mailSession = pool.getSession();
 		mailMessage = null;
+		connection = null;
 		transport = null;
-
-		this.host = host;
-		
-		// Setup Mail Server Properties
-		mailProperties = System.getProperties();
-		mailProperties.put("mail.smtp.host", host); // set SMTP host
-		mailProperties.put("mail.smtp.port", "1123"); // set TLS port
-		mailProperties.put("mail.smtp.auth", "true"); // enables authentication
-		mailProperties.put("mail.smtp.starttls.enable", "true"); // enable STARTTLS
-
+		pipelining = Config.getBoolean("smtp.pipelining", false);
+		maxRecipients = Config.getInt("smtp.coalesce.maxRecipients", 1);
+		maxReconnects = Config.getInt("smtp.maxReconnects", 3);
+		gate = null;
+	}
+	
+	// Makes every route's groups pass through the gate while they are sent
+	public void setRouteGate(RouteGate gate) {
+		this.gate = gate;
 	}
 	
 	/*
 	 * Function : authenticateAndConnect
-	 * Input	: User credentials for authentication
-	 * Purpose	: Authenticates the session and connects to the SMTP server
+	 * Input	: none
+	 * Purpose	: Borrows an authenticated connection to the default relay from its pool.
+	 * 			  The pool reuses a validated connection if it has one, and only connects
+	 * 			  and authenticates when it has to open a new one. Connections to the relays
+	 * 			  of other routes are borrowed when the batch is sent.
 	 * Returns	: True if success, false otherwise
 	 */
 	
-	public boolean authenticateAndConnect(final String user, final String pass) {
-		boolean retval = false;
-		
-		if (transport == null || !transport.isConnected()) {
-			try {
-				// Get mail session using credentials
-				mailSession = Session.getDefaultInstance(mailProperties, new Authenticator() {
-					 @Override
-                     protected PasswordAuthentication getPasswordAuthentication() {
-                         return new PasswordAuthentication(user, pass);
-                     }
-				});
-
-				// Connect to SMTP server
-				transport = mailSession.getTransport("smtp");
-				transport.connect(host, user, pass);
-				
-				// Successfully established connection
-				retval = true;				
-			
-			} catch (MessagingException me) {
-				// Failed to establish a connection
+	public boolean authenticateAndConnect() {
+		if (connection == null) {
+			connection = pool.borrow();
+			if (connection == null)
 				return false;
-			}
+			transport = connection.getTransport();
 		}
 
-		return retval;
+		return true;
 	}
 	
 	/* Function : sendEmails
 	 * Input	: List of mails to be sent out
 	 * Purpose	: Tries sending the mails to the SMTP server
-	 * 			  If unable to send a mail, adds it to a failed list
+	 * 			  Renders the mails, then sends them, see render and send
+	 * 			  If unable to send a mail, adds it to a failed list, and also to a rejected
+	 * 				list if it failed permanently
 	 * 			  If connection to SMTP server is lost, adds mails which were not processed 
 	 * 				to an unprocessed mails list
+	 * 			  Mails throttled by their route are added to a deferred map instead
 	 * 			  Sends back information about mails which were not sent/processed
 	 * Returns	: void
 	 */
 	
-	public void sendEmails(final List<Mail> mails, 
-			List<Integer> failedMailIds, List<Integer> unProcessedMailIds) {
+	public void sendEmails(final List<Mail> mails, List<Integer> failedMailIds,
+			List<Integer> rejectedMailIds, List<Integer> unProcessedMailIds,
+			Map<Integer, Long> deferredMailIds) {
+		MailBatch batch = render(null, mails);
+		send(batch, failedMailIds, rejectedMailIds, unProcessedMailIds, deferredMailIds);
+	}
+	
+	/* Function : render
+	 * Input	: claimToken (token under which the mails were claimed)
+	 * 			  mails (mails to be sent out)
+	 * Purpose	: Splits the mails by route, then groups mails of a route which only differ
+	 * 				in their recipient (up to smtp.coalesce.maxRecipients per group) and
+	 * 				builds one message per group.
+	 * 			  Does not need a connection to the SMTP server.
+	 * Returns	: The rendered batch, including the mails which could not be rendered
+	 */
+	
+	public MailBatch render(String claimToken, List<Mail> mails) {
+		return render(new MailBatch(claimToken, mails));
+	}
+	
+	/* Function : render
+	 * Input	: A claimed batch which has not been rendered yet
+	 * Purpose	: Same as above, rendering into the given batch
+	 * Returns	: The rendered batch
+	 */
+	
+	public MailBatch render(MailBatch batch) {
+		List<Mail> mails = batch.getMails();
 		
-		// Start sending mails one by one
-		for (int i=0; i<mails.size(); i++) {		
-			Mail mail = mails.get(i);
-			try {
-				// Generate Mail Message
-				if (transport.isConnected()) {
-
-					mailMessage = new MimeMessage(mailSession);
-					mailMessage.setFrom(new InternetAddress(mail.getSender()));
-					mailMessage.addRecipient(Message.RecipientType.TO,
-						new InternetAddress(mail.getRecipient()));
-					mailMessage.setSubject(mail.getSubject());
-					mailMessage.setContent(mail.getBody(), "text/html");
-
-					// Send message
-					transport.sendMessage(mailMessage, mailMessage.getAllRecipients());
+		for (Map.Entry<DomainRoute, List<Mail>> partition : router.partition(mails).entrySet()) {
+			DomainRoute route = partition.getKey();
+			List<MailGroup> groups = MailCoalescer.coalesce(partition.getValue(), maxRecipients);
+			// Large mails go last, so that the others can be pipelined ahead of them
+			for (boolean large : new boolean[] {false, true}) {
+				for (MailGroup group : groups) {
+					if (group.getFirst().hasLargeContent() == large)
+						render(batch, route, group);
 				}
-			} catch (AddressException e) {
-				failedMailIds.add(mail.getId());
-				System.out.println(e);
+			}
+		}
+		
+		return batch;
+	}
+	
+	// Renders a group into the batch, recording its mails as failed if it cannot be, or to
+	// be retried if only its content cannot be read for now
+	private void render(MailBatch batch, DomainRoute route, MailGroup group) {
+		try {
+			// Generate Mail Message
+			batch.addRendered(group, route, renderer.render(group), envelopeRecipients(group));
+		} catch (MailContent.UnavailableException e) {
+			// Not the mail's fault, try it again later
+			for (Mail mail : group.getMails())
+				batch.addRetry(mail.getId());
+			System.out.println(e);
+		} catch (MessagingException e) {
+			for (Mail mail : group.getMails())
+				batch.addFailed(mail.getId());
+			System.out.println(e);
+		}
+	}
+	
+	/* Function : send
+	 * Input	: A rendered batch
+	 * Purpose	: Sends the messages of each route over a connection to the route's relay
+	 * 			  Each mail takes a token of its route's rate limit. Groups which find the
+	 * 				route throttled are added to the deferred map with the time the bucket
+	 * 				will have earned their tokens, while the groups of other routes carry on.
+	 * 			  Mails whose content could not be read for now are deferred by
+	 * 				-Dmymail.retry.baseDelayMillis, without using up an attempt.
+	 * 			  Mails which could not be rendered or sent are added to the failed list.
+	 * 				Those which will never go through (render errors, 5xx replies) are
+	 * 				added to the rejected list as well, see FailureType.
+	 * 			  If connection to SMTP server is lost, adds mails which were not processed 
+	 * 				to an unprocessed mails list
+	 * 			  Connections are handed back to their pool afterwards, or closed if they broke,
+	 * 				and the temp files of large messages are deleted
+	 * Returns	: void
+	 */
+	
+	public void send(MailBatch batch, List<Integer> failedMailIds,
+			List<Integer> rejectedMailIds, List<Integer> unProcessedMailIds,
+			Map<Integer, Long> deferredMailIds) {
+		List<MailGroup> groups = batch.getGroups();
+		List<DomainRoute> routes = batch.getRoutes();
+		failedMailIds.addAll(batch.getFailedMailIds());
+		rejectedMailIds.addAll(batch.getFailedMailIds());
+		long retryAt = System.currentTimeMillis() + SqlHelper.RETRY_BASE_DELAY_MILLIS;
+		for (Integer mailId : batch.getRetryMailIds())
+			deferredMailIds.put(mailId, retryAt);
+		
+		int start = 0;
+		while (start < groups.size()) {
+			DomainRoute route = routes.get(start);
+			int end = start;
+			while (end < groups.size() && routes.get(end) == route)
+				end++;
+			
+			// Take the tokens of the route's groups, the rest is deferred
+			int allowed = start;
+			while (allowed < end
+					&& route.getRateLimit().tryAcquire(groups.get(allowed).size()))
+				allowed++;
+			if (allowed < end) {
+				int deferred = 0;
+				for (int i=allowed; i<end; i++) {
+					deferred += groups.get(i).size();
+					long nextAttemptAt = route.getRateLimit().defer(groups.get(i).size());
+					for (Mail mail : groups.get(i).getMails())
+						deferredMailIds.put(mail.getId(), nextAttemptAt);
+				}
+				route.deferred(deferred);
+			}
+			
+			if (allowed > start) {
+				if (enter(route)) {
+					try {
+						sendRoute(batch, route, start, allowed,
+								failedMailIds, rejectedMailIds, unProcessedMailIds);
+					} finally {
+						if (gate != null)
+							gate.exit(route);
+					}
+				} else {
+					for (int i=start; i<allowed; i++)
+						addIds(groups.get(i), unProcessedMailIds);
+				}
+			}
+			start = end;
+		}
+		
+		// Hand back the default route's connection if no mail needed it
+		if (connection != null) {
+			pool.release(connection, false);
+			connection = null;
+			transport = null;
+		}
+		batch.release();
+	}
+	
+	// Waits until the gate lets the route's groups through, false if interrupted meanwhile
+	private boolean enter(DomainRoute route) {
+		if (gate == null)
+			return true;
+		try {
+			gate.enter(route);
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+	
+	/* Function : sendRoute
+	 * Input	: A rendered batch, the route and range [start, end) of its groups to send
+	 * Purpose	: Sends the groups over a connection to the route's relay, using the one
+	 * 			  borrowed by authenticateAndConnect for the default route. If no connection
+	 * 			  can be made, the groups are added to the unprocessed list.
+	 * Returns	: void
+	 */
+	
+	private void sendRoute(MailBatch batch, DomainRoute route, int start, int end,
+			List<Integer> failedMailIds, List<Integer> rejectedMailIds,
+			List<Integer> unProcessedMailIds) {
+		PooledTransport routeConnection;
+		if (route.getPool() == pool && connection != null) {
+			routeConnection = connection;
+			connection = null;
+			transport = null;
+		} else {
+			routeConnection = route.getPool().borrow();
+		}
+		if (routeConnection == null) {
+			System.out.println("Could not connect to the relay of route " + route.getName());
+			for (int i=start; i<end; i++)
+				addIds(batch.getGroups().get(i), unProcessedMailIds);
+			return;
+		}
+		
+		Transport routeTransport = routeConnection.getTransport();
+		if (pipelining && routeTransport instanceof PipeliningSMTPTransport
+				&& ((PipeliningSMTPTransport) routeTransport).supportsPipelining()) {
+			// Large messages, rendered last, are streamed one by one rather than buffered
+			int large = start;
+			while (large < end && !(batch.getMessages().get(large) instanceof SpooledMessage))
+				large++;
+			boolean broken = large > start && sendPipelined(batch, route, start, large,
+					routeConnection, failedMailIds, rejectedMailIds, unProcessedMailIds);
+			if (large == end) {
+				route.getPool().release(routeConnection, broken);
+				return;
+			}
+			if (broken) {
+				route.getPool().release(routeConnection, true);
+				routeConnection = route.getPool().borrow();
+				if (routeConnection == null) {
+					for (int i=large; i<end; i++)
+						addIds(batch.getGroups().get(i), unProcessedMailIds);
+					return;
+				}
+			}
+			sendSequentially(batch, route, large, end, routeConnection,
+					failedMailIds, rejectedMailIds, unProcessedMailIds);
+		} else {
+			sendSequentially(batch, route, start, end, routeConnection,
+					failedMailIds, rejectedMailIds, unProcessedMailIds);
+		}
+	}
+	
+	/* Function : sendSequentially
+	 * Input	: A rendered batch, the route and range [start, end) of its groups to send
+	 * 			  and the connection to send them over
+	 * Purpose	: Sends the groups one by one, waiting for the replies of each message.
+	 * 			  A failed message is classified from its reply codes (see FailureType), so
+	 * 			  that one bad reply does not cost the rest of the batch: after a rejection
+	 * 			  the transaction is reset with RSET and the next group is sent on the same
+	 * 			  connection. If the connection was lost, or cannot be reset, it is closed
+	 * 			  and replaced from the route's pool, up to smtp.maxReconnects times.
+	 * 			  The connection in use at the end is handed back to the pool.
+	 * Returns	: void
+	 */
+	
+	private void sendSequentially(MailBatch batch, DomainRoute route, int start, int end,
+			PooledTransport routeConnection, List<Integer> failedMailIds,
+			List<Integer> rejectedMailIds, List<Integer> unProcessedMailIds) {
+		List<MailGroup> groups = batch.getGroups();
+		Transport routeTransport = routeConnection.getTransport();
+		int reconnects = 0;
+		
+		// Start sending groups one by one
+		for (int i=start; i<end; i++) {		
+			MailGroup group = groups.get(i);
+			FailureType failure;
+			long sendStart = System.nanoTime();
+			try {
+				// Send message
+				mailMessage = batch.getMessages().get(i);
+				routeTransport.sendMessage(mailMessage, batch.getEnvelopes().get(i));
+				route.getPool().getSendLatency().recordSince(sendStart);
+				route.getPool().messageSent(true);
+				routeConnection.messageSent();
+				continue;
 			} catch (AuthenticationFailedException e) {
-				failedMailIds.add(mail.getId());
+				route.getPool().messageSent(false);
+				addIds(group, failedMailIds);
+				System.out.println(e);
+				continue;
+			} catch (SendFailedException e) {
+				// Some or all recipients were rejected, the others were sent
+				route.getPool().getSendLatency().recordSince(sendStart);
+				route.getPool().messageSent(false);
+				failure = markRejectedRecipients(group, e,
+						failedMailIds, rejectedMailIds, unProcessedMailIds);
 				System.out.println(e);
 			} catch (MessagingException e) {
-				// Connection to SMTP server lost, mark remaining mails as NOT_SENT
-				for (i=i; i<mails.size(); i++)
-					unProcessedMailIds.add(mails.get(i).getId());
+				failure = routeTransport.isConnected() ? FailureType.fromException(e)
+						: FailureType.CONNECTION;
+				if (failure == FailureType.CONNECTION) {
+					// Connection to SMTP server lost, the group was not attempted
+					addIds(group, unProcessedMailIds);
+				} else {
+					route.getPool().messageSent(false);
+					addIds(group, failedMailIds);
+					if (failure == FailureType.PERMANENT)
+						addIds(group, rejectedMailIds);
+					System.out.println(e);
+				}
+			}
+			
+			// Carry on over the same connection once the transaction is reset
+			if (failure != FailureType.CONNECTION && reset(routeTransport))
+				continue;
+			
+			// Otherwise replace the connection, the remaining mails are NOT_SENT if we can't
+			route.getPool().release(routeConnection, true);
+			routeConnection = null;
+			if (i + 1 < end && reconnects++ < maxReconnects)
+				routeConnection = route.getPool().borrow();
+			if (routeConnection == null) {
+				for (i=i+1; i<end; i++)
+					addIds(groups.get(i), unProcessedMailIds);
+				return;
+			}
+			routeTransport = routeConnection.getTransport();
+		}
+		
+		route.getPool().release(routeConnection, false);
+	}
+	
+	/* Function : sendPipelined
+	 * Input	: A rendered batch, the route and range [start, end) of its groups to send
+	 * 			  and the connection to send them over
+	 * Purpose	: Same as sendSequentially, but sends the groups back to back using PIPELINING.
+	 * 			  Reply codes are matched back to the mails they belong to, so a rejected
+	 * 			  recipient ends up in the failed list (and the rejected list if the reply was
+	 * 			  permanent) and, if the connection is lost, every mail without a complete set
+	 * 			  of replies ends up in the unprocessed list.
+	 * Returns	: True if the connection broke, false otherwise
+	 */
+	
+	private boolean sendPipelined(MailBatch batch, DomainRoute route, int start, int end,
+			PooledTransport routeConnection, List<Integer> failedMailIds,
+			List<Integer> rejectedMailIds, List<Integer> unProcessedMailIds) {
+		PipeliningSMTPTransport pipeliningTransport =
+				(PipeliningSMTPTransport) routeConnection.getTransport();
+		List<MailGroup> groups = batch.getGroups().subList(start, end);
+		List<PipelineReply> replies = new ArrayList<PipelineReply>();
+		boolean broken = false;
+		
+		// Send messages
+		long sendStart = System.nanoTime();
+		try {
+			pipeliningTransport.sendPipelined(batch.getMessages().subList(start, end),
+					batch.getEnvelopes().subList(start, end), replies);
+		} catch (MessagingException e) {
+			// Connection to SMTP server lost
+			broken = true;
+		}
+		route.getPool().getPipelineLatency().recordSince(sendStart);
+		
+		// Map replies back to mails
+		for (int i=0; i<groups.size(); i++) {
+			List<Mail> groupMails = groups.get(i).getMails();
+			if (i >= replies.size() || !replies.get(i).isComplete()) {
+				addIds(groups.get(i), unProcessedMailIds);
+				continue;
 			}
+			
+			PipelineReply reply = replies.get(i);
+			boolean refused = false;
+			for (int j=0; j<groupMails.size(); j++) {
+				if (reply.isAccepted(j))
+					continue;
+				refused = true;
+				int id = groupMails.get(j).getId();
+				FailureType failure = FailureType.fromReplyCode(reply.getFailureCode(j));
+				if (failure == FailureType.CONNECTION) {
+					// The server is closing the connection, the mail was not attempted
+					unProcessedMailIds.add(id);
+					broken = true;
+					continue;
+				}
+				failedMailIds.add(id);
+				if (failure == FailureType.PERMANENT)
+					rejectedMailIds.add(id);
+				System.out.println("Mail " + id + " rejected : " + reply.getFailureResponse());
+			}
+			route.getPool().messageSent(!refused);
+			if (reply.isAccepted())
+				routeConnection.messageSent();
 		}
 		
-		// All done, close the connection to the SMTP server
-		if (transport != null) {
+		return broken;
+	}
+	
+	// Resets the mail transaction after a failure, returns false if the connection is unusable
+	private boolean reset(Transport routeTransport) {
+		if (!(routeTransport instanceof SMTPTransport) || !routeTransport.isConnected())
+			return false;
+		try {
+			return ((SMTPTransport) routeTransport).simpleCommand("RSET") == 250;
+		} catch (MessagingException e) {
+			return false;
+		}
+	}
+	
+	// Returns the envelope recipients of a group, in the order of its mails
+	private Address[] envelopeRecipients(MailGroup group) throws AddressException {
+		List<Mail> groupMails = group.getMails();
+		Address[] recipients = new Address[groupMails.size()];
+		for (int i=0; i<groupMails.size(); i++)
+			recipients[i] = renderer.getAddress(groupMails.get(i).getRecipient());
+		return recipients;
+	}
+	
+	// Adds the ids of all mails in a group to the given list
+	private void addIds(MailGroup group, List<Integer> ids) {
+		for (Mail mail : group.getMails())
+			ids.add(mail.getId());
+	}
+	
+	/* Function : markRejectedRecipients
+	 * Input	: The group of a message, the exception thrown while sending it and the
+	 * 			  outcome lists
+	 * Purpose	: Adds the mails whose recipients were not sent to, to the failed list.
+	 * 			  Recipients refused at RCPT TO are classified from their own reply code, the
+	 * 			  others from the reply to the message. Permanent failures are added to the
+	 * 			  rejected list too, and mails cut off by a lost connection to the
+	 * 			  unprocessed list instead.
+	 * Returns	: The failure of the message as a whole
+	 */
+	
+	private FailureType markRejectedRecipients(MailGroup group, SendFailedException e,
+			List<Integer> failedMailIds, List<Integer> rejectedMailIds,
+			List<Integer> unProcessedMailIds) {
+		List<Address> sent = new ArrayList<Address>();
+		if (e.getValidSentAddresses() != null)
+			sent = Arrays.asList(e.getValidSentAddresses());
+		
+		// Reply codes of the refused recipients, from the chain of exceptions
+		Map<Address, Integer> rcptCodes = new HashMap<Address, Integer>();
+		Exception next = e;
+		while (next instanceof MessagingException) {
+			if (next instanceof SMTPAddressFailedException)
+				rcptCodes.put(((SMTPAddressFailedException) next).getAddress(),
+						((SMTPAddressFailedException) next).getReturnCode());
+			next = ((MessagingException) next).getNextException();
+		}
+		
+		FailureType messageFailure = FailureType.fromException(e);
+		FailureType failure = messageFailure;
+		for (Mail mail : group.getMails()) {
+			FailureType mailFailure = FailureType.PERMANENT;
 			try {
-				transport.close();
-			} catch (MessagingException e) {
-				System.out.println("Could not close connection to SMTP server");
-				System.out.println(e.getMessage());
+				Address address = renderer.getAddress(mail.getRecipient());
+				if (sent.contains(address))
+					continue;
+				Integer code = rcptCodes.get(address);
+				mailFailure = code != null ? FailureType.fromReplyCode(code) : messageFailure;
+			} catch (AddressException ae) {
+				// Can't be sent to, whatever the server says
+			}
+			
+			if (mailFailure == FailureType.CONNECTION) {
+				unProcessedMailIds.add(mail.getId());
+				failure = FailureType.CONNECTION;
+			} else {
+				failedMailIds.add(mail.getId());
+				if (mailFailure == FailureType.PERMANENT)
+					rejectedMailIds.add(mail.getId());
 			}
 		}
+		return failure;
+	}
+	
+	/*
+	 * Interface : RouteGate
+	 * Purpose	: Limits how many senders talk to the relay of a route at the same time.
+	 * 			  enter is called before the groups of a route are sent, exit once they were.
+	 */
+	public interface RouteGate {
+		void enter(DomainRoute route) throws InterruptedException;
+		void exit(DomainRoute route);
 	}
 }
@@ -0,0 +1,27 @@
+package com.rubberduck.mymail;
+
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+/*
+ * Class 	: SpooledMessage
+ * Purpose	: MimeMessage whose parts stream the MailContent of a large mail from its temp
+ * 			  files. It is sent without PIPELINING, which would buffer it whole, and its
+ * 			  files are deleted by release once the batch is done with it.
+ */
+
+public class SpooledMessage extends MimeMessage {
+
+	private MailContent content;			// body and attachments read for the message
+
+	// Constructor
+	public SpooledMessage(Session session, MailContent content) {
+		super(session);
+		this.content = content;
+	}
+
+	// Deletes the temp files of the message
+	public void release() {
+		content.delete();
+	}
+}
@@ -1,14 +1,25 @@
 package com.rubberduck.mymail;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.net.URLConnection;
 import java.sql.*;
 import java.util.*;
 
 /*
  * Class 	: SqlHelper
- * Purpose	: Helper class to facilitate database operations
+ * Purpose	: Helper class to facilitate database operations.
+ * 			  Every operation borrows a connection from a ConnectionPool shared by all
+ * 			  helpers and returns it when done, so helpers are cheap to create and hold no
+ * 			  connection between operations. Statements are prepared through the
+ * 			  connection's statement cache and are not closed after use.
  */
 
 public class SqlHelper {
@@ -20,27 +31,102 @@ public class SqlHelper {
 	static String dbUrl;					// DB URL
 	static String mailsTable;				// Table which holds the mails
 	
-	private Connection con;					// Connection object
+	// Seconds for which claimed mails stay IN_FLIGHT before other workers may reclaim them
+	static final int CLAIM_LEASE_SECONDS = Config.getInt("claim.leaseSeconds", 300);
+	
+	// Backoff before a failed mail is retried: doubles with every failed attempt from
+	// RETRY_BASE_DELAY_MILLIS up to RETRY_MAX_DELAY_MILLIS, randomized by up to half of it
+	static final long RETRY_BASE_DELAY_MILLIS = Config.getLong("retry.baseDelayMillis", 2000);
+	static final long RETRY_MAX_DELAY_MILLIS = Config.getLong("retry.maxDelayMillis", 60000);
+	
+	// Time taken by each kind of operation, including the wait for a pooled connection
+	private static final LatencyHistogram CLAIM_LATENCY = dbLatency("claim");
+	private static final LatencyHistogram FETCH_LATENCY = dbLatency("fetch");
+	private static final LatencyHistogram READ_ROWS_LATENCY = dbLatency("read_rows");
+	private static final LatencyHistogram SET_STATE_LATENCY = dbLatency("set_state");
+	private static final LatencyHistogram WRITE_OUTCOMES_LATENCY = dbLatency("write_outcomes");
+	
+	/*
+	 * Function : getMailColumns
+	 * Input	: none
+	 * Purpose	: Lists the columns read to build a Mail, bookkeeping columns are never
+	 * 			  fetched. The body of a mail rendered when it was queued is not needed to
+	 * 			  send it, and a body longer than content.inlineMaxChars is read when the
+	 * 			  mail is sent (body_deferred), so neither is fetched with the batch.
+	 * Returns	: The select list
+	 */
+	static String getMailColumns() {
+		int inlineMaxChars = MailContent.getInlineMaxChars();
+		return "id, sender, recipient, subject, "
+				+ "CASE WHEN raw_mime IS NULL AND CHAR_LENGTH(body) <= " + inlineMaxChars
+				+ " THEN body END AS body, "
+				+ "CASE WHEN raw_mime IS NULL AND CHAR_LENGTH(body) > " + inlineMaxChars
+				+ " THEN 1 ELSE 0 END AS body_deferred, "
+				+ "raw_mime, attachments, priority, created_at";
+	}
+	
+	private static ConnectionPool sharedPool;	// Connections shared by all helpers
+
+	private ConnectionPool pool;			// Pool the connections are borrowed from
 
 	public SqlHelper() {
 		try {
 			// Register JDBC driver
 			Class.forName(JDBC_DRIVER);
-			// Open a connection
-			con = DriverManager.getConnection(dbUrl, username, password);
-
-		} catch (SQLException se) {
-			System.out.println("\nCould not connect to database!");
-			System.out.println(se.getMessage());
-			System.exit(-1);
 		} catch (ClassNotFoundException e) {
 			System.out.println(e.getMessage());
 			System.exit(-1);
 		}
+
+		// Make sure the database can be reached
+		pool = getPool();
+		PooledConnection con = pool.borrow();
+		if (con == null)
+			System.exit(-1);
+		pool.release(con);
+	}
+
+	// Constructor, using [pool] without making sure that the database can be reached
+	SqlHelper(ConnectionPool pool) {
+		this.pool = pool;
+	}
+
+	// Returns the latency histogram of a kind of database operation
+	private static LatencyHistogram dbLatency(String op) {
+		return Metrics.histogram("mymail_db_seconds", "Time taken by database operations", "op", op);
+	}
+
+	// Returns the pool shared by all helpers, creating it on first use
+	private static synchronized ConnectionPool getPool() {
+		if (sharedPool == null)
+			sharedPool = ConnectionPool.fromConfig(dbUrl, username, password);
+		return sharedPool;
+	}
+
+	// Closes the shared pool, once no more database operations are to be made
+	public static synchronized void closePool() {
+		if (sharedPool != null) {
+			sharedPool.close();
+			sharedPool = null;
+		}
+	}
+
+	// Returns the statistics of the shared pool
+	public static synchronized String getPoolStats() {
+		return sharedPool != null ? sharedPool.getStats() : "DB pool : not open";
 	}
 	
-	// Gets user input related to database
+	// Gets user input related to database, or reads it from the db.* settings when
+	// -Dmymail.db.url is set (e.g. jdbc:mysql://localhost/mails_db), without any prompt
 	public static void getInput() {
+		if (Config.getString("db.url", null) != null) {
+			dbUrl = Config.getString("db.url", null);
+			username = Config.getString("db.user", "root");
+			password = Config.getString("db.password", "");
+			mailsTable = Config.getString("db.table", "mails");
+			return;
+		}
+
 		BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
 		
 		try {
@@ -59,22 +145,22 @@ public class SqlHelper {
 		}
 	}
 
-	// Returns the connection object
-	public Connection getConnection() {
-		return con;
+	// Borrows a connection for a single operation, it must be handed back through release
+	private PooledConnection borrow() {
+		return pool.borrow();
 	}
-	
-	// Closes the connection
-	public void closeConnection() {
-		try {
-			if (con != null)
-				con.close();
-		} catch (SQLException e) {
-			System.out.println("Could not close connection to database!");
-			System.out.println(e.getMessage());
-		}
+
+	private void release(PooledConnection con) {
+		pool.release(con);
 	}
-	
+
+	// Reports a failed operation, connections which failed are not reused
+	private static void error(PooledConnection con, String message, SQLException e) {
+		System.out.println(message);
+		System.out.println(e.getMessage());
+		con.checkError(e);
+	}
+
 	// Creates a new table for holding the mails
 	public int createTable() {
 		String query = "CREATE TABLE IF NOT EXISTS " + mailsTable +
@@ -82,16 +168,31 @@ public class SqlHelper {
 				"sender varchar(40) not null, " + 
 				"recipient varchar(40) not null, " + 
 				"subject varchar(255), " + 
-				"body text, " +
-				"sent int not null);";
+				"body mediumtext, " +
+				"sent int not null, " +
+				"claim_token varchar(36), " +
+				"lease_until bigint not null default 0, " +
+				"attempts int not null default 0, " +
+				"next_attempt_at bigint not null default 0, " +
+				"shard int not null default " + NodeRegistry.NO_SHARD + ", " +
+				"priority int not null default " + Priority.NORMAL.ordinal() + ", " +
+				"created_at bigint not null default 0, " +
+				"send_at bigint not null default 0, " +
+				"raw_mime mediumblob, " +
+				"attachments int not null default 0, " +
+				"index idx_sent_priority_id (sent, priority, id), " +
+				"index idx_sent_lease_send_at (sent, lease_until, send_at), " +
+				"index idx_shard_sent_priority_id (shard, sent, priority, id), " +
+				"index idx_claim_token (claim_token));";
 		
+		PooledConnection con = borrow();
 		if (con == null)
 			return -1;
 
 		int result = -1;
 		Statement stmt = null;
 		try {
-			stmt = con.createStatement();
+			stmt = con.getConnection().createStatement();
 			result = stmt.executeUpdate(query);
 		} catch (SQLException e) {
 			System.out.println("Could not create table!");
@@ -103,226 +204,1615 @@ public class SqlHelper {
 					stmt.close();
 			} catch (SQLException e) {
 				System.out.println(e.getMessage());			}
+			release(con);
 		}
+		createAttachmentsTable();
 		return result;
 	}
 
-	// Deletes the table used for holding mails
-	public int dropTable() {
-		String query = "DROP TABLE IF EXISTS " + mailsTable;
+	// Creates the table holding the attachments of the mails, see MailContent
+	public int createAttachmentsTable() {
+		String query = "CREATE TABLE IF NOT EXISTS " + mailsTable + "_attachments" +
+				"(id int not null auto_increment primary key, " +
+				"mail_id int not null, " +
+				"filename varchar(255), " +
+				"content_type varchar(100), " +
+				"content longblob, " +
+				"index idx_mail_id (mail_id))";
 
+		PooledConnection con = borrow();
 		if (con == null)
 			return -1;
 
 		int result = -1;
 		Statement stmt = null;
 		try {
-			stmt = con.createStatement();
+			stmt = con.getConnection().createStatement();
 			result = stmt.executeUpdate(query);
 		} catch (SQLException e) {
-			System.out.println("Could not delete " + mailsTable + "!");
-			System.out.println(e.getMessage());
+			error(con, "Could not create " + mailsTable + "_attachments!", e);
 		} finally {
 			try {
 				if (stmt != null)
 					stmt.close();
 			} catch (SQLException e) {
-				System.out.println(e.getMessage());			}
+				System.out.println(e.getMessage());
+			}
+			release(con);
 		}
 		return result;
 	}
 
 	/*
-	 * Function : execute
-	 * Input	: A query in the form of a PreparedStatement object
-	 * Purpose	: Executes the given query and returns the result
-	 * Returns	: A ResultSet object containing the results of the query
+	 * Function : migrateTable
+	 * Input	: none
+	 * Purpose	: Brings a mails table created by an older version up to date by adding the
+	 * 			  claim, retry, shard, priority, send_at, raw_mime and attachments columns and
+	 * 			  the indexes used by the queue queries, if missing. A text body column is
+	 * 			  widened to mediumtext, so that it can hold large bodies. Existing mails are
+	 * 			  spread over the shards by id and stay in the NORMAL lane. Indexes
+	 * 			  superseded by the lane indexes are dropped.
+	 * 			  Tables created by createTable are left untouched.
+	 * Returns	: Number of changes made, -1 on error
 	 */
-	public ResultSet execute(PreparedStatement query) {
-		ResultSet rs = null;
-		// Execute query
+	public int migrateTable() {
+		PooledConnection pooled = borrow();
+		if (pooled == null)
+			return -1;
+
+		Connection con = pooled.getConnection();
+		int changes = 0;
 		try {
-			rs = query.executeQuery();
+			DatabaseMetaData meta = con.getMetaData();
+			Set<String> columns = new HashSet<String>();
+			Set<String> indexes = new HashSet<String>();
+
+			int bodySize = -1;
+			ResultSet rs = meta.getColumns(con.getCatalog(), null, mailsTable, null);
+			while (rs.next()) {
+				columns.add(rs.getString("COLUMN_NAME").toLowerCase());
+				if (rs.getString("COLUMN_NAME").equalsIgnoreCase("body"))
+					bodySize = rs.getInt("COLUMN_SIZE");
+			}
+			rs.close();
+			rs = meta.getIndexInfo(con.getCatalog(), null, mailsTable, false, false);
+			while (rs.next()) {
+				if (rs.getString("INDEX_NAME") != null)
+					indexes.add(rs.getString("INDEX_NAME").toLowerCase());
+			}
+			rs.close();
+
+			if (!columns.contains("claim_token"))
+				changes += migrate(con, "ALTER TABLE " + mailsTable + " ADD COLUMN claim_token varchar(36)");
+			if (!columns.contains("lease_until"))
+				changes += migrate(con, "ALTER TABLE " + mailsTable
+						+ " ADD COLUMN lease_until bigint not null default 0");
+			if (!columns.contains("attempts"))
+				changes += migrate(con, "ALTER TABLE " + mailsTable
+						+ " ADD COLUMN attempts int not null default 0");
+			if (!columns.contains("next_attempt_at"))
+				changes += migrate(con, "ALTER TABLE " + mailsTable
+						+ " ADD COLUMN next_attempt_at bigint not null default 0");
+			if (!columns.contains("shard")) {
+				changes += migrate(con, "ALTER TABLE " + mailsTable
+						+ " ADD COLUMN shard int not null default " + NodeRegistry.NO_SHARD);
+				changes += migrate(con, "UPDATE " + mailsTable
+						+ " SET shard=MOD(id, " + NodeRegistry.SHARD_COUNT + ")");
+			}
+			if (!columns.contains("priority"))
+				changes += migrate(con, "ALTER TABLE " + mailsTable
+						+ " ADD COLUMN priority int not null default " + Priority.NORMAL.ordinal());
+			if (!columns.contains("created_at"))
+				changes += migrate(con, "ALTER TABLE " + mailsTable
+						+ " ADD COLUMN created_at bigint not null default 0");
+			if (!columns.contains("send_at"))
+				changes += migrate(con, "ALTER TABLE " + mailsTable
+						+ " ADD COLUMN send_at bigint not null default 0");
+			if (!columns.contains("raw_mime"))
+				changes += migrate(con, "ALTER TABLE " + mailsTable + " ADD COLUMN raw_mime mediumblob");
+			if (!columns.contains("attachments"))
+				changes += migrate(con, "ALTER TABLE " + mailsTable
+						+ " ADD COLUMN attachments int not null default 0");
+			// A text column holds 64 KB, mediumtext 16 MB
+			if (bodySize >= 0 && bodySize < 16777215)
+				changes += migrate(con, "ALTER TABLE " + mailsTable + " MODIFY body mediumtext");
+			if (!indexes.contains("idx_sent_priority_id"))
+				changes += migrate(con, "CREATE INDEX idx_sent_priority_id ON " + mailsTable
+						+ " (sent, priority, id)");
+			if (!indexes.contains("idx_sent_lease_send_at"))
+				changes += migrate(con, "CREATE INDEX idx_sent_lease_send_at ON " + mailsTable
+						+ " (sent, lease_until, send_at)");
+			if (!indexes.contains("idx_claim_token"))
+				changes += migrate(con, "CREATE INDEX idx_claim_token ON " + mailsTable + " (claim_token)");
+			if (!indexes.contains("idx_shard_sent_priority_id"))
+				changes += migrate(con, "CREATE INDEX idx_shard_sent_priority_id ON " + mailsTable
+						+ " (shard, sent, priority, id)");
+			for (String index : new String[] {"idx_sent_id", "idx_shard_sent_id"}) {
+				if (indexes.contains(index))
+					changes += migrate(con, "DROP INDEX " + index + " ON " + mailsTable);
+			}
+
 		} catch (SQLException e) {
-			System.out.println("Failed to query database!");
-			System.out.println(e.getMessage());
+			error(pooled, "Could not migrate " + mailsTable + "!", e);
+			return -1;
+		} finally {
+			release(pooled);
 		}
-		
-		return rs;
+
+		if (changes > 0)
+			System.out.println("Migrated " + mailsTable + " (" + changes + " change(s))");
+		return changes;
 	}
 
-	/*
-	 * Function : insertBulkMails
-	 * Input	: The number of mails to be inserted
-	 * Purpose	: Inserts the mails using a batch query to achieve improved performance
-	 * Returns	: The number of mails that were inserted
-	 */
-	public int insertBulkMails(int count) {
-		System.out.print("\nInserting dummy mails into database... ");
-		
-		PreparedStatement stmt = null;
-		int[] arr = {};
-		
+	// Runs a single schema change of migrateTable
+	private static int migrate(Connection con, String query) throws SQLException {
+		Statement stmt = con.createStatement();
 		try {
-			con.setAutoCommit(false);			// set autocommit to false for batch queries
-			stmt = con.prepareStatement("INSERT INTO " + mailsTable + " "
-					+ "(sender, recipient, subject, body, sent)"
-					+ "VALUES (?, ?, ?, ?, ?)");
-		
-			for (int i=1; i<=count; i++) {
-				stmt.setString(1, "sender@localhost.com");
-				stmt.setString(2, "recepient" + i + "@localhost.com");
-				stmt.setString(3, "Subject " + i);
-				stmt.setString(4, "Body " + i);
-				stmt.setInt(5, State.NOT_SENT.ordinal());
+			System.out.println("Migrating : " + query);
+			stmt.executeUpdate(query);
+		} finally {
+			stmt.close();
+		}
+		return 1;
+	}
 
-				stmt.addBatch();
-			}
-			
-			arr = stmt.executeBatch();
-			con.commit();
-			
+	// Deletes the tables used for holding mails and their attachments
+	public int dropTable() {
+		String query = "DROP TABLE IF EXISTS " + mailsTable + ", " + mailsTable + "_attachments";
+
+		PooledConnection con = borrow();
+		if (con == null)
+			return -1;
+
+		int result = -1;
+		Statement stmt = null;
+		try {
+			stmt = con.getConnection().createStatement();
+			result = stmt.executeUpdate(query);
 		} catch (SQLException e) {
-			System.out.println("Could not insert mails to " + mailsTable + "!");
-			System.out.println(e.getMessage());
+			error(con, "Could not delete " + mailsTable + "!", e);
+		} finally {
+			try {
+				if (stmt != null)
+					stmt.close();
+			} catch (SQLException e) {
+				System.out.println(e.getMessage());			}
+			release(con);
+		}
+		return result;
+	}
 
-		} finally { 
+	// Creates the table in which the nodes of a cluster heartbeat, see NodeRegistry
+	public int createNodesTable() {
+		String query = "CREATE TABLE IF NOT EXISTS " + mailsTable + "_nodes" +
+				"(node_id varchar(64) not null primary key, " +
+				"heartbeat_at bigint not null)";
+
+		PooledConnection con = borrow();
+		if (con == null)
+			return -1;
+
+		int result = -1;
+		Statement stmt = null;
+		try {
+			stmt = con.getConnection().createStatement();
+			result = stmt.executeUpdate(query);
+		} catch (SQLException e) {
+			error(con, "Could not create " + mailsTable + "_nodes!", e);
+		} finally {
 			try {
-				con.setAutoCommit(true);
 				if (stmt != null)
 					stmt.close();
 			} catch (SQLException e) {
 				System.out.println(e.getMessage());
 			}
+			release(con);
 		}
-		
-		System.out.println("Done!");
-		return arr.length;
+		return result;
 	}
-	
+
 	/*
-	 * Function : setState
-	 * Input	: low (lower limit of range of mail Ids)
-	 * 			  high (upper limit of range of mail Ids)
-	 * 			  state (the state to be set for the given mails)
-	 * Returns	: Number of rows updated
+	 * Function : createSignalTable
+	 * Input	: none
+	 * Purpose	: Creates the one-row table whose version is bumped by whoever inserts mails
+	 * 			  (UPDATE <mails table>_signal SET version=version+1 WHERE id=1), so that
+	 * 			  a daemon picks them up without waiting for its next poll, see WorkPoller
+	 * Returns	: 0 on success, -1 on error
 	 */
-	public int setState(int low, int high, State state) {
-		PreparedStatement stmt = null;
+	public int createSignalTable() {
+		PooledConnection con = borrow();
+		if (con == null)
+			return -1;
+
 		int result = -1;
+		Statement stmt = null;
+		try {
+			stmt = con.getConnection().createStatement();
+			stmt.executeUpdate("CREATE TABLE IF NOT EXISTS " + mailsTable + "_signal" +
+					"(id int not null primary key, " +
+					"version bigint not null)");
+			ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM " + mailsTable + "_signal");
+			rs.next();
+			if (rs.getInt(1) == 0)
+				stmt.executeUpdate("INSERT INTO " + mailsTable + "_signal (id, version) VALUES (1, 0)");
+			rs.close();
+			result = 0;
+		} catch (SQLException e) {
+			error(con, "Could not create " + mailsTable + "_signal!", e);
+		} finally {
+			try {
+				if (stmt != null)
+					stmt.close();
+			} catch (SQLException e) {
+				System.out.println(e.getMessage());
+			}
+			release(con);
+		}
+		return result;
+	}
+
+	// Returns the version of the signal table, -1 on error (e.g. if it does not exist)
+	public long getSignal() {
+		long result = -1;
+		ResultSet rs = null;
 
+		PooledConnection con = borrow();
 		if (con == null)
 			return -1;
 
 		try {
-			stmt = con.prepareStatement("UPDATE " + mailsTable + " SET sent=? "
-					+ "WHERE id>=? and id<=?");
-			stmt.setInt(1, state.ordinal());
-			stmt.setInt(2, low);
-			stmt.setInt(3, high);
-			
-			result = stmt.executeUpdate();
+			PreparedStatement stmt = con.prepare("SELECT version FROM " + mailsTable + "_signal "
+					+ "WHERE id=1");
+			rs = stmt.executeQuery();
+			if (rs.next())
+				result = rs.getLong(1);
 
 		} catch (SQLException e) {
-			System.out.println("Could not update mails state!");
-			System.out.println(e.getMessage());
+			error(con, "Could not read " + mailsTable + "_signal!", e);
 		} finally {
 			try {
-				if (stmt != null)
-					stmt.close();
+				if (rs != null)
+					rs.close();
 			} catch (SQLException e) {
 				System.out.println(e.getMessage());
 			}
+			release(con);
 		}
 		return result;
 	}
-	
+
+	// Bumps the version of the signal table, if there is one, after mails were inserted
+	public int signal() {
+		int result = -1;
+
+		PooledConnection con = borrow();
+		if (con == null)
+			return -1;
+
+		try {
+			PreparedStatement stmt = con.prepare("UPDATE " + mailsTable + "_signal "
+					+ "SET version=version+1 WHERE id=1");
+			result = stmt.executeUpdate();
+
+		} catch (SQLException e) {
+			// Without a signal table, daemons simply find the mails at their next poll
+			con.checkError(e);
+		} finally {
+			release(con);
+		}
+		return result;
+	}
+
 	/*
-	 * Function : setState
-	 * Input	: failed (a list of all mail Ids whose state needs to be updated)
-	 * 			  state (the state to be set for the given mails)
-	 * Returns	: Number of rows updated
+	 * Function : heartbeat
+	 * Input	: nodeId (id of the node which is alive)
+	 * Purpose	: Records that the node is alive now, registering it if it is new
+	 * Returns	: Number of rows updated, -1 on error
 	 */
-	public int setState(List<Integer> failed, State state) {
-		PreparedStatement stmt = null;
+	public int heartbeat(String nodeId) {
 		int result = -1;
 
+		PooledConnection con = borrow();
 		if (con == null)
 			return -1;
 
-		StringBuilder sb = new StringBuilder();
-		sb.append("(");
-		for (int i=0; i<failed.size()-1; i++) 
-			sb.append(failed.get(i) + ", ");
-		sb.append(failed.get(failed.size()-1) + ")");
-		
 		try {
-			stmt = con.prepareStatement("UPDATE " + mailsTable + " SET sent=? "
-					+ "WHERE id in " + sb.toString());
-			stmt.setInt(1, state.ordinal());
+			PreparedStatement stmt = con.prepare("UPDATE " + mailsTable + "_nodes "
+					+ "SET heartbeat_at=? WHERE node_id=?");
+			stmt.setLong(1, System.currentTimeMillis());
+			stmt.setString(2, nodeId);
 			result = stmt.executeUpdate();
 
+			if (result == 0) {
+				stmt = con.prepare("INSERT INTO " + mailsTable + "_nodes "
+						+ "(node_id, heartbeat_at) VALUES (?, ?)");
+				stmt.setString(1, nodeId);
+				stmt.setLong(2, System.currentTimeMillis());
+				result = stmt.executeUpdate();
+			}
+
 		} catch (SQLException e) {
-			System.out.println("Could not update mails state!");
-			System.out.println(e.getMessage());
-			//e.printStackTrace();
+			error(con, "Could not record the heartbeat of " + nodeId + "!", e);
+			result = -1;
 		} finally {
-			try {
-				if (stmt != null)
-					stmt.close();
-			} catch (SQLException e) {
-				System.out.println(e.getMessage());			}
+			release(con);
 		}
 		return result;
 	}
 
 	/*
-	 * Function : getMailsFromResultSet
-	 * Input 	: A ResultSet object 
-	 * Purpose	: Iterates through the results and creates Mail objects using the details
-	 * Returns	: A list of mail objects
+	 * Function : assignShards
+	 * Input	: none
+	 * Purpose	: Puts the mails inserted since the last call in their shard, MOD(id,
+	 * 			  NodeRegistry.SHARD_COUNT). A mail only has an id once inserted, so mails
+	 * 			  are inserted in no shard (the column default) and assigned here, after
+	 * 			  each MailLoader run and on every heartbeat of a cluster node, in steps of
+	 * 			  at most 10000 rows. Until then they are only claimed outside a cluster.
+	 * Returns	: Number of mails assigned, -1 on error
 	 */
-	public List<Mail> getMailsFromResultSet(ResultSet rs) {
-		List<Mail> mails = new ArrayList<Mail>();
-		
-		// If ResultSet is null, return empty List
-		if (rs == null)
-			return mails;
+	public int assignShards() {
+		int result = 0;
+
+		PooledConnection con = borrow();
+		if (con == null)
+			return -1;
 
 		try {
-			while (rs.next()) {
-				int id = rs.getInt("id");
-				String sender = rs.getString("sender");
-				String recipient = rs.getString("recipient");
-				String subject = rs.getString("subject");
-				String body = rs.getString("body");
+			PreparedStatement stmt = con.prepare("UPDATE " + mailsTable + " SET shard=MOD(id, ?)"
+					+ " WHERE shard=? LIMIT ?");
+			stmt.setInt(1, NodeRegistry.SHARD_COUNT);
+			stmt.setInt(2, NodeRegistry.NO_SHARD);
+			stmt.setInt(3, 10000);
+			int assigned;
+			do {
+				assigned = stmt.executeUpdate();
+				result += assigned;
+			} while (assigned == 10000);
 
-				Mail mail = new Mail(id, sender, recipient, subject, body);
-				mails.add(mail);
-			}
 		} catch (SQLException e) {
-			System.out.println("Could not read data!");
-			System.out.println(e);
+			error(con, "Could not assign shards to mails!", e);
+			result = -1;
+		} finally {
+			release(con);
 		}
-		
-		return mails;
+		return result;
 	}
-	
-	// Returns the count of mails which have not been sent yet/successfully
-	public int getFailedCount() {
-		int count = 0;
-		PreparedStatement stmt;
-		ResultSet rs;
+
+	/*
+	 * Function : getLiveNodes
+	 * Input	: expiryMillis (nodes silent for longer are considered dead)
+	 * Purpose	: Lists the nodes which heartbeat recently
+	 * Returns	: The ids of the live nodes in ascending order, null on error
+	 */
+	public List<String> getLiveNodes(long expiryMillis) {
+		List<String> nodes = new ArrayList<String>();
+		ResultSet rs = null;
+
+		PooledConnection con = borrow();
+		if (con == null)
+			return null;
+
 		try {
-			stmt = con.prepareStatement( "SELECT COUNT(*) as rowcount" +
-						" FROM " + mailsTable + " WHERE sent!=" + State.SENT.ordinal());
-			rs = execute(stmt);
-			rs.next();
-			count = rs.getInt("rowcount");
-			rs.close();
+			PreparedStatement stmt = con.prepare("SELECT node_id FROM " + mailsTable + "_nodes "
+					+ "WHERE heartbeat_at>=? ORDER BY node_id");
+			stmt.setLong(1, System.currentTimeMillis() - expiryMillis);
+			rs = stmt.executeQuery();
+			while (rs.next())
+				nodes.add(rs.getString(1));
+
 		} catch (SQLException e) {
-			System.out.println("Could not get failed mails count!");
-			System.out.println(e.getMessage());
+			error(con, "Could not list the live nodes!", e);
+			nodes = null;
+		} finally {
+			try {
+				if (rs != null)
+					rs.close();
+			} catch (SQLException e) {
+				System.out.println(e.getMessage());
+			}
+			release(con);
+		}
+		return nodes;
+	}
+
+	// Unregisters a node which is leaving the cluster
+	public int removeNode(String nodeId) {
+		int result = -1;
+
+		PooledConnection con = borrow();
+		if (con == null)
+			return -1;
+
+		try {
+			PreparedStatement stmt = con.prepare("DELETE FROM " + mailsTable + "_nodes "
+					+ "WHERE node_id=?");
+			stmt.setString(1, nodeId);
+			result = stmt.executeUpdate();
+		} catch (SQLException e) {
+			error(con, "Could not remove node " + nodeId + "!", e);
+		} finally {
+			release(con);
+		}
+		return result;
+	}
+
+	/*
+	 * Function : execute
+	 * Input	: A query in the form of a PreparedStatement object
+	 * Purpose	: Executes the given query and returns the result
+	 * Returns	: A ResultSet object containing the results of the query
+	 */
+	public ResultSet execute(PreparedStatement query) {
+		ResultSet rs = null;
+		// Execute query
+		try {
+			rs = query.executeQuery();
+		} catch (SQLException e) {
+			System.out.println("Failed to query database!");
+			System.out.println(e.getMessage());
+		}
+		
+		return rs;
+	}
+
+	/*
+	 * Function : insertBulkMails
+	 * Input	: The number of mails to be inserted
+	 * Purpose	: Inserts dummy mails through a MailLoader, which generates them as they are
+	 * 			  written instead of holding them all in memory
+	 * Returns	: The number of mails that were inserted
+	 */
+	public int insertBulkMails(int count) {
+		System.out.println("\nInserting dummy mails into database... ");
+		
+		long inserted = MailLoader.fromConfig().load(MailLoader.dummyMails(count));
+		
+		System.out.println("Done!");
+		return (int) inserted;
+	}
+	
+	/*
+	 * Function : insertMails
+	 * Input	: A chunk of mails to be inserted as NOT_SENT, or SCHEDULED if they have a
+	 * 			  send time in the future
+	 * Purpose	: Inserts the chunk with a single multi-row INSERT and commits it
+	 * Returns	: The number of mails that were inserted, -1 on error
+	 */
+	public int insertMails(List<Mail> mails) {
+		int result = -1;
+		
+		if (mails.size() == 0)
+			return 0;
+		PooledConnection con = borrow();
+		if (con == null)
+			return -1;
+		
+		StringBuilder sb = new StringBuilder();
+		sb.append("INSERT INTO " + mailsTable
+				+ " (sender, recipient, subject, body, sent, priority, created_at, send_at, raw_mime)"
+				+ " VALUES ");
+		for (int i=0; i<mails.size(); i++)
+			sb.append(i == 0 ? "(?, ?, ?, ?, ?, ?, ?, ?, ?)" : ", (?, ?, ?, ?, ?, ?, ?, ?, ?)");
+		long now = System.currentTimeMillis();
+		
+		try {
+			con.getConnection().setAutoCommit(false);
+			// Full chunks all share the same text, so their statement is prepared once
+			PreparedStatement stmt = con.prepare(sb.toString());
+			int i = 1;
+			for (Mail mail : mails) {
+				stmt.setString(i++, mail.getSender());
+				stmt.setString(i++, mail.getRecipient());
+				stmt.setString(i++, mail.getSubject());
+				stmt.setString(i++, mail.getBody());
+				stmt.setInt(i++, getInitialState(mail, now).ordinal());
+				stmt.setInt(i++, mail.getPriority().ordinal());
+				stmt.setLong(i++, now);
+				stmt.setLong(i++, mail.getSendAt());
+				if (mail.getRawMime() != null)
+					stmt.setBytes(i++, mail.getRawMime());
+				else
+					stmt.setNull(i++, Types.BLOB);
+			}
+			
+			result = stmt.executeUpdate();
+			con.getConnection().commit();
+			
+		} catch (SQLException e) {
+			// The transaction is rolled back when the connection is released
+			error(con, "Could not insert mails to " + mailsTable + "!", e);
+			result = -1;
+		} finally { 
+			release(con);
+		}
+		return result;
+	}
+	
+	/*
+	 * Function : insertMailWithAttachments
+	 * Input	: A mail to be queued with the files given by its getAttachmentFiles
+	 * Purpose	: Inserts the mail and one row per file in the attachments table, copying
+	 * 			  each file from its stream, and commits them together. The content type of
+	 * 			  a file is guessed from its name.
+	 * Returns	: 1 if the mail was inserted, -1 on error or if a file cannot be read
+	 */
+	public int insertMailWithAttachments(Mail mail) {
+		int result = -1;
+		List<String> files = mail.getAttachmentFiles();
+
+		PooledConnection con = borrow();
+		if (con == null)
+			return -1;
+
+		PreparedStatement stmt = null;
+		ResultSet keys = null;
+		try {
+			con.getConnection().setAutoCommit(false);
+			stmt = con.getConnection().prepareStatement("INSERT INTO " + mailsTable
+					+ " (sender, recipient, subject, body, sent, priority, created_at, send_at,"
+					+ " attachments) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)", Statement.RETURN_GENERATED_KEYS);
+			long now = System.currentTimeMillis();
+			stmt.setString(1, mail.getSender());
+			stmt.setString(2, mail.getRecipient());
+			stmt.setString(3, mail.getSubject());
+			stmt.setString(4, mail.getBody());
+			stmt.setInt(5, getInitialState(mail, now).ordinal());
+			stmt.setInt(6, mail.getPriority().ordinal());
+			stmt.setLong(7, now);
+			stmt.setLong(8, mail.getSendAt());
+			stmt.setInt(9, files.size());
+			stmt.executeUpdate();
+			keys = stmt.getGeneratedKeys();
+			if (!keys.next())
+				throw new SQLException("No id generated for the mail to " + mail.getRecipient());
+			int id = keys.getInt(1);
+
+			PreparedStatement attachment = con.prepare("INSERT INTO " + mailsTable + "_attachments"
+					+ " (mail_id, filename, content_type, content) VALUES (?, ?, ?, ?)");
+			for (String path : files) {
+				File file = new File(path);
+				String type = URLConnection.guessContentTypeFromName(file.getName());
+				InputStream in = new FileInputStream(file);
+				try {
+					attachment.setInt(1, id);
+					attachment.setString(2, file.getName());
+					attachment.setString(3, type != null ? type : "application/octet-stream");
+					attachment.setBinaryStream(4, in, file.length());
+					attachment.executeUpdate();
+				} finally {
+					in.close();
+				}
+			}
+			con.getConnection().commit();
+			result = 1;
+
+		} catch (SQLException e) {
+			// The transaction is rolled back when the connection is released
+			error(con, "Could not insert mail to " + mailsTable + "!", e);
+			result = -1;
+		} catch (IOException e) {
+			System.out.println("Could not read the attachments of the mail to " + mail.getRecipient() + "!");
+			System.out.println(e.getMessage());
+			result = -1;
+		} finally {
+			try {
+				if (keys != null)
+					keys.close();
+				if (stmt != null)
+					stmt.close();
+			} catch (SQLException e) {
+				System.out.println(e.getMessage());
+			}
+			release(con);
+		}
+		return result;
+	}
+	
+	/*
+	 * Function : loadMails
+	 * Input	: A chunk of mails to be inserted as NOT_SENT
+	 * Purpose	: Same as insertMails, but streams the chunk to the server as tab separated
+	 * 			  rows through LOAD DATA LOCAL INFILE, which MySQL parses much faster than
+	 * 			  INSERT statements. Needs a MySQL server with local_infile enabled.
+	 * Returns	: The number of mails that were inserted, -1 on error or if the
+	 * 			  connection does not support it
+	 */
+	public int loadMails(List<Mail> mails) {
+		Statement stmt = null;
+		int result = -1;
+		
+		if (mails.size() == 0)
+			return 0;
+		PooledConnection pooled = borrow();
+		if (pooled == null)
+			return -1;
+		Connection con = pooled.getConnection();
+		
+		StringBuilder rows = new StringBuilder();
+		long now = System.currentTimeMillis();
+		for (Mail mail : mails) {
+			rows.append(escapeField(mail.getSender())).append('\t')
+				.append(escapeField(mail.getRecipient())).append('\t')
+				.append(escapeField(mail.getSubject())).append('\t')
+				.append(escapeField(mail.getBody())).append('\t')
+				.append(getInitialState(mail, now).ordinal()).append('\t')
+				.append(mail.getPriority().ordinal()).append('\t')
+				.append(now).append('\t')
+				.append(mail.getSendAt()).append('\t')
+				.append(mail.getRawMime() == null ? "\\N" : toHex(mail.getRawMime())).append('\n');
+		}
+		
+		try {
+			stmt = con.createStatement();
+			if (!stmt.isWrapperFor(com.mysql.jdbc.Statement.class))
+				return -1;
+			con.setAutoCommit(false);
+			// The rows are read from this stream instead of a file on the client
+			stmt.unwrap(com.mysql.jdbc.Statement.class).setLocalInfileInputStream(
+					new ByteArrayInputStream(rows.toString().getBytes("UTF-8")));
+			
+			result = stmt.executeUpdate("LOAD DATA LOCAL INFILE 'mails.tsv' INTO TABLE "
+					+ mailsTable + " CHARACTER SET utf8mb4 (sender, recipient, subject, body, sent, priority, created_at, send_at, "
+					+ "@raw_mime) SET raw_mime=UNHEX(@raw_mime)");
+			con.commit();
+			
+		} catch (SQLException e) {
+			error(pooled, "Could not load mails to " + mailsTable + "!", e);
+			result = -1;
+		} catch (UnsupportedEncodingException e) {
+			System.out.println(e.getMessage());
+		} finally {
+			try {
+				if (stmt != null)
+					stmt.close();
+			} catch (SQLException e) {
+				System.out.println(e.getMessage());
+			}
+			release(pooled);
+		}
+		return result;
+	}
+	
+	// Returns the state a mail is inserted in, SCHEDULED until its send time comes
+	private static State getInitialState(Mail mail, long now) {
+		return mail.getSendAt() > now ? State.SCHEDULED : State.NOT_SENT;
+	}
+	
+	// Returns the bytes as hex digits, so that binary columns go through LOAD DATA unchanged
+	private static String toHex(byte[] bytes) {
+		char[] digits = new char[bytes.length * 2];
+		for (int i=0; i<bytes.length; i++) {
+			digits[2 * i] = Character.forDigit((bytes[i] >> 4) & 0xf, 16);
+			digits[2 * i + 1] = Character.forDigit(bytes[i] & 0xf, 16);
+		}
+		return new String(digits);
+	}
+	
+	// Escapes a field for the default LOAD DATA format (tab separated, backslash escapes)
+	private static String escapeField(String field) {
+		if (field == null)
+			return "\\N";
+		StringBuilder sb = new StringBuilder(field.length());
+		for (int i=0; i<field.length(); i++) {
+			char c = field.charAt(i);
+			switch (c) {
+				case '\\': sb.append("\\\\"); break;
+				case '\t': sb.append("\\t"); break;
+				case '\n': sb.append("\\n"); break;
+				case '\r': sb.append("\\r"); break;
+				case '\0': sb.append("\\0"); break;
+				default: sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+	
+	/*
+	 * Function : claimMails
+	 * Input	: claimToken (unique token identifying this claim)
+	 * 			  limit (maximum number of mails to claim)
+	 * Purpose	: Same as below, without a keyset cursor
+	 * Returns	: Number of mails claimed, -1 on error
+	 */
+	public int claimMails(String claimToken, int limit) {
+		return claimMails(claimToken, limit, 0, -1, -1);
+	}
+
+	/*
+	 * Function : claimMails
+	 * Input	: claimToken (unique token identifying this claim)
+	 * 			  limit (maximum number of mails to claim)
+	 * 			  afterId (only mails with a larger id are claimed, see ClaimCursor)
+	 * 			  shard (only mails of this shard are claimed, -1 for any, see NodeRegistry)
+	 * 			  priority (only mails of this lane are claimed, -1 for any, see LaneScheduler)
+	 * Purpose	: Atomically marks up to [limit] claimable mails as IN_FLIGHT under the given
+	 * 			  token with a lease of CLAIM_LEASE_SECONDS. Claimable mails are those not sent
+	 * 			  yet and those whose lease has expired (their worker died).
+	 * 			  The single UPDATE makes claims safe across threads and processes without
+	 * 			  any client-side locking.
+	 * 			  Unsent mails of a lane are claimed in id order as a range of the
+	 * 			  (sent, priority, id) index, so finished rows and other lanes are never
+	 * 			  scanned. Expired leases are only looked for when there are not enough
+	 * 			  unsent mails left.
+	 * 			  Claims of a shard are a range of the (shard, sent, priority, id) index
+	 * 			  instead, so nodes owning different shards never lock the same rows.
+	 * Returns	: Number of mails claimed, -1 on error
+	 */
+	public int claimMails(String claimToken, int limit, int afterId, int shard, int priority) {
+		long start = System.nanoTime();
+		int result = -1;
+
+		PooledConnection con = borrow();
+		if (con == null)
+			return -1;
+
+		long now = System.currentTimeMillis();
+		try {
+			String inShard = shard >= 0 ? "shard=? AND " : "";
+			String inLane = priority >= 0 ? "priority=? AND " : "";
+			PreparedStatement stmt = con.prepare("UPDATE " + mailsTable + " SET sent=?, claim_token=?, "
+					+ "lease_until=? WHERE " + inShard + "sent=? AND " + inLane + "id>? ORDER BY id LIMIT ?");
+			int i = 1;
+			stmt.setInt(i++, State.IN_FLIGHT.ordinal());
+			stmt.setString(i++, claimToken);
+			stmt.setLong(i++, now + CLAIM_LEASE_SECONDS * 1000L);
+			if (shard >= 0)
+				stmt.setInt(i++, shard);
+			stmt.setInt(i++, State.NOT_SENT.ordinal());
+			if (priority >= 0)
+				stmt.setInt(i++, priority);
+			stmt.setInt(i++, afterId);
+			stmt.setInt(i++, limit);
+
+			result = stmt.executeUpdate();
+
+			if (result < limit) {
+				// Take over mails of workers which died, IN_FLIGHT rows are few
+				stmt = con.prepare("UPDATE " + mailsTable + " SET claim_token=?, "
+						+ "lease_until=? WHERE " + inShard + "sent=? AND lease_until<? LIMIT ?");
+				i = 1;
+				stmt.setString(i++, claimToken);
+				stmt.setLong(i++, now + CLAIM_LEASE_SECONDS * 1000L);
+				if (shard >= 0)
+					stmt.setInt(i++, shard);
+				stmt.setInt(i++, State.IN_FLIGHT.ordinal());
+				stmt.setLong(i++, now);
+				stmt.setInt(i++, limit - result);
+
+				result += stmt.executeUpdate();
+			}
+
+		} catch (SQLException e) {
+			error(con, "Could not claim mails!", e);
+			result = -1;
+		} finally {
+			release(con);
+			CLAIM_LATENCY.recordSince(start);
+		}
+		return result;
+	}
+
+	/*
+	 * Function : getClaimedMails
+	 * Input	: claimToken (token used while claiming the mails)
+	 * Purpose	: Reads the mails which are still IN_FLIGHT under the given claim
+	 * Returns	: A list of mail objects, null if they could not be read (the claim is then
+	 * 			  still held and should be released)
+	 */
+	public List<Mail> getClaimedMails(String claimToken) {
+		long start = System.nanoTime();
+		ResultSet rs = null;
+		List<Mail> mails = null;
+
+		PooledConnection con = borrow();
+		if (con == null)
+			return null;
+
+		try {
+			PreparedStatement stmt = con.prepare("SELECT " + getMailColumns() + " FROM " + mailsTable
+					+ " WHERE claim_token=? AND sent=? ORDER BY id");
+			stmt.setString(1, claimToken);
+			stmt.setInt(2, State.IN_FLIGHT.ordinal());
+			rs = stmt.executeQuery();
+
+			// Partly read mails are no use, the whole claim is released instead
+			MailCursor cursor = new MailCursor(null, rs);
+			List<Mail> read = new ArrayList<Mail>();
+			while (cursor.hasNext())
+				read.add(cursor.next());
+			if (!cursor.hasFailed())
+				mails = read;
+
+		} catch (SQLException e) {
+			error(con, "Could not fetch claimed mails!", e);
+		} finally {
+			try {
+				if (rs != null)
+					rs.close();
+			} catch (SQLException e) {
+				System.out.println(e.getMessage());
+			}
+			release(con);
+			FETCH_LATENCY.recordSince(start);
+		}
+		return mails;
+	}
+
+	/*
+	 * Function : getFetchSize
+	 * Input	: none
+	 * Purpose	: Finds how many rows streaming reads fetch per round trip:
+	 * 			  -Dmymail.fetch.size, by default Integer.MIN_VALUE on MySQL, which makes
+	 * 			  Connector/J stream the rows one by one, and 100 on other databases,
+	 * 			  whose drivers reject a negative fetch size
+	 * Returns	: The fetch size
+	 */
+	public static int getFetchSize() {
+		boolean mysql = dbUrl != null && dbUrl.startsWith("jdbc:mysql:");
+		return Config.getInt("fetch.size", mysql ? Integer.MIN_VALUE : 100);
+	}
+
+	/*
+	 * Function : openClaimedMails
+	 * Input	: claimToken (token used while claiming the mails)
+	 * 			  fetchSize (rows fetched per round trip, Integer.MIN_VALUE makes
+	 * 				Connector/J stream the rows one by one)
+	 * Purpose	: Same as getClaimedMails, but returns a cursor over the rows instead of
+	 * 			  reading them all, so that only [fetchSize] rows are held by the driver.
+	 * 			  The cursor holds a pooled connection of its own until it is closed, on an
+	 * 			  uncached statement so the fetch size does not carry over to other queries.
+	 * Returns	: A cursor which must be closed, null on error
+	 */
+	public MailCursor openClaimedMails(String claimToken, int fetchSize) {
+		long start = System.nanoTime();
+		PreparedStatement stmt = null;
+
+		PooledConnection con = borrow();
+		if (con == null)
+			return null;
+
+		try {
+			stmt = con.getConnection().prepareStatement("SELECT " + getMailColumns() + " FROM " + mailsTable
+					+ " WHERE claim_token=? AND sent=? ORDER BY id",
+					ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			stmt.setFetchSize(fetchSize);
+			stmt.setString(1, claimToken);
+			stmt.setInt(2, State.IN_FLIGHT.ordinal());
+
+			MailCursor cursor = new MailCursor(stmt, stmt.executeQuery(), pool, con);
+			// Only the first round trip, the rows are read as they are sent
+			FETCH_LATENCY.recordSince(start);
+			return cursor;
+
+		} catch (SQLException e) {
+			error(con, "Could not fetch claimed mails!", e);
+			try {
+				if (stmt != null)
+					stmt.close();
+			} catch (SQLException se) {
+				System.out.println(se.getMessage());
+			}
+			release(con);
+		}
+		return null;
+	}
+
+	/*
+	 * Function : readBody
+	 * Input	: mailId (a mail claimed with its body deferred)
+	 * 			  content (what the body is copied to)
+	 * Purpose	: Streams the body of a single mail into its MailContent, on an uncached
+	 * 			  statement which Connector/J streams (see getFetchSize)
+	 * Returns	: 0 on success, -1 on error
+	 */
+	public int readBody(int mailId, MailContent content) {
+		return readContent("SELECT body FROM " + mailsTable + " WHERE id=?", true, mailId, content);
+	}
+
+	/*
+	 * Function : readAttachments
+	 * Input	: mailId (a mail claimed with attachments)
+	 * 			  content (what the attachments are copied to)
+	 * Purpose	: Streams the attachments of a mail into its MailContent one row at a time,
+	 * 			  in the order they were added
+	 * Returns	: 0 on success, -1 on error
+	 */
+	public int readAttachments(int mailId, MailContent content) {
+		return readContent("SELECT filename, content_type, content FROM " + mailsTable
+				+ "_attachments WHERE mail_id=? ORDER BY id", false, mailId, content);
+	}
+
+	// Runs a query of readBody ([body] set) or readAttachments, copying every row to [content]
+	private int readContent(String query, boolean body, int mailId, MailContent content) {
+		int result = -1;
+		PreparedStatement stmt = null;
+
+		PooledConnection con = borrow();
+		if (con == null)
+			return -1;
+
+		try {
+			stmt = con.getConnection().prepareStatement(query,
+					ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			stmt.setFetchSize(getFetchSize());
+			stmt.setInt(1, mailId);
+			ResultSet rs = stmt.executeQuery();
+			while (rs.next()) {
+				if (body) {
+					Reader in = rs.getCharacterStream(1);
+					if (in != null)
+						content.setBody(in);
+				} else {
+					Blob blob = rs.getBlob(3);
+					if (blob == null)
+						continue;
+					content.addAttachment(rs.getString(1), rs.getString(2), blob.getBinaryStream(),
+							blob.length());
+				}
+			}
+			rs.close();
+			result = 0;
+
+		} catch (SQLException e) {
+			error(con, "Could not read the content of mail " + mailId + "!", e);
+		} catch (IOException e) {
+			System.out.println("Could not spill the content of mail " + mailId + "!");
+			System.out.println(e.getMessage());
+		} finally {
+			try {
+				if (stmt != null)
+					stmt.close();
+			} catch (SQLException e) {
+				System.out.println(e.getMessage());
+			}
+			release(con);
+		}
+		return result;
+	}
+
+	/*
+	 * Function : setState
+	 * Input	: claimToken (token used while claiming the mails)
+	 * 			  state (the state to be set for the given mails)
+	 * Purpose	: Moves all mails still IN_FLIGHT under the given claim to [state].
+	 * 			  Mails whose lease expired and were reclaimed by another worker are untouched.
+	 * Returns	: Number of rows updated
+	 */
+	public int setState(String claimToken, State state) {
+		return setState(claimToken, null, state);
+	}
+
+	/*
+	 * Function : setState
+	 * Input	: claimToken (token used while claiming the mails)
+	 * 			  ids (mail Ids whose state needs to be updated, null for all claimed mails)
+	 * 			  state (the state to be set for the given mails)
+	 * Purpose	: Same as above, restricted to the given mail Ids
+	 * Returns	: Number of rows updated
+	 */
+	public int setState(String claimToken, List<Integer> ids, State state) {
+		long start = System.nanoTime();
+		int result = -1;
+
+		StringBuilder sb = new StringBuilder();
+		sb.append("UPDATE " + mailsTable + " SET sent=? WHERE claim_token=? AND sent=?");
+		if (ids != null) {
+			if (ids.size() == 0)
+				return 0;
+			sb.append(" AND id in (");
+			for (int i=0; i<ids.size(); i++)
+				sb.append(i == 0 ? "?" : ", ?");
+			sb.append(")");
+		}
+
+		PooledConnection con = borrow();
+		if (con == null)
+			return -1;
+
+		try {
+			PreparedStatement stmt = con.prepare(sb.toString());
+			stmt.setInt(1, state.ordinal());
+			stmt.setString(2, claimToken);
+			stmt.setInt(3, State.IN_FLIGHT.ordinal());
+			if (ids != null) {
+				for (int i=0; i<ids.size(); i++)
+					stmt.setInt(4 + i, ids.get(i));
+			}
+
+			result = stmt.executeUpdate();
+
+		} catch (SQLException e) {
+			error(con, "Could not update mails state!", e);
+		} finally {
+			release(con);
+			SET_STATE_LATENCY.recordSince(start);
+		}
+		return result;
+	}
+
+	/*
+	 * Function : writeOutcomes
+	 * Input	: outcomes (final states of claimed mails, see StateWriter)
+	 * Purpose	: Records the outcomes as parameterized JDBC batches in a single
+	 * 			  transaction: per-mail outcomes first, then outcomes applying to whole claims,
+	 * 			  so that a claim is only released after the mails it already sent.
+	 * 			  Only mails still IN_FLIGHT under their claim are updated.
+	 * 			  A FAILED mail also counts the attempt and gets the time of its next attempt,
+	 * 			  after a jittered exponential backoff, see RetryScheduler. A REJECTED mail
+	 * 			  counts the attempt as well, but is never retried. A DEFERRED mail only gets
+	 * 			  the time of its next attempt, it has not been attempted.
+	 * Returns	: Number of outcomes written, -1 on error (nothing is written then)
+	 */
+	public int writeOutcomes(List<MailOutcome> outcomes) {
+		long start = System.nanoTime();
+		int mailCount = 0;
+		int failedCount = 0;
+		int deferredCount = 0;
+		int claimCount = 0;
+
+		if (outcomes.size() == 0)
+			return 0;
+		PooledConnection con = borrow();
+		if (con == null)
+			return -1;
+
+		try {
+			con.getConnection().setAutoCommit(false);
+			PreparedStatement mailStmt = con.prepare("UPDATE " + mailsTable + " SET sent=? "
+					+ "WHERE id=? AND claim_token=? AND sent=?");
+			PreparedStatement claimStmt = con.prepare("UPDATE " + mailsTable + " SET sent=? "
+					+ "WHERE claim_token=? AND sent=?");
+			// next_attempt_at is set first, so it sees the attempts made before this one
+			PreparedStatement failedStmt = con.prepare("UPDATE " + mailsTable + " SET sent=?, "
+					+ "next_attempt_at=? + FLOOR(LEAST(?, ? * POWER(2, attempts)) * (0.5 + RAND() / 2)), "
+					+ "attempts=attempts+1 WHERE id=? AND claim_token=? AND sent=?");
+			PreparedStatement deferredStmt = con.prepare("UPDATE " + mailsTable + " SET sent=?, "
+					+ "next_attempt_at=? WHERE id=? AND claim_token=? AND sent=?");
+			long now = System.currentTimeMillis();
+
+			for (MailOutcome outcome : outcomes) {
+				if (outcome.isWholeClaim()) {
+					claimStmt.setInt(1, outcome.getState().ordinal());
+					claimStmt.setString(2, outcome.getClaimToken());
+					claimStmt.setInt(3, State.IN_FLIGHT.ordinal());
+					claimStmt.addBatch();
+					claimCount++;
+				} else if (outcome.getState() == State.FAILED
+						|| outcome.getState() == State.REJECTED) {
+					failedStmt.setInt(1, outcome.getState().ordinal());
+					failedStmt.setLong(2, now);
+					failedStmt.setLong(3, RETRY_MAX_DELAY_MILLIS);
+					failedStmt.setLong(4, RETRY_BASE_DELAY_MILLIS);
+					failedStmt.setInt(5, outcome.getMailId());
+					failedStmt.setString(6, outcome.getClaimToken());
+					failedStmt.setInt(7, State.IN_FLIGHT.ordinal());
+					failedStmt.addBatch();
+					failedCount++;
+				} else if (outcome.getState() == State.DEFERRED) {
+					deferredStmt.setInt(1, State.DEFERRED.ordinal());
+					deferredStmt.setLong(2, outcome.getNextAttemptAt());
+					deferredStmt.setInt(3, outcome.getMailId());
+					deferredStmt.setString(4, outcome.getClaimToken());
+					deferredStmt.setInt(5, State.IN_FLIGHT.ordinal());
+					deferredStmt.addBatch();
+					deferredCount++;
+				} else {
+					mailStmt.setInt(1, outcome.getState().ordinal());
+					mailStmt.setInt(2, outcome.getMailId());
+					mailStmt.setString(3, outcome.getClaimToken());
+					mailStmt.setInt(4, State.IN_FLIGHT.ordinal());
+					mailStmt.addBatch();
+					mailCount++;
+				}
+			}
+
+			if (mailCount > 0)
+				mailStmt.executeBatch();
+			if (failedCount > 0)
+				failedStmt.executeBatch();
+			if (deferredCount > 0)
+				deferredStmt.executeBatch();
+			if (claimCount > 0)
+				claimStmt.executeBatch();
+			con.getConnection().commit();
+			return outcomes.size();
+
+		} catch (SQLException e) {
+			// The transaction is rolled back when the connection is released
+			error(con, "Could not update mails state!", e);
+		} finally {
+			release(con);
+			WRITE_OUTCOMES_LATENCY.recordSince(start);
+		}
+		return -1;
+	}
+
+	/*
+	 * Function : requeueFailedMails
+	 * Input	: maxAttempts (mails which failed this many times are not retried)
+	 * 			  limit (maximum number of mails to requeue)
+	 * Purpose	: Moves FAILED and DEFERRED mails whose next attempt is due back to
+	 * 			  NOT_SENT, so that they are claimed again
+	 * Returns	: Number of mails requeued, -1 on error
+	 */
+	public int requeueFailedMails(int maxAttempts, int limit) {
+		int result = -1;
+
+		PooledConnection con = borrow();
+		if (con == null)
+			return -1;
+
+		try {
+			PreparedStatement stmt = con.prepare("UPDATE " + mailsTable + " SET sent=? "
+					+ "WHERE ((sent=? AND attempts<?) OR sent=?) AND next_attempt_at<=? LIMIT ?");
+			stmt.setInt(1, State.NOT_SENT.ordinal());
+			stmt.setInt(2, State.FAILED.ordinal());
+			stmt.setInt(3, maxAttempts);
+			stmt.setInt(4, State.DEFERRED.ordinal());
+			stmt.setLong(5, System.currentTimeMillis());
+			stmt.setInt(6, limit);
+
+			result = stmt.executeUpdate();
+
+		} catch (SQLException e) {
+			error(con, "Could not requeue failed mails!", e);
+		} finally {
+			release(con);
+		}
+		return result;
+	}
+
+	/*
+	 * Function : getNextAttemptAt
+	 * Input	: maxAttempts (mails which failed this many times are not retried)
+	 * Purpose	: Finds when the next FAILED or DEFERRED mail is due to be retried
+	 * Returns	: Time of the next attempt in millis, -1 if no mail is left to retry or
+	 * 			  on error
+	 */
+	public long getNextAttemptAt(int maxAttempts) {
+		long nextAttemptAt = -1;
+		ResultSet rs = null;
+
+		PooledConnection con = borrow();
+		if (con == null)
+			return -1;
+
+		try {
+			PreparedStatement stmt = con.prepare("SELECT MIN(next_attempt_at) FROM " + mailsTable
+					+ " WHERE (sent=? AND attempts<?) OR sent=?");
+			stmt.setInt(1, State.FAILED.ordinal());
+			stmt.setInt(2, maxAttempts);
+			stmt.setInt(3, State.DEFERRED.ordinal());
+			rs = execute(stmt);
+			if (rs != null && rs.next()) {
+				nextAttemptAt = rs.getLong(1);
+				if (rs.wasNull())
+					nextAttemptAt = -1;
+			}
+
+		} catch (SQLException e) {
+			error(con, "Could not get the next retry time!", e);
+		} finally {
+			try {
+				if (rs != null)
+					rs.close();
+			} catch (SQLException e) {
+				System.out.println(e.getMessage());
+			}
+			release(con);
+		}
+		return nextAttemptAt;
+	}
+
+	/*
+	 * Function : loadScheduledMails
+	 * Input	: loadToken (unique token identifying this load)
+	 * 			  dueBefore (only mails due before this time are loaded)
+	 * 			  leaseUntil (time until which the loaded mails belong to the caller)
+	 * 			  limit (maximum number of mails to load)
+	 * 			  ids, sendAts (filled in with the loaded mails and their send times)
+	 * Purpose	: Takes SCHEDULED mails due before [dueBefore] for a DeliveryScheduler, earliest
+	 * 			  first, by leasing them under the given token. Mails which are not held by
+	 * 			  any scheduler have no lease, so they are a range of the
+	 * 			  (sent, lease_until, send_at) index, and leased mails drop out of it: every
+	 * 			  load only reads the mails which were added to the window since the last one.
+	 * 			  Mails whose lease expired (their scheduler died) are taken over when there
+	 * 			  are not enough unleased ones.
+	 * Returns	: Number of mails loaded, -1 on error
+	 */
+	public int loadScheduledMails(String loadToken, long dueBefore, long leaseUntil, int limit,
+			List<Integer> ids, List<Long> sendAts) {
+		int result = -1;
+		ResultSet rs = null;
+
+		PooledConnection con = borrow();
+		if (con == null)
+			return -1;
+
+		try {
+			PreparedStatement stmt = con.prepare("UPDATE " + mailsTable + " SET claim_token=?, "
+					+ "lease_until=? WHERE sent=? AND lease_until=0 AND send_at<? ORDER BY send_at LIMIT ?");
+			stmt.setString(1, loadToken);
+			stmt.setLong(2, leaseUntil);
+			stmt.setInt(3, State.SCHEDULED.ordinal());
+			stmt.setLong(4, dueBefore);
+			stmt.setInt(5, limit);
+			result = stmt.executeUpdate();
+
+			if (result < limit) {
+				// Leased SCHEDULED rows are the few held by the schedulers
+				stmt = con.prepare("UPDATE " + mailsTable + " SET claim_token=?, lease_until=? "
+						+ "WHERE sent=? AND lease_until>0 AND lease_until<? AND send_at<? LIMIT ?");
+				stmt.setString(1, loadToken);
+				stmt.setLong(2, leaseUntil);
+				stmt.setInt(3, State.SCHEDULED.ordinal());
+				stmt.setLong(4, System.currentTimeMillis());
+				stmt.setLong(5, dueBefore);
+				stmt.setInt(6, limit - result);
+				result += stmt.executeUpdate();
+			}
+
+			if (result > 0) {
+				stmt = con.prepare("SELECT id, send_at FROM " + mailsTable
+						+ " WHERE claim_token=? AND sent=?");
+				stmt.setString(1, loadToken);
+				stmt.setInt(2, State.SCHEDULED.ordinal());
+				rs = stmt.executeQuery();
+				while (rs.next()) {
+					ids.add(rs.getInt(1));
+					sendAts.add(rs.getLong(2));
+				}
+			}
+
+		} catch (SQLException e) {
+			error(con, "Could not load scheduled mails!", e);
+			result = -1;
+		} finally {
+			try {
+				if (rs != null)
+					rs.close();
+			} catch (SQLException e) {
+				System.out.println(e.getMessage());
+			}
+			release(con);
+		}
+		return result;
+	}
+
+	/*
+	 * Function : releaseScheduledMails
+	 * Input	: ids (SCHEDULED mails whose send time has come)
+	 * Purpose	: Moves the mails to NOT_SENT, so that they are claimed by the workers like
+	 * 			  fresh mails. A released mail counts as queued at its send time, so that the
+	 * 			  priority lanes measure its wait from then. Only SCHEDULED mails are moved,
+	 * 			  a mail released twice (by two schedulers after a lease expired) is harmless.
+	 * Returns	: Number of mails released, -1 on error
+	 */
+	public int releaseScheduledMails(List<Integer> ids) {
+		int result = -1;
+
+		if (ids.size() == 0)
+			return 0;
+		PooledConnection con = borrow();
+		if (con == null)
+			return -1;
+
+		try {
+			PreparedStatement stmt = con.prepare("UPDATE " + mailsTable + " SET sent=?, "
+					+ "claim_token=NULL, lease_until=0, created_at=send_at WHERE id=? AND sent=?");
+			for (Integer id : ids) {
+				stmt.setInt(1, State.NOT_SENT.ordinal());
+				stmt.setInt(2, id);
+				stmt.setInt(3, State.SCHEDULED.ordinal());
+				stmt.addBatch();
+			}
+			result = 0;
+			for (int count : stmt.executeBatch())
+				result += Math.max(0, count);
+
+		} catch (SQLException e) {
+			error(con, "Could not release scheduled mails!", e);
+			result = -1;
+		} finally {
+			release(con);
+		}
+		return result;
+	}
+
+	/*
+	 * Function : unleaseScheduledMails
+	 * Input	: ids (SCHEDULED mails held by a scheduler which stops)
+	 * Purpose	: Gives up the lease of the mails, so that another scheduler loads them at once
+	 * 			  instead of when the lease expires. Only SCHEDULED mails are touched.
+	 * Returns	: Number of mails given up, -1 on error
+	 */
+	public int unleaseScheduledMails(List<Integer> ids) {
+		int result = -1;
+
+		if (ids.size() == 0)
+			return 0;
+		PooledConnection con = borrow();
+		if (con == null)
+			return -1;
+
+		try {
+			PreparedStatement stmt = con.prepare("UPDATE " + mailsTable + " SET claim_token=NULL, "
+					+ "lease_until=0 WHERE id=? AND sent=?");
+			for (Integer id : ids) {
+				stmt.setInt(1, id);
+				stmt.setInt(2, State.SCHEDULED.ordinal());
+				stmt.addBatch();
+			}
+			result = 0;
+			for (int count : stmt.executeBatch())
+				result += Math.max(0, count);
+
+		} catch (SQLException e) {
+			error(con, "Could not give up scheduled mails!", e);
+			result = -1;
+		} finally {
+			release(con);
+		}
+		return result;
+	}
+
+	/*
+	 * Function : getNextSendAt
+	 * Input	: none
+	 * Purpose	: Finds the send time of the earliest SCHEDULED mail which no scheduler holds,
+	 * 			  a single probe of the (sent, lease_until, send_at) index
+	 * Returns	: Time in millis, -1 if there is none or on error
+	 */
+	public long getNextSendAt() {
+		long nextSendAt = -1;
+		ResultSet rs = null;
+
+		PooledConnection con = borrow();
+		if (con == null)
+			return -1;
+
+		try {
+			PreparedStatement stmt = con.prepare("SELECT MIN(send_at) FROM " + mailsTable
+					+ " WHERE sent=? AND lease_until=0");
+			stmt.setInt(1, State.SCHEDULED.ordinal());
+			rs = execute(stmt);
+			if (rs != null && rs.next()) {
+				nextSendAt = rs.getLong(1);
+				if (rs.wasNull())
+					nextSendAt = -1;
+			}
+
+		} catch (SQLException e) {
+			error(con, "Could not get the next send time!", e);
+		} finally {
+			try {
+				if (rs != null)
+					rs.close();
+			} catch (SQLException e) {
+				System.out.println(e.getMessage());
+			}
+			release(con);
+		}
+		return nextSendAt;
+	}
+
+	/*
+	 * Function : setState
+	 * Input	: low (lower limit of range of mail Ids)
+	 * 			  high (upper limit of range of mail Ids)
+	 * 			  state (the state to be set for the given mails)
+	 * Returns	: Number of rows updated
+	 */
+	public int setState(int low, int high, State state) {
+		long start = System.nanoTime();
+		int result = -1;
+
+		PooledConnection con = borrow();
+		if (con == null)
+			return -1;
+
+		try {
+			PreparedStatement stmt = con.prepare("UPDATE " + mailsTable + " SET sent=? "
+					+ "WHERE id>=? and id<=?");
+			stmt.setInt(1, state.ordinal());
+			stmt.setInt(2, low);
+			stmt.setInt(3, high);
+			
+			result = stmt.executeUpdate();
+
+		} catch (SQLException e) {
+			error(con, "Could not update mails state!", e);
+		} finally {
+			release(con);
+			SET_STATE_LATENCY.recordSince(start);
+		}
+		return result;
+	}
+	
+	/*
+	 * Function : setState
+	 * Input	: failed (a list of all mail Ids whose state needs to be updated)
+	 * 			  state (the state to be set for the given mails)
+	 * Returns	: Number of rows updated
+	 */
+	public int setState(List<Integer> failed, State state) {
+		long start = System.nanoTime();
+		int result = -1;
+
+		if (failed.size() == 0)
+			return 0;
+		PooledConnection con = borrow();
+		if (con == null)
+			return -1;
+		
+		// One parameterized statement per id, sent as a single batch
+		try {
+			PreparedStatement stmt = con.prepare("UPDATE " + mailsTable + " SET sent=? WHERE id=?");
+			for (Integer id : failed) {
+				stmt.setInt(1, state.ordinal());
+				stmt.setInt(2, id);
+				stmt.addBatch();
+			}
+			result = 0;
+			for (int count : stmt.executeBatch())
+				result += Math.max(0, count);
+
+		} catch (SQLException e) {
+			error(con, "Could not update mails state!", e);
+			//e.printStackTrace();
+		} finally {
+			release(con);
+			SET_STATE_LATENCY.recordSince(start);
+		}
+		return result;
+	}
+
+	/*
+	 * Function : getMailsFromResultSet
+	 * Input 	: A ResultSet object 
+	 * Purpose	: Iterates through the results and creates Mail objects using the details.
+	 * 			  Column indexes are resolved once, see MailCursor.
+	 * Returns	: A list of mail objects
+	 */
+	public List<Mail> getMailsFromResultSet(ResultSet rs) {
+		List<Mail> mails = new ArrayList<Mail>();
+		
+		// If ResultSet is null, return empty List
+		if (rs == null)
+			return mails;
+
+		long start = System.nanoTime();
+		try {
+			MailCursor cursor = new MailCursor(null, rs);
+			while (cursor.hasNext())
+				mails.add(cursor.next());
+		} catch (SQLException e) {
+			System.out.println("Could not read data!");
+			System.out.println(e);
+		}
+		READ_ROWS_LATENCY.recordSince(start);
+		
+		return mails;
+	}
+	
+	/*
+	 * Function : getLaneQueues
+	 * Input	: depths, oldestAt (arrays indexed by Priority ordinal, filled in)
+	 * 			  maxDepth (depths are counted up to this many mails)
+	 * Purpose	: Reads the number of mails waiting in each priority lane, up to [maxDepth],
+	 * 			  and when the mail at the head of each lane was queued (0 if the lane is
+	 * 			  empty or the time is unknown). Each lane costs a single probe of the
+	 * 			  (sent, priority, id) index for its head and a range scan of at most
+	 * 			  [maxDepth] entries of it, however long the backlog is.
+	 * Returns	: 0 on success, -1 on error
+	 */
+	public int getLaneQueues(long[] depths, long[] oldestAt, int maxDepth) {
+		int result = -1;
+		ResultSet rs = null;
+
+		PooledConnection con = borrow();
+		if (con == null)
+			return -1;
+
+		try {
+			Arrays.fill(depths, 0);
+			Arrays.fill(oldestAt, 0);
+			PreparedStatement headStmt = con.prepare("SELECT created_at FROM " + mailsTable
+					+ " WHERE sent=? AND priority=? ORDER BY id LIMIT 1");
+			PreparedStatement depthStmt = con.prepare("SELECT COUNT(*) FROM (SELECT id FROM "
+					+ mailsTable + " WHERE sent=? AND priority=? LIMIT ?) AS lane");
+			for (int lane=0; lane<depths.length; lane++) {
+				headStmt.setInt(1, State.NOT_SENT.ordinal());
+				headStmt.setInt(2, lane);
+				rs = headStmt.executeQuery();
+				boolean empty = !rs.next();
+				if (!empty)
+					oldestAt[lane] = rs.getLong(1);
+				rs.close();
+				if (empty)
+					continue;
+
+				depthStmt.setInt(1, State.NOT_SENT.ordinal());
+				depthStmt.setInt(2, lane);
+				depthStmt.setInt(3, Math.max(1, maxDepth));
+				rs = depthStmt.executeQuery();
+				if (rs.next())
+					depths[lane] = rs.getLong(1);
+				rs.close();
+			}
+			rs = null;
+			result = 0;
+
+		} catch (SQLException e) {
+			error(con, "Could not read the priority lanes!", e);
+		} finally {
+			try {
+				if (rs != null)
+					rs.close();
+			} catch (SQLException e) {
+				System.out.println(e.getMessage());
+			}
+			release(con);
+		}
+		return result;
+	}
+
+	// Returns the count of mails in the given state
+	public int getCount(State state) {
+		int count = 0;
+		ResultSet rs = null;
+
+		PooledConnection con = borrow();
+		if (con == null)
+			return count;
+
+		try {
+			PreparedStatement stmt = con.prepare("SELECT COUNT(*) FROM " + mailsTable + " WHERE sent=?");
+			stmt.setInt(1, state.ordinal());
+			rs = execute(stmt);
+			if (rs != null && rs.next())
+				count = rs.getInt(1);
+		} catch (SQLException e) {
+			error(con, "Could not count mails!", e);
+		} finally {
+			try {
+				if (rs != null)
+					rs.close();
+			} catch (SQLException e) {
+				System.out.println(e.getMessage());
+			}
+			release(con);
+		}
+		return count;
+	}
+
+	// Returns the count of mails which have not been sent yet/successfully
+	public int getFailedCount() {
+		int count = 0;
+		PreparedStatement stmt;
+		ResultSet rs;
+
+		PooledConnection con = borrow();
+		if (con == null)
+			return count;
+
+		try {
+			// Listing the unfinished states lets the count use the (sent, priority, id) index
+			stmt = con.prepare( "SELECT COUNT(*) as rowcount" +
+						" FROM " + mailsTable + " WHERE sent in (?, ?, ?, ?, ?)");
+			stmt.setInt(1, State.NOT_SENT.ordinal());
+			stmt.setInt(2, State.FAILED.ordinal());
+			stmt.setInt(3, State.IN_FLIGHT.ordinal());
+			stmt.setInt(4, State.REJECTED.ordinal());
+			stmt.setInt(5, State.DEFERRED.ordinal());
+			rs = execute(stmt);
+			rs.next();
+			count = rs.getInt("rowcount");
+			rs.close();
+		} catch (SQLException e) {
+			error(con, "Could not get failed mails count!", e);
+		} finally {
+			release(con);
 		}
 		
 		return count;
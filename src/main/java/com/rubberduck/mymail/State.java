@@ -3,10 +3,15 @@ package com.rubberduck.mymail;
 /*
  * Enum 	: State
  * Purpose	: Defines the states of an email 
+ * 			  (stored by ordinal, so new states must only be appended)
  */
 
 public enum State {
 	NOT_SENT,			// Not yet attempted 
 	SENT, 				// Successfully sent
-	FAILED;				// Attempted and failed
+	FAILED,				// Attempted and failed
+	IN_FLIGHT,			// Claimed by a worker, being sent until its lease expires
+	DEFERRED,			// Throttled by its route, claimed again after next_attempt_at
+	REJECTED,			// Attempted and failed permanently, never retried
+	SCHEDULED;			// Not to be sent before its send_at time, see DeliveryScheduler
 }
@@ -0,0 +1,253 @@
+package com.rubberduck.mymail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Class 	: StateWriter
+ * Purpose	: Writes the outcome of every sent mail back to the database on behalf of all
+ * 			  workers. Outcomes are queued and a background thread flushes them in groups,
+ * 			  as one JDBC batch per group in a single transaction, when flushSize outcomes
+ * 			  are waiting or flushMillis after the first of them was queued.
+ * 			  This replaces a handful of UPDATE statements and commits per batch with one
+ * 			  commit per group of outcomes, and records SENT for exactly the mails which
+ * 			  went out.
+ */
+
+public class StateWriter {
+
+	private SqlHelper sqlHelper;						// database helper used for the write-back
+	private int flushSize;								// outcomes written per transaction
+	private long flushMillis;							// max. time an outcome waits to be written
+
+	private LinkedBlockingQueue<MailOutcome> queue;		// outcomes waiting to be written
+	private AtomicInteger pending;						// outcomes queued and not committed yet
+	private volatile boolean closed;					// set once no more outcomes will come
+	private Thread flusher;								// background thread writing the outcomes
+	private long flushes;								// transactions committed
+	private long written;								// outcomes committed
+	private LongAdder[] outcomeCounts;					// outcomes committed, by state
+
+	// Constructor
+	public StateWriter(int flushSize, long flushMillis) {
+		this(new SqlHelper(), flushSize, flushMillis);
+	}
+
+	// Constructor, writing through the given helper
+	StateWriter(SqlHelper sqlHelper, int flushSize, long flushMillis) {
+		this.sqlHelper = sqlHelper;
+		this.flushSize = Math.max(1, flushSize);
+		this.flushMillis = Math.max(1, flushMillis);
+		queue = new LinkedBlockingQueue<MailOutcome>();
+		pending = new AtomicInteger(0);
+		closed = false;
+		outcomeCounts = new LongAdder[State.values().length];
+		for (State state : State.values()) {
+			outcomeCounts[state.ordinal()] = Metrics.counter("mymail_mails_total",
+					"Outcomes of the mails written back, by state", "state", state.name().toLowerCase());
+		}
+		Metrics.gauge("mymail_state_writer_pending", "Outcomes queued and not committed yet",
+				new Metrics.Gauge() {
+					public double getValue() {
+						return pending.get();
+					}
+				});
+
+		flusher = new Thread(new Runnable() {
+			public void run() {
+				runFlusher();
+			}
+		}, "state-writer");
+		flusher.start();
+	}
+
+	/*
+	 * Function : fromConfig
+	 * Input	: none
+	 * Purpose	: Creates a writer using the state.* settings
+	 * Returns	: A new StateWriter
+	 */
+	public static StateWriter fromConfig() {
+		return new StateWriter(
+				Config.getInt("state.flushSize", 500),
+				Config.getLong("state.flushMillis", 200));
+	}
+
+	// Queues the outcome of a single mail
+	public void record(String claimToken, int mailId, State state) {
+		record(new MailOutcome(claimToken, mailId, state));
+	}
+
+	private void record(MailOutcome outcome) {
+		pending.incrementAndGet();
+		queue.add(outcome);
+	}
+
+	/*
+	 * Function : completeClaim
+	 * Input	: claimToken (token used while claiming the mails)
+	 * 			  mailIds (mails of the claim which were attempted)
+	 * 			  failedMailIds (mails which could not be sent)
+	 * 			  unProcessedMailIds (mails which were not attempted after all)
+	 * Purpose	: Queues the outcome of every attempted mail: FAILED, NOT_SENT so that it is
+	 * 			  claimed again, or SENT
+	 * Returns	: void
+	 */
+	public void completeClaim(String claimToken, List<Integer> mailIds,
+			List<Integer> failedMailIds, List<Integer> unProcessedMailIds) {
+		completeClaim(claimToken, mailIds, failedMailIds,
+				Collections.<Integer>emptyList(), unProcessedMailIds);
+	}
+
+	/*
+	 * Function : completeClaim
+	 * Input	: Same as above, plus
+	 * 			  rejectedMailIds (failed mails which failed permanently, see FailureType)
+	 * Purpose	: Same as above, queueing REJECTED for the permanent failures so that they
+	 * 			  are not retried
+	 * Returns	: void
+	 */
+	public void completeClaim(String claimToken, List<Integer> mailIds,
+			List<Integer> failedMailIds, List<Integer> rejectedMailIds,
+			List<Integer> unProcessedMailIds) {
+		completeClaim(claimToken, mailIds, failedMailIds, rejectedMailIds, unProcessedMailIds,
+				Collections.<Integer, Long>emptyMap());
+	}
+
+	/*
+	 * Function : completeClaim
+	 * Input	: Same as above, plus
+	 * 			  deferredMailIds (mails which were throttled, with the time of their next
+	 * 				attempt)
+	 * Purpose	: Same as above, queueing DEFERRED for the throttled mails so that they are
+	 * 			  only claimed again once their route can take them, see RetryScheduler
+	 * Returns	: void
+	 */
+	public void completeClaim(String claimToken, List<Integer> mailIds,
+			List<Integer> failedMailIds, List<Integer> rejectedMailIds,
+			List<Integer> unProcessedMailIds, Map<Integer, Long> deferredMailIds) {
+		Set<Integer> failed = new HashSet<Integer>(failedMailIds);
+		Set<Integer> rejected = new HashSet<Integer>(rejectedMailIds);
+		Set<Integer> unProcessed = new HashSet<Integer>(unProcessedMailIds);
+
+		for (Integer id : mailIds) {
+			if (rejected.contains(id))
+				record(claimToken, id, State.REJECTED);
+			else if (failed.contains(id))
+				record(claimToken, id, State.FAILED);
+			else if (unProcessed.contains(id))
+				record(claimToken, id, State.NOT_SENT);
+			else if (deferredMailIds.containsKey(id))
+				record(new MailOutcome(claimToken, id, State.DEFERRED, deferredMailIds.get(id)));
+			else
+				record(claimToken, id, State.SENT);
+		}
+	}
+
+	// Queues the release of all mails still IN_FLIGHT under a claim, after its other outcomes
+	public void releaseClaim(String claimToken) {
+		record(claimToken, MailOutcome.WHOLE_CLAIM, State.NOT_SENT);
+	}
+
+	// Returns true if every outcome queued so far has been committed
+	public boolean isIdle() {
+		return pending.get() == 0;
+	}
+
+	/*
+	 * Function : close
+	 * Input	: none
+	 * Purpose	: Writes the outcomes still queued, then stops the background thread
+	 * Returns	: void
+	 */
+	public void close() {
+		closed = true;
+		try {
+			flusher.join();
+		} catch (InterruptedException e) {
+			System.out.println(e.getMessage());
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// Returns a short description of the write-back so far
+	public String getStats() {
+		return "State writer : outcomes=" + written + ", transactions=" + flushes
+				+ ", avg. outcomes per transaction=" + (flushes == 0 ? 0 : written / flushes)
+				+ ", pending=" + pending.get();
+	}
+
+	// Collects outcomes and writes them until the writer is closed and the queue is empty
+	private void runFlusher() {
+		List<MailOutcome> outcomes = new ArrayList<MailOutcome>();
+		int failedAttempts = 0;
+
+		while (true) {
+			try {
+				if (outcomes.isEmpty()) {
+					MailOutcome first = queue.poll(flushMillis, TimeUnit.MILLISECONDS);
+					if (first == null) {
+						if (closed && queue.isEmpty())
+							return;
+						continue;
+					}
+					outcomes.add(first);
+				}
+				collect(outcomes);
+			} catch (InterruptedException e) {
+				closed = true;
+			}
+
+			if (sqlHelper.writeOutcomes(outcomes) >= 0) {
+				flushes++;
+				written += outcomes.size();
+				for (MailOutcome outcome : outcomes) {
+					if (!outcome.isWholeClaim())
+						outcomeCounts[outcome.getState().ordinal()].increment();
+				}
+				pending.addAndGet(-outcomes.size());
+				outcomes.clear();
+				failedAttempts = 0;
+			} else if (closed && ++failedAttempts >= 3) {
+				// Unwritten mails stay IN_FLIGHT and become claimable when their lease expires
+				System.out.println("Could not record the state of " + outcomes.size() + " mails!");
+				pending.addAndGet(-outcomes.size());
+				outcomes.clear();
+			} else {
+				// Keep the outcomes and try again with the next group
+				sleep(flushMillis);
+			}
+		}
+	}
+
+	// Adds queued outcomes until there are flushSize of them or flushMillis have passed
+	private void collect(List<MailOutcome> outcomes) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + flushMillis;
+		while (outcomes.size() < flushSize) {
+			queue.drainTo(outcomes, flushSize - outcomes.size());
+			long wait = deadline - System.currentTimeMillis();
+			if (outcomes.size() >= flushSize || wait <= 0 || closed)
+				return;
+			MailOutcome next = queue.poll(wait, TimeUnit.MILLISECONDS);
+			if (next == null)
+				return;
+			outcomes.add(next);
+		}
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
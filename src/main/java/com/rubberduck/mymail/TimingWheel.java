@@ -0,0 +1,229 @@
+package com.rubberduck.mymail;
+
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Class 	: TimingWheel
+ * Purpose	: Hierarchical timing wheel holding mail ids until their due time, for the
+ * 			  DeliveryScheduler. Time is counted in ticks of [tickMillis]. Each level has
+ * 			  SLOTS slots, a slot of level k spanning SLOTS^k ticks, so a few levels cover
+ * 			  hours with a handful of small arrays. A mail goes into the lowest level whose
+ * 			  current round contains its due tick, in O(1). As the wheel turns, the slot of
+ * 			  a higher level which is reached is emptied into the levels below, and the
+ * 			  level 0 slot of the current tick expires, so every mail is moved at most once
+ * 			  per level. Mails due beyond the last level wait in an overflow slot.
+ * 			  Not thread safe, see DeliveryScheduler.
+ */
+
+public class TimingWheel {
+
+	private static final int BITS = 6;					// log2 of the slots per level
+	private static final int SLOTS = 1 << BITS;			// slots per level
+	private static final int MASK = SLOTS - 1;
+
+	private long tickMillis;				// length of a tick
+	private Slot[][] levels;				// slots of each level, created when used
+	private Slot overflow;					// mails due after the last level
+	private long currentTick;				// last tick expired, mails due by then are gone
+	private int size;						// mails in the wheel
+
+	// Constructor
+	public TimingWheel(long tickMillis, long spanMillis, long now) {
+		this.tickMillis = Math.max(1, tickMillis);
+		// Enough levels to hold [spanMillis] without going through the overflow slot
+		long spanTicks = Math.max(1, spanMillis / this.tickMillis);
+		int count = 1;
+		while (count * BITS < 60 && (1L << (count * BITS)) <= spanTicks)
+			count++;
+		levels = new Slot[count][];
+		overflow = new Slot();
+		currentTick = now / this.tickMillis;
+		size = 0;
+	}
+
+	// Returns the tick at which a mail due at [dueAt] expires, never before its due time
+	private long tickOf(long dueAt) {
+		return (dueAt + tickMillis - 1) / tickMillis;
+	}
+
+	/*
+	 * Function : add
+	 * Input	: id (mail to hold)
+	 * 			  dueAt (time at which the mail is due, in millis)
+	 * Purpose	: Puts a mail in the slot of its due tick
+	 * Returns	: True if the mail was added, false if it is already due
+	 */
+	public boolean add(int id, long dueAt) {
+		long dueTick = tickOf(dueAt);
+		if (dueTick <= currentTick)
+			return false;
+		place(id, dueTick);
+		size++;
+		return true;
+	}
+
+	// Puts a mail which is not due yet in the lowest level whose round contains it
+	private void place(int id, long dueTick) {
+		for (int level=0; level<levels.length; level++) {
+			int shift = (level + 1) * BITS;
+			if ((dueTick >>> shift) == (currentTick >>> shift)) {
+				slot(level, (int) (dueTick >>> (level * BITS)) & MASK).add(id, dueTick);
+				return;
+			}
+		}
+		overflow.add(id, dueTick);
+	}
+
+	private Slot slot(int level, int index) {
+		if (levels[level] == null)
+			levels[level] = new Slot[SLOTS];
+		Slot slot = levels[level][index];
+		if (slot == null)
+			slot = levels[level][index] = new Slot();
+		return slot;
+	}
+
+	/*
+	 * Function : advance
+	 * Input	: now (current time in millis)
+	 * 			  expired (list the mails which fell due are added to)
+	 * Purpose	: Turns the wheel tick by tick up to [now], cascading the slots of the higher
+	 * 			  levels as their turn comes and expiring the slots of level 0. An empty
+	 * 			  wheel jumps straight to [now].
+	 * Returns	: Number of mails which expired
+	 */
+	public int advance(long now, List<Integer> expired) {
+		long nowTick = now / tickMillis;
+		int count = 0;
+		while (currentTick < nowTick) {
+			if (size == 0) {
+				currentTick = nowTick;
+				break;
+			}
+			currentTick++;
+
+			// Start of a new round of the whole wheel, bring the overflow slot back in
+			if ((currentTick & ((1L << (levels.length * BITS)) - 1)) == 0)
+				count += cascade(overflow, expired);
+			// Highest level first, so that its mails can land in the lower slots cascaded next
+			for (int level=levels.length-1; level>0; level--) {
+				if ((currentTick & ((1L << (level * BITS)) - 1)) == 0 && levels[level] != null)
+					count += cascade(levels[level][(int) (currentTick >>> (level * BITS)) & MASK],
+							expired);
+			}
+			if (levels[0] != null)
+				count += cascade(levels[0][(int) currentTick & MASK], expired);
+		}
+		return count;
+	}
+
+	// Empties a slot, expiring its due mails and placing the others in lower levels
+	private int cascade(Slot slot, List<Integer> expired) {
+		if (slot == null || slot.size == 0)
+			return 0;
+		int count = 0;
+		int[] ids = slot.ids;
+		long[] ticks = slot.ticks;
+		int length = slot.size;
+		slot.clear();
+		for (int i=0; i<length; i++) {
+			if (ticks[i] <= currentTick) {
+				expired.add(ids[i]);
+				size--;
+				count++;
+			} else {
+				place(ids[i], ticks[i]);
+			}
+		}
+		return count;
+	}
+
+	/*
+	 * Function : getNextDueAt
+	 * Input	: none
+	 * Purpose	: Finds the time at which the next mail of the wheel expires, looking at the
+	 * 			  next non-empty slot of each level in turn (slots of a lower level always
+	 * 			  come before the later slots of the higher ones)
+	 * Returns	: Time in millis, -1 if the wheel is empty
+	 */
+	public long getNextDueAt() {
+		if (size == 0)
+			return -1;
+		for (int level=0; level<levels.length; level++) {
+			if (levels[level] == null)
+				continue;
+			int current = (int) (currentTick >>> (level * BITS)) & MASK;
+			for (int index=current+1; index<SLOTS; index++) {
+				Slot slot = levels[level][index];
+				if (slot != null && slot.size > 0)
+					return slot.getFirstTick() * tickMillis;
+			}
+		}
+		return overflow.size > 0 ? overflow.getFirstTick() * tickMillis : -1;
+	}
+
+	// Empties the wheel, adding all its mails to [ids] whether they are due or not
+	public int drain(List<Integer> ids) {
+		int count = size;
+		for (Slot[] slots : levels) {
+			if (slots == null)
+				continue;
+			for (Slot slot : slots) {
+				if (slot == null)
+					continue;
+				for (int i=0; i<slot.size; i++)
+					ids.add(slot.ids[i]);
+				slot.clear();
+			}
+		}
+		for (int i=0; i<overflow.size; i++)
+			ids.add(overflow.ids[i]);
+		overflow.clear();
+		size = 0;
+		return count;
+	}
+
+	// Returns the number of mails in the wheel
+	public int size() {
+		return size;
+	}
+
+	/*
+	 * Class 	: Slot
+	 * Purpose	: Mails of a slot with their due ticks, as growable arrays
+	 */
+	private static class Slot {
+		private static final int[] NO_IDS = new int[0];
+		private static final long[] NO_TICKS = new long[0];
+
+		int[] ids = NO_IDS;
+		long[] ticks = NO_TICKS;
+		int size = 0;
+
+		void add(int id, long tick) {
+			if (size == ids.length) {
+				int capacity = Math.max(8, size * 2);
+				ids = Arrays.copyOf(ids, capacity);
+				ticks = Arrays.copyOf(ticks, capacity);
+			}
+			ids[size] = id;
+			ticks[size] = tick;
+			size++;
+		}
+
+		// Hands the arrays over to the caller, a slot is refilled from scratch
+		void clear() {
+			ids = NO_IDS;
+			ticks = NO_TICKS;
+			size = 0;
+		}
+
+		long getFirstTick() {
+			long first = Long.MAX_VALUE;
+			for (int i=0; i<size; i++)
+				first = Math.min(first, ticks[i]);
+			return first;
+		}
+	}
+}
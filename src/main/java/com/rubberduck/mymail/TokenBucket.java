@@ -0,0 +1,87 @@
+package com.rubberduck.mymail;
+
+/*
+ * Class 	: TokenBucket
+ * Purpose	: Rate limiter handing out one token per mail. Tokens are refilled continuously
+ * 			  at a fixed rate up to a burst capacity, and callers which find the bucket
+ * 			  empty are told so instead of being blocked, so that they can carry on with
+ * 			  other work.
+ */
+
+public class TokenBucket {
+
+	private double tokensPerMilli;				// refill rate, 0 = unlimited
+	private double capacity;					// maximum tokens held (burst size)
+	private double tokens;						// tokens currently available
+	private long lastRefill;					// time of the last refill
+	private long backlogUntil;					// time by which the deferred mails are let through
+	private long granted;						// tokens handed out so far
+	private long refused;						// tokens asked for but refused
+
+	// Constructor
+	public TokenBucket(long ratePerMinute, long burst) {
+		tokensPerMilli = Math.max(0, ratePerMinute) / 60000.0;
+		capacity = Math.max(1, burst);
+		tokens = capacity;
+		lastRefill = System.currentTimeMillis();
+		backlogUntil = 0;
+	}
+
+	/*
+	 * Function : tryAcquire
+	 * Input	: count (tokens needed)
+	 * Purpose	: Takes [count] tokens if they are all available. Requests larger than the
+	 * 			  burst size are let through once the bucket is full.
+	 * Returns	: True if the tokens were taken, false otherwise
+	 */
+	public synchronized boolean tryAcquire(int count) {
+		if (isUnlimited()) {
+			granted += count;
+			return true;
+		}
+
+		refill();
+		double needed = Math.min(count, capacity);
+		if (tokens < needed) {
+			refused += count;
+			return false;
+		}
+		tokens -= count;
+		granted += count;
+		return true;
+	}
+
+	/*
+	 * Function : defer
+	 * Input	: count (tokens needed by mails which were refused)
+	 * Purpose	: Books a slot for the mails after those deferred before them, by any caller,
+	 * 			  so that deferred mails come back about as fast as the bucket refills
+	 * 			  rather than all at once
+	 * Returns	: Time at which the mails should be tried again
+	 */
+	public synchronized long defer(int count) {
+		long now = System.currentTimeMillis();
+		if (isUnlimited())
+			return now;
+		backlogUntil = Math.max(now, backlogUntil) + (long) Math.ceil(count / tokensPerMilli);
+		return backlogUntil;
+	}
+
+	public boolean isUnlimited() {
+		return tokensPerMilli == 0;
+	}
+
+	// Returns a short description of the tokens handed out
+	public synchronized String getStats() {
+		return isUnlimited() ? "unlimited" : String.format("%.0f/min, granted=%d, throttled=%d",
+				tokensPerMilli * 60000, granted, refused);
+	}
+
+	// Adds the tokens earned since the last refill
+	private void refill() {
+		long now = System.currentTimeMillis();
+		// Tokens may be negative after an oversized request, they are paid back first
+		tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerMilli);
+		lastRefill = now;
+	}
+}
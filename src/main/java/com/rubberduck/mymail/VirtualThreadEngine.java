@@ -0,0 +1,290 @@
+package com.rubberduck.mymail;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Class 	: VirtualThreadEngine
+ * Purpose	: Send engine which runs one virtual thread per SMTP session, so that hundreds
+ * 			  or thousands of sessions can block on high latency relays without tying up a
+ * 			  platform thread each.
+ * 			  Concurrency is bounded by semaphores instead of by a thread count: one for
+ * 			  database access, which also bounds the number of database connections, and
+ * 			  one per SMTP host, held while the groups of a route are sent to its relay.
+ * 			  Virtual threads need Java 21 at runtime. On older runtimes the engine falls back
+ * 			  to platform threads, and is then limited to as many sessions as the classic
+ * 			  engine has threads (MyMailService.MAX_THREADS).
+ * 			  Hundreds of sessions need Java 24 or later (JEP 491). Before that, a virtual
+ * 			  thread blocking inside a synchronized method pins its carrier thread, and
+ * 			  JavaMail's SMTPTransport does all of its I/O holding the transport's monitor
+ * 			  (PipeliningSMTPTransport has to as well, JavaMail asserts it). Waits for a
+ * 			  pooled connection use a ReentrantLock and do not pin, but on Java 21 to 23 no
+ * 			  more sessions than carrier threads (about one per core) talk SMTP at a time.
+ */
+
+public class VirtualThreadEngine {
+
+	private int sessionsCount;							// concurrent SMTP sessions
+	private BatchSizeController batchSizes;				// decides the size of each batch
+	private StateWriter stateWriter;					// records the outcome of each mail
+	private LaneScheduler lanes;						// priority lane of each claim
+	private DomainRouter router;						// relay routes and their SMTP pools
+	private MessageRenderer renderer;					// message renderer shared by all sessions
+
+	private Semaphore dbPermits;						// bounds concurrent database work
+	private SqlHelper sqlHelper;						// borrows pooled connections per operation
+	private int smtpPermitsPerHost;						// concurrent sessions allowed per host
+	private ConcurrentHashMap<String, Semaphore> smtpPermits;	// semaphore of each SMTP host
+	private SMTPMailer.RouteGate smtpGate;				// takes the permits of each route's host
+	private volatile boolean stopped;					// set when sending cannot continue
+	private long pollMillis;							// wait before claiming again when idle
+	private WorkPoller poller;							// keeps sessions claiming when idle, or null
+
+	// Constructor
+	public VirtualThreadEngine(int sessionsCount, BatchSizeController batchSizes,
+			StateWriter stateWriter, LaneScheduler lanes, int dbConnections,
+			int smtpPermitsPerHost, DomainRouter router, MessageRenderer renderer) {
+		this.sessionsCount = Math.max(1, sessionsCount);
+		if (!isAvailable() && this.sessionsCount > MyMailService.MAX_THREADS) {
+			System.out.println("Virtual threads are not available on this Java runtime," +
+					" limiting the engine to " + MyMailService.MAX_THREADS + " sessions.");
+			this.sessionsCount = MyMailService.MAX_THREADS;
+		} else if (Runtime.version().feature() < 24
+				&& this.sessionsCount > Runtime.getRuntime().availableProcessors()) {
+			System.out.println("Java " + Runtime.version().feature() + " pins virtual threads" +
+					" blocked in JavaMail's synchronized methods, at most " +
+					Runtime.getRuntime().availableProcessors() + " sessions can talk SMTP at" +
+					" a time. Use Java 24+ to run " + this.sessionsCount + " sessions.");
+		}
+		this.batchSizes = batchSizes;
+		this.stateWriter = stateWriter;
+		this.lanes = lanes;
+		this.smtpPermitsPerHost = Math.max(1, smtpPermitsPerHost);
+		this.router = router;
+		this.renderer = renderer;
+
+		dbConnections = Math.max(1, dbConnections);
+		dbPermits = new Semaphore(dbConnections, true);
+		sqlHelper = new SqlHelper();
+		smtpPermits = new ConcurrentHashMap<String, Semaphore>();
+		smtpGate = new SMTPMailer.RouteGate() {
+			public void enter(DomainRoute route) throws InterruptedException {
+				smtpPermits(route.getPool().getHost()).acquire();
+			}
+			public void exit(DomainRoute route) {
+				smtpPermits(route.getPool().getHost()).release();
+			}
+		};
+		stopped = false;
+		pollMillis = Config.getLong("claim.pollMillis", 100);
+		poller = null;
+	}
+
+	// Keeps the sessions running when nothing is left to claim, until the poller is stopped
+	public void setPoller(WorkPoller poller) {
+		this.poller = poller;
+	}
+
+	/*
+	 * Function : fromConfig
+	 * Input	: sessionsCount (number of concurrent SMTP sessions)
+	 * 			  batchSizes, stateWriter (shared batch sizing and state write-back)
+	 * 			  lanes (shared priority lane scheduling)
+	 * 			  router, renderer (shared relay routes and message renderer)
+	 * Purpose	: Creates an engine using the virtual.* settings
+	 * Returns	: A new VirtualThreadEngine
+	 */
+	public static VirtualThreadEngine fromConfig(int sessionsCount, BatchSizeController batchSizes,
+			StateWriter stateWriter, LaneScheduler lanes, DomainRouter router,
+			MessageRenderer renderer) {
+		return new VirtualThreadEngine(sessionsCount, batchSizes, stateWriter, lanes,
+				Config.getInt("virtual.dbConnections", 10),
+				Config.getInt("virtual.smtpSessionsPerHost", sessionsCount),
+				router, renderer);
+	}
+
+	/*
+	 * Function : run
+	 * Input	: none
+	 * Purpose	: Starts one thread per session and waits until all of them are done
+	 * Returns	: void
+	 */
+	public void run() {
+		System.out.println("Virtual thread engine : " + sessionsCount + " session(s), "
+				+ dbPermits.availablePermits() + " database connection(s), "
+				+ smtpPermitsPerHost + " session(s) per SMTP host");
+
+		ExecutorService executor = newVirtualThreadExecutor();
+		for (int i=1; i<=sessionsCount; i++)
+			executor.execute(new SendSession(i));
+		executor.shutdown();
+		try {
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			System.out.println(e.getMessage());
+		}
+	}
+
+	// True if the runtime has virtual threads (Java 21+)
+	public static boolean isAvailable() {
+		try {
+			Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return true;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	/*
+	 * Function : newVirtualThreadExecutor
+	 * Input	: none
+	 * Purpose	: Creates an executor starting a new virtual thread per task. Looked up
+	 * 			  reflectively so that the project still builds with JDKs older than 21.
+	 * Returns	: The executor, or a cached platform thread pool if virtual threads are
+	 * 			  not available
+	 */
+	public static ExecutorService newVirtualThreadExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (Exception e) {
+			System.out.println("Virtual threads are not available on this Java runtime," +
+					" using platform threads instead.");
+			return Executors.newCachedThreadPool();
+		}
+	}
+
+	// Waits for a database permit, so that sessions do not all queue on the connection pool
+	private void acquireDb() throws InterruptedException {
+		dbPermits.acquire();
+	}
+
+	// Returns a database permit
+	private void releaseDb() {
+		dbPermits.release();
+	}
+
+	// Returns the semaphore limiting sessions to the given SMTP host
+	private Semaphore smtpPermits(String host) {
+		Semaphore permits = smtpPermits.get(host);
+		if (permits == null) {
+			smtpPermits.putIfAbsent(host, new Semaphore(smtpPermitsPerHost, true));
+			permits = smtpPermits.get(host);
+		}
+		return permits;
+	}
+
+	/*
+	 * Class	: SendSession
+	 * Purpose	: Claims and sends batches until no claimable mails are left, holding a
+	 * 			  database permit only while talking to the database and an SMTP permit
+	 * 			  of a route's host only while sending to that route
+	 */
+	private class SendSession implements Runnable {
+		private int sessionId;
+		private ClaimCursor claimCursor;		// keyset cursor of this session
+		private long idleMillis;				// last wait of the poller, 0 when busy
+
+		SendSession(int sessionId) {
+			this.sessionId = sessionId;
+			claimCursor = new ClaimCursor(lanes);
+			idleMillis = 0;
+		}
+
+		public void run() {
+			try {
+				while (!stopped && (poller == null || !poller.isStopping()) && sendNextBatch())
+					;
+			} catch (InterruptedException e) {
+				System.out.println("Session " + sessionId + " : Interrupted");
+			}
+		}
+
+		// Claims and sends one batch, returns false when there was nothing to claim
+		private boolean sendNextBatch() throws InterruptedException {
+			String claimToken = UUID.randomUUID().toString();
+			List<Mail> mails = new ArrayList<Mail>();
+
+			// Claim the next batch, mails handed back are only claimable once written
+			boolean settled = stateWriter.isIdle();
+			long fetchStart = System.currentTimeMillis();
+			acquireDb();
+			try {
+				int claimed = claimCursor.claim(sqlHelper, claimToken,
+						batchSizes.nextBatchSize(sessionId));
+				if (claimed < 0) {
+					System.out.println("Could not fetch mails!");
+					stopped = true;
+					return false;
+				}
+				if (claimed > 0)
+					mails = sqlHelper.getClaimedMails(claimToken);
+				if (mails == null) {
+					stateWriter.releaseClaim(claimToken);
+					System.out.println("Could not fetch claimed mails!");
+					stopped = true;
+					return false;
+				}
+				claimCursor.advance(mails);
+			} finally {
+				releaseDb();
+			}
+			if (mails.size() == 0) {
+				if (poller != null) {
+					idleMillis = poller.idle(idleMillis);
+					return idleMillis >= 0;
+				}
+				if (settled)
+					return false;
+				Thread.sleep(pollMillis);
+				return true;
+			}
+			idleMillis = 0;
+			long bytes = batchSizes.onFetched(sessionId, mails,
+					System.currentTimeMillis() - fetchStart);
+			long sendStart = System.currentTimeMillis();
+
+			// Send it
+			List<Integer> failedMailIds = new LinkedList<Integer>();
+			List<Integer> rejectedMailIds = new LinkedList<Integer>();
+			List<Integer> unProcessedMailIds = new LinkedList<Integer>();
+			Map<Integer, Long> deferredMailIds = new LinkedHashMap<Integer, Long>();
+			SMTPMailer smtpMailer = new SMTPMailer(router, renderer);
+			smtpMailer.setRouteGate(smtpGate);
+			MailBatch batch = smtpMailer.render(claimToken, mails);
+
+			boolean connected = smtpMailer.authenticateAndConnect();
+			if (connected)
+				smtpMailer.send(batch, failedMailIds, rejectedMailIds, unProcessedMailIds,
+						deferredMailIds);
+
+			// Record the outcome, written back by the state writer
+			long sendMillis = System.currentTimeMillis() - sendStart;
+			if (connected) {
+				stateWriter.completeClaim(claimToken, Mail.getIds(mails), failedMailIds,
+						rejectedMailIds, unProcessedMailIds, deferredMailIds);
+				batchSizes.onCompleted(sessionId, mails.size(), bytes, sendMillis,
+						failedMailIds.size(), unProcessedMailIds.size(), deferredMailIds.size());
+			} else {
+				System.out.println("Session " + sessionId + " : Could not connect to SMTP" +
+						" server. Please make sure that the server is running and then try again.");
+				// Release the claimed mails so that they can be picked up again
+				batch.release();
+				stateWriter.releaseClaim(claimToken);
+				batchSizes.onCompleted(sessionId, mails.size(), bytes, 0, 0, mails.size());
+				stopped = true;
+			}
+			return connected;
+		}
+	}
+}
@@ -0,0 +1,156 @@
+package com.rubberduck.mymail;
+
+/*
+ * Class 	: WorkPoller
+ * Purpose	: Paces the claims of the workers of a MailDaemon, which keep running when
+ * 			  there is nothing to send instead of exiting. A worker whose claim comes back
+ * 			  empty waits -Dmymail.daemon.minPollMillis before claiming again, then twice as
+ * 			  long after every further empty claim, up to -Dmymail.daemon.maxPollMillis, and
+ * 			  claims back to back again as soon as it finds mails.
+ * 			  Idle workers are woken up early when mails are announced: a background thread
+ * 			  reads the version of the <mails table>_signal table every
+ * 			  -Dmymail.daemon.signalMillis (a single primary key lookup), which producers
+ * 			  bump after inserting mails, and in-process sources such as the
+ * 			  DeliveryScheduler call wakeUp directly.
+ * 			  Once stopped, workers finish the batch they are sending and claim no more.
+ */
+
+public class WorkPoller {
+
+	private long minPollMillis;					// first wait after an empty claim
+	private long maxPollMillis;					// longest wait between two claims
+	private long signalMillis;					// time between two reads of the signal table
+
+	private SqlHelper sqlHelper;				// database helper reading the signal
+	private volatile boolean stopping;			// set once workers must stop claiming
+	private long wakeUps;						// times idle workers were woken up
+	private Thread watcher;						// background thread reading the signal
+	private final Object wakeUp = new Object();	// notified to wake the idle workers up
+
+	// Constructor
+	public WorkPoller(long minPollMillis, long maxPollMillis, long signalMillis) {
+		this.minPollMillis = Math.max(1, minPollMillis);
+		this.maxPollMillis = Math.max(this.minPollMillis, maxPollMillis);
+		this.signalMillis = signalMillis;
+		stopping = false;
+		wakeUps = 0;
+	}
+
+	/*
+	 * Function : fromConfig
+	 * Input	: none
+	 * Purpose	: Creates a poller using the daemon.* settings
+	 * Returns	: A new WorkPoller
+	 */
+	public static WorkPoller fromConfig() {
+		return new WorkPoller(
+				Config.getLong("daemon.minPollMillis", 10),
+				Config.getLong("daemon.maxPollMillis", 2000),
+				Config.getLong("daemon.signalMillis", 100));
+	}
+
+	/*
+	 * Function : start
+	 * Input	: none
+	 * Purpose	: Creates the signal table if needed and starts the thread watching it,
+	 * 			  unless daemon.signalMillis is 0
+	 * Returns	: void
+	 */
+	public void start() {
+		if (signalMillis <= 0)
+			return;
+		sqlHelper = new SqlHelper();
+		sqlHelper.createSignalTable();
+
+		watcher = new Thread(new Runnable() {
+			public void run() {
+				long version = sqlHelper.getSignal();
+				while (!stopping) {
+					synchronized (wakeUp) {
+						try {
+							if (!stopping)
+								wakeUp.wait(signalMillis);
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+					long current = sqlHelper.getSignal();
+					if (current != version && current >= 0) {
+						version = current;
+						wakeUp();
+					}
+				}
+			}
+		}, "work-poller");
+		watcher.setDaemon(true);
+		watcher.start();
+	}
+
+	/*
+	 * Function : idle
+	 * Input	: previousMillis (wait returned by the previous call, 0 after a claim which
+	 * 				found mails)
+	 * Purpose	: Waits after an empty claim, twice as long as the previous wait (at least
+	 * 			  minPollMillis, at most maxPollMillis), or until woken up or stopped
+	 * Returns	: The wait to pass to the next call: 0 if woken up, since mails are then
+	 * 			  expected, -1 if stopped
+	 */
+	public long idle(long previousMillis) {
+		long wait = previousMillis <= 0 ? minPollMillis : Math.min(maxPollMillis, previousMillis * 2);
+		synchronized (wakeUp) {
+			if (stopping)
+				return -1;
+			long wakeUpsBefore = wakeUps;
+			try {
+				wakeUp.wait(wait);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return -1;
+			}
+			if (stopping)
+				return -1;
+			return wakeUps != wakeUpsBefore ? 0 : wait;
+		}
+	}
+
+	// Wakes up the idle workers, e.g. because mails were inserted or became due
+	public void wakeUp() {
+		synchronized (wakeUp) {
+			wakeUps++;
+			wakeUp.notifyAll();
+		}
+	}
+
+	// True once the workers must stop claiming
+	public boolean isStopping() {
+		return stopping;
+	}
+
+	// Makes the workers stop claiming, waking up the idle ones
+	public void stop() {
+		synchronized (wakeUp) {
+			stopping = true;
+			wakeUp.notifyAll();
+		}
+	}
+
+	// Stops the workers and waits for the thread watching the signal table
+	public void close() {
+		stop();
+		if (watcher != null) {
+			try {
+				watcher.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	// Returns a short description of the polling so far
+	public String getStats() {
+		synchronized (wakeUp) {
+			return "Polling : " + minPollMillis + "-" + maxPollMillis + " ms when idle, woken up "
+					+ wakeUps + " time(s)";
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package com.rubberduck.mymail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+import junit.framework.TestCase;
+
+/*
+ * Class 	: ClaimCursorTest
+ * Purpose	: Checks that the cursor claims after the last id it has seen, wraps around to
+ * 			  mails released behind it, and skips lanes found empty for a while
+ */
+
+public class ClaimCursorTest extends TestCase {
+
+	/*
+	 * Class	: QueueSqlHelper
+	 * Purpose	: Claims from an in-memory set of claimable ids, all in the same lane, and
+	 * 			  records the id each claim started after
+	 */
+	private static class QueueSqlHelper extends SqlHelper {
+		private TreeSet<Integer> claimable = new TreeSet<Integer>();
+		private List<Integer> claimedIds = new ArrayList<Integer>();
+		private List<Integer> afterIds = new ArrayList<Integer>();
+
+		QueueSqlHelper(Integer... ids) {
+			super((ConnectionPool) null);
+			claimable.addAll(Arrays.asList(ids));
+		}
+
+		@Override
+		public int claimMails(String claimToken, int limit, int afterId, int shard, int priority) {
+			afterIds.add(afterId);
+			claimedIds.clear();
+			while (claimedIds.size() < limit && claimable.higher(afterId) != null) {
+				afterId = claimable.higher(afterId);
+				claimable.remove(afterId);
+				claimedIds.add(afterId);
+			}
+			return claimedIds.size();
+		}
+
+		// Returns the mails of the last claim
+		List<Mail> getClaimed() {
+			List<Mail> mails = new ArrayList<Mail>();
+			for (Integer id : claimedIds)
+				mails.add(new Mail(id, "sender@mymail.com", "user@example.com", "Subject", "Body"));
+			return mails;
+		}
+	}
+
+	// Claims with the cursor and moves it past the claimed mails, as the engines do
+	private static List<Integer> claim(ClaimCursor cursor, QueueSqlHelper sqlHelper, int limit) {
+		int claimed = cursor.claim(sqlHelper, "claim", limit);
+		List<Mail> mails = sqlHelper.getClaimed();
+		assertEquals(claimed, mails.size());
+		cursor.advance(mails);
+		return Mail.getIds(mails);
+	}
+
+	public void testClaimsAfterTheLastSeenId() {
+		QueueSqlHelper sqlHelper = new QueueSqlHelper(1, 2, 3, 4, 5);
+		ClaimCursor cursor = new ClaimCursor(null, null);
+
+		assertEquals(Arrays.asList(1, 2), claim(cursor, sqlHelper, 2));
+		assertEquals(2, cursor.getLastSeenId());
+		assertEquals(Arrays.asList(3, 4), claim(cursor, sqlHelper, 2));
+		assertEquals(Arrays.asList(0, 2), sqlHelper.afterIds);
+	}
+
+	public void testWrapsAroundToReleasedMails() {
+		QueueSqlHelper sqlHelper = new QueueSqlHelper(1, 2, 3);
+		ClaimCursor cursor = new ClaimCursor(null, null);
+
+		assertEquals(Arrays.asList(1, 2), claim(cursor, sqlHelper, 2));
+		// Mail 1 is handed back while mail 3 is still ahead of the cursor
+		sqlHelper.claimable.add(1);
+		assertEquals(Arrays.asList(3), claim(cursor, sqlHelper, 2));
+		// Nothing is left after 3, the cursor starts again from the beginning
+		assertEquals(Arrays.asList(1), claim(cursor, sqlHelper, 2));
+		assertEquals(1, cursor.getLastSeenId());
+		assertEquals(Arrays.asList(0, 2, 3, 0), sqlHelper.afterIds);
+
+		// Nothing at all, both ends are probed
+		sqlHelper.afterIds.clear();
+		assertEquals(0, cursor.claim(sqlHelper, "claim", 2));
+		assertEquals(Arrays.asList(1, 0), sqlHelper.afterIds);
+	}
+
+	public void testEmptyLanesAreSkipped() throws Exception {
+		String emptyMillis = Config.PREFIX + "claim.emptyMillis";
+		System.setProperty(emptyMillis, "100");
+		ClaimCursor cursor;
+		try {
+			cursor = new ClaimCursor(null, new LaneScheduler(new SqlHelper((ConnectionPool) null) {
+				@Override
+				public int getLaneQueues(long[] depths, long[] oldestAt, int maxDepth) {
+					// Every lane looks busy, so that every lane is probed
+					Arrays.fill(depths, 1);
+					return 0;
+				}
+			}, new long[] {1, 1, 1}, new long[] {0, 0, 0}, 1000, 100));
+		} finally {
+			System.clearProperty(emptyMillis);
+		}
+		QueueSqlHelper sqlHelper = new QueueSqlHelper();
+
+		// Every lane is probed once, then skipped until emptyMillis have passed
+		assertEquals(0, cursor.claim(sqlHelper, "claim", 10));
+		assertEquals(Priority.values().length, sqlHelper.afterIds.size());
+		assertEquals(0, cursor.claim(sqlHelper, "claim", 10));
+		assertEquals(Priority.values().length, sqlHelper.afterIds.size());
+
+		Thread.sleep(150);
+		sqlHelper.claimable.add(7);
+		assertEquals(1, cursor.claim(sqlHelper, "claim", 10));
+	}
+}
@@ -0,0 +1,146 @@
+package com.rubberduck.mymail;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+/*
+ * Class 	: ClaimMailsTest
+ * Purpose	: Checks that claims never hand the same mail to two claimers, that mails of
+ * 			  an expired lease are taken over, that claimed mails which cannot be read are
+ * 			  reported as such and that mails are sharded by id, against an in-memory H2
+ * 			  database in MySQL mode
+ */
+
+public class ClaimMailsTest extends TestCase {
+
+	private static final String URL = "jdbc:h2:mem:claim;MODE=MySQL;DATABASE_TO_LOWER=TRUE;"
+			+ "DB_CLOSE_DELAY=-1";
+	private static final int MAILS = 200;
+
+	private SqlHelper sqlHelper;
+
+	@Override
+	protected void setUp() {
+		SqlHelper.dbUrl = URL;
+		SqlHelper.username = "sa";
+		SqlHelper.password = "";
+		SqlHelper.mailsTable = "mails";
+		sqlHelper = new SqlHelper();
+		sqlHelper.dropTable();
+		sqlHelper.createTable();
+		sqlHelper.insertBulkMails(MAILS);
+	}
+
+	@Override
+	protected void tearDown() {
+		sqlHelper.dropTable();
+		SqlHelper.closePool();
+	}
+
+	// Runs an update on a connection of its own, outside of the pool
+	private static void execute(String update) throws Exception {
+		Connection con = DriverManager.getConnection(URL, "sa", "");
+		try {
+			Statement stmt = con.createStatement();
+			stmt.executeUpdate(update);
+		} finally {
+			con.close();
+		}
+	}
+
+	public void testConcurrentClaimersNeverShareAMail() throws Exception {
+		final List<Integer> claimedIds = Collections.synchronizedList(new ArrayList<Integer>());
+		final List<String> errors = Collections.synchronizedList(new ArrayList<String>());
+		List<Thread> claimers = new ArrayList<Thread>();
+		for (int c=0; c<4; c++) {
+			final String claimant = "claimer-" + c;
+			claimers.add(new Thread(new Runnable() {
+				public void run() {
+					for (int batch=0; ; batch++) {
+						String claimToken = claimant + "-" + batch;
+						int claimed = sqlHelper.claimMails(claimToken, 7);
+						if (claimed <= 0) {
+							if (claimed < 0)
+								errors.add(claimToken + " could not claim");
+							return;
+						}
+						List<Mail> mails = sqlHelper.getClaimedMails(claimToken);
+						if (mails == null || mails.size() != claimed)
+							errors.add(claimToken + " claimed " + claimed + ", read " + mails);
+						else
+							claimedIds.addAll(Mail.getIds(mails));
+					}
+				}
+			}));
+		}
+		for (Thread claimer : claimers)
+			claimer.start();
+		for (Thread claimer : claimers)
+			claimer.join(30000);
+
+		assertEquals(Collections.emptyList(), errors);
+		assertEquals(MAILS, claimedIds.size());
+		assertEquals(MAILS, new HashSet<Integer>(claimedIds).size());
+		assertEquals(0, sqlHelper.getCount(State.NOT_SENT));
+	}
+
+	public void testExpiredLeaseIsTakenOver() throws Exception {
+		assertEquals(MAILS, sqlHelper.claimMails("first", MAILS));
+		// Every lease is still running, nothing is left to claim
+		assertEquals(0, sqlHelper.claimMails("second", MAILS));
+
+		// The first claimer died a while ago with some of its mails
+		execute("UPDATE mails SET lease_until=0 WHERE id<=10");
+		assertEquals(10, sqlHelper.claimMails("second", MAILS));
+
+		Set<Integer> taken = new HashSet<Integer>(Mail.getIds(sqlHelper.getClaimedMails("second")));
+		assertEquals(10, taken.size());
+		for (int id=1; id<=10; id++)
+			assertTrue(taken.contains(id));
+		assertEquals(MAILS - 10, sqlHelper.getClaimedMails("first").size());
+	}
+
+	public void testMailsAreShardedById() throws Exception {
+		Connection con = DriverManager.getConnection(URL, "sa", "");
+		try {
+			ResultSet rs = con.createStatement().executeQuery("SELECT id, shard FROM mails");
+			while (rs.next())
+				assertEquals(rs.getInt(1) % NodeRegistry.SHARD_COUNT, rs.getInt(2));
+		} finally {
+			con.close();
+		}
+
+		// A claim restricted to a shard only takes the mails of that shard
+		int claimed = sqlHelper.claimMails("shard", MAILS, 0, 3, -1);
+		assertEquals((MAILS - 3) / NodeRegistry.SHARD_COUNT + 1, claimed);
+		for (Mail mail : sqlHelper.getClaimedMails("shard"))
+			assertEquals(3, mail.getId() % NodeRegistry.SHARD_COUNT);
+
+		// Mails inserted by another producer are assigned on the next pass
+		execute("INSERT INTO mails (sender, recipient, subject, body, sent) VALUES"
+				+ " ('sender@mymail.com', 'user@example.com', 'Subject', 'Body', 0)");
+		assertEquals(1, sqlHelper.assignShards());
+		assertEquals(0, sqlHelper.assignShards());
+	}
+
+	public void testUnreadableClaimIsReportedAsNull() throws Exception {
+		assertEquals(5, sqlHelper.claimMails("claim", 5));
+		assertEquals(5, sqlHelper.getClaimedMails("claim").size());
+
+		execute("ALTER TABLE mails RENAME TO mails_gone");
+		try {
+			assertNull(sqlHelper.getClaimedMails("claim"));
+		} finally {
+			execute("ALTER TABLE mails_gone RENAME TO mails");
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package com.rubberduck.mymail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/*
+ * Class 	: DomainRouterTest
+ * Purpose	: Checks which route the mails of a recipient domain are sent through
+ */
+
+public class DomainRouterTest extends TestCase {
+
+	private DomainRoute defaultRoute;
+	private DomainRoute corporate;
+	private DomainRoute mailbox;
+	private DomainRouter router;
+
+	@Override
+	protected void setUp() {
+		defaultRoute = new DomainRoute("default", null, new TokenBucket(0, 1));
+		corporate = new DomainRoute("corporate", null, new TokenBucket(0, 1));
+		mailbox = new DomainRoute("mailbox", null, new TokenBucket(0, 1));
+		router = new DomainRouter(defaultRoute);
+		router.addDomain("example.com", corporate);
+		router.addDomain(" Mail.Example.com ", mailbox);
+		router.addDomain("", mailbox);
+	}
+
+	public void testDomainAndSubdomains() {
+		assertSame(corporate, router.route("user@example.com"));
+		assertSame(corporate, router.route("user@eu.example.com"));
+		assertSame(corporate, router.route("USER@EXAMPLE.COM"));
+	}
+
+	public void testMostSpecificDomainWins() {
+		assertSame(mailbox, router.route("user@mail.example.com"));
+		assertSame(mailbox, router.route("user@eu.mail.example.com"));
+	}
+
+	public void testOtherDomainsUseTheDefaultRoute() {
+		assertSame(defaultRoute, router.route("user@notexample.com"));
+		assertSame(defaultRoute, router.route("user@com"));
+		assertSame(defaultRoute, router.route("user@example.com.evil.org"));
+		assertSame(defaultRoute, router.route(null));
+		assertSame(defaultRoute, new DomainRouter(defaultRoute).route("user@example.com"));
+	}
+
+	public void testRoutesAreListedOnce() {
+		assertEquals(Arrays.asList(defaultRoute, corporate, mailbox), router.getRoutes());
+	}
+
+	public void testPartitionKeepsOrder() {
+		List<Mail> mails = new ArrayList<Mail>();
+		String[] recipients = {"a@other.org", "b@example.com", "c@other.org", "d@mail.example.com",
+				"e@example.com"};
+		for (int i=0; i<recipients.length; i++)
+			mails.add(new Mail(i + 1, "sender@mymail.com", recipients[i], "Subject", "Body"));
+
+		Map<DomainRoute, List<Mail>> partitions = router.partition(mails);
+		assertEquals(Arrays.asList(defaultRoute, corporate, mailbox),
+				new ArrayList<DomainRoute>(partitions.keySet()));
+		assertEquals(Arrays.asList(1, 3), Mail.getIds(partitions.get(defaultRoute)));
+		assertEquals(Arrays.asList(2, 5), Mail.getIds(partitions.get(corporate)));
+		assertEquals(Arrays.asList(4), Mail.getIds(partitions.get(mailbox)));
+	}
+}
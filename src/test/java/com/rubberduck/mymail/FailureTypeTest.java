@@ -0,0 +1,64 @@
+package com.rubberduck.mymail;
+
+import java.net.SocketException;
+
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.internet.InternetAddress;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+
+import junit.framework.TestCase;
+
+/*
+ * Class 	: FailureTypeTest
+ * Purpose	: Checks how reply codes and send exceptions are classified
+ */
+
+public class FailureTypeTest extends TestCase {
+
+	public void testReplyCodes() {
+		assertEquals(FailureType.PERMANENT, FailureType.fromReplyCode(550));
+		assertEquals(FailureType.PERMANENT, FailureType.fromReplyCode(554));
+		assertEquals(FailureType.TRANSIENT, FailureType.fromReplyCode(450));
+		assertEquals(FailureType.TRANSIENT, FailureType.fromReplyCode(451));
+		assertEquals(FailureType.CONNECTION, FailureType.fromReplyCode(421));
+		// Unknown, e.g. never received
+		assertEquals(FailureType.TRANSIENT, FailureType.fromReplyCode(-1));
+	}
+
+	public void testSendFailedException() {
+		assertEquals(FailureType.PERMANENT, FailureType.fromException(
+				new SMTPSendFailedException("DATA", 554, "554 rejected", null, null, null, null)));
+		assertEquals(FailureType.TRANSIENT, FailureType.fromException(
+				new SMTPSendFailedException("DATA", 452, "452 full", null, null, null, null)));
+		assertEquals(FailureType.CONNECTION, FailureType.fromException(
+				new SMTPSendFailedException("DATA", 421, "421 closing", null, null, null, null)));
+	}
+
+	public void testAddressFailedExceptionInTheChain() throws Exception {
+		SMTPAddressFailedException unknownUser = new SMTPAddressFailedException(
+				new InternetAddress("nobody@example.com"), "RCPT TO", 550, "550 no such user");
+		SendFailedException e = new SendFailedException("Invalid Addresses", unknownUser);
+		assertEquals(FailureType.PERMANENT, FailureType.fromException(e));
+
+		SMTPAddressFailedException greylisted = new SMTPAddressFailedException(
+				new InternetAddress("someone@example.com"), "RCPT TO", 451, "451 greylisted");
+		assertEquals(FailureType.TRANSIENT, FailureType.fromException(
+				new MessagingException("Failed", greylisted)));
+	}
+
+	public void testIOExceptionIsAConnectionFailure() {
+		MessagingException e = new MessagingException("Exception reading response",
+				new SocketException("Connection reset"));
+		assertEquals(FailureType.CONNECTION, FailureType.fromException(e));
+	}
+
+	public void testUnknownFailureIsTransient() {
+		assertEquals(FailureType.TRANSIENT, FailureType.fromException(new MessagingException("?")));
+		// No reply code, the chain is followed further
+		assertEquals(FailureType.TRANSIENT, FailureType.fromException(
+				new SMTPSendFailedException("DATA", -1, "", null, null, null, null)));
+	}
+}
@@ -0,0 +1,146 @@
+package com.rubberduck.mymail;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/*
+ * Class 	: LaneSchedulerTest
+ * Purpose	: Checks the shares of smooth weighted round robin and that a lane which has
+ * 			  waited too long is served first
+ */
+
+public class LaneSchedulerTest extends TestCase {
+
+	private static final int TRANSACTIONAL = Priority.TRANSACTIONAL.ordinal();
+	private static final int NORMAL = Priority.NORMAL.ordinal();
+	private static final int BULK = Priority.BULK.ordinal();
+
+	private long[] depths = new long[Priority.values().length];		// lanes as read back
+	private long[] oldestAt = new long[Priority.values().length];
+
+	// Returns a scheduler reading the lanes from [depths] and [oldestAt] on every claim
+	private LaneScheduler scheduler(long[] weights, long[] maxWaitMillis) {
+		return new LaneScheduler(new SqlHelper((ConnectionPool) null) {
+			@Override
+			public int getLaneQueues(long[] laneDepths, long[] laneOldestAt, int maxDepth) {
+				System.arraycopy(depths, 0, laneDepths, 0, depths.length);
+				System.arraycopy(oldestAt, 0, laneOldestAt, 0, oldestAt.length);
+				return 0;
+			}
+		}, weights, maxWaitMillis, 0, 10000);
+	}
+
+	// Serves the first lane of [claims] claims, returns how many each lane got
+	private static int[] serve(LaneScheduler lanes, int claims) {
+		int[] served = new int[Priority.values().length];
+		for (int i=0; i<claims; i++) {
+			Priority lane = lanes.nextLanes().get(0);
+			lanes.served(lane);
+			served[lane.ordinal()]++;
+		}
+		return served;
+	}
+
+	public void testClaimsFollowTheWeights() {
+		LaneScheduler lanes = scheduler(new long[] {8, 3, 1}, new long[] {0, 0, 0});
+		depths[TRANSACTIONAL] = depths[NORMAL] = depths[BULK] = 100;
+
+		// Every round of 12 claims gives each lane exactly its share
+		for (int round=0; round<10; round++) {
+			int[] served = serve(lanes, 12);
+			assertEquals(8, served[TRANSACTIONAL]);
+			assertEquals(3, served[NORMAL]);
+			assertEquals(1, served[BULK]);
+		}
+	}
+
+	public void testClaimsAreInterleaved() {
+		LaneScheduler lanes = scheduler(new long[] {1, 1, 1}, new long[] {0, 0, 0});
+		depths[TRANSACTIONAL] = depths[NORMAL] = depths[BULK] = 100;
+
+		// Equal weights take turns rather than serving a lane several times in a row
+		Priority previous = null;
+		for (int i=0; i<30; i++) {
+			Priority lane = lanes.nextLanes().get(0);
+			lanes.served(lane);
+			assertNotSame(previous, lane);
+			previous = lane;
+		}
+	}
+
+	public void testEmptyLanePassesItsTurn() {
+		LaneScheduler lanes = scheduler(new long[] {8, 3, 1}, new long[] {0, 0, 0});
+		depths[NORMAL] = depths[BULK] = 100;
+
+		List<Priority> order = lanes.nextLanes();
+		assertEquals(Priority.TRANSACTIONAL, order.get(order.size() - 1));
+		lanes.served(null);
+
+		int[] served = serve(lanes, 40);
+		assertEquals(0, served[TRANSACTIONAL]);
+		assertEquals(30, served[NORMAL]);
+		assertEquals(10, served[BULK]);
+	}
+
+	public void testIdlePollingDoesNotSkewTheShares() {
+		LaneScheduler lanes = scheduler(new long[] {8, 3, 1}, new long[] {0, 0, 0});
+		depths[TRANSACTIONAL] = depths[NORMAL] = depths[BULK] = 100;
+
+		// Claims which found nothing after all give the credits back
+		for (int i=0; i<25; i++) {
+			lanes.nextLanes();
+			lanes.served(null);
+		}
+		int[] served = serve(lanes, 12);
+		assertEquals(8, served[TRANSACTIONAL]);
+		assertEquals(3, served[NORMAL]);
+		assertEquals(1, served[BULK]);
+	}
+
+	public void testLateLaneIsServedFirst() {
+		LaneScheduler lanes = scheduler(new long[] {8, 3, 1}, new long[] {5000, 60000, 0});
+		long now = System.currentTimeMillis();
+		depths[TRANSACTIONAL] = depths[NORMAL] = depths[BULK] = 100;
+		oldestAt[TRANSACTIONAL] = now;
+		oldestAt[NORMAL] = now - 120000;
+		// Bulk has no max. wait, it is never late
+		oldestAt[BULK] = now - 3600000;
+
+		int[] served = serve(lanes, 12);
+		assertEquals(12, served[NORMAL]);
+		assertTrue(lanes.getStats().contains("late lanes served first 12 time(s)"));
+
+		// Once it caught up, the weights apply again (getStats reads the lanes back)
+		oldestAt[NORMAL] = now;
+		lanes.getStats();
+		served = serve(lanes, 120);
+		assertTrue(served[TRANSACTIONAL] > served[NORMAL]);
+		assertTrue(served[NORMAL] > served[BULK]);
+	}
+
+	public void testOldestLateLaneGoesFirst() {
+		LaneScheduler lanes = scheduler(new long[] {8, 3, 1}, new long[] {5000, 60000, 0});
+		long now = System.currentTimeMillis();
+		depths[TRANSACTIONAL] = depths[NORMAL] = 100;
+		oldestAt[TRANSACTIONAL] = now - 100000;
+		oldestAt[NORMAL] = now - 200000;
+
+		List<Priority> order = lanes.nextLanes();
+		assertEquals(Priority.NORMAL, order.get(0));
+		assertEquals(Priority.TRANSACTIONAL, order.get(1));
+		assertEquals(Priority.BULK, order.get(2));
+	}
+
+	public void testClaimsAreCutToTheWaitOfUrgentLanes() {
+		LaneScheduler lanes = scheduler(new long[] {8, 3, 1}, new long[] {5000, 60000, 0});
+
+		// 0.1 mails/ms for half of the 5 s allowed to transactional mails
+		assertEquals(250, lanes.limit(Priority.BULK, 1000, 0.1));
+		assertEquals(250, lanes.limit(Priority.NORMAL, 1000, 0.1));
+		assertEquals(100, lanes.limit(Priority.NORMAL, 100, 0.1));
+		// Nothing more urgent, or no rate known yet
+		assertEquals(1000, lanes.limit(Priority.TRANSACTIONAL, 1000, 0.1));
+		assertEquals(1000, lanes.limit(Priority.BULK, 1000, 0));
+	}
+}
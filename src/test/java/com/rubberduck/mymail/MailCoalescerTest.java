@@ -0,0 +1,81 @@
+package com.rubberduck.mymail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/*
+ * Class 	: MailCoalescerTest
+ * Purpose	: Checks which mails of a batch are sent together as one message
+ */
+
+public class MailCoalescerTest extends TestCase {
+
+	private static Mail mail(int id, String recipient, String body) {
+		return new Mail(id, "sender@mymail.com", recipient, "Subject", body);
+	}
+
+	// Returns the ids of the mails of each group
+	private static List<List<Integer>> ids(List<MailGroup> groups) {
+		List<List<Integer>> ids = new ArrayList<List<Integer>>();
+		for (MailGroup group : groups)
+			ids.add(Mail.getIds(group.getMails()));
+		return ids;
+	}
+
+	public void testGroupsSameContentInOrderOfFirstMail() {
+		List<Mail> mails = Arrays.asList(
+				mail(1, "a@example.com", "Hello"),
+				mail(2, "b@example.com", "Bye"),
+				mail(3, "c@example.com", "Hello"),
+				mail(4, "d@example.com", "Bye"));
+
+		assertEquals(Arrays.asList(Arrays.asList(1, 3), Arrays.asList(2, 4)),
+				ids(MailCoalescer.coalesce(mails, 10)));
+	}
+
+	public void testSingleRecipientDisablesGrouping() {
+		List<Mail> mails = Arrays.asList(
+				mail(1, "a@example.com", "Hello"),
+				mail(2, "b@example.com", "Hello"));
+
+		assertEquals(Arrays.asList(Arrays.asList(1), Arrays.asList(2)),
+				ids(MailCoalescer.coalesce(mails, 1)));
+	}
+
+	public void testFullGroupStartsANewOne() {
+		List<Mail> mails = new ArrayList<Mail>();
+		for (int i=1; i<=5; i++)
+			mails.add(mail(i, "user" + i + "@example.com", "Hello"));
+
+		assertEquals(Arrays.asList(Arrays.asList(1, 2), Arrays.asList(3, 4), Arrays.asList(5)),
+				ids(MailCoalescer.coalesce(mails, 2)));
+	}
+
+	public void testSameRecipientIsNeverGroupedTwice() {
+		List<Mail> mails = Arrays.asList(
+				mail(1, "a@example.com", "Hello"),
+				mail(2, "b@example.com", "Hello"),
+				mail(3, "a@example.com", "Hello"),
+				mail(4, "c@example.com", "Hello"));
+
+		// The duplicate opens a new group, which later mails of the same content join
+		assertEquals(Arrays.asList(Arrays.asList(1, 2), Arrays.asList(3, 4)),
+				ids(MailCoalescer.coalesce(mails, 10)));
+	}
+
+	public void testRawAndLargeMailsStayAlone() {
+		Mail raw = mail(2, "b@example.com", "Hello");
+		raw.setRawMime(new byte[] {'x'});
+		Mail large = mail(3, "c@example.com", "Hello");
+		large.setBodyDeferred(true);
+		List<Mail> mails = Arrays.asList(
+				mail(1, "a@example.com", "Hello"), raw, large,
+				mail(4, "d@example.com", "Hello"));
+
+		assertEquals(Arrays.asList(Arrays.asList(1, 4), Arrays.asList(2), Arrays.asList(3)),
+				ids(MailCoalescer.coalesce(mails, 10)));
+	}
+}
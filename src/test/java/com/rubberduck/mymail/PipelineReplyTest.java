@@ -0,0 +1,71 @@
+package com.rubberduck.mymail;
+
+import junit.framework.TestCase;
+
+/*
+ * Class 	: PipelineReplyTest
+ * Purpose	: Checks how the reply codes of a pipelined message map to the outcome of each
+ * 			  of its recipients
+ */
+
+public class PipelineReplyTest extends TestCase {
+
+	// Returns the replies of a message which went through, with the given RCPT TO codes
+	private static PipelineReply reply(int mailCode, int dataCode, int endCode, int... rcptCodes) {
+		PipelineReply reply = new PipelineReply(rcptCodes.length);
+		reply.setMailCode(mailCode);
+		for (int i=0; i<rcptCodes.length; i++)
+			reply.setRcptCode(i, rcptCodes[i]);
+		reply.setDataCode(dataCode);
+		reply.setEndCode(endCode);
+		reply.setComplete(true);
+		return reply;
+	}
+
+	public void testAcceptedRecipients() {
+		PipelineReply reply = reply(250, 354, 250, 250, 251, 550);
+
+		assertTrue(reply.isAccepted());
+		assertTrue(reply.isDataAccepted());
+		assertTrue(reply.isAccepted(0));
+		assertTrue(reply.isAccepted(1));
+		assertFalse(reply.isAccepted(2));
+		assertEquals(550, reply.getFailureCode(2));
+	}
+
+	public void testIncompleteReplyIsNotAccepted() {
+		PipelineReply reply = reply(250, 354, 250, 250);
+		reply.setComplete(false);
+
+		assertFalse(reply.isAccepted());
+		assertFalse(reply.isAccepted(0));
+	}
+
+	public void testFailureCodeFollowsCommandOrder() {
+		// MAIL FROM failed, every recipient fails with it
+		PipelineReply reply = reply(550, 503, -1, 503, 503);
+		assertFalse(reply.isAccepted(0));
+		assertEquals(550, reply.getFailureCode(0));
+		assertEquals(550, reply.getFailureCode(1));
+
+		// DATA refused after the recipients were accepted
+		reply = reply(250, 451, -1, 250);
+		assertFalse(reply.isDataAccepted());
+		assertEquals(451, reply.getFailureCode(0));
+
+		// Content refused at the end of data
+		reply = reply(250, 354, 552, 250);
+		assertFalse(reply.isAccepted());
+		assertEquals(552, reply.getFailureCode(0));
+	}
+
+	public void testEndOfDataNeverReceived() {
+		PipelineReply reply = new PipelineReply(1);
+		reply.setMailCode(250);
+		reply.setRcptCode(0, 250);
+		reply.setDataCode(354);
+
+		assertFalse(reply.isAccepted(0));
+		assertEquals(-1, reply.getFailureCode(0));
+	}
+}
@@ -0,0 +1,197 @@
+package com.rubberduck.mymail;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import javax.mail.Address;
+import javax.mail.Session;
+import javax.mail.URLName;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import junit.framework.TestCase;
+
+/*
+ * Class 	: PipeliningSMTPTransportTest
+ * Purpose	: Sends pipelined messages to a scripted SMTP server and checks that the reply
+ * 			  codes end up with the message and recipient they belong to
+ */
+
+public class PipeliningSMTPTransportTest extends TestCase {
+
+	private ServerSocket serverSocket;		// socket of the scripted server
+	private Thread serverThread;			// thread answering the client
+	private List<String> received;			// lines received by the server, in order
+	private volatile Exception serverError;	// failure of the server thread, if any
+
+	@Override
+	protected void setUp() throws Exception {
+		serverSocket = new ServerSocket(0);
+		received = Collections.synchronizedList(new ArrayList<String>());
+		serverThread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					serve(serverSocket.accept());
+				} catch (IOException e) {
+					serverError = e;
+				}
+			}
+		}, "scripted-smtp");
+		serverThread.start();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		serverSocket.close();
+		serverThread.join(10000);
+	}
+
+	/*
+	 * Function : serve
+	 * Input	: socket (connection of the client)
+	 * Purpose	: Answers like a relay which advertises PIPELINING, refuses senders and
+	 * 			  recipients starting with "blocked" (550), defers recipients starting with
+	 * 			  "busy" (451) and refuses DATA without any accepted recipient (554)
+	 * Returns	: void
+	 */
+	private void serve(Socket socket) throws IOException {
+		socket.setSoTimeout(10000);
+		BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+				"ISO-8859-1"));
+		OutputStream out = socket.getOutputStream();
+		reply(out, "220 scripted ESMTP");
+
+		boolean mailAccepted = false;
+		int accepted = 0;
+		String line;
+		while ((line = in.readLine()) != null) {
+			received.add(line);
+			String command = line.toUpperCase();
+			if (command.startsWith("EHLO")) {
+				reply(out, "250-scripted\r\n250-PIPELINING\r\n250 8BITMIME");
+			} else if (command.startsWith("MAIL FROM:")) {
+				mailAccepted = !line.startsWith("MAIL FROM:<blocked");
+				accepted = 0;
+				reply(out, mailAccepted ? "250 OK" : "550 sender blocked");
+			} else if (command.startsWith("RCPT TO:")) {
+				if (!mailAccepted) {
+					reply(out, "503 need MAIL first");
+				} else if (line.startsWith("RCPT TO:<blocked")) {
+					reply(out, "550 no such user");
+				} else if (line.startsWith("RCPT TO:<busy")) {
+					reply(out, "451 try again later");
+				} else {
+					accepted++;
+					reply(out, "250 OK");
+				}
+			} else if (command.equals("DATA")) {
+				if (!mailAccepted || accepted == 0) {
+					reply(out, "554 no valid recipients");
+					continue;
+				}
+				reply(out, "354 go ahead");
+				while ((line = in.readLine()) != null && !line.equals("."))
+					received.add(line);
+				reply(out, "250 queued");
+				mailAccepted = false;
+			} else if (command.equals("RSET") || command.equals("NOOP")) {
+				mailAccepted = false;
+				reply(out, "250 OK");
+			} else if (command.equals("QUIT")) {
+				reply(out, "221 bye");
+				break;
+			} else {
+				reply(out, "500 unknown command");
+			}
+		}
+		socket.close();
+	}
+
+	private static void reply(OutputStream out, String reply) throws IOException {
+		out.write((reply + "\r\n").getBytes("ISO-8859-1"));
+		out.flush();
+	}
+
+	// Returns a plain text message from the given sender
+	private static MimeMessage message(Session session, String from, String text) throws Exception {
+		MimeMessage message = new MimeMessage(session);
+		message.setFrom(new InternetAddress(from));
+		message.setSubject("Pipelined");
+		message.setText(text);
+		message.saveChanges();
+		return message;
+	}
+
+	private static Address[] envelope(String... recipients) throws Exception {
+		Address[] addresses = new Address[recipients.length];
+		for (int i=0; i<recipients.length; i++)
+			addresses[i] = new InternetAddress(recipients[i]);
+		return addresses;
+	}
+
+	public void testRepliesAreMappedToTheirMessages() throws Exception {
+		Properties props = new Properties();
+		props.setProperty("mail.smtp.timeout", "10000");
+		props.setProperty("mail.smtp.connectiontimeout", "10000");
+		Session session = Session.getInstance(props);
+		int port = serverSocket.getLocalPort();
+		PipeliningSMTPTransport transport = new PipeliningSMTPTransport(session,
+				new URLName("smtp", "localhost", port, null, null, null));
+		transport.connect("localhost", port, null, null);
+		assertTrue(transport.supportsPipelining());
+
+		List<MimeMessage> messages = new ArrayList<MimeMessage>();
+		List<Address[]> envelopes = new ArrayList<Address[]>();
+		messages.add(message(session, "sender@mymail.com", "First line\n.starts with a dot"));
+		envelopes.add(envelope("one@example.com", "blocked@example.com"));
+		messages.add(message(session, "blocked@mymail.com", "Refused sender"));
+		envelopes.add(envelope("two@example.com"));
+		messages.add(message(session, "sender@mymail.com", "Deferred recipient"));
+		envelopes.add(envelope("busy@example.com"));
+		messages.add(message(session, "sender@mymail.com", "Last"));
+		envelopes.add(envelope("three@example.com"));
+
+		List<PipelineReply> replies = new ArrayList<PipelineReply>();
+		transport.sendPipelined(messages, envelopes, replies);
+		transport.close();
+		serverThread.join(10000);
+		assertNull(serverError);
+		assertEquals(4, replies.size());
+
+		// Accepted for one recipient, refused for the other
+		PipelineReply first = replies.get(0);
+		assertTrue(first.isComplete());
+		assertTrue(first.isAccepted(0));
+		assertFalse(first.isAccepted(1));
+		assertEquals(550, first.getFailureCode(1));
+		assertTrue(first.getFailureResponse().startsWith("550"));
+
+		// Sender refused, the recipient fails with it
+		PipelineReply second = replies.get(1);
+		assertTrue(second.isComplete());
+		assertFalse(second.isAccepted(0));
+		assertEquals(550, second.getFailureCode(0));
+
+		// Recipient deferred, no DATA phase
+		PipelineReply third = replies.get(2);
+		assertTrue(third.isComplete());
+		assertFalse(third.isDataAccepted());
+		assertEquals(451, third.getFailureCode(0));
+
+		// The transaction left open by the failures was reset before the last message
+		PipelineReply last = replies.get(3);
+		assertTrue(last.isAccepted(0));
+		assertTrue(received.indexOf("RSET") > received.indexOf("MAIL FROM:<blocked@mymail.com>"));
+
+		// Content was dot-stuffed on the wire
+		assertTrue(received.contains("..starts with a dot"));
+	}
+}
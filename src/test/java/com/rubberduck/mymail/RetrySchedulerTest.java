@@ -0,0 +1,146 @@
+package com.rubberduck.mymail;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/*
+ * Class 	: RetrySchedulerTest
+ * Purpose	: Checks the backoff given to failed mails and which of them are put back in
+ * 			  the queue, against an in-memory H2 database in MySQL mode (the backoff is
+ * 			  computed by the query recording the failures)
+ */
+
+public class RetrySchedulerTest extends TestCase {
+
+	private static final String URL = "jdbc:h2:mem:retry;MODE=MySQL;DATABASE_TO_LOWER=TRUE;"
+			+ "DB_CLOSE_DELAY=-1";
+	private static final String CLAIM_TOKEN = "retry-test";
+	private static final int MAILS = 50;
+
+	private SqlHelper sqlHelper;
+
+	@Override
+	protected void setUp() {
+		SqlHelper.dbUrl = URL;
+		SqlHelper.username = "sa";
+		SqlHelper.password = "";
+		SqlHelper.mailsTable = "mails";
+		sqlHelper = new SqlHelper();
+		sqlHelper.dropTable();
+		sqlHelper.createTable();
+		sqlHelper.insertBulkMails(MAILS);
+	}
+
+	@Override
+	protected void tearDown() {
+		sqlHelper.dropTable();
+		SqlHelper.closePool();
+	}
+
+	// Runs an update on a connection of its own, outside of the pool
+	private static void execute(String update) throws Exception {
+		Connection con = DriverManager.getConnection(URL, "sa", "");
+		try {
+			Statement stmt = con.createStatement();
+			stmt.executeUpdate(update);
+		} finally {
+			con.close();
+		}
+	}
+
+	// Claims every mail and records them all as FAILED, returns the time of the write
+	private long failAll() throws Exception {
+		execute("UPDATE mails SET sent=" + State.IN_FLIGHT.ordinal() + ", claim_token='"
+				+ CLAIM_TOKEN + "'");
+		List<MailOutcome> outcomes = new ArrayList<MailOutcome>();
+		for (int id=1; id<=MAILS; id++)
+			outcomes.add(new MailOutcome(CLAIM_TOKEN, id, State.FAILED));
+		long now = System.currentTimeMillis();
+		assertEquals(MAILS, sqlHelper.writeOutcomes(outcomes));
+		return now;
+	}
+
+	// Checks that every mail waits between half and all of the capped exponential delay
+	private static void assertBackoff(long failedAt, int attempts) throws Exception {
+		long delay = Math.min(SqlHelper.RETRY_MAX_DELAY_MILLIS,
+				SqlHelper.RETRY_BASE_DELAY_MILLIS << attempts);
+		Connection con = DriverManager.getConnection(URL, "sa", "");
+		try {
+			ResultSet rs = con.createStatement().executeQuery(
+					"SELECT attempts, next_attempt_at FROM mails");
+			int rows = 0;
+			while (rs.next()) {
+				rows++;
+				assertEquals(attempts + 1, rs.getInt(1));
+				long wait = rs.getLong(2) - failedAt;
+				// The write took its own time a little after failedAt
+				assertTrue("wait " + wait + " below " + delay / 2, wait >= delay / 2);
+				assertTrue("wait " + wait + " above " + delay, wait <= delay + 1000);
+			}
+			assertEquals(MAILS, rows);
+		} finally {
+			con.close();
+		}
+	}
+
+	public void testBackoffDoublesUpToTheMaxDelay() throws Exception {
+		for (int attempts=0; attempts<8; attempts++)
+			assertBackoff(failAll(), attempts);
+	}
+
+	public void testBackoffIsJittered() throws Exception {
+		failAll();
+		Connection con = DriverManager.getConnection(URL, "sa", "");
+		try {
+			ResultSet rs = con.createStatement().executeQuery(
+					"SELECT COUNT(DISTINCT next_attempt_at) FROM mails");
+			rs.next();
+			assertTrue(rs.getInt(1) > 1);
+		} finally {
+			con.close();
+		}
+	}
+
+	public void testOnlyDueMailsWithAttemptsLeftAreRequeued() throws Exception {
+		failAll();
+		RetryScheduler scheduler = new RetryScheduler(2, 1000, 1000);
+		// Not due yet
+		assertEquals(0, scheduler.requeueDue());
+		assertTrue(scheduler.getNextAttemptAt() > System.currentTimeMillis());
+
+		execute("UPDATE mails SET next_attempt_at=0 WHERE id<=10");
+		assertEquals(10, scheduler.requeueDue());
+
+		// Out of attempts, given up on
+		execute("UPDATE mails SET attempts=2, next_attempt_at=0");
+		assertEquals(0, scheduler.requeueDue());
+		assertEquals(-1, scheduler.getNextAttemptAt());
+	}
+
+	public void testDeferredMailsKeepTheirAttempts() throws Exception {
+		execute("UPDATE mails SET sent=" + State.IN_FLIGHT.ordinal() + ", claim_token='"
+				+ CLAIM_TOKEN + "'");
+		List<MailOutcome> outcomes = new ArrayList<MailOutcome>();
+		outcomes.add(new MailOutcome(CLAIM_TOKEN, 1, State.DEFERRED, 0));
+		assertEquals(1, sqlHelper.writeOutcomes(outcomes));
+
+		RetryScheduler scheduler = new RetryScheduler(1, 1000, 1000);
+		assertEquals(1, scheduler.requeueDue());
+		Connection con = DriverManager.getConnection(URL, "sa", "");
+		try {
+			ResultSet rs = con.createStatement().executeQuery(
+					"SELECT sent, attempts FROM mails WHERE id=1");
+			rs.next();
+			assertEquals(State.NOT_SENT.ordinal(), rs.getInt(1));
+			assertEquals(0, rs.getInt(2));
+		} finally {
+			con.close();
+		}
+	}
+}
@@ -0,0 +1,168 @@
+package com.rubberduck.mymail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/*
+ * Class 	: StateWriterTest
+ * Purpose	: Checks when the StateWriter flushes its outcomes, how it retries a failed
+ * 			  write and what close does with the outcomes still queued
+ */
+
+public class StateWriterTest extends TestCase {
+
+	/*
+	 * Class	: RecordingSqlHelper
+	 * Purpose	: Keeps the groups of outcomes written instead of writing them, failing the
+	 * 			  first [failures] writes
+	 */
+	private static class RecordingSqlHelper extends SqlHelper {
+		private List<List<MailOutcome>> writes = new ArrayList<List<MailOutcome>>();
+		private int failures;
+		private int attempts;
+
+		RecordingSqlHelper(int failures) {
+			super((ConnectionPool) null);
+			this.failures = failures;
+		}
+
+		@Override
+		public synchronized int writeOutcomes(List<MailOutcome> outcomes) {
+			attempts++;
+			if (failures > 0) {
+				failures--;
+				return -1;
+			}
+			writes.add(new ArrayList<MailOutcome>(outcomes));
+			return outcomes.size();
+		}
+
+		synchronized List<List<MailOutcome>> getWrites() {
+			return new ArrayList<List<MailOutcome>>(writes);
+		}
+
+		synchronized int getAttempts() {
+			return attempts;
+		}
+
+		// Returns the state written for each mail
+		synchronized Map<Integer, State> getStates() {
+			Map<Integer, State> states = new HashMap<Integer, State>();
+			for (List<MailOutcome> write : writes) {
+				for (MailOutcome outcome : write)
+					states.put(outcome.getMailId(), outcome.getState());
+			}
+			return states;
+		}
+	}
+
+	// Waits until every outcome queued so far was committed or given up on
+	private static void awaitIdle(StateWriter writer) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!writer.isIdle() && System.currentTimeMillis() < deadline)
+			Thread.sleep(5);
+		assertTrue(writer.isIdle());
+	}
+
+	public void testFlushesOnceFlushSizeIsReached() throws Exception {
+		RecordingSqlHelper sqlHelper = new RecordingSqlHelper(0);
+		StateWriter writer = new StateWriter(sqlHelper, 3, 500);
+		for (int id=1; id<=3; id++)
+			writer.record("claim", id, State.SENT);
+
+		// Without waiting for flushMillis
+		awaitIdle(writer);
+		assertEquals(1, sqlHelper.getWrites().size());
+		assertEquals(3, sqlHelper.getWrites().get(0).size());
+		writer.close();
+	}
+
+	public void testFlushesAfterFlushMillis() throws Exception {
+		RecordingSqlHelper sqlHelper = new RecordingSqlHelper(0);
+		StateWriter writer = new StateWriter(sqlHelper, 100, 20);
+		writer.record("claim", 1, State.SENT);
+		assertFalse(writer.isIdle());
+
+		awaitIdle(writer);
+		assertEquals(1, sqlHelper.getWrites().size());
+		writer.close();
+	}
+
+	public void testFailedWriteIsRetried() throws Exception {
+		RecordingSqlHelper sqlHelper = new RecordingSqlHelper(2);
+		StateWriter writer = new StateWriter(sqlHelper, 2, 10);
+		writer.record("claim", 1, State.SENT);
+		writer.record("claim", 2, State.FAILED);
+
+		awaitIdle(writer);
+		assertEquals(3, sqlHelper.getAttempts());
+		assertEquals(1, sqlHelper.getWrites().size());
+		assertEquals(2, sqlHelper.getWrites().get(0).size());
+		writer.close();
+	}
+
+	public void testCloseWritesWhatIsQueued() throws Exception {
+		RecordingSqlHelper sqlHelper = new RecordingSqlHelper(0);
+		StateWriter writer = new StateWriter(sqlHelper, 100, 500);
+		writer.record("claim", 1, State.SENT);
+		writer.releaseClaim("claim");
+		writer.close();
+
+		assertTrue(writer.isIdle());
+		List<MailOutcome> written = new ArrayList<MailOutcome>();
+		for (List<MailOutcome> write : sqlHelper.getWrites())
+			written.addAll(write);
+		assertEquals(2, written.size());
+		assertTrue(written.get(1).isWholeClaim());
+	}
+
+	public void testCloseGivesUpOnAnUnreachableDatabase() throws Exception {
+		RecordingSqlHelper sqlHelper = new RecordingSqlHelper(Integer.MAX_VALUE);
+		StateWriter writer = new StateWriter(sqlHelper, 100, 10);
+		writer.record("claim", 1, State.SENT);
+		writer.close();
+
+		// The mail stays IN_FLIGHT until its lease expires
+		assertTrue(writer.isIdle());
+		assertTrue(sqlHelper.getWrites().isEmpty());
+	}
+
+	public void testCompleteClaimRecordsEachOutcome() throws Exception {
+		RecordingSqlHelper sqlHelper = new RecordingSqlHelper(0);
+		StateWriter writer = new StateWriter(sqlHelper, 100, 10);
+		Map<Integer, Long> deferred = new HashMap<Integer, Long>();
+		deferred.put(5, 1000L);
+		writer.completeClaim("claim", Arrays.asList(1, 2, 3, 4, 5),
+				Arrays.asList(2, 3), Arrays.asList(3), Arrays.asList(4), deferred);
+		writer.close();
+
+		Map<Integer, State> states = sqlHelper.getStates();
+		assertEquals(State.SENT, states.get(1));
+		assertEquals(State.FAILED, states.get(2));
+		assertEquals(State.REJECTED, states.get(3));
+		assertEquals(State.NOT_SENT, states.get(4));
+		assertEquals(State.DEFERRED, states.get(5));
+		for (List<MailOutcome> write : sqlHelper.getWrites()) {
+			for (MailOutcome outcome : write) {
+				if (outcome.getMailId() == 5)
+					assertEquals(1000L, outcome.getNextAttemptAt());
+			}
+		}
+	}
+
+	public void testCompleteClaimWithoutMails() throws Exception {
+		RecordingSqlHelper sqlHelper = new RecordingSqlHelper(0);
+		StateWriter writer = new StateWriter(sqlHelper, 100, 10);
+		writer.completeClaim("claim", Collections.<Integer>emptyList(),
+				Collections.<Integer>emptyList(), Collections.<Integer>emptyList());
+		writer.close();
+
+		assertTrue(sqlHelper.getWrites().isEmpty());
+	}
+}
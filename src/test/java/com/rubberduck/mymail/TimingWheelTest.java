@@ -0,0 +1,154 @@
+package com.rubberduck.mymail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+/*
+ * Class 	: TimingWheelTest
+ * Purpose	: Checks that mails expire at their due tick whichever level or the overflow
+ * 			  slot holds them, and that getNextDueAt finds the next one
+ */
+
+public class TimingWheelTest extends TestCase {
+
+	// Advances the wheel, returning the mails which expired
+	private static List<Integer> advance(TimingWheel wheel, long now) {
+		List<Integer> expired = new ArrayList<Integer>();
+		assertEquals(wheel.advance(now, expired), expired.size());
+		return expired;
+	}
+
+	public void testExpiresAtItsDueTick() {
+		TimingWheel wheel = new TimingWheel(10, 1000, 0);
+		assertTrue(wheel.add(1, 55));
+		assertEquals(1, wheel.size());
+
+		// Never before its due time, rounded up to the tick
+		assertTrue(advance(wheel, 59).isEmpty());
+		assertEquals(Arrays.asList(1), advance(wheel, 60));
+		assertEquals(0, wheel.size());
+
+		// Already due
+		assertFalse(wheel.add(2, 60));
+		assertFalse(wheel.add(3, 0));
+	}
+
+	public void testHigherLevelsCascadeDown() {
+		// 1 ms ticks, 64 slots per level: 100 is on level 1 and 5000 on level 2
+		TimingWheel wheel = new TimingWheel(1, 64 * 64 * 2, 0);
+		wheel.add(1, 100);
+		wheel.add(2, 5000);
+		wheel.add(3, 4096);
+		wheel.add(4, 4097);
+
+		assertTrue(advance(wheel, 99).isEmpty());
+		assertEquals(Arrays.asList(1), advance(wheel, 100));
+		assertTrue(advance(wheel, 4095).isEmpty());
+		assertEquals(Arrays.asList(3), advance(wheel, 4096));
+		assertEquals(Arrays.asList(4), advance(wheel, 4097));
+		assertTrue(advance(wheel, 4999).isEmpty());
+		assertEquals(Arrays.asList(2), advance(wheel, 5000));
+	}
+
+	public void testOverflowComesBackIn() {
+		// A single level of 64 ticks, later mails wait in the overflow slot
+		TimingWheel wheel = new TimingWheel(1, 10, 0);
+		wheel.add(1, 1000);
+		wheel.add(2, 100000);
+		assertEquals(1000, wheel.getNextDueAt());
+
+		assertTrue(advance(wheel, 999).isEmpty());
+		assertEquals(Arrays.asList(1), advance(wheel, 1000));
+		assertEquals(100000, wheel.getNextDueAt());
+		assertTrue(advance(wheel, 99999).isEmpty());
+		assertEquals(Arrays.asList(2), advance(wheel, 100000));
+	}
+
+	public void testEmptyWheelJumpsAhead() {
+		TimingWheel wheel = new TimingWheel(10, 1000, 0);
+		assertEquals(-1, wheel.getNextDueAt());
+		assertTrue(advance(wheel, 1000000).isEmpty());
+
+		// Mails are placed relative to the new time
+		assertFalse(wheel.add(1, 999990));
+		assertTrue(wheel.add(2, 1000010));
+		assertEquals(1000010, wheel.getNextDueAt());
+		assertEquals(Arrays.asList(2), advance(wheel, 1000010));
+	}
+
+	public void testNextDueAtAcrossLevels() {
+		TimingWheel wheel = new TimingWheel(1, 64 * 64 * 2, 0);
+		wheel.add(1, 5000);
+		assertEquals(5000, wheel.getNextDueAt());
+		wheel.add(2, 200);
+		assertEquals(200, wheel.getNextDueAt());
+		wheel.add(3, 10);
+		assertEquals(10, wheel.getNextDueAt());
+
+		advance(wheel, 10);
+		assertEquals(200, wheel.getNextDueAt());
+		advance(wheel, 200);
+		assertEquals(5000, wheel.getNextDueAt());
+	}
+
+	public void testDrainReturnsEveryMail() {
+		TimingWheel wheel = new TimingWheel(1, 100, 0);
+		wheel.add(1, 5);
+		wheel.add(2, 500);
+		wheel.add(3, 50000);
+		List<Integer> ids = new ArrayList<Integer>();
+
+		assertEquals(3, wheel.drain(ids));
+		assertEquals(new HashSet<Integer>(Arrays.asList(1, 2, 3)), new HashSet<Integer>(ids));
+		assertEquals(0, wheel.size());
+		assertEquals(-1, wheel.getNextDueAt());
+	}
+
+	public void testMatchesAPlainListOfDueTimes() {
+		long tickMillis = 7;
+		Random random = new Random(42);
+		long now = 123456;
+		TimingWheel wheel = new TimingWheel(tickMillis, 5000, now);
+		Map<Integer, Long> pending = new HashMap<Integer, Long>();
+		int nextId = 1;
+
+		for (int step=0; step<2000; step++) {
+			// Add a few mails, some of them beyond the levels
+			for (int i=random.nextInt(4); i>0; i--) {
+				long dueAt = now + 1 + random.nextInt(random.nextBoolean() ? 3000 : 50000);
+				if (wheel.add(nextId, dueAt))
+					pending.put(nextId, dueAt);
+				nextId++;
+			}
+			assertEquals(pending.size(), wheel.size());
+
+			// The next due time is the earliest pending one, rounded up to its tick
+			long nextDueAt = -1;
+			for (long dueAt : pending.values()) {
+				long dueTickAt = (dueAt + tickMillis - 1) / tickMillis * tickMillis;
+				if (nextDueAt < 0 || dueTickAt < nextDueAt)
+					nextDueAt = dueTickAt;
+			}
+			assertEquals(nextDueAt, wheel.getNextDueAt());
+
+			now += 1 + random.nextInt(random.nextInt(10) == 0 ? 5000 : 100);
+			Set<Integer> due = new HashSet<Integer>();
+			for (Map.Entry<Integer, Long> entry : pending.entrySet()) {
+				if ((entry.getValue() + tickMillis - 1) / tickMillis <= now / tickMillis)
+					due.add(entry.getKey());
+			}
+			List<Integer> expired = advance(wheel, now);
+			assertEquals(due.size(), expired.size());
+			assertEquals(due, new HashSet<Integer>(expired));
+			pending.keySet().removeAll(due);
+		}
+	}
+}
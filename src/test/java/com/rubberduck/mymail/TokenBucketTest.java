@@ -0,0 +1,54 @@
+package com.rubberduck.mymail;
+
+import junit.framework.TestCase;
+
+/*
+ * Class 	: TokenBucketTest
+ * Purpose	: Checks the burst, refill and deferral behaviour of a route's rate limit
+ */
+
+public class TokenBucketTest extends TestCase {
+
+	public void testUnlimitedBucketNeverRefuses() {
+		TokenBucket bucket = new TokenBucket(0, 1);
+		assertTrue(bucket.isUnlimited());
+		for (int i=0; i<1000; i++)
+			assertTrue(bucket.tryAcquire(100));
+		assertTrue(bucket.defer(100) <= System.currentTimeMillis());
+	}
+
+	public void testBurstIsAvailableAtOnce() {
+		// One token per minute, nothing comes back during the test
+		TokenBucket bucket = new TokenBucket(1, 5);
+		assertTrue(bucket.tryAcquire(3));
+		assertTrue(bucket.tryAcquire(2));
+		assertFalse(bucket.tryAcquire(1));
+	}
+
+	public void testOversizedRequestPassesWhenFull() {
+		TokenBucket bucket = new TokenBucket(1, 2);
+		assertTrue(bucket.tryAcquire(10));
+		// The bucket is in debt until the extra tokens are earned back
+		assertFalse(bucket.tryAcquire(1));
+	}
+
+	public void testTokensAreRefilled() throws Exception {
+		// 10 tokens per millisecond
+		TokenBucket bucket = new TokenBucket(600000, 10);
+		assertTrue(bucket.tryAcquire(10));
+		Thread.sleep(20);
+		assertTrue(bucket.tryAcquire(10));
+	}
+
+	public void testDeferralsQueueUpBehindEachOther() {
+		// One token per millisecond
+		TokenBucket bucket = new TokenBucket(60000, 1);
+		long before = System.currentTimeMillis();
+		long first = bucket.defer(100);
+		long second = bucket.defer(100);
+		long after = System.currentTimeMillis();
+
+		assertTrue(first >= before + 100 && first <= after + 100);
+		assertEquals(first + 100, second);
+	}
+}